@@ -0,0 +1,347 @@
+package gov.nasa.worldwind.formats.models;
+
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.render.DrawContext;
+import gov.nasa.worldwind.util.Logging;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules the loading of models on a bounded pool of background threads.
+ * <p>
+ * Unlike the World Wind task service, pending requests are ordered by
+ * priority, so that the models that appear largest on the screen load first.
+ * Renderables re-request their load every frame they are in view, which
+ * refreshes the request's priority; requests that haven't been renewed for
+ * {@link #getExpiryTime()} milliseconds (because the model left the view) are
+ * dropped when they reach the head of the queue instead of being loaded, and
+ * will be queued again if the model comes back into view. Requests can also
+ * be cancelled explicitly.
+ * <p>
+ * Loads that have started are never interrupted.
+ */
+public class ModelLoadScheduler
+{
+	/** Default number of models loaded at the same time */
+	public static final int DEFAULT_MAX_CONCURRENT_LOADS = Math.max(1, Math.min(4, Runtime.getRuntime()
+			.availableProcessors() - 1));
+	/** Default time after which an unrenewed request is dropped, in milliseconds */
+	public static final long DEFAULT_EXPIRY_TIME = 2000;
+
+	private static ModelLoadScheduler instance;
+
+	/**
+	 * @return The scheduler shared by the model renderables
+	 */
+	public static synchronized ModelLoadScheduler getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new ModelLoadScheduler(DEFAULT_MAX_CONCURRENT_LOADS);
+		}
+		return instance;
+	}
+
+	/**
+	 * Compute a load priority from the projected size of a model: the radius
+	 * of the model in pixels at its distance from the eye.
+	 *
+	 * @param dc
+	 *            Draw context
+	 * @param point
+	 *            Model's location in model coordinates
+	 * @param radius
+	 *            Model's (estimated) radius in meters
+	 * @return Load priority; higher priorities are loaded first
+	 */
+	public static double computePriority(DrawContext dc, Vec4 point, double radius)
+	{
+		double distance = point.distanceTo3(dc.getView().getEyePoint());
+		double pixelSize = dc.getView().computePixelSizeAtDistance(distance);
+		return pixelSize > 0 ? radius / pixelSize : Double.MAX_VALUE;
+	}
+
+	protected class Request implements Runnable, Comparable<Request>
+	{
+		protected final Object key;
+		protected final Runnable task;
+		protected final long requestTime = System.currentTimeMillis();
+		//priority by which the request is ordered in the queue; only changed while dequeued
+		protected double priority;
+		protected volatile double requestedPriority;
+		protected volatile long renewTime = requestTime;
+		protected boolean started = false;
+
+		public Request(Object key, Runnable task, double priority)
+		{
+			this.key = key;
+			this.task = task;
+			this.priority = priority;
+			this.requestedPriority = priority;
+		}
+
+		@Override
+		public int compareTo(Request o)
+		{
+			int result = Double.compare(o.priority, priority);
+			return result != 0 ? result : requestTime < o.requestTime ? -1 : requestTime > o.requestTime ? 1 : 0;
+		}
+
+		@Override
+		public void run()
+		{
+			long start = System.currentTimeMillis();
+			synchronized (this)
+			{
+				if (start - renewTime > expiryTime)
+				{
+					requests.remove(key, this);
+					expiredCount.incrementAndGet();
+					return;
+				}
+				started = true;
+			}
+
+			waitTime.addAndGet(start - requestTime);
+			try
+			{
+				task.run();
+			}
+			catch (Exception e)
+			{
+				String message = "Error loading model " + key + ": " + e.getMessage();
+				Logging.logger().severe(message);
+			}
+			finally
+			{
+				requests.remove(key, this);
+				loadTime.addAndGet(System.currentTimeMillis() - start);
+				completedCount.incrementAndGet();
+			}
+		}
+	}
+
+	private final ThreadPoolExecutor executor;
+	private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<Runnable>();
+	private final ConcurrentHashMap<Object, Request> requests = new ConcurrentHashMap<Object, Request>();
+	private volatile long expiryTime = DEFAULT_EXPIRY_TIME;
+
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong completedCount = new AtomicLong();
+	private final AtomicLong expiredCount = new AtomicLong();
+	private final AtomicLong cancelledCount = new AtomicLong();
+	private final AtomicLong waitTime = new AtomicLong();
+	private final AtomicLong loadTime = new AtomicLong();
+
+	public ModelLoadScheduler(int maxConcurrentLoads)
+	{
+		executor =
+				new ThreadPoolExecutor(maxConcurrentLoads, maxConcurrentLoads, 60, TimeUnit.SECONDS, queue,
+						new ThreadFactory()
+						{
+							private int count = 0;
+
+							@Override
+							public synchronized Thread newThread(Runnable r)
+							{
+								Thread thread = new Thread(r, "Model loader " + (++count));
+								thread.setDaemon(true);
+								thread.setPriority(Thread.MIN_PRIORITY);
+								return thread;
+							}
+						});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Request a load, or renew the existing request for the same key. Should
+	 * be called every frame the model is in view, until the load has started.
+	 *
+	 * @param key
+	 *            Object identifying the load, usually the renderable
+	 * @param task
+	 *            Load to perform; ignored if a request for the key is already
+	 *            pending
+	 * @param priority
+	 *            Priority of the load, see
+	 *            {@link #computePriority(DrawContext, Vec4, double)}
+	 */
+	public void request(Object key, Runnable task, double priority)
+	{
+		Request request = requests.get(key);
+		if (request == null)
+		{
+			request = new Request(key, task, priority);
+			if (requests.putIfAbsent(key, request) == null)
+			{
+				requestCount.incrementAndGet();
+				executor.execute(request);
+				return;
+			}
+			request = requests.get(key);
+			if (request == null)
+				return;
+		}
+
+		synchronized (request)
+		{
+			request.renewTime = System.currentTimeMillis();
+			request.requestedPriority = priority;
+			//only reorder the queue when the priority has changed significantly
+			if (!request.started && Math.abs(priority - request.priority) > 0.25 * Math.abs(request.priority))
+			{
+				if (queue.remove(request))
+				{
+					request.priority = priority;
+					queue.add(request);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Cancel the pending request for a key. Has no effect if the load has
+	 * already started.
+	 *
+	 * @param key
+	 *            Object identifying the load
+	 */
+	public void cancel(Object key)
+	{
+		Request request = requests.get(key);
+		if (request == null)
+			return;
+
+		synchronized (request)
+		{
+			if (!request.started && queue.remove(request))
+			{
+				requests.remove(key, request);
+				cancelledCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 *            Object identifying the load
+	 * @return true if a load for the key is pending or running
+	 */
+	public boolean isRequested(Object key)
+	{
+		return requests.containsKey(key);
+	}
+
+	public int getMaxConcurrentLoads()
+	{
+		return executor.getMaximumPoolSize();
+	}
+
+	public void setMaxConcurrentLoads(int maxConcurrentLoads)
+	{
+		if (maxConcurrentLoads < 1)
+		{
+			String msg = Logging.getMessage("generic.ArgumentOutOfRange", maxConcurrentLoads);
+			Logging.logger().severe(msg);
+			throw new IllegalArgumentException(msg);
+		}
+
+		if (maxConcurrentLoads > executor.getMaximumPoolSize())
+		{
+			executor.setMaximumPoolSize(maxConcurrentLoads);
+			executor.setCorePoolSize(maxConcurrentLoads);
+		}
+		else
+		{
+			executor.setCorePoolSize(maxConcurrentLoads);
+			executor.setMaximumPoolSize(maxConcurrentLoads);
+		}
+	}
+
+	public long getExpiryTime()
+	{
+		return expiryTime;
+	}
+
+	/**
+	 * @param expiryTime
+	 *            Time in milliseconds after which a request that hasn't been
+	 *            renewed is dropped
+	 */
+	public void setExpiryTime(long expiryTime)
+	{
+		this.expiryTime = expiryTime;
+	}
+
+	/**
+	 * @return Number of requests waiting to be loaded (including expired
+	 *         requests that haven't been dropped yet)
+	 */
+	public int getQueueDepth()
+	{
+		return queue.size();
+	}
+
+	/**
+	 * @return Number of loads currently running
+	 */
+	public int getActiveLoads()
+	{
+		return executor.getActiveCount();
+	}
+
+	public long getRequestCount()
+	{
+		return requestCount.get();
+	}
+
+	public long getCompletedCount()
+	{
+		return completedCount.get();
+	}
+
+	/**
+	 * @return Number of requests dropped because they weren't renewed
+	 */
+	public long getExpiredCount()
+	{
+		return expiredCount.get();
+	}
+
+	public long getCancelledCount()
+	{
+		return cancelledCount.get();
+	}
+
+	/**
+	 * @return Average time in milliseconds between the first request and the
+	 *         start of the completed loads
+	 */
+	public double getAverageWaitTime()
+	{
+		long completed = completedCount.get();
+		return completed == 0 ? 0 : (double) waitTime.get() / completed;
+	}
+
+	/**
+	 * @return Average duration of the completed loads in milliseconds
+	 */
+	public double getAverageLoadTime()
+	{
+		long completed = completedCount.get();
+		return completed == 0 ? 0 : (double) loadTime.get() / completed;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ModelLoadScheduler[queued=" + getQueueDepth() + ", active=" + getActiveLoads() + ", completed="
+				+ getCompletedCount() + ", expired=" + getExpiredCount() + ", cancelled=" + getCancelledCount()
+				+ ", averageWait=" + getAverageWaitTime() + "ms, averageLoad=" + getAverageLoadTime() + "ms]";
+	}
+}
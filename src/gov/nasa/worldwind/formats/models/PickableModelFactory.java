@@ -9,8 +9,7 @@
 
 package gov.nasa.worldwind.formats.models;
 
-import java.util.HashMap;
-
+import net.java.joglutils.model.ModelCache;
 import net.java.joglutils.model.ModelFactory;
 import net.java.joglutils.model.ModelLoadException;
 import net.java.joglutils.model.geometry.Model;
@@ -24,20 +23,24 @@ import net.java.joglutils.model.loader.LoaderFactory;
  */
 public class PickableModelFactory extends ModelFactory
 {
-	private static HashMap<Object, Model> modelCache = new HashMap<Object, Model>();
-
-	public static Model createModel(String source) throws ModelLoadException
+	private static final ModelCache modelCache = new ModelCache(new ModelCache.Loader()
 	{
-		Model model = modelCache.get(source);
-		if (model == null)
+		public Model load(String source) throws ModelLoadException
 		{
-			model = PickableLoaderFactory.load(source);
-			modelCache.put(source, model);
+			return PickableLoaderFactory.load(source);
 		}
+	});
 
-		if (model == null)
-			throw new ModelLoadException();
+	public static Model createModel(String source) throws ModelLoadException
+	{
+		return modelCache.get(source);
+	}
 
-		return model;
+	/**
+	 * @return The cache of the models created by this factory
+	 */
+	public static ModelCache getModelCache()
+	{
+		return modelCache;
 	}
 }
@@ -14,20 +14,13 @@ import gov.nasa.worldwind.formats.models.PickableModel;
 import gov.nasa.worldwind.render.DrawContext;
 
 import java.io.File;
-import java.net.URL;
 
 import net.java.joglutils.model.ModelLoadException;
 import net.java.joglutils.model.geometry.Model;
 import net.java.joglutils.model.loader.iLoader;
 
-import com.ardor3d.bounding.BoundingVolume;
 import com.ardor3d.extension.model.collada.jdom.ColladaImporter;
 import com.ardor3d.extension.model.collada.jdom.data.ColladaStorage;
-import com.ardor3d.image.util.AWTImageLoader;
-import com.ardor3d.renderer.Camera;
-import com.ardor3d.renderer.ContextManager;
-import com.ardor3d.renderer.RenderContext;
-import com.ardor3d.renderer.jogl.JoglContextCapabilities;
 import com.ardor3d.util.resource.ResourceLocatorTool;
 import com.ardor3d.util.resource.SimpleResourceLocator;
 
@@ -39,62 +32,48 @@ import com.ardor3d.util.resource.SimpleResourceLocator;
  */
 public class ArdorColladaLoader implements iLoader
 {
-	private static final String CONTEXT_KEY = "HACKED CONTEXT";
-
 	public static ColladaNode loadColladaModel(String modelFileStr) throws Exception
 	{
 		final ColladaNode root = new ColladaNode("rootNode");
 
-		String modelDirStr = new File(modelFileStr).getParent();
-		String modelNameStr = new File(modelFileStr).getName();
-
-		File modelDir = new File(modelDirStr);
-		modelDirStr = modelDir.getAbsolutePath();
-
-		ColladaImporter importer = new ColladaImporter();
-		importer.setLoadAnimations(false);
+		File modelFile = new File(modelFileStr);
+		String modelNameStr = modelFile.getName();
+		File modelDir = modelFile.getAbsoluteFile().getParentFile();
 
-		SimpleResourceLocator modelLocator = new SimpleResourceLocator(new URL("file:" + modelDirStr));
-		SimpleResourceLocator textureLocator = new SimpleResourceLocator(new URL("file:" + modelDirStr));
-		importer.setModelLocator(modelLocator);
-		importer.setTextureLocator(textureLocator);
+		SimpleResourceLocator modelLocator =
+				ColladaLoaderService.registerLocator(ResourceLocatorTool.TYPE_MODEL, modelDir);
+		SimpleResourceLocator textureLocator =
+				ColladaLoaderService.registerLocator(ResourceLocatorTool.TYPE_TEXTURE, modelDir);
 
-		ResourceLocatorTool.addResourceLocator(ResourceLocatorTool.TYPE_MODEL, modelLocator);
-		ResourceLocatorTool.addResourceLocator(ResourceLocatorTool.TYPE_TEXTURE, textureLocator);
+		ColladaNode cached = ColladaBinaryCache.read(new File(modelFileStr));
+		if (cached != null)
+		{
+			cached.updateGeometricState(0);
+			ColladaLoaderService.applyTexturePolicy(cached);
+			return cached;
+		}
 
+		ColladaImporter importer = ColladaLoaderService.getImporter(modelLocator, textureLocator);
 		ColladaStorage storage = importer.load(modelNameStr);
 		root.attachChild(storage.getScene());
 		root.setAssetData(storage.getAssetData());
-
 		root.updateGeometricState(0);
+		ColladaLoaderService.applyTexturePolicy(root);
+		ColladaBinaryCache.write(new File(modelFileStr), root);
 		return root;
 	}
 
+	/**
+	 * Make the Ardor3D render context of the draw context's OpenGL context
+	 * current.
+	 * 
+	 * @param dc
+	 *            Draw context
+	 * @see ArdorContextRegistry#makeCurrent(DrawContext)
+	 */
 	public static void initializeArdorSystem(final DrawContext dc)
 	{
-		if (ContextManager.getContextForKey(CONTEXT_KEY) != null)
-		{
-			ContextManager.switchContext(CONTEXT_KEY);
-			return;
-		}
-
-		final JoglContextCapabilities caps = new JoglContextCapabilities(dc.getGL());
-		final RenderContext rc = new RenderContext(dc.getGLContext(), caps);
-
-		ContextManager.addContext(CONTEXT_KEY, rc);
-		ContextManager.switchContext(CONTEXT_KEY);
-		
-		//disable Ardor3d's frustum culling, as we don't use Ardor3d's camera system:
-		Camera cam = new Camera()
-		{
-			@Override
-			public FrustumIntersect contains(BoundingVolume bound)
-			{
-				return FrustumIntersect.Inside;
-			}
-		};
-		ContextManager.getCurrentContext().setCurrentCamera(cam);
-		AWTImageLoader.registerLoader();
+		ArdorContextRegistry.makeCurrent(dc);
 	}
 
 	@Override
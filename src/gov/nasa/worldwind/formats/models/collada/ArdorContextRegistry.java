@@ -0,0 +1,149 @@
+package gov.nasa.worldwind.formats.models.collada;
+
+import gov.nasa.worldwind.render.DrawContext;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.media.opengl.GLContext;
+
+import com.ardor3d.image.util.AWTImageLoader;
+import com.ardor3d.renderer.ContextManager;
+import com.ardor3d.renderer.RenderContext;
+import com.ardor3d.renderer.jogl.JoglContextCapabilities;
+
+/**
+ * Keeps one Ardor3D {@link RenderContext} per OpenGL context, so that models
+ * can be drawn in several World Wind windows without sharing Ardor3D's state
+ * records and texture ids between contexts. Each render context is created
+ * (and its capabilities queried) the first time a model is drawn with its
+ * OpenGL context, and is registered with the {@link ContextManager} using the
+ * {@link GLContext} as its key.
+ * <p>
+ * The context made current by the last call is remembered, so while a single
+ * window is drawing, {@link #makeCurrent(DrawContext)} only compares two
+ * references.
+ */
+public class ArdorContextRegistry
+{
+	protected static class Entry
+	{
+		protected final GLContext glContext;
+		protected final RenderContext renderContext;
+
+		public Entry(GLContext glContext, RenderContext renderContext)
+		{
+			this.glContext = glContext;
+			this.renderContext = renderContext;
+		}
+	}
+
+	private static final Map<GLContext, RenderContext> contexts = new HashMap<GLContext, RenderContext>();
+	private static volatile Entry current;
+	private static boolean imageLoaderRegistered = false;
+
+	/**
+	 * Make the Ardor3D render context of the draw context's OpenGL context
+	 * current, creating it if this is the first time the OpenGL context is
+	 * used.
+	 *
+	 * @param dc
+	 *            Draw context
+	 * @return The current render context
+	 */
+	public static RenderContext makeCurrent(DrawContext dc)
+	{
+		GLContext glContext = dc.getGLContext();
+		Entry entry = current;
+		if (entry != null && entry.glContext == glContext && ContextManager.getCurrentContext() == entry.renderContext)
+			return entry.renderContext;
+
+		RenderContext renderContext;
+		synchronized (contexts)
+		{
+			renderContext = contexts.get(glContext);
+			if (renderContext == null)
+			{
+				renderContext = createContext(dc);
+				contexts.put(glContext, renderContext);
+				ContextManager.addContext(glContext, renderContext);
+			}
+			if (!imageLoaderRegistered)
+			{
+				AWTImageLoader.registerLoader();
+				imageLoaderRegistered = true;
+			}
+		}
+
+		if (ContextManager.getCurrentContext() != renderContext)
+		{
+			ContextManager.switchContext(glContext);
+		}
+		current = new Entry(glContext, renderContext);
+		return renderContext;
+	}
+
+	/**
+	 * Use an existing render context for an OpenGL context, instead of
+	 * creating one the first time the OpenGL context is used.
+	 *
+	 * @param glContext
+	 *            OpenGL context
+	 * @param renderContext
+	 *            Render context to use with it
+	 */
+	public static void addContext(GLContext glContext, RenderContext renderContext)
+	{
+		synchronized (contexts)
+		{
+			contexts.put(glContext, renderContext);
+			ContextManager.addContext(glContext, renderContext);
+		}
+	}
+
+	protected static RenderContext createContext(DrawContext dc)
+	{
+		JoglContextCapabilities caps = new JoglContextCapabilities(dc.getGL());
+		RenderContext renderContext = new RenderContext(dc.getGLContext(), caps);
+
+		//Ardor3d's camera system isn't used, the models set the frustum planes to cull against
+		renderContext.setCurrentCamera(new ColladaCullingCamera());
+		return renderContext;
+	}
+
+	/**
+	 * Forget the render context of an OpenGL context, for example when its
+	 * window is closed.
+	 *
+	 * @param glContext
+	 *            OpenGL context that is no longer used
+	 */
+	public static void remove(GLContext glContext)
+	{
+		synchronized (contexts)
+		{
+			RenderContext renderContext = contexts.remove(glContext);
+			if (renderContext != null)
+			{
+				ContextManager.removeContext(glContext);
+				TextureUnitTracker.remove(renderContext);
+			}
+		}
+		Entry entry = current;
+		if (entry != null && entry.glContext == glContext)
+		{
+			current = null;
+		}
+	}
+
+	/**
+	 * @return Number of OpenGL contexts that have a render context
+	 */
+	public static int getContextCount()
+	{
+		synchronized (contexts)
+		{
+			return contexts.size();
+		}
+	}
+}
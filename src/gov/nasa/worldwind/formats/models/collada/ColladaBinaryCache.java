@@ -0,0 +1,168 @@
+package gov.nasa.worldwind.formats.models.collada;
+
+import gov.nasa.worldwind.WorldWind;
+import gov.nasa.worldwind.util.Logging;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.ardor3d.util.export.Savable;
+import com.ardor3d.util.export.binary.BinaryExporter;
+import com.ardor3d.util.export.binary.BinaryImporter;
+
+/**
+ * On-disk cache of imported COLLADA models. The {@link ColladaNode} created by
+ * the {@link com.ardor3d.extension.model.collada.jdom.ColladaImporter} is
+ * stored using Ardor3D's binary export format, so that subsequent loads of
+ * the same file can skip the XML parsing.
+ * <p>
+ * Cache entries are keyed by the absolute path, size and modification time
+ * of the COLLADA file; an entry is ignored (and rewritten) when any of these
+ * change.
+ */
+public class ColladaBinaryCache
+{
+	private static final int MAGIC = 0x41424443; // "ABDC"
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".ardor";
+
+	private static boolean enabled = true;
+	private static File cacheDirectory;
+
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enabled)
+	{
+		ColladaBinaryCache.enabled = enabled;
+	}
+
+	/**
+	 * @return Directory containing the cached models. Defaults to a
+	 *         subdirectory of the World Wind file store's write location.
+	 */
+	public static synchronized File getCacheDirectory()
+	{
+		if (cacheDirectory == null)
+		{
+			cacheDirectory = new File(WorldWind.getDataFileStore().getWriteLocation(), "ColladaCache");
+		}
+		return cacheDirectory;
+	}
+
+	public static synchronized void setCacheDirectory(File cacheDirectory)
+	{
+		ColladaBinaryCache.cacheDirectory = cacheDirectory;
+	}
+
+	/**
+	 * Read the cached model for a COLLADA file.
+	 *
+	 * @param modelFile
+	 *            COLLADA file
+	 * @return Cached model, or null if there is no up to date cache entry for
+	 *         the file
+	 */
+	public static ColladaNode read(File modelFile)
+	{
+		if (!enabled || !modelFile.isFile())
+			return null;
+
+		File cacheFile = getCacheFile(modelFile);
+		if (!cacheFile.isFile())
+			return null;
+
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+			try
+			{
+				if (in.readInt() != MAGIC || in.readInt() != VERSION)
+					return null;
+
+				if (!getKey(modelFile).equals(in.readUTF()) || in.readLong() != modelFile.length()
+						|| in.readLong() != modelFile.lastModified())
+					return null;
+
+				Savable savable = new BinaryImporter().load(in);
+				return savable instanceof ColladaNode ? (ColladaNode) savable : null;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (Exception e)
+		{
+			String message = "Error reading COLLADA cache file " + cacheFile + ": " + e.getMessage();
+			Logging.logger().warning(message);
+			cacheFile.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Write a model to the cache.
+	 *
+	 * @param modelFile
+	 *            COLLADA file the model was imported from
+	 * @param node
+	 *            Imported model
+	 */
+	public static void write(File modelFile, ColladaNode node)
+	{
+		if (!enabled || !modelFile.isFile())
+			return;
+
+		File cacheFile = getCacheFile(modelFile);
+		File tempFile = new File(cacheFile.getPath() + ".tmp" + Thread.currentThread().getId());
+		try
+		{
+			cacheFile.getParentFile().mkdirs();
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile));
+			try
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(getKey(modelFile));
+				out.writeLong(modelFile.length());
+				out.writeLong(modelFile.lastModified());
+				new BinaryExporter().save(node, out);
+			}
+			finally
+			{
+				out.close();
+			}
+
+			// replace any stale entry, so that readers never see a partial file
+			cacheFile.delete();
+			if (!tempFile.renameTo(cacheFile))
+				tempFile.delete();
+		}
+		catch (IOException e)
+		{
+			String message = "Error writing COLLADA cache file " + cacheFile + ": " + e.getMessage();
+			Logging.logger().warning(message);
+			tempFile.delete();
+		}
+	}
+
+	private static String getKey(File modelFile)
+	{
+		return modelFile.getAbsolutePath();
+	}
+
+	private static File getCacheFile(File modelFile)
+	{
+		String key = getKey(modelFile);
+		String name = modelFile.getName() + "-" + Integer.toHexString(key.hashCode()) + SUFFIX;
+		return new File(getCacheDirectory(), name);
+	}
+}
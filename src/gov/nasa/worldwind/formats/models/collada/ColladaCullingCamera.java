@@ -0,0 +1,134 @@
+package gov.nasa.worldwind.formats.models.collada;
+
+import com.ardor3d.bounding.BoundingBox;
+import com.ardor3d.bounding.BoundingSphere;
+import com.ardor3d.bounding.BoundingVolume;
+import com.ardor3d.math.type.ReadOnlyVector3;
+import com.ardor3d.renderer.Camera;
+import com.ardor3d.renderer.ContextManager;
+import com.ardor3d.renderer.RenderContext;
+
+/**
+ * Camera installed in the Ardor3D render contexts, which culls the children
+ * of a model's scene graph against the World Wind view frustum. Ardor3D's
+ * camera system isn't used, as World Wind sets up the OpenGL matrices, so
+ * the frustum planes are given in the model's coordinates by
+ * {@link ColladaModel} before each model is drawn, with
+ * {@link #setPlanes(double[])}.
+ * <p>
+ * Ardor3D calls {@link #contains(BoundingVolume)} for each spatial under the
+ * drawn node, and skips the spatials whose bounds are outside, along with
+ * their children. {@link BoundingSphere}s and {@link BoundingBox}es are
+ * tested; other bounds are never culled.
+ */
+public class ColladaCullingCamera extends Camera
+{
+	//nx, ny, nz, d of each plane, with normals pointing inside the frustum
+	private final double[] planes = new double[24];
+	private boolean culling = false;
+
+	private long testCount;
+	private long culledCount;
+
+	/**
+	 * @return The camera of the current render context, or null if it isn't
+	 *         a culling camera
+	 */
+	public static ColladaCullingCamera getCurrent()
+	{
+		RenderContext context = ContextManager.getCurrentContext();
+		Camera camera = context == null ? null : context.getCurrentCamera();
+		return camera instanceof ColladaCullingCamera ? (ColladaCullingCamera) camera : null;
+	}
+
+	/**
+	 * Set the frustum planes, in the coordinates of the bounds of the
+	 * spatials that will be drawn.
+	 *
+	 * @param planes
+	 *            The normal (pointing inside the frustum) and distance of six
+	 *            planes; the normals must be unit length
+	 */
+	public void setPlanes(double[] planes)
+	{
+		System.arraycopy(planes, 0, this.planes, 0, this.planes.length);
+		culling = true;
+	}
+
+	/**
+	 * Stop culling: all bounds are considered inside until the planes are set
+	 * again.
+	 */
+	public void disableCulling()
+	{
+		culling = false;
+	}
+
+	public boolean isCulling()
+	{
+		return culling;
+	}
+
+	@Override
+	public FrustumIntersect contains(BoundingVolume bound)
+	{
+		if (!culling)
+			return FrustumIntersect.Inside;
+
+		double ex, ey, ez;
+		boolean sphere;
+		if (bound instanceof BoundingSphere)
+		{
+			ex = ey = ez = ((BoundingSphere) bound).getRadius();
+			sphere = true;
+		}
+		else if (bound instanceof BoundingBox)
+		{
+			BoundingBox box = (BoundingBox) bound;
+			ex = box.getXExtent();
+			ey = box.getYExtent();
+			ez = box.getZExtent();
+			sphere = false;
+		}
+		else
+		{
+			return FrustumIntersect.Intersects;
+		}
+
+		testCount++;
+		ReadOnlyVector3 center = bound.getCenter();
+		FrustumIntersect result = FrustumIntersect.Inside;
+		for (int i = 0; i < planes.length; i += 4)
+		{
+			double nx = planes[i], ny = planes[i + 1], nz = planes[i + 2];
+			double distance = nx * center.getX() + ny * center.getY() + nz * center.getZ() + planes[i + 3];
+			double radius = sphere ? ex : Math.abs(nx) * ex + Math.abs(ny) * ey + Math.abs(nz) * ez;
+			if (distance < -radius)
+			{
+				culledCount++;
+				return FrustumIntersect.Outside;
+			}
+			if (distance < radius)
+			{
+				result = FrustumIntersect.Intersects;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return Number of bounds tested against the planes
+	 */
+	public long getTestCount()
+	{
+		return testCount;
+	}
+
+	/**
+	 * @return Number of bounds found outside the planes
+	 */
+	public long getCulledCount()
+	{
+		return culledCount;
+	}
+}
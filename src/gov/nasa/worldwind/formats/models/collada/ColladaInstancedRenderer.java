@@ -0,0 +1,431 @@
+package gov.nasa.worldwind.formats.models.collada;
+
+import gov.nasa.worldwind.render.DrawContext;
+import gov.nasa.worldwind.util.Logging;
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GLContext;
+
+import com.ardor3d.math.Matrix4;
+import com.ardor3d.math.Transform;
+import com.ardor3d.renderer.ContextManager;
+import com.ardor3d.renderer.IndexMode;
+import com.ardor3d.renderer.Renderer;
+import com.ardor3d.renderer.state.RenderState;
+import com.ardor3d.renderer.state.RenderState.StateType;
+import com.ardor3d.renderer.state.TextureState;
+import com.ardor3d.scene.state.jogl.util.JoglRendererUtil;
+import com.ardor3d.scenegraph.IndexBufferData;
+import com.ardor3d.scenegraph.Mesh;
+import com.ardor3d.scenegraph.MeshData;
+import com.ardor3d.scenegraph.Node;
+import com.ardor3d.scenegraph.Spatial;
+import com.ardor3d.scenegraph.hint.DataMode;
+import com.ardor3d.util.geom.BufferUtils;
+
+/**
+ * Draws groups of {@link ColladaModel}s that share the same source file using
+ * hardware instancing (<code>GL_EXT_draw_instanced</code>). The meshes of one
+ * model of the group are used as a prototype; the placement matrices of all
+ * the models are uploaded as a uniform array, and each mesh is drawn once per
+ * chunk of instances, so the number of draw calls no longer grows with the
+ * number of models.
+ * <p>
+ * The shader emulates the fixed function lighting set up by
+ * {@link ColladaModel#pushState(DrawContext, float[])}, with a single
+ * positional light, and modulates the first texture unit.
+ */
+public class ColladaInstancedRenderer
+{
+	/** Groups with fewer models than this are not worth instancing */
+	public static final int MIN_INSTANCES = 4;
+	/** Upper limit on the number of instances drawn by each draw call */
+	public static final int MAX_INSTANCES_PER_DRAW = 64;
+
+	private static final String VERTEX_SHADER = "#version 120\n" //
+			+ "#extension GL_EXT_draw_instanced : enable\n" //
+			+ "uniform mat4 instanceMatrices[INSTANCES];\n" //
+			+ "uniform mat4 meshMatrix;\n" //
+			+ "uniform bool lighting;\n" //
+			+ "varying vec4 color;\n" //
+			+ "void main()\n" //
+			+ "{\n" //
+			+ "    mat4 m = instanceMatrices[gl_InstanceIDEXT] * meshMatrix;\n" //
+			+ "    vec4 eyePosition = gl_ModelViewMatrix * (m * gl_Vertex);\n" //
+			+ "    if (lighting)\n" //
+			+ "    {\n" //
+			+ "        vec3 n = normalize(gl_NormalMatrix * (mat3(m[0].xyz, m[1].xyz, m[2].xyz) * gl_Normal));\n" //
+			+ "        vec3 l = normalize(gl_LightSource[1].position.xyz - eyePosition.xyz);\n" //
+			+ "        color = gl_FrontLightModelProduct.sceneColor + gl_FrontLightProduct[1].ambient\n" //
+			+ "                + gl_FrontLightProduct[1].diffuse * max(dot(n, l), 0.0);\n" //
+			+ "        color.a = gl_FrontMaterial.diffuse.a;\n" //
+			+ "    }\n" //
+			+ "    else\n" //
+			+ "    {\n" //
+			+ "        color = gl_Color;\n" //
+			+ "    }\n" //
+			+ "    gl_TexCoord[0] = gl_MultiTexCoord0;\n" //
+			+ "    gl_Position = gl_ProjectionMatrix * eyePosition;\n" //
+			+ "}\n";
+
+	private static final String FRAGMENT_SHADER = "#version 120\n" //
+			+ "uniform sampler2D texture0;\n" //
+			+ "uniform bool textured;\n" //
+			+ "varying vec4 color;\n" //
+			+ "void main()\n" //
+			+ "{\n" //
+			+ "    gl_FragColor = textured ? color * texture2D(texture0, gl_TexCoord[0].st) : color;\n" //
+			+ "}\n";
+
+	/**
+	 * Meshes of a prototype node, with their transforms relative to the node.
+	 */
+	protected static class Prototype
+	{
+		//model the node belongs to
+		protected final ColladaModel model;
+		protected final List<Mesh> meshes = new ArrayList<Mesh>();
+		protected final List<float[]> meshMatrices = new ArrayList<float[]>();
+		protected boolean instanceable;
+
+		public Prototype(ColladaModel model)
+		{
+			this.model = model;
+		}
+	}
+
+	protected GLContext context;
+	protected boolean supported;
+	protected int program;
+	protected int instancesPerDraw;
+	protected int instanceMatricesLocation;
+	protected int meshMatrixLocation;
+	protected int lightingLocation;
+	protected int texturedLocation;
+	protected int textureLocation;
+	protected FloatBuffer instanceMatrices;
+
+	//the meshes reference their node, so the prototypes are removed with remove(ColladaModel)
+	protected final Map<Node, Prototype> prototypes = new HashMap<Node, Prototype>();
+
+	/**
+	 * @param dc
+	 *            Draw context
+	 * @return true if the current OpenGL context supports instanced drawing
+	 */
+	public boolean isSupported(DrawContext dc)
+	{
+		if (context != dc.getGLContext())
+		{
+			context = dc.getGLContext();
+			initialize(dc.getGL());
+		}
+		return supported;
+	}
+
+	protected void initialize(GL gl)
+	{
+		supported = false;
+		program = 0;
+		if (!gl.isExtensionAvailable("GL_EXT_draw_instanced") || !gl.isFunctionAvailable("glUseProgram"))
+			return;
+
+		int[] maxComponents = new int[1];
+		gl.glGetIntegerv(GL.GL_MAX_VERTEX_UNIFORM_COMPONENTS, maxComponents, 0);
+		//leave room for the mesh matrix and the built-in uniforms
+		instancesPerDraw = Math.min(MAX_INSTANCES_PER_DRAW, (maxComponents[0] - 64) / 16);
+		if (instancesPerDraw < MIN_INSTANCES)
+			return;
+
+		int vertexShader = compileShader(gl, GL.GL_VERTEX_SHADER, //
+				VERTEX_SHADER.replace("INSTANCES", String.valueOf(instancesPerDraw)));
+		int fragmentShader = compileShader(gl, GL.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+		if (vertexShader == 0 || fragmentShader == 0)
+			return;
+
+		program = gl.glCreateProgram();
+		gl.glAttachShader(program, vertexShader);
+		gl.glAttachShader(program, fragmentShader);
+		gl.glLinkProgram(program);
+		gl.glDeleteShader(vertexShader);
+		gl.glDeleteShader(fragmentShader);
+
+		int[] status = new int[1];
+		gl.glGetProgramiv(program, GL.GL_LINK_STATUS, status, 0);
+		if (status[0] == 0)
+		{
+			Logging.logger().warning("Failed to link the instancing shader, instancing disabled");
+			gl.glDeleteProgram(program);
+			program = 0;
+			return;
+		}
+
+		instanceMatricesLocation = gl.glGetUniformLocation(program, "instanceMatrices");
+		meshMatrixLocation = gl.glGetUniformLocation(program, "meshMatrix");
+		lightingLocation = gl.glGetUniformLocation(program, "lighting");
+		texturedLocation = gl.glGetUniformLocation(program, "textured");
+		textureLocation = gl.glGetUniformLocation(program, "texture0");
+		instanceMatrices = BufferUtils.createFloatBuffer(16 * instancesPerDraw);
+		prototypes.clear();
+		supported = true;
+	}
+
+	protected static int compileShader(GL gl, int type, String source)
+	{
+		int shader = gl.glCreateShader(type);
+		gl.glShaderSource(shader, 1, new String[] { source }, new int[] { source.length() }, 0);
+		gl.glCompileShader(shader);
+
+		int[] status = new int[1];
+		gl.glGetShaderiv(shader, GL.GL_COMPILE_STATUS, status, 0);
+		if (status[0] == 0)
+		{
+			Logging.logger().warning("Failed to compile the instancing shader, instancing disabled");
+			gl.glDeleteShader(shader);
+			return 0;
+		}
+		return shader;
+	}
+
+	/**
+	 * Draw a group of models that share the same source file and level of
+	 * detail.
+	 *
+	 * @param dc
+	 *            Draw context
+	 * @param renderer
+	 *            Renderer used to apply the meshes' render states
+	 * @param models
+	 *            List of models prepared by
+	 *            {@link ColladaModel#prepareBatchDraw(DrawContext, gov.nasa.worldwind.geom.Vec4)}
+	 * @param start
+	 *            Index of the first model of the group
+	 * @param end
+	 *            Index after the last model of the group
+	 * @return false if the group can't be instanced, in which case nothing is
+	 *         drawn
+	 */
+	public boolean draw(DrawContext dc, Renderer renderer, List<ColladaModel> models, int start, int end)
+	{
+		if (program == 0 || end - start < MIN_INSTANCES)
+			return false;
+
+		Prototype prototype = getPrototype(models.get(start));
+		if (prototype == null)
+			return false;
+
+		GL gl = dc.getGL();
+		for (int i = 0; i < prototype.meshes.size(); i++)
+		{
+			Mesh mesh = prototype.meshes.get(i);
+			MeshData meshData = mesh.getMeshData();
+
+			for (StateType type : StateType.values)
+			{
+				if (type != StateType.GLSLShader && type != StateType.FragmentProgram
+						&& type != StateType.VertexProgram)
+				{
+					renderer.applyState(type, mesh.getWorldRenderState(type));
+				}
+			}
+			if (meshData.getColorCoords() == null)
+			{
+				renderer.applyDefaultColor(mesh.getDefaultColor());
+			}
+			if (mesh.getSceneHints().getDataMode() == DataMode.VBO
+					&& ContextManager.getCurrentContext().getCapabilities().isVBOSupported())
+			{
+				renderer.setupVertexDataVBO(meshData.getVertexCoords());
+				renderer.setupNormalDataVBO(meshData.getNormalCoords());
+				renderer.setupColorDataVBO(meshData.getColorCoords());
+				renderer.setupTextureDataVBO(meshData.getTextureCoords());
+				//the indices are read from client memory
+				JoglRendererUtil.setBoundElementVBO(ContextManager.getCurrentContext().getRendererRecord(), 0);
+			}
+			else
+			{
+				renderer.unbindVBO();
+				renderer.setupVertexData(meshData.getVertexCoords());
+				renderer.setupNormalData(meshData.getNormalCoords());
+				renderer.setupColorData(meshData.getColorCoords());
+				renderer.setupTextureData(meshData.getTextureCoords());
+			}
+
+			RenderState lightState = mesh.getWorldRenderState(StateType.Light);
+			RenderState textureState = mesh.getWorldRenderState(StateType.Texture);
+			boolean textured =
+					textureState != null && textureState.isEnabled()
+							&& ((TextureState) textureState).getTexture(0) != null;
+
+			gl.glUseProgram(program);
+			gl.glUniformMatrix4fv(meshMatrixLocation, 1, false, prototype.meshMatrices.get(i), 0);
+			gl.glUniform1i(lightingLocation, lightState != null && lightState.isEnabled() ? 1 : 0);
+			gl.glUniform1i(texturedLocation, textured ? 1 : 0);
+			gl.glUniform1i(textureLocation, 0);
+
+			for (int chunk = start; chunk < end; chunk += instancesPerDraw)
+			{
+				int count = Math.min(instancesPerDraw, end - chunk);
+				instanceMatrices.clear();
+				for (int j = chunk; j < chunk + count; j++)
+				{
+					instanceMatrices.put(models.get(j).batchMatrix);
+				}
+				instanceMatrices.flip();
+				gl.glUniformMatrix4fv(instanceMatricesLocation, count, false, instanceMatrices);
+				drawElements(gl, meshData, count);
+			}
+
+			gl.glUseProgram(0);
+		}
+		return true;
+	}
+
+	protected static void drawElements(GL gl, MeshData meshData, int instances)
+	{
+		IndexBufferData<?> indices = meshData.getIndices();
+		int[] lengths = meshData.getIndexLengths();
+		if (indices == null)
+		{
+			int first = 0;
+			int sections = lengths == null ? 1 : lengths.length;
+			for (int i = 0; i < sections; i++)
+			{
+				int count = lengths == null ? meshData.getVertexCount() : lengths[i];
+				gl.glDrawArraysInstancedEXT(getGLMode(meshData.getIndexMode(i)), first, count, instances);
+				first += count;
+			}
+			return;
+		}
+
+		Buffer buffer = indices.getBuffer();
+		int type =
+				buffer instanceof IntBuffer ? GL.GL_UNSIGNED_INT : buffer instanceof ShortBuffer
+						? GL.GL_UNSIGNED_SHORT : GL.GL_UNSIGNED_BYTE;
+		int offset = 0;
+		int sections = lengths == null ? 1 : lengths.length;
+		for (int i = 0; i < sections; i++)
+		{
+			int count = lengths == null ? buffer.limit() : lengths[i];
+			buffer.position(offset);
+			gl.glDrawElementsInstancedEXT(getGLMode(meshData.getIndexMode(i)), count, type, buffer, instances);
+			offset += count;
+		}
+		buffer.rewind();
+	}
+
+	protected static int getGLMode(IndexMode mode)
+	{
+		switch (mode)
+		{
+		case TriangleStrip:
+			return GL.GL_TRIANGLE_STRIP;
+		case TriangleFan:
+			return GL.GL_TRIANGLE_FAN;
+		case Quads:
+			return GL.GL_QUADS;
+		case QuadStrip:
+			return GL.GL_QUAD_STRIP;
+		case Lines:
+			return GL.GL_LINES;
+		case LineStrip:
+			return GL.GL_LINE_STRIP;
+		case LineLoop:
+			return GL.GL_LINE_LOOP;
+		case Points:
+			return GL.GL_POINTS;
+		default:
+			return GL.GL_TRIANGLES;
+		}
+	}
+
+	/**
+	 * @return The prototype for the node prepared for drawing by the given
+	 *         model, or null if the node contains meshes that can't be
+	 *         instanced
+	 */
+	protected Prototype getPrototype(ColladaModel model)
+	{
+		Node node = model.batchNode;
+		Prototype prototype = prototypes.get(node);
+		if (prototype == null)
+		{
+			prototype = new Prototype(model);
+			prototype.instanceable = collectMeshes(node, node, prototype);
+			if (!prototype.instanceable)
+			{
+				prototype.meshes.clear();
+				prototype.meshMatrices.clear();
+			}
+			prototypes.put(node, prototype);
+		}
+		return prototype.instanceable ? prototype : null;
+	}
+
+	/**
+	 * Forget the prototypes made of a model's nodes, so that the nodes can be
+	 * garbage collected. Called when the model is removed from its layer.
+	 * 
+	 * @param model
+	 *            Model that is no longer drawn
+	 */
+	public void remove(ColladaModel model)
+	{
+		for (Iterator<Prototype> iterator = prototypes.values().iterator(); iterator.hasNext();)
+		{
+			if (iterator.next().model == model)
+			{
+				iterator.remove();
+			}
+		}
+	}
+
+	protected static boolean collectMeshes(Node root, Spatial spatial, Prototype prototype)
+	{
+		if (spatial instanceof Node)
+		{
+			for (Spatial child : ((Node) spatial).getChildren())
+			{
+				if (!collectMeshes(root, child, prototype))
+					return false;
+			}
+		}
+		else if (spatial instanceof Mesh)
+		{
+			Mesh mesh = (Mesh) spatial;
+			//meshes stored in interleaved VBOs and meshes with their own shaders are drawn normally
+			if (mesh.getSceneHints().getDataMode() == DataMode.VBOInterleaved
+					|| mesh.getWorldRenderState(StateType.GLSLShader) != null)
+				return false;
+
+			//the mesh's transform relative to the root node, excluding the root's (batch) transform
+			Transform relative = new Transform();
+			for (Spatial s = mesh; s != root && s != null; s = s.getParent())
+			{
+				relative = s.getTransform().multiply(relative, null);
+			}
+
+			double[] matrix = new double[16];
+			relative.getHomogeneousMatrix(new Matrix4()).toArray(matrix, false);
+			float[] floats = new float[16];
+			for (int i = 0; i < 16; i++)
+			{
+				floats[i] = (float) matrix[i];
+			}
+
+			prototype.meshes.add(mesh);
+			prototype.meshMatrices.add(floats);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,401 @@
+package gov.nasa.worldwind.formats.models.collada;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.java.joglutils.model.loader.MeshSimplifier;
+
+import com.ardor3d.extension.animation.skeletal.SkinnedMesh;
+import com.ardor3d.image.Image;
+import com.ardor3d.image.ImageDataFormat;
+import com.ardor3d.image.ImageDataType;
+import com.ardor3d.image.Texture;
+import com.ardor3d.math.type.ReadOnlyColorRGBA;
+import com.ardor3d.renderer.IndexMode;
+import com.ardor3d.renderer.state.MaterialState;
+import com.ardor3d.renderer.state.RenderState;
+import com.ardor3d.renderer.state.RenderState.StateType;
+import com.ardor3d.renderer.state.TextureState;
+import com.ardor3d.scenegraph.FloatBufferData;
+import com.ardor3d.scenegraph.IndexBufferData;
+import com.ardor3d.scenegraph.Mesh;
+import com.ardor3d.scenegraph.MeshData;
+import com.ardor3d.scenegraph.Node;
+import com.ardor3d.scenegraph.Spatial;
+import com.ardor3d.util.geom.BufferUtils;
+
+/**
+ * Builds and selects the levels of detail of a {@link ColladaModel}.
+ * <p>
+ * The reduced levels are copies of the model's node in which the triangles
+ * of each mesh have been decimated with {@link MeshSimplifier}. The copies
+ * share the vertex data (and render states) of the full resolution node; only
+ * the index buffers are new. Meshes imported without indices are indexed
+ * first, by merging their identical vertices. Skinned meshes are not reduced.
+ * At render time a level is chosen from the
+ * projected radius of the model's bounding sphere in pixels, and below
+ * {@link ColladaModel#getImpostorPixelSize()} the model can be replaced by a
+ * single point of its average color.
+ */
+public class ColladaLevelOfDetail
+{
+	/** Level number returned by {@link #selectLevel(double, int)} for the impostor */
+	public static final int IMPOSTOR = -1;
+
+	/**
+	 * Fraction of the full resolution triangles kept by each reduced level.
+	 */
+	public static final float[] DEFAULT_REDUCTIONS = { 0.5f, 0.2f, 0.05f };
+	/**
+	 * Projected radius in pixels below which each reduced level is used,
+	 * corresponding to {@link #DEFAULT_REDUCTIONS}.
+	 */
+	public static final double[] DEFAULT_PIXEL_RADII = { 300, 120, 40 };
+
+	/** Meshes with fewer triangles than this are copied without decimation */
+	public static final int MIN_TRIANGLES = 32;
+
+	/**
+	 * Create the reduced levels of detail of a node, using the
+	 * {@link #DEFAULT_REDUCTIONS}.
+	 *
+	 * @param node
+	 *            Full resolution node, with its geometric state updated
+	 * @return Levels of detail; the first element is the given node
+	 */
+	public static Node[] createLevels(Node node)
+	{
+		return createLevels(node, DEFAULT_REDUCTIONS);
+	}
+
+	/**
+	 * Create the reduced levels of detail of a node.
+	 *
+	 * @param node
+	 *            Full resolution node, with its geometric state updated
+	 * @param reductions
+	 *            Fraction of the triangles kept by each reduced level, in
+	 *            decreasing order
+	 * @return Levels of detail; the first element is the given node
+	 */
+	public static Node[] createLevels(Node node, float[] reductions)
+	{
+		Node[] levels = new Node[reductions.length + 1];
+		levels[0] = node;
+		index(node);
+
+		//vertex positions and indices of each mesh, extracted once for all levels
+		Map<MeshData, float[]> positions = new HashMap<MeshData, float[]>();
+		Map<MeshData, int[]> indices = new HashMap<MeshData, int[]>();
+
+		for (int i = 0; i < reductions.length; i++)
+		{
+			Node level = new Node(node.getName() + "_lod" + (i + 1));
+			for (RenderState state : node.getLocalRenderStates().values())
+			{
+				level.setRenderState(state);
+			}
+			for (Spatial child : node.getChildren())
+			{
+				Spatial copy = child.makeCopy(true);
+				decimate(copy, reductions[i], positions, indices);
+				level.attachChild(copy);
+			}
+			level.updateGeometricState(0);
+			levels[i + 1] = level;
+		}
+		return levels;
+	}
+
+	/**
+	 * Merge the identical vertices of the unindexed triangle meshes under a
+	 * spatial, so that the simplifier can find the edges between triangles.
+	 * This replaces the indices of the meshes' data, so it must not run on
+	 * mesh data shared with spatials used by other threads; nodes whose
+	 * copies share their mesh data should be indexed once, before copying.
+	 *
+	 * @param spatial
+	 *            Root of the meshes to index
+	 */
+	public static void index(Spatial spatial)
+	{
+		if (spatial instanceof Node)
+		{
+			for (Spatial child : ((Node) spatial).getChildren())
+			{
+				index(child);
+			}
+		}
+		else if (isSimplifiable(spatial) && ((Mesh) spatial).getMeshData().getIndices() == null)
+		{
+			MeshData data = ((Mesh) spatial).getMeshData();
+			int vertexCount = data.getVertexCount();
+			List<FloatBufferData> textureCoords = data.getTextureCoords();
+			FloatBufferData[] attributes = new FloatBufferData[3 + textureCoords.size()];
+			attributes[0] = data.getVertexCoords();
+			attributes[1] = data.getNormalCoords();
+			attributes[2] = data.getColorCoords();
+			for (int i = 0; i < textureCoords.size(); i++)
+			{
+				attributes[3 + i] = textureCoords.get(i);
+			}
+
+			//each vertex is indexed by the first vertex with the same attributes
+			Map<VertexKey, Integer> vertices = new HashMap<VertexKey, Integer>();
+			IndexBufferData<?> indices = BufferUtils.createIndexBufferData(vertexCount, vertexCount - 1);
+			for (int i = 0; i < vertexCount; i++)
+			{
+				VertexKey key = new VertexKey(attributes, i);
+				Integer first = vertices.get(key);
+				if (first == null)
+				{
+					first = i;
+					vertices.put(key, first);
+				}
+				indices.put(first);
+			}
+			indices.getBuffer().rewind();
+			data.setIndices(indices);
+		}
+	}
+
+	/** Key for merging vertices that have identical values for all attributes */
+	protected static class VertexKey
+	{
+		private final float[] values;
+		private final int hashCode;
+
+		public VertexKey(FloatBufferData[] attributes, int vertex)
+		{
+			int size = 0;
+			for (FloatBufferData attribute : attributes)
+			{
+				if (attribute != null)
+					size += attribute.getValuesPerTuple();
+			}
+			values = new float[size];
+			int offset = 0;
+			for (FloatBufferData attribute : attributes)
+			{
+				if (attribute == null)
+					continue;
+				FloatBuffer buffer = attribute.getBuffer();
+				int tuple = attribute.getValuesPerTuple();
+				for (int i = 0; i < tuple; i++)
+				{
+					values[offset++] = buffer.get(vertex * tuple + i);
+				}
+			}
+			hashCode = Arrays.hashCode(values);
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			return obj instanceof VertexKey && Arrays.equals(values, ((VertexKey) obj).values);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+	}
+
+	protected static boolean isSimplifiable(Spatial spatial)
+	{
+		if (!(spatial instanceof Mesh) || spatial instanceof SkinnedMesh)
+			return false;
+
+		MeshData data = ((Mesh) spatial).getMeshData();
+		return data.getSectionCount() == 1 && data.getIndexMode(0) == IndexMode.Triangles
+				&& data.getVertexBuffer() != null && data.getVertexCoords().getValuesPerTuple() == 3
+				&& data.getInterleavedData() == null;
+	}
+
+	/**
+	 * Replace the mesh data of the meshes under a copied spatial with a
+	 * decimated version.
+	 */
+	protected static void decimate(Spatial spatial, float reduction, Map<MeshData, float[]> positionsCache,
+			Map<MeshData, int[]> indicesCache)
+	{
+		if (spatial instanceof Node)
+		{
+			for (Spatial child : ((Node) spatial).getChildren())
+			{
+				decimate(child, reduction, positionsCache, indicesCache);
+			}
+			return;
+		}
+		if (!isSimplifiable(spatial))
+			return;
+
+		Mesh mesh = (Mesh) spatial;
+		MeshData data = mesh.getMeshData();
+		if (data.getIndices() == null)
+			return;
+
+		int[] indices = indicesCache.get(data);
+		float[] positions = positionsCache.get(data);
+		if (indices == null)
+		{
+			indices = BufferUtils.getIntArray(data.getIndices());
+			FloatBuffer vertices = data.getVertexBuffer().duplicate();
+			vertices.rewind();
+			positions = new float[vertices.remaining()];
+			vertices.get(positions);
+			indicesCache.put(data, indices);
+			positionsCache.put(data, positions);
+		}
+
+		int triangles = indices.length / 3;
+		if (triangles < MIN_TRIANGLES)
+			return;
+
+		int[] simplified = MeshSimplifier.simplify(positions, indices, Math.round(triangles * reduction));
+		IndexBufferData<?> buffer = BufferUtils.createIndexBufferData(simplified.length, data.getVertexCount() - 1);
+		for (int index : simplified)
+		{
+			buffer.put(index);
+		}
+		buffer.getBuffer().rewind();
+
+		MeshData reduced = new MeshData();
+		reduced.setVertexCoords(data.getVertexCoords());
+		reduced.setNormalCoords(data.getNormalCoords());
+		reduced.setColorCoords(data.getColorCoords());
+		reduced.setTangentCoords(data.getTangentCoords());
+		reduced.setFogCoords(data.getFogCoords());
+		reduced.setTextureCoords(data.getTextureCoords());
+		reduced.setIndices(buffer);
+		reduced.setIndexMode(IndexMode.Triangles);
+		mesh.setMeshData(reduced);
+	}
+
+	/**
+	 * @param pixelRadius
+	 *            Projected radius of the model's bounds in pixels
+	 * @param levelCount
+	 *            Number of levels the model has
+	 * @return Index of the level of detail to draw
+	 */
+	public static int selectLevel(double pixelRadius, int levelCount)
+	{
+		int level = 0;
+		while (level < DEFAULT_PIXEL_RADII.length && level + 1 < levelCount && pixelRadius < DEFAULT_PIXEL_RADII[level])
+		{
+			level++;
+		}
+		return level;
+	}
+
+	/**
+	 * Compute the color used for the impostor of a node: the average of the
+	 * diffuse colors of its meshes, weighted by their number of vertices and
+	 * modulated by the average color of their textures.
+	 *
+	 * @param node
+	 *            Node to compute the color for
+	 * @return RGBA color
+	 */
+	public static float[] computeAverageColor(Node node)
+	{
+		double[] sum = new double[5];
+		accumulateColor(node, sum);
+		if (sum[4] == 0)
+			return new float[] { 0.5f, 0.5f, 0.5f, 1f };
+		return new float[] { (float) (sum[0] / sum[4]), (float) (sum[1] / sum[4]), (float) (sum[2] / sum[4]),
+				(float) (sum[3] / sum[4]) };
+	}
+
+	protected static void accumulateColor(Spatial spatial, double[] sum)
+	{
+		if (spatial instanceof Node)
+		{
+			for (Spatial child : ((Node) spatial).getChildren())
+			{
+				accumulateColor(child, sum);
+			}
+			return;
+		}
+		if (!(spatial instanceof Mesh))
+			return;
+
+		Mesh mesh = (Mesh) spatial;
+		double weight = mesh.getMeshData().getVertexCount();
+		float[] color = new float[] { 1, 1, 1, 1 };
+
+		MaterialState material = (MaterialState) mesh.getWorldRenderState(StateType.Material);
+		ReadOnlyColorRGBA diffuse = material != null ? material.getDiffuse() : mesh.getDefaultColor();
+		if (diffuse != null)
+		{
+			color[0] = diffuse.getRed();
+			color[1] = diffuse.getGreen();
+			color[2] = diffuse.getBlue();
+			color[3] = diffuse.getAlpha();
+		}
+
+		TextureState textureState = (TextureState) mesh.getWorldRenderState(StateType.Texture);
+		Texture texture = textureState != null ? textureState.getTexture(0) : null;
+		if (texture != null && texture.getImage() != null)
+		{
+			float[] textureColor = averageImageColor(texture.getImage());
+			for (int i = 0; i < textureColor.length; i++)
+			{
+				color[i] *= textureColor[i];
+			}
+		}
+
+		for (int i = 0; i < 4; i++)
+		{
+			sum[i] += color[i] * weight;
+		}
+		sum[4] += weight;
+	}
+
+	/**
+	 * @return Average RGB color of a sample of the pixels of an image, or
+	 *         white if the image format isn't supported
+	 */
+	protected static float[] averageImageColor(Image image)
+	{
+		ImageDataFormat format = image.getDataFormat();
+		int components;
+		if (format == ImageDataFormat.RGB || format == ImageDataFormat.BGR)
+			components = 3;
+		else if (format == ImageDataFormat.RGBA || format == ImageDataFormat.BGRA)
+			components = 4;
+		else
+			return new float[] { 1, 1, 1 };
+		if (image.getDataType() != ImageDataType.UnsignedByte || image.getDataSize() == 0)
+			return new float[] { 1, 1, 1 };
+
+		ByteBuffer data = image.getData(0);
+		int pixels = data.limit() / components;
+		//sample about 1024 pixels, which is plenty for a single color
+		int step = Math.max(1, pixels / 1024);
+		double[] sum = new double[3];
+		int count = 0;
+		for (int p = 0; p < pixels; p += step)
+		{
+			for (int i = 0; i < 3; i++)
+			{
+				sum[i] += data.get(p * components + i) & 0xff;
+			}
+			count++;
+		}
+		if (count == 0)
+			return new float[] { 1, 1, 1 };
+
+		boolean bgr = format == ImageDataFormat.BGR || format == ImageDataFormat.BGRA;
+		float r = (float) (sum[bgr ? 2 : 0] / count / 255);
+		float g = (float) (sum[1] / count / 255);
+		float b = (float) (sum[bgr ? 0 : 2] / count / 255);
+		return new float[] { r, g, b };
+	}
+}
@@ -0,0 +1,139 @@
+package gov.nasa.worldwind.formats.models.collada;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.ardor3d.extension.model.collada.jdom.ColladaImporter;
+import com.ardor3d.util.resource.ResourceLocator;
+import com.ardor3d.util.resource.ResourceLocatorTool;
+import com.ardor3d.util.resource.SimpleResourceLocator;
+
+/**
+ * Shared state for the COLLADA loaders. Each thread reuses one
+ * {@link ColladaImporter} (an importer keeps no state between loads apart
+ * from its settings and locators), and there is one
+ * {@link SimpleResourceLocator} per model directory. Each locator is added to
+ * the global {@link ResourceLocatorTool} only once, so loading many models
+ * from the same directories doesn't make the global lookups slower.
+ */
+public class ColladaLoaderService
+{
+	private static final ThreadLocal<ColladaImporter> importers = new ThreadLocal<ColladaImporter>()
+	{
+		@Override
+		protected ColladaImporter initialValue()
+		{
+			ColladaImporter importer = new ColladaImporter();
+			importer.setLoadAnimations(false); //turns off the verbose "no animation" logging
+			return importer;
+		}
+	};
+
+	//directory -> locator
+	private static final ConcurrentHashMap<String, SimpleResourceLocator> locators =
+			new ConcurrentHashMap<String, SimpleResourceLocator>();
+	//"type:directory" keys of the locators added to the ResourceLocatorTool
+	private static final ConcurrentHashMap<String, Boolean> registered = new ConcurrentHashMap<String, Boolean>();
+
+	private static volatile ColladaTexturePolicy texturePolicy = new ColladaTexturePolicy();
+
+	/**
+	 * Get the calling thread's importer, set up with the given locators. The
+	 * texture locator is wrapped by {@link ColladaTextureCache#wrap}, so that
+	 * identical textures are shared between models.
+	 *
+	 * @param modelLocator
+	 *            Locator for the model file
+	 * @param textureLocator
+	 *            Locator for the textures
+	 * @return Importer for the calling thread
+	 */
+	public static ColladaImporter getImporter(ResourceLocator modelLocator, ResourceLocator textureLocator)
+	{
+		ColladaImporter importer = importers.get();
+		importer.setModelLocator(modelLocator);
+		importer.setTextureLocator(ColladaTextureCache.wrap(textureLocator));
+		return importer;
+	}
+
+	/**
+	 * @param directory
+	 *            Directory containing models or textures
+	 * @return Shared locator for the directory
+	 * @throws URISyntaxException
+	 */
+	public static SimpleResourceLocator getLocator(File directory) throws URISyntaxException
+	{
+		String key = directory.getAbsolutePath();
+		SimpleResourceLocator locator = locators.get(key);
+		if (locator == null)
+		{
+			locator = new SimpleResourceLocator(directory.getAbsoluteFile().toURI());
+			SimpleResourceLocator existing = locators.putIfAbsent(key, locator);
+			if (existing != null)
+				locator = existing;
+		}
+		return locator;
+	}
+
+	/**
+	 * Add the shared locator for a directory to the {@link ResourceLocatorTool},
+	 * if it hasn't been added for the given type yet.
+	 *
+	 * @param type
+	 *            Resource type, such as {@link ResourceLocatorTool#TYPE_MODEL}
+	 * @param directory
+	 *            Directory containing resources of the type
+	 * @return Shared locator for the directory
+	 * @throws URISyntaxException
+	 */
+	public static SimpleResourceLocator registerLocator(String type, File directory) throws URISyntaxException
+	{
+		SimpleResourceLocator locator = getLocator(directory);
+		if (registered.putIfAbsent(type + ":" + directory.getAbsolutePath(), Boolean.TRUE) == null)
+		{
+			ResourceLocatorTool.addResourceLocator(type, locator);
+		}
+		return locator;
+	}
+
+	/**
+	 * @return Number of distinct directories that have a locator
+	 */
+	public static int getLocatorCount()
+	{
+		return locators.size();
+	}
+
+	/**
+	 * @return Policy applied to the textures of the loaded models, or null if
+	 *         the textures are used as they are
+	 */
+	public static ColladaTexturePolicy getTexturePolicy()
+	{
+		return texturePolicy;
+	}
+
+	public static void setTexturePolicy(ColladaTexturePolicy texturePolicy)
+	{
+		ColladaLoaderService.texturePolicy = texturePolicy;
+	}
+
+	/**
+	 * Apply the texture policy, if any, to a loaded model. Models read from
+	 * the binary cache are passed through the policy too, as their images may
+	 * have been loaded from the original files.
+	 *
+	 * @param node
+	 *            Loaded model, with its world bound updated
+	 */
+	public static void applyTexturePolicy(ColladaNode node)
+	{
+		ColladaTexturePolicy policy = texturePolicy;
+		if (policy != null)
+		{
+			policy.apply(node);
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package gov.nasa.worldwind.formats.models.collada;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ardor3d.extension.animation.skeletal.SkinnedMesh;
+import com.ardor3d.renderer.IndexMode;
+import com.ardor3d.renderer.state.RenderState;
+import com.ardor3d.renderer.state.RenderState.StateType;
+import com.ardor3d.scenegraph.FloatBufferData;
+import com.ardor3d.scenegraph.Mesh;
+import com.ardor3d.scenegraph.MeshData;
+import com.ardor3d.scenegraph.Node;
+import com.ardor3d.scenegraph.Spatial;
+import com.ardor3d.scenegraph.hint.DataMode;
+import com.ardor3d.scenegraph.hint.SceneHints;
+import com.ardor3d.util.geom.MeshCombiner;
+
+/**
+ * Prepares the scene graph of a loaded COLLADA model for drawing.
+ * <p>
+ * COLLADA files exported from modelling tools often contain hundreds of
+ * small meshes (windows, railings, signs) that share the same material, each
+ * of which costs Ardor3D a draw call and a round of state changes. The small
+ * triangle meshes that have the same render states are merged into a single
+ * mesh attached to the root node, with their transforms baked into the
+ * vertices. The meshes are then switched to the {@link DataMode#VBO} data
+ * mode, so that their vertex data is uploaded once to static draw vertex
+ * buffer objects instead of being sent from client memory every frame.
+ * <p>
+ * The client copies of the vertex data are kept: Ardor3D uploads the vertex
+ * buffers to each OpenGL context when the mesh is first drawn with it, and
+ * reads the vertex and index counts from the client buffers, which are also
+ * used by the levels of detail and for picking. Merging drops the client
+ * copies of the merged meshes.
+ */
+public class ColladaMeshOptimizer
+{
+	/** Meshes with more vertices than this are left alone */
+	public static final int MAX_SMALL_MESH_VERTICES = 1024;
+	/** Maximum number of vertices of a merged mesh, so that it can use short indices */
+	public static final int MAX_MERGED_VERTICES = 65536;
+
+	/**
+	 * Merge the small meshes of a node that share the same render states and
+	 * switch its meshes to vertex buffer objects. The node's transform must
+	 * be the identity.
+	 *
+	 * @param node
+	 *            Root node of the model
+	 * @return Number of meshes removed by merging
+	 */
+	public static int optimize(Node node)
+	{
+		node.updateWorldTransform(true);
+		node.updateWorldRenderStates(true);
+
+		//small meshes grouped by render states, in scene graph order
+		Map<List<Object>, List<Mesh>> groups = new LinkedHashMap<List<Object>, List<Mesh>>();
+		collectMeshes(node, node, groups);
+
+		int removed = 0;
+		for (List<Mesh> group : groups.values())
+		{
+			int start = 0;
+			while (start < group.size())
+			{
+				int end = start;
+				int vertices = 0;
+				while (end < group.size()
+						&& vertices + group.get(end).getMeshData().getVertexCount() <= MAX_MERGED_VERTICES)
+				{
+					vertices += group.get(end).getMeshData().getVertexCount();
+					end++;
+				}
+				if (end - start > 1)
+				{
+					merge(node, group.subList(start, end));
+					removed += end - start - 1;
+				}
+				start = end;
+			}
+		}
+		if (removed > 0)
+		{
+			removeEmptyNodes(node);
+			node.updateGeometricState(0);
+			node.updateWorldRenderStates(true);
+		}
+
+		useVertexBuffers(node);
+		return removed;
+	}
+
+	/**
+	 * Draw the meshes under a spatial from vertex buffer objects, unless a
+	 * mesh sets its own data mode.
+	 *
+	 * @param spatial
+	 *            Root of the scene graph, for example a level of detail
+	 */
+	public static void useVertexBuffers(Spatial spatial)
+	{
+		spatial.getSceneHints().setDataMode(DataMode.VBO);
+	}
+
+	protected static void merge(Node root, List<Mesh> meshes)
+	{
+		Mesh merged = MeshCombiner.combine(meshes);
+		merged.setName(meshes.get(0).getName() + "_merged");
+		for (StateType type : StateType.values)
+		{
+			RenderState state = meshes.get(0).getWorldRenderState(type);
+			if (state != null)
+			{
+				merged.setRenderState(state);
+			}
+		}
+		if (meshes.get(0).getMeshData().getColorCoords() == null)
+		{
+			merged.setDefaultColor(meshes.get(0).getDefaultColor());
+		}
+		for (Mesh mesh : meshes)
+		{
+			mesh.removeFromParent();
+		}
+		root.attachChild(merged);
+		merged.updateModelBound();
+	}
+
+	protected static void collectMeshes(Node root, Spatial spatial, Map<List<Object>, List<Mesh>> groups)
+	{
+		if (spatial instanceof Node)
+		{
+			for (Spatial child : ((Node) spatial).getChildren())
+			{
+				collectMeshes(root, child, groups);
+			}
+		}
+		else if (isMergeable(root, spatial))
+		{
+			List<Object> key = getStateKey((Mesh) spatial);
+			List<Mesh> group = groups.get(key);
+			if (group == null)
+			{
+				group = new ArrayList<Mesh>();
+				groups.put(key, group);
+			}
+			group.add((Mesh) spatial);
+		}
+	}
+
+	protected static boolean isMergeable(Node root, Spatial spatial)
+	{
+		if (!(spatial instanceof Mesh) || spatial instanceof SkinnedMesh)
+			return false;
+
+		MeshData data = ((Mesh) spatial).getMeshData();
+		if (data.getVertexBuffer() == null || data.getVertexCount() > MAX_SMALL_MESH_VERTICES
+				|| data.getVertexCoords().getValuesPerTuple() != 3 || data.getInterleavedData() != null
+				|| data.getSectionCount() != 1 || data.getIndexMode(0) != IndexMode.Triangles)
+			return false;
+
+		//the merged mesh is attached to the root, so it mustn't depend on the hints of the mesh's parents
+		SceneHints hints = spatial.getSceneHints();
+		SceneHints rootHints = root.getSceneHints();
+		return hints.getCullHint() == rootHints.getCullHint()
+				&& hints.getRenderBucketType() == rootHints.getRenderBucketType()
+				&& hints.getLightCombineMode() == rootHints.getLightCombineMode()
+				&& hints.getTextureCombineMode() == rootHints.getTextureCombineMode()
+				&& hints.getNormalsMode() == rootHints.getNormalsMode()
+				&& hints.getTransparencyType() == rootHints.getTransparencyType()
+				&& hints.getLocalDataMode() == DataMode.Inherit;
+	}
+
+	/**
+	 * @return The render states and vertex layout of a mesh; meshes with equal
+	 *         keys can be merged
+	 */
+	protected static List<Object> getStateKey(Mesh mesh)
+	{
+		List<Object> key = new ArrayList<Object>();
+		for (StateType type : StateType.values)
+		{
+			key.add(new StateReference(mesh.getWorldRenderState(type)));
+		}
+
+		MeshData data = mesh.getMeshData();
+		key.add(data.getNormalCoords() != null);
+		if (data.getColorCoords() != null)
+		{
+			key.add(data.getColorCoords().getValuesPerTuple());
+		}
+		else
+		{
+			key.add(mesh.getDefaultColor());
+		}
+		for (int unit = 0; unit < data.getNumberOfUnits(); unit++)
+		{
+			FloatBufferData coords = data.getTextureCoords(unit);
+			key.add(coords == null ? 0 : coords.getValuesPerTuple());
+		}
+		return key;
+	}
+
+	protected static void removeEmptyNodes(Node node)
+	{
+		for (int i = node.getNumberOfChildren() - 1; i >= 0; i--)
+		{
+			Spatial child = node.getChild(i);
+			if (child instanceof Node)
+			{
+				removeEmptyNodes((Node) child);
+				if (((Node) child).getNumberOfChildren() == 0)
+				{
+					node.detachChildAt(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compares render states by identity.
+	 */
+	protected static class StateReference
+	{
+		private final RenderState state;
+
+		public StateReference(RenderState state)
+		{
+			this.state = state;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			return obj instanceof StateReference && ((StateReference) obj).state == state;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return System.identityHashCode(state);
+		}
+	}
+}
@@ -2,17 +2,21 @@ package gov.nasa.worldwind.formats.models.collada;
 
 import gov.nasa.worldwind.WorldWind;
 import gov.nasa.worldwind.formats.models.Adjustable;
+import gov.nasa.worldwind.formats.models.ModelLoadScheduler;
 import gov.nasa.worldwind.formats.models.PickableModelFactory;
 import gov.nasa.worldwind.formats.models.PickableModel;
 import gov.nasa.worldwind.geom.Angle;
 import gov.nasa.worldwind.geom.Frustum;
+import gov.nasa.worldwind.geom.Plane;
 import gov.nasa.worldwind.geom.Position;
-import gov.nasa.worldwind.geom.Sphere;
 import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.globes.Globe;
 import gov.nasa.worldwind.render.DrawContext;
+import gov.nasa.worldwind.terrain.ElevationModel;
 import gov.nasa.worldwind.render.Renderable;
 import gov.nasa.worldwind.util.Logging;
 
+import java.util.Collections;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.media.opengl.GL;
@@ -23,28 +27,32 @@ import net.java.joglutils.model.geometry.Model;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.ardor3d.bounding.BoundingBox;
 import com.ardor3d.bounding.BoundingSphere;
 import com.ardor3d.bounding.BoundingVolume;
 import com.ardor3d.framework.Scene;
 import com.ardor3d.framework.jogl.JoglCanvasRenderer;
+import com.ardor3d.intersection.IntersectionRecord;
+import com.ardor3d.intersection.PickData;
 import com.ardor3d.intersection.PickResults;
+import com.ardor3d.intersection.Pickable;
+import com.ardor3d.intersection.PrimitiveKey;
+import com.ardor3d.intersection.PrimitivePickResults;
 import com.ardor3d.math.ColorRGBA;
+import com.ardor3d.math.Matrix3;
 import com.ardor3d.math.Matrix4;
 import com.ardor3d.math.Ray3;
+import com.ardor3d.math.Transform;
+import com.ardor3d.math.Vector3;
 import com.ardor3d.math.Vector4;
 import com.ardor3d.math.type.ReadOnlyMatrix4;
 import com.ardor3d.math.type.ReadOnlyVector3;
-import com.ardor3d.renderer.ContextCapabilities;
-import com.ardor3d.renderer.ContextManager;
-import com.ardor3d.renderer.RenderContext;
 import com.ardor3d.renderer.Renderer;
 import com.ardor3d.renderer.TextureRendererFactory;
 import com.ardor3d.renderer.jogl.JoglRenderer;
 import com.ardor3d.renderer.jogl.JoglTextureRendererProvider;
 import com.ardor3d.renderer.state.LightState;
 import com.ardor3d.renderer.state.RenderState.StateType;
-import com.ardor3d.renderer.state.record.TextureStateRecord;
-import com.ardor3d.renderer.state.record.TextureUnitRecord;
 import com.ardor3d.scenegraph.Mesh;
 import com.ardor3d.scenegraph.Node;
 import com.ardor3d.scenegraph.Spatial;
@@ -84,8 +92,26 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 		}
 	};
 
+	/**
+	 * Pick data whose intersection record is computed by the
+	 * {@link ColladaPickTree}, rather than by the target mesh.
+	 */
+	protected static class ColladaPickData extends PickData
+	{
+		public ColladaPickData(Ray3 ray, Pickable target, IntersectionRecord intersectionRecord)
+		{
+			super(ray, target, false);
+			_intersectionRecord = intersectionRecord;
+		}
+	}
+
 	private static final Log LOG = LogFactory.getLog(ColladaModel.class);
 
+	private static final float[] LIGHT_AMBIENT = { 0.4f, 0.4f, 0.4f, 0.4f };
+	private static final float[] LIGHT_DIFFUSE = { 1.0f, 1.0f, 1.0f, 1.0f };
+	private static final float[] LIGHT_SPECULAR = { 1.0f, 1.0f, 1.0f, 1.0f };
+	private static final float[] MODEL_AMBIENT = { 0.5f, 0.5f, 0.5f, 1.0f };
+
 	protected final String path;
 	protected Model model;
 
@@ -106,11 +132,74 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 	protected JoglCanvasRenderer renderer = new SimpleJoglCanvasRenderer(this);
 
 	protected boolean visible = true;
-	protected boolean requestedLoad = false;
+	protected volatile boolean requestedLoad = false;
+	protected final Runnable loadModelTask = new LoadModelTask();
+	//incremented by dispose (while holding loadLock), so that loads requested before are discarded
+	protected final Object loadLock = new Object();
+	protected volatile int loadGeneration = 0;
+	//value of loadGeneration when the pending load was requested
+	protected volatile int requestedGeneration = 0;
 
 	protected Matrix4 cachedRotationMatrix;
 	protected boolean cachedRotationMatrixDirty = true;
 
+	//inputs of the last referenceCenterPoint computation
+	protected boolean referenceCenterDirty = true;
+	protected Globe referenceCenterGlobe;
+	protected double referenceCenterVerticalExaggeration;
+	protected ElevationModel referenceCenterElevationModel;
+	protected ElevationModelChangeTracker referenceCenterElevationTracker;
+	protected long referenceCenterElevationChangeCount;
+
+	//scratch objects reused every frame, so that rendering doesn't allocate
+	protected final Vector4 scratchCenter = new Vector4();
+	protected final double[] scratchMatrix = new double[16];
+	protected final float[] scratchLightPosition = new float[4];
+	protected final Matrix3 scratchRotation = new Matrix3();
+	protected final Transform scratchTransform = new Transform();
+
+	//bounds of the node in model coordinates, before any batch transform is applied
+	protected BoundingVolume modelBound;
+	protected Node modelBoundNode;
+	//bounding sphere in world coordinates, computed by computeBounds
+	protected double boundCenterX;
+	protected double boundCenterY;
+	protected double boundCenterZ;
+	protected double boundRadius;
+	//extents of the box along its rotated axes, if the bound is a BoundingBox
+	protected double boundExtentX;
+	protected double boundExtentY;
+	protected double boundExtentZ;
+	//layer whose spatial index contains this model, notified when the model's bounds change
+	protected volatile ColladaModelLayer layer;
+	//node whose transform has been set by prepareBatchDraw
+	protected Node batchNode;
+	//true if prepareBatchDraw selected the impostor instead of a node
+	protected boolean batchImpostor = false;
+	//column-major placement matrix computed by prepareBatchDraw, used for instancing
+	protected final float[] batchMatrix = new float[16];
+
+	//levels of detail, the first of which is the loaded node
+	protected volatile Node[] levelsOfDetail;
+	protected volatile float[] impostorColor;
+	protected boolean levelOfDetailEnabled = true;
+	protected double impostorPixelSize = 0;
+	//level selected for the current frame, and the model's projected radius
+	protected int level = 0;
+	protected double pixelRadius;
+
+	//view frustum planes in the node's coordinates, used to cull the node's children
+	protected final double[] cullingPlanes = new double[24];
+	protected boolean cullingPlanesValid = false;
+	protected boolean childCullingEnabled = true;
+
+	//triangles of the loaded node for picking, built on the first pick
+	protected ColladaPickTree pickTree;
+	protected Node pickTreeNode;
+	protected final ColladaPickTree.Hit pickHit = new ColladaPickTree.Hit();
+	//size scale of the last computeBounds call, used for picking
+	protected double lastLocalSize;
+
 	public ColladaModel(String path, Position position) throws ModelLoadException
 	{
 		this.path = path;
@@ -167,60 +256,41 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 		ReadOnlyMatrix4 rotationMatrix = getRotationMatrix();
 		Frustum frustum = dc.getView().getFrustumInModelCoordinates();
 
-		//Check that the model is within the camera's frustum; this involves converting from
-		//Ardor3D's BoundingSphere to WorldWind's Sphere, as the Math libraries are different.
-		boolean intersects = true;
-		Node node = nodeRef.get();
-		BoundingVolume volume = node == null ? null : node.getWorldBound();
-
-		//Currently only the BoundingSphere is supported, but Ardor3D collada models seem to
-		//always use spheres as their bounding volume.
-		//TODO Add support for other BoundingVolumes
-		if (volume instanceof BoundingSphere)
-		{
-			//We could use the Ardor3D Transform object here to transform the BoundingSphere
-			//into world coordinates. However, doing it manually allows us to reuse the 4x4
-			//rotation matrix later.
-
-			//first rotate, scale, and translate the sphere's center
-			ReadOnlyVector3 center3 = volume.getCenter();
-			Vector4 center = new Vector4(center3.getX(), center3.getY(), center3.getZ(), 1);
-			center = rotationMatrix.applyPost(center, null);
-			center.set(center.getX() * localSize * scale.x, center.getY() * localSize * scale.y, center.getZ()
-					* localSize * scale.z, 1);
-			center.addLocal(loc.x, loc.y, loc.z, 0);
-
-			//next scale the sphere's radius
-			double radius = ((BoundingSphere) volume).getRadius();
-			double maxScale =
-					Math.max(Math.abs(scale.getX()), Math.max(Math.abs(scale.getY()), Math.abs(scale.getZ())));
-			radius *= Math.abs(localSize * maxScale);
-
-			//finally check that the bounding sphere is within the frustum
-			Sphere sphere = new Sphere(new Vec4(center.getX(), center.getY(), center.getZ()), radius);
-			intersects = frustum.intersects(sphere);
-		}
-		else
+		if (intersectsFrustum(frustum, loc, localSize, rotationMatrix))
 		{
-			//The model hasn't been loaded yet, or has an unsupported bounding volume.
-			//Simply check that the model's location is within the Camera's frustum.
-			intersects = frustum.contains(loc);
-		}
+			if (nodeRef.get() == null)
+			{
+				requestLoad(dc, loc, localSize);
+				return;
+			}
 
-		if (intersects)
-		{
+			level = selectLevelOfDetail(dc);
+			if (level != ColladaLevelOfDetail.IMPOSTOR
+					&& !ColladaTextureUploader.getInstance().upload(dc, renderer.getRenderer(), getLevelNode(level)))
+			{
+				//the textures haven't been uploaded yet
+				if (!isImpostorEnabled(dc))
+					return;
+				level = ColladaLevelOfDetail.IMPOSTOR;
+			}
 			try
 			{
 				//translate to model center
 				dc.getView().pushReferenceCenter(dc, loc);
 
+				if (level == ColladaLevelOfDetail.IMPOSTOR)
+				{
+					drawImpostor(dc, loc);
+					return;
+				}
+
 				//load the rotation matrix
-				double[] rotationMatrixD = new double[16];
-				rotationMatrix.toArray(rotationMatrixD, false);
-				gl.glMultMatrixd(rotationMatrixD, 0);
+				rotationMatrix.toArray(scratchMatrix, false);
+				gl.glMultMatrixd(scratchMatrix, 0);
 
 				//scale the model
 				gl.glScaled(localSize * scale.x, localSize * scale.y, localSize * scale.z);
+				computeCullingPlanes(frustum, loc, localSize, rotationMatrix);
 
 				//draw!
 				drawArdor(dc);
@@ -233,6 +303,384 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 		}
 	}
 
+	/**
+	 * Check that the model is within the camera's frustum. This converts the
+	 * model's Ardor3D BoundingSphere or BoundingBox to WorldWind coordinates by
+	 * hand, as the math libraries are different, using the scratch objects so
+	 * that no garbage is created per frame.
+	 * 
+	 * @param frustum
+	 *            Frustum in model coordinates
+	 * @param loc
+	 *            Model's location
+	 * @param localSize
+	 *            Model's size scale
+	 * @param rotationMatrix
+	 *            Model's rotation matrix
+	 * @return true if the model may be visible
+	 */
+	protected boolean intersectsFrustum(Frustum frustum, Vec4 loc, double localSize, ReadOnlyMatrix4 rotationMatrix)
+	{
+		if (!computeBounds(loc, localSize, rotationMatrix))
+		{
+			//The model hasn't been loaded yet, or has an unsupported bounding volume.
+			//Simply check that the model's location is within the Camera's frustum.
+			return frustum.contains(loc);
+		}
+
+		double x = boundCenterX, y = boundCenterY, z = boundCenterZ;
+		if (getModelBound() instanceof BoundingBox)
+		{
+			double ex = boundExtentX, ey = boundExtentY, ez = boundExtentZ;
+			return intersects(frustum.getFar(), x, y, z, rotationMatrix, ex, ey, ez)
+					&& intersects(frustum.getLeft(), x, y, z, rotationMatrix, ex, ey, ez)
+					&& intersects(frustum.getRight(), x, y, z, rotationMatrix, ex, ey, ez)
+					&& intersects(frustum.getTop(), x, y, z, rotationMatrix, ex, ey, ez)
+					&& intersects(frustum.getBottom(), x, y, z, rotationMatrix, ex, ey, ez)
+					&& intersects(frustum.getNear(), x, y, z, rotationMatrix, ex, ey, ez);
+		}
+
+		//check that the bounding sphere is within the frustum; this is the same
+		//test as Frustum.intersects(Sphere), without creating the Sphere
+		double radius = boundRadius;
+		return intersects(frustum.getFar(), x, y, z, radius) && intersects(frustum.getLeft(), x, y, z, radius)
+				&& intersects(frustum.getRight(), x, y, z, radius) && intersects(frustum.getTop(), x, y, z, radius)
+				&& intersects(frustum.getBottom(), x, y, z, radius) && intersects(frustum.getNear(), x, y, z, radius);
+	}
+
+	/**
+	 * Check that the model is within the view frustum, computing its location,
+	 * size and bounds for this frame.
+	 * 
+	 * @param dc
+	 *            Draw context
+	 * @return true if the model may be visible
+	 */
+	protected boolean intersectsFrustum(DrawContext dc)
+	{
+		this.referenceCenterPoint = this.computeReferenceCenter(dc);
+		Vec4 loc = referenceCenterPoint;
+		return intersectsFrustum(dc.getView().getFrustumInModelCoordinates(), loc, this.computeSize(dc, loc)
+				* unitScale, getRotationMatrix());
+	}
+
+	/**
+	 * Compute the model's bounding sphere in World Wind coordinates (and the
+	 * extents of its box, if the model is bounded by a BoundingBox), setting
+	 * {@link #boundCenterX}, {@link #boundCenterY}, {@link #boundCenterZ} and
+	 * {@link #boundRadius}.
+	 * 
+	 * @param loc
+	 *            Model's location
+	 * @param localSize
+	 *            Model's size scale
+	 * @param rotationMatrix
+	 *            Model's rotation matrix
+	 * @return false if the model hasn't been loaded yet, or has an unsupported
+	 *         bounding volume
+	 */
+	protected boolean computeBounds(Vec4 loc, double localSize, ReadOnlyMatrix4 rotationMatrix)
+	{
+		lastLocalSize = localSize;
+		BoundingVolume volume = getModelBound();
+		if (!(volume instanceof BoundingSphere || volume instanceof BoundingBox))
+		{
+			boundRadius = 0;
+			return false;
+		}
+
+		//We could use the Ardor3D Transform object here to transform the BoundingSphere
+		//into world coordinates. However, doing it manually allows us to reuse the 4x4
+		//rotation matrix later.
+
+		//first rotate, scale, and translate the sphere's center
+		ReadOnlyVector3 center3 = volume.getCenter();
+		Vector4 center = scratchCenter.set(center3.getX(), center3.getY(), center3.getZ(), 1);
+		rotationMatrix.applyPost(center, center);
+		boundCenterX = center.getX() * localSize * scale.x + loc.x;
+		boundCenterY = center.getY() * localSize * scale.y + loc.y;
+		boundCenterZ = center.getZ() * localSize * scale.z + loc.z;
+
+		if (volume instanceof BoundingBox)
+		{
+			//the box's extents along its rotated axes
+			BoundingBox box = (BoundingBox) volume;
+			boundExtentX = box.getXExtent() * Math.abs(localSize * scale.x);
+			boundExtentY = box.getYExtent() * Math.abs(localSize * scale.y);
+			boundExtentZ = box.getZExtent() * Math.abs(localSize * scale.z);
+			boundRadius =
+					Math.sqrt(boundExtentX * boundExtentX + boundExtentY * boundExtentY + boundExtentZ * boundExtentZ);
+			return true;
+		}
+
+		//next scale the sphere's radius
+		double radius = ((BoundingSphere) volume).getRadius();
+		double maxScale = Math.max(Math.abs(scale.getX()), Math.max(Math.abs(scale.getY()), Math.abs(scale.getZ())));
+		boundRadius = radius * Math.abs(localSize * maxScale);
+		return true;
+	}
+
+	/**
+	 * Compute a bounding sphere for the spatial index of a
+	 * {@link ColladaModelLayer}, containing the model wherever it is drawn
+	 * from. Models that haven't been loaded yet are bounded by the radius
+	 * estimated from their scale, as in
+	 * {@link #requestLoad(DrawContext, Vec4, double)}; they are indexed again
+	 * once loaded. Models whose size depends on the distance to the eye are
+	 * bounded by their size at the given maximum distance, around their
+	 * location.
+	 * 
+	 * @param dc
+	 *            Draw context
+	 * @param maxDistance
+	 *            Farthest distance from the eye at which the model is drawn
+	 */
+	protected void computeIndexBounds(DrawContext dc, double maxDistance)
+	{
+		this.referenceCenterPoint = this.computeReferenceCenter(dc);
+		Vec4 loc = referenceCenterPoint;
+		double localSize = (constantSize ? size : computeSizeAtDistance(dc, maxDistance)) * unitScale;
+
+		//don't change the size used for picking
+		double pickLocalSize = lastLocalSize;
+		boolean bounded = computeBounds(loc, localSize, getRotationMatrix());
+		lastLocalSize = pickLocalSize;
+		if (!bounded)
+		{
+			//same estimate as the load request; the frustum test of unloaded models only uses the location
+			double maxScale =
+					Math.max(Math.abs(scale.getX()), Math.max(Math.abs(scale.getY()), Math.abs(scale.getZ())));
+			boundCenterX = loc.x;
+			boundCenterY = loc.y;
+			boundCenterZ = loc.z;
+			boundRadius = Math.abs(localSize * maxScale);
+		}
+		else if (!constantSize)
+		{
+			//smaller sizes shrink the sphere towards the location, so enclose it around the location
+			double dx = boundCenterX - loc.x, dy = boundCenterY - loc.y, dz = boundCenterZ - loc.z;
+			boundRadius += Math.sqrt(dx * dx + dy * dy + dz * dz);
+			boundCenterX = loc.x;
+			boundCenterY = loc.y;
+			boundCenterZ = loc.z;
+		}
+	}
+
+	/**
+	 * Notify the layer indexing this model that its bounds have changed.
+	 */
+	protected void boundsChanged()
+	{
+		ColladaModelLayer layer = this.layer;
+		if (layer != null)
+		{
+			layer.modelChanged(this);
+		}
+	}
+
+	/**
+	 * @return Bounds of the loaded node in model coordinates, or null if the
+	 *         model hasn't been loaded yet.
+	 */
+	protected BoundingVolume getModelBound()
+	{
+		Node node = nodeRef.get();
+		if (node != modelBoundNode)
+		{
+			//copy the bound, as the node's world bound changes with the batch transform
+			BoundingVolume worldBound = node == null ? null : node.getWorldBound();
+			modelBound = worldBound == null ? null : worldBound.clone(null);
+			modelBoundNode = node;
+		}
+		return modelBound;
+	}
+
+	/**
+	 * Select the level of detail to draw from the projected radius of the
+	 * bounds computed by
+	 * {@link #intersectsFrustum(Frustum, Vec4, double, ReadOnlyMatrix4)}.
+	 * 
+	 * @param dc
+	 *            Draw context
+	 * @return Index of the level of detail, or
+	 *         {@link ColladaLevelOfDetail#IMPOSTOR} if the model is small
+	 *         enough to be drawn as an impostor
+	 */
+	protected int selectLevelOfDetail(DrawContext dc)
+	{
+		if (boundRadius <= 0)
+			return 0;
+
+		Vec4 eye = dc.getView().getEyePoint();
+		double dx = boundCenterX - eye.x;
+		double dy = boundCenterY - eye.y;
+		double dz = boundCenterZ - eye.z;
+		double pixelSize = dc.getView().computePixelSizeAtDistance(Math.sqrt(dx * dx + dy * dy + dz * dz));
+		pixelRadius = pixelSize > 0 ? boundRadius / pixelSize : Double.MAX_VALUE;
+
+		if (pixelRadius < impostorPixelSize && isImpostorEnabled(dc))
+			return ColladaLevelOfDetail.IMPOSTOR;
+
+		Node[] levels = levelsOfDetail;
+		if (!levelOfDetailEnabled || levels == null)
+			return 0;
+		return ColladaLevelOfDetail.selectLevel(pixelRadius, levels.length);
+	}
+
+	/**
+	 * @param dc
+	 *            Draw context
+	 * @return true if the model may be drawn as an impostor: impostors are
+	 *         enabled by {@link #setImpostorPixelSize(double)}, and the model
+	 *         isn't replaced by a flat color in the pick buffer
+	 */
+	protected boolean isImpostorEnabled(DrawContext dc)
+	{
+		return impostorPixelSize > 0 && !dc.isPickingMode();
+	}
+
+	/**
+	 * @param level
+	 *            Level of detail
+	 * @return Node for the level of detail, or the full resolution node if
+	 *         the levels haven't been created
+	 */
+	protected Node getLevelNode(int level)
+	{
+		Node[] levels = levelsOfDetail;
+		if (levels == null || level <= 0 || level >= levels.length)
+			return nodeRef.get();
+		return levels[level];
+	}
+
+	/**
+	 * Draw this model's impostor: a point the size of the projected bounds,
+	 * in the model's average color. Must be called after
+	 * {@link #selectLevelOfDetail(DrawContext)}, between
+	 * {@link #pushState(DrawContext, float[])} and
+	 * {@link #popState(DrawContext)}.
+	 * 
+	 * @param dc
+	 *            Draw context
+	 * @param referenceCenter
+	 *            Reference center currently pushed on the view
+	 */
+	protected void drawImpostor(DrawContext dc, Vec4 referenceCenter)
+	{
+		float[] color = impostorColor;
+		if (color == null)
+			return;
+
+		GL gl = dc.getGL();
+		gl.glDisable(GL.GL_LIGHTING);
+		gl.glDisable(GL.GL_TEXTURE_2D);
+		gl.glEnable(GL.GL_BLEND);
+		gl.glBlendFunc(GL.GL_SRC_ALPHA, GL.GL_ONE_MINUS_SRC_ALPHA);
+		gl.glEnable(GL.GL_POINT_SMOOTH);
+		gl.glPointSize((float) Math.max(1, 2 * pixelRadius));
+		gl.glColor4fv(color, 0);
+		gl.glBegin(GL.GL_POINTS);
+		gl.glVertex3d(boundCenterX - referenceCenter.x, boundCenterY - referenceCenter.y, boundCenterZ
+				- referenceCenter.z);
+		gl.glEnd();
+	}
+
+	private static boolean intersects(Plane plane, double x, double y, double z, double radius)
+	{
+		Vec4 n = plane.getNormal();
+		return n.x * x + n.y * y + n.z * z + plane.getDistance() > -radius;
+	}
+
+	private static boolean intersects(Plane plane, double x, double y, double z, ReadOnlyMatrix4 rotationMatrix,
+			double ex, double ey, double ez)
+	{
+		//the box's projected radius on the plane's normal, from the rotated axes (the matrix columns)
+		Vec4 n = plane.getNormal();
+		double radius = 0;
+		for (int column = 0; column < 3; column++)
+		{
+			double extent = column == 0 ? ex : column == 1 ? ey : ez;
+			radius +=
+					Math.abs(n.x * rotationMatrix.getValue(0, column) + n.y * rotationMatrix.getValue(1, column)
+							+ n.z * rotationMatrix.getValue(2, column))
+							* extent;
+		}
+		return intersects(plane, x, y, z, radius);
+	}
+
+	/**
+	 * Convert the frustum's planes to the coordinates of the model's node, so
+	 * that the node's children can be culled by the
+	 * {@link ColladaCullingCamera}. The inverse of the model's placement
+	 * (translation, rotation and scale) is applied to each plane.
+	 * 
+	 * @param frustum
+	 *            Frustum in model coordinates
+	 * @param loc
+	 *            Model's location
+	 * @param localSize
+	 *            Model's size scale
+	 * @param rotationMatrix
+	 *            Model's rotation matrix
+	 */
+	protected void computeCullingPlanes(Frustum frustum, Vec4 loc, double localSize, ReadOnlyMatrix4 rotationMatrix)
+	{
+		cullingPlanesValid = childCullingEnabled;
+		if (!cullingPlanesValid)
+			return;
+
+		double sx = localSize * scale.x, sy = localSize * scale.y, sz = localSize * scale.z;
+		for (int i = 0; i < 6; i++)
+		{
+			Plane plane =
+					i == 0 ? frustum.getFar() : i == 1 ? frustum.getLeft() : i == 2 ? frustum.getRight() : i == 3
+							? frustum.getTop() : i == 4 ? frustum.getBottom() : frustum.getNear();
+			Vec4 n = plane.getNormal();
+			//n' = S * transpose(R) * n, d' = n . loc + d
+			double nx = sx * (n.x * rotationMatrix.getValue(0, 0) + n.y * rotationMatrix.getValue(1, 0) + n.z
+					* rotationMatrix.getValue(2, 0));
+			double ny = sy * (n.x * rotationMatrix.getValue(0, 1) + n.y * rotationMatrix.getValue(1, 1) + n.z
+					* rotationMatrix.getValue(2, 1));
+			double nz = sz * (n.x * rotationMatrix.getValue(0, 2) + n.y * rotationMatrix.getValue(1, 2) + n.z
+					* rotationMatrix.getValue(2, 2));
+			double d = n.x * loc.x + n.y * loc.y + n.z * loc.z + plane.getDistance();
+			double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (length == 0)
+			{
+				cullingPlanesValid = false;
+				return;
+			}
+			cullingPlanes[i * 4] = nx / length;
+			cullingPlanes[i * 4 + 1] = ny / length;
+			cullingPlanes[i * 4 + 2] = nz / length;
+			cullingPlanes[i * 4 + 3] = d / length;
+		}
+	}
+
+	/**
+	 * Set the planes computed by
+	 * {@link #computeCullingPlanes(Frustum, Vec4, double, ReadOnlyMatrix4)} on
+	 * the current render context's camera, before drawing the model's node.
+	 * The world bounds of the node's children are computed when the model is
+	 * loaded, with an identity transform, and aren't updated by the
+	 * transforms set for drawing, so they are in the node's coordinates.
+	 */
+	protected void applyCullingPlanes()
+	{
+		ColladaCullingCamera camera = ColladaCullingCamera.getCurrent();
+		if (camera == null)
+			return;
+
+		if (cullingPlanesValid)
+		{
+			camera.setPlanes(cullingPlanes);
+		}
+		else
+		{
+			camera.disableCulling();
+		}
+	}
+
 	/**
 	 * @return 4x4 rotation matrix for this model.
 	 */
@@ -284,31 +732,31 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 	}
 
 	/**
-	 * Use Ardor3D to draw this model. This function also loads the model (on a
-	 * separate thread) if it hasn't been loaded yet.
+	 * Use Ardor3D to draw this model, if it has been loaded.
 	 * 
 	 * @param dc
 	 *            Draw context
 	 */
 	protected void drawArdor(DrawContext dc)
 	{
-		ArdorColladaLoader.initializeArdorSystem(dc);
+		ArdorContextRegistry.makeCurrent(dc);
+		ColladaTextureCache.getInstance().deleteEvictedTextures(renderer.getRenderer());
 
 		Node node = this.nodeRef.get();
 
-		if (node == null && !requestedLoad)
-		{
-			if (!WorldWind.getTaskService().isFull())
-			{
-				WorldWind.getTaskService().addTask(new LoadModelTask());
-				requestedLoad = true;
-			}
-		}
-
 		if (node != null)
 		{
 			GL gl = dc.getGL();
 
+			if (batchNode != null)
+			{
+				//this model was previously drawn by a ColladaModelLayer
+				batchNode.setTransform(Transform.IDENTITY);
+				batchNode.updateWorldTransform(true);
+				batchNode = null;
+			}
+			node = getLevelNode(level);
+
 			if (model.isUsingTexture())
 			{
 				gl.glEnable(GL.GL_TEXTURE_2D);
@@ -321,20 +769,128 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 				gl.glDisable(GL.GL_BLEND);
 			}
 
-			final RenderContext context = ContextManager.getCurrentContext();
-			final ContextCapabilities caps = context.getCapabilities();
-			final TextureStateRecord record = (TextureStateRecord) context.getStateRecord(StateType.Texture);
-			for (int i = 0; i < caps.getNumberOfTotalTextureUnits(); i++)
-			{
-				TextureUnitRecord unitRecord = record.units[i];
-				unitRecord.invalidate();
-			}
+			TextureUnitTracker.validate(dc);
+			applyCullingPlanes();
 
 			node.draw(renderer.getRenderer());
 			renderer.getRenderer().renderBuckets();
 		}
 	}
 
+	/**
+	 * Request (or renew the request) to load the model on a separate thread,
+	 * if it hasn't started loading yet. The request's priority is the
+	 * model's projected size; see {@link ModelLoadScheduler}.
+	 * 
+	 * @param dc
+	 *            Draw context
+	 * @param loc
+	 *            Model's location
+	 * @param localSize
+	 *            Model's size scale
+	 */
+	protected void requestLoad(DrawContext dc, Vec4 loc, double localSize)
+	{
+		if (!requestedLoad)
+		{
+			requestedGeneration = loadGeneration;
+			//the model's bounds are unknown until it is loaded, so estimate its radius from the scale
+			double maxScale =
+					Math.max(Math.abs(scale.getX()), Math.max(Math.abs(scale.getY()), Math.abs(scale.getZ())));
+			double priority = ModelLoadScheduler.computePriority(dc, loc, Math.abs(localSize * maxScale));
+			ModelLoadScheduler.getInstance().request(this, loadModelTask, priority);
+		}
+	}
+
+	/**
+	 * Prepare this model to be drawn as part of a batch by a
+	 * {@link ColladaModelLayer}. Instead of using the OpenGL matrix stack, the
+	 * model's translation (relative to the batch's reference center),
+	 * rotation and scale are set as the transform of the model's node, so that
+	 * the nodes of all models in the batch can be drawn with a single flush of
+	 * the Ardor3D render buckets.
+	 * 
+	 * @param dc
+	 *            Draw context
+	 * @param batchReferenceCenter
+	 *            Reference center the batch is drawn relative to
+	 * @return The node to draw (the level of detail selected for the model's
+	 *         projected size), or null if the model isn't loaded, is outside
+	 *         the camera's frustum, has textures waiting to be uploaded, or is
+	 *         to be drawn as an impostor (in which case {@link #batchImpostor}
+	 *         is set)
+	 */
+	protected Node prepareBatchDraw(DrawContext dc, Vec4 batchReferenceCenter)
+	{
+		batchImpostor = false;
+
+		this.referenceCenterPoint = this.computeReferenceCenter(dc);
+		Vec4 loc = referenceCenterPoint;
+		double localSize = this.computeSize(dc, loc) * unitScale;
+		ReadOnlyMatrix4 rotationMatrix = getRotationMatrix();
+		Frustum frustum = dc.getView().getFrustumInModelCoordinates();
+
+		if (!intersectsFrustum(frustum, loc, localSize, rotationMatrix))
+			return null;
+
+		if (nodeRef.get() == null)
+		{
+			requestLoad(dc, loc, localSize);
+			return null;
+		}
+
+		level = selectLevelOfDetail(dc);
+		if (level != ColladaLevelOfDetail.IMPOSTOR
+				&& !ColladaTextureUploader.getInstance().upload(dc, renderer.getRenderer(), getLevelNode(level)))
+		{
+			//the textures haven't been uploaded yet
+			if (!isImpostorEnabled(dc))
+				return null;
+			level = ColladaLevelOfDetail.IMPOSTOR;
+		}
+		if (level == ColladaLevelOfDetail.IMPOSTOR)
+		{
+			batchImpostor = true;
+			return null;
+		}
+
+		Node node = getLevelNode(level);
+		if (batchNode != null && batchNode != node)
+		{
+			//the previously drawn level of detail
+			batchNode.setTransform(Transform.IDENTITY);
+			batchNode.updateWorldTransform(true);
+		}
+
+		scratchRotation.set(rotationMatrix.getValue(0, 0), rotationMatrix.getValue(0, 1),
+				rotationMatrix.getValue(0, 2), rotationMatrix.getValue(1, 0), rotationMatrix.getValue(1, 1),
+				rotationMatrix.getValue(1, 2), rotationMatrix.getValue(2, 0), rotationMatrix.getValue(2, 1),
+				rotationMatrix.getValue(2, 2));
+		scratchTransform.setRotation(scratchRotation);
+		scratchTransform.setScale(localSize * scale.x, localSize * scale.y, localSize * scale.z);
+		scratchTransform.setTranslation(loc.x - batchReferenceCenter.x, loc.y - batchReferenceCenter.y, loc.z
+				- batchReferenceCenter.z);
+		node.setTransform(scratchTransform);
+		node.updateWorldTransform(true);
+		batchNode = node;
+		computeCullingPlanes(frustum, loc, localSize, rotationMatrix);
+
+		for (int column = 0; column < 3; column++)
+		{
+			double columnScale = localSize * (column == 0 ? scale.x : column == 1 ? scale.y : scale.z);
+			for (int row = 0; row < 3; row++)
+			{
+				batchMatrix[column * 4 + row] = (float) (rotationMatrix.getValue(row, column) * columnScale);
+			}
+			batchMatrix[column * 4 + 3] = 0;
+		}
+		batchMatrix[12] = (float) (loc.x - batchReferenceCenter.x);
+		batchMatrix[13] = (float) (loc.y - batchReferenceCenter.y);
+		batchMatrix[14] = (float) (loc.z - batchReferenceCenter.z);
+		batchMatrix[15] = 1;
+		return node;
+	}
+
 	/**
 	 * Draw the bounds of the model using the Ardor3D {@link Debugger} class.
 	 */
@@ -368,13 +924,38 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 	 */
 	protected void loadModel()
 	{
+		int generation = requestedGeneration;
 		try
 		{
 			ColladaNode node = loadModel(model.getSource());
 			node.updateWorldBound(true);
 			unitScale = node.getAssetData().getUnitMeter();
-			nodeRef.set(node);
+			//build the mip levels here rather than on the rendering thread
+			MipMapGenerator.generate(node);
 			ensureMaterialsHaveLights(node);
+			ColladaMeshOptimizer.optimize(node);
+			Node[] levels = ColladaLevelOfDetail.createLevels(node);
+			for (Node level : levels)
+			{
+				ColladaMeshOptimizer.useVertexBuffers(level);
+			}
+			float[] color = ColladaLevelOfDetail.computeAverageColor(node);
+
+			synchronized (loadLock)
+			{
+				if (generation != loadGeneration)
+				{
+					//disposed while loading, the load can't be cancelled once started
+					requestedLoad = false;
+					return;
+				}
+				ColladaTextureCache.getInstance().acquire(node);
+				levelsOfDetail = levels;
+				impostorColor = color;
+				//publish the node last: the rendering thread draws it as soon as it is set
+				nodeRef.set(node);
+			}
+			boundsChanged();
 		}
 		catch (Exception e)
 		{
@@ -427,6 +1008,7 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 		@Override
 		public void run()
 		{
+			requestedLoad = true;
 			loadModel();
 		}
 	}
@@ -439,24 +1021,39 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 	 *            Draw context
 	 */
 	protected void beginDraw(DrawContext dc)
+	{
+		pushState(dc, scratchLightPosition);
+	}
+
+	/**
+	 * Push the OpenGL state and set up the lighting shared by all models. Used
+	 * by {@link #beginDraw(DrawContext)} and by {@link ColladaModelLayer}. The
+	 * texture state isn't pushed, so that consecutive models can share the
+	 * bound textures; see {@link TextureUnitTracker}.
+	 * 
+	 * @param dc
+	 *            Draw context
+	 * @param lightPosition
+	 *            Scratch array of length 4 for the light position
+	 */
+	protected static void pushState(DrawContext dc, float[] lightPosition)
 	{
 		GL gl = dc.getGL();
-		gl.glPushAttrib(GL.GL_TEXTURE_BIT | GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT | GL.GL_HINT_BIT
-				| GL.GL_POLYGON_BIT | GL.GL_ENABLE_BIT | GL.GL_CURRENT_BIT | GL.GL_LIGHTING_BIT | GL.GL_TRANSFORM_BIT
+		gl.glPushAttrib(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT | GL.GL_HINT_BIT | GL.GL_POLYGON_BIT
+				| GL.GL_ENABLE_BIT | GL.GL_CURRENT_BIT | GL.GL_LIGHTING_BIT | GL.GL_TRANSFORM_BIT | GL.GL_POINT_BIT
 				| GL.GL_CLIENT_VERTEX_ARRAY_BIT);
 		gl.glPushClientAttrib((int) GL.GL_ALL_CLIENT_ATTRIB_BITS);
 
 		Vec4 cameraPosition = dc.getView().getEyePoint();
-		float[] lightPosition = { (float) cameraPosition.x, (float) cameraPosition.y, (float) cameraPosition.z, 1.0f };
-		float[] lightAmbient = { 0.4f, 0.4f, 0.4f, 0.4f };
-		float[] lightDiffuse = { 1.0f, 1.0f, 1.0f, 1.0f };
-		float[] lightSpecular = { 1.0f, 1.0f, 1.0f, 1.0f };
-		float[] model_ambient = { 0.5f, 0.5f, 0.5f, 1.0f };
-		gl.glLightModelfv(GL.GL_LIGHT_MODEL_AMBIENT, model_ambient, 0);
+		lightPosition[0] = (float) cameraPosition.x;
+		lightPosition[1] = (float) cameraPosition.y;
+		lightPosition[2] = (float) cameraPosition.z;
+		lightPosition[3] = 1.0f;
+		gl.glLightModelfv(GL.GL_LIGHT_MODEL_AMBIENT, MODEL_AMBIENT, 0);
 		gl.glLightfv(GL.GL_LIGHT1, GL.GL_POSITION, lightPosition, 0);
-		gl.glLightfv(GL.GL_LIGHT1, GL.GL_DIFFUSE, lightDiffuse, 0);
-		gl.glLightfv(GL.GL_LIGHT1, GL.GL_AMBIENT, lightAmbient, 0);
-		gl.glLightfv(GL.GL_LIGHT1, GL.GL_SPECULAR, lightSpecular, 0);
+		gl.glLightfv(GL.GL_LIGHT1, GL.GL_DIFFUSE, LIGHT_DIFFUSE, 0);
+		gl.glLightfv(GL.GL_LIGHT1, GL.GL_AMBIENT, LIGHT_AMBIENT, 0);
+		gl.glLightfv(GL.GL_LIGHT1, GL.GL_SPECULAR, LIGHT_SPECULAR, 0);
 		gl.glDisable(GL.GL_LIGHT0);
 		gl.glEnable(GL.GL_LIGHT1);
 		gl.glEnable(GL.GL_LIGHTING);
@@ -474,8 +1071,20 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 	 *            Draw context
 	 */
 	protected void endDraw(DrawContext dc)
+	{
+		popState(dc);
+	}
+
+	/**
+	 * Restore the OpenGL state saved by {@link #pushState(DrawContext, float[])}.
+	 * 
+	 * @param dc
+	 *            Draw context
+	 */
+	protected static void popState(DrawContext dc)
 	{
 		GL gl = dc.getGL();
+		TextureUnitTracker.restore(dc);
 		gl.glMatrixMode(javax.media.opengl.GL.GL_MODELVIEW);
 		gl.glPopMatrix();
 		gl.glPopAttrib();
@@ -503,7 +1112,21 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 			LOG.error("Null location when computing size of model");
 			return 1;
 		}
-		double d = loc.distanceTo3(dc.getView().getEyePoint());
+		return computeSizeAtDistance(dc, loc.distanceTo3(dc.getView().getEyePoint()));
+	}
+
+	/**
+	 * For models that don't have a fixed size, compute the model size at a
+	 * distance from the eye. The size increases with the distance.
+	 * 
+	 * @param dc
+	 *            Draw context
+	 * @param d
+	 *            Distance from the eye
+	 * @return Size scale to use
+	 */
+	protected double computeSizeAtDistance(DrawContext dc, double d)
+	{
 		double newSize = 60 * dc.getView().computePixelSizeAtDistance(d);
 		if (newSize < 2)
 		{
@@ -513,7 +1136,10 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 	}
 
 	/**
-	 * Calculate the model's location in world coordinates.
+	 * Calculate the model's location in world coordinates. The location is
+	 * cached, and only recalculated when the position or altitude mode is
+	 * changed, the vertical exaggeration changes, or (for models placed
+	 * relative to the ground) the elevation model reports new data.
 	 * 
 	 * @param dc
 	 *            Draw context
@@ -521,16 +1147,43 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 	 */
 	protected Vec4 computeReferenceCenter(DrawContext dc)
 	{
+		Globe globe = dc.getGlobe();
+		ElevationModel elevationModel = globe.getElevationModel();
+		if (elevationModel != referenceCenterElevationModel)
+		{
+			referenceCenterElevationModel = elevationModel;
+			referenceCenterElevationTracker =
+					elevationModel == null ? null : ElevationModelChangeTracker.getTracker(elevationModel);
+			referenceCenterDirty = true;
+		}
+
+		long elevationChangeCount =
+				referenceCenterElevationTracker == null ? 0 : referenceCenterElevationTracker.getChangeCount();
+		boolean terrainChanged =
+				altitudeMode != WorldWind.ABSOLUTE && elevationChangeCount != referenceCenterElevationChangeCount;
+
+		if (referenceCenterPoint != null && !referenceCenterDirty && !terrainChanged && globe == referenceCenterGlobe
+				&& dc.getVerticalExaggeration() == referenceCenterVerticalExaggeration)
+		{
+			return referenceCenterPoint;
+		}
+
+		//read the change count before the elevation, so that data arriving in between isn't missed
+		referenceCenterDirty = false;
+		referenceCenterGlobe = globe;
+		referenceCenterVerticalExaggeration = dc.getVerticalExaggeration();
+		referenceCenterElevationChangeCount = elevationChangeCount;
+
 		double elevation = 0;
 		if (altitudeMode != WorldWind.ABSOLUTE)
 		{
-			elevation += dc.getGlobe().getElevation(position.getLatitude(), position.getLongitude());
+			elevation += globe.getElevation(position.getLatitude(), position.getLongitude());
 		}
 		if (altitudeMode != WorldWind.CLAMP_TO_GROUND)
 		{
 			elevation += position.elevation;
 		}
-		return dc.getGlobe().computePointFromPosition(position, elevation * dc.getVerticalExaggeration());
+		return globe.computePointFromPosition(position, elevation * dc.getVerticalExaggeration());
 	}
 
 	public boolean isConstantSize()
@@ -541,6 +1194,7 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 	public void setConstantSize(boolean constantSize)
 	{
 		this.constantSize = constantSize;
+		boundsChanged();
 	}
 
 	public double getSize()
@@ -551,6 +1205,7 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 	public void setSize(double size)
 	{
 		this.size = size;
+		boundsChanged();
 	}
 
 	public Position getPosition()
@@ -562,6 +1217,8 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 	{
 		this.position = position;
 		cachedRotationMatrixDirty = true;
+		referenceCenterDirty = true;
+		boundsChanged();
 	}
 
 	public Model getModel()
@@ -580,6 +1237,7 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 	{
 		this.yaw = yaw;
 		cachedRotationMatrixDirty = true;
+		boundsChanged();
 	}
 
 	@Override
@@ -593,6 +1251,7 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 	{
 		this.roll = roll;
 		cachedRotationMatrixDirty = true;
+		boundsChanged();
 	}
 
 	@Override
@@ -606,6 +1265,7 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 	{
 		this.pitch = pitch;
 		cachedRotationMatrixDirty = true;
+		boundsChanged();
 	}
 
 	public Vec4 getScale()
@@ -616,6 +1276,7 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 	public void setScale(Vec4 scale)
 	{
 		this.scale = scale;
+		boundsChanged();
 	}
 
 	public int getAltitudeMode()
@@ -626,6 +1287,54 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 	public void setAltitudeMode(int altitudeMode)
 	{
 		this.altitudeMode = altitudeMode;
+		referenceCenterDirty = true;
+		boundsChanged();
+	}
+
+	public boolean isLevelOfDetailEnabled()
+	{
+		return levelOfDetailEnabled;
+	}
+
+	/**
+	 * @param levelOfDetailEnabled
+	 *            Whether to draw reduced levels of detail when the model is
+	 *            small on the screen
+	 */
+	public void setLevelOfDetailEnabled(boolean levelOfDetailEnabled)
+	{
+		this.levelOfDetailEnabled = levelOfDetailEnabled;
+	}
+
+	public boolean isChildCullingEnabled()
+	{
+		return childCullingEnabled;
+	}
+
+	/**
+	 * @param childCullingEnabled
+	 *            Whether to skip the parts of the model that are outside the
+	 *            view frustum, for large models seen from close up
+	 */
+	public void setChildCullingEnabled(boolean childCullingEnabled)
+	{
+		this.childCullingEnabled = childCullingEnabled;
+	}
+
+	public double getImpostorPixelSize()
+	{
+		return impostorPixelSize;
+	}
+
+	/**
+	 * @param impostorPixelSize
+	 *            Projected radius in pixels below which the model is drawn as
+	 *            a single point of its average color; 0 (the default)
+	 *            disables the impostor
+	 */
+	public void setImpostorPixelSize(double impostorPixelSize)
+	{
+		this.impostorPixelSize = impostorPixelSize;
 	}
 
 	public boolean isVisible()
@@ -636,6 +1345,34 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 	public void setVisible(boolean visible)
 	{
 		this.visible = visible;
+		if (!visible)
+		{
+			ModelLoadScheduler.getInstance().cancel(this);
+		}
+	}
+
+	/**
+	 * Cancel any pending load and release the loaded model and its textures.
+	 * The model is loaded again if it is drawn after being disposed.
+	 */
+	public void dispose()
+	{
+		ModelLoadScheduler.getInstance().cancel(this);
+		ColladaNode node;
+		synchronized (loadLock)
+		{
+			loadGeneration++;
+			node = nodeRef.getAndSet(null);
+			levelsOfDetail = null;
+			requestedLoad = false;
+		}
+		if (node != null)
+		{
+			ColladaTextureCache.getInstance().release(node);
+		}
+		pickTree = null;
+		pickTreeNode = null;
+		boundsChanged();
 	}
 
 	@Override
@@ -644,9 +1381,73 @@ public class ColladaModel implements Renderable, Scene, Adjustable
 		return false;
 	}
 
+	/**
+	 * Find the triangle of this model hit by a ray, without rendering. The
+	 * model's location, rotation and size are the ones it was last drawn
+	 * with. Must be called on the rendering thread.
+	 * 
+	 * @param pickRay
+	 *            Ray in World Wind coordinates, with a unit direction
+	 * @return The mesh hit, sorted by distance, with an intersection record
+	 *         giving the distance along the ray, the point hit and the
+	 *         primitive hit; empty if the ray misses the model or the model
+	 *         hasn't been drawn yet
+	 */
 	@Override
 	public PickResults doPick(Ray3 pickRay)
 	{
-		return null;
+		PickResults results = new PrimitivePickResults();
+		results.setCheckDistance(true);
+		ColladaPickTree.Hit hit = pick(pickRay);
+		if (hit != null)
+		{
+			Vector3 point = new Vector3(pickRay.getDirection()).multiplyLocal(hit.getDistance()).addLocal(
+					pickRay.getOrigin());
+			PrimitiveKey primitive = new PrimitiveKey(hit.getPrimitive(), hit.getSection());
+			IntersectionRecord record =
+					new IntersectionRecord(new double[] { hit.getDistance() }, new Vector3[] { point },
+							Collections.singletonList(primitive));
+			results.addPickData(new ColladaPickData(pickRay, hit.getMesh(), record));
+		}
+		return results;
+	}
+
+	/**
+	 * Transform a ray into the coordinates of the loaded node (the inverse of
+	 * the translation, rotation and scale the model is drawn with) and
+	 * intersect it with the node's triangles.
+	 * 
+	 * @param ray
+	 *            Ray in World Wind coordinates
+	 * @return The nearest hit, with the distance in multiples of the ray's
+	 *         direction, or null
+	 */
+	protected ColladaPickTree.Hit pick(Ray3 ray)
+	{
+		Node node = nodeRef.get();
+		Vec4 loc = referenceCenterPoint;
+		double sx = lastLocalSize * scale.x, sy = lastLocalSize * scale.y, sz = lastLocalSize * scale.z;
+		if (node == null || loc == null || sx == 0 || sy == 0 || sz == 0)
+			return null;
+
+		if (pickTreeNode != node)
+		{
+			pickTree = new ColladaPickTree(node);
+			pickTreeNode = node;
+		}
+
+		//v = S^-1 * transpose(R) * (p - loc)
+		ReadOnlyMatrix4 r = getRotationMatrix();
+		ReadOnlyVector3 origin = ray.getOrigin();
+		ReadOnlyVector3 direction = ray.getDirection();
+		double px = origin.getX() - loc.x, py = origin.getY() - loc.y, pz = origin.getZ() - loc.z;
+		double dx = direction.getX(), dy = direction.getY(), dz = direction.getZ();
+		double ox = (r.getValue(0, 0) * px + r.getValue(1, 0) * py + r.getValue(2, 0) * pz) / sx;
+		double oy = (r.getValue(0, 1) * px + r.getValue(1, 1) * py + r.getValue(2, 1) * pz) / sy;
+		double oz = (r.getValue(0, 2) * px + r.getValue(1, 2) * py + r.getValue(2, 2) * pz) / sz;
+		double mx = (r.getValue(0, 0) * dx + r.getValue(1, 0) * dy + r.getValue(2, 0) * dz) / sx;
+		double my = (r.getValue(0, 1) * dx + r.getValue(1, 1) * dy + r.getValue(2, 1) * dz) / sy;
+		double mz = (r.getValue(0, 2) * dx + r.getValue(1, 2) * dy + r.getValue(2, 2) * dz) / sz;
+		return pickTree.intersect(ox, oy, oz, mx, my, mz, pickHit) ? pickHit : null;
 	}
 }
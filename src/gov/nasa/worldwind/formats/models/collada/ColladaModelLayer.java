@@ -0,0 +1,515 @@
+package gov.nasa.worldwind.formats.models.collada;
+
+import gov.nasa.worldwind.WorldWind;
+import gov.nasa.worldwind.geom.Frustum;
+import gov.nasa.worldwind.geom.Line;
+import gov.nasa.worldwind.geom.Plane;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.globes.Globe;
+import gov.nasa.worldwind.layers.AbstractLayer;
+import gov.nasa.worldwind.render.DrawContext;
+import gov.nasa.worldwind.terrain.ElevationModel;
+import gov.nasa.worldwind.util.Logging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.media.opengl.GL;
+
+import com.ardor3d.intersection.PickResults;
+import com.ardor3d.math.Ray3;
+import com.ardor3d.math.Vector3;
+import com.ardor3d.renderer.Renderer;
+import com.ardor3d.renderer.jogl.JoglRenderer;
+import com.ardor3d.scenegraph.Node;
+
+/**
+ * Layer that draws many {@link ColladaModel}s as a batch. Rendering each
+ * model separately saves and restores the OpenGL state, sets up the lighting
+ * and flushes the Ardor3D render buckets once per model. This layer does
+ * those things once per frame: the visible models are sorted so that models
+ * sharing the same source (and therefore materials and textures) are queued
+ * together, and the Ardor3D render buckets, which sort their contents by
+ * render state, are flushed once for the textured and once for the
+ * untextured models.
+ * <p>
+ * Groups of models that share the same source and level of detail are drawn
+ * with hardware instancing when the OpenGL context supports it; see
+ * {@link ColladaInstancedRenderer}. Models drawn as impostors are drawn after
+ * the batches.
+ * <p>
+ * The models are kept in a {@link ColladaSpatialIndex} of their bounding
+ * spheres in world coordinates, so that each frame only the models that may
+ * be inside the view frustum are prepared for drawing, and
+ * {@link #getModelsAlongRay(DrawContext, Line)} only returns the models a pick
+ * ray may hit. A model's bounds are indexed again when it is moved, rotated,
+ * scaled or loaded, and when the globe, vertical exaggeration or (for models
+ * placed relative to the ground) terrain changes. Models that haven't been
+ * loaded yet are indexed with a radius estimated from their scale, and models
+ * whose size depends on the distance to the eye with their size at the far
+ * clip distance, which are indexed again when the far clip distance changes
+ * a lot.
+ * <p>
+ * Optionally, models hidden behind other models are skipped using hardware
+ * occlusion queries; see {@link ColladaOcclusionCuller}. The number of models
+ * drawn, occluded and culled by the last frame can be used to judge whether
+ * occlusion culling pays off for a data set.
+ * <p>
+ * Models added to this layer should not also be rendered individually.
+ */
+public class ColladaModelLayer extends AbstractLayer
+{
+	protected static final Comparator<ColladaModel> SOURCE_ORDER = new Comparator<ColladaModel>()
+	{
+		@Override
+		public int compare(ColladaModel o1, ColladaModel o2)
+		{
+			int result = o1.path.compareTo(o2.path);
+			return result != 0 ? result : o1.level - o2.level;
+		}
+	};
+
+	protected final ConcurrentLinkedQueue<ColladaModel> models = new ConcurrentLinkedQueue<ColladaModel>();
+	protected final Renderer renderer = new JoglRenderer();
+	protected final ColladaInstancedRenderer instancedRenderer = new ColladaInstancedRenderer();
+	protected boolean instancingEnabled = true;
+
+	//models in world coordinates, maintained on the rendering thread
+	protected final ColladaSpatialIndex<ColladaModel> index = new ColladaSpatialIndex<ColladaModel>();
+	//models added, removed or changed since the last frame
+	protected final ConcurrentLinkedQueue<ColladaModel> changedModels = new ConcurrentLinkedQueue<ColladaModel>();
+	//inputs of the model locations in the index
+	protected Globe indexGlobe;
+	protected double indexVerticalExaggeration;
+	protected ElevationModel indexElevationModel;
+	protected long indexElevationChangeCount;
+	//distance the models whose size depends on the distance to the eye are indexed for
+	protected double indexMaxDistance;
+	protected final double[] frustumPlanes = new double[24];
+
+	protected final ColladaOcclusionCuller occlusionCuller = new ColladaOcclusionCuller();
+	protected boolean occlusionCullingEnabled = false;
+	//counts of the last frame
+	protected int drawnModelCount;
+	protected int occludedModelCount;
+	protected int culledModelCount;
+
+	//per-frame lists, reused between frames
+	protected final List<ColladaModel> candidateModels = new ArrayList<ColladaModel>();
+	protected final List<ColladaModel> texturedModels = new ArrayList<ColladaModel>();
+	protected final List<ColladaModel> untexturedModels = new ArrayList<ColladaModel>();
+	protected final List<ColladaModel> impostorModels = new ArrayList<ColladaModel>();
+	protected final List<ColladaModel> queriedModels = new ArrayList<ColladaModel>();
+	protected final float[] lightPosition = new float[4];
+
+	public void addModel(ColladaModel model)
+	{
+		if (model == null)
+		{
+			String msg = Logging.getMessage("nullValue.ObjectIsNull");
+			Logging.logger().severe(msg);
+			throw new IllegalArgumentException(msg);
+		}
+
+		this.models.add(model);
+		model.layer = this;
+		modelChanged(model);
+	}
+
+	/**
+	 * Remove a model from this layer and dispose it, releasing its textures.
+	 *
+	 * @param model
+	 *            Model to remove
+	 */
+	public void removeModel(ColladaModel model)
+	{
+		this.models.remove(model);
+		if (model.layer == this)
+		{
+			model.layer = null;
+		}
+		modelChanged(model);
+		model.dispose();
+	}
+
+	public void removeAllModels()
+	{
+		for (ColladaModel model : models)
+		{
+			removeModel(model);
+		}
+	}
+
+	public Iterable<ColladaModel> getModels()
+	{
+		return Collections.unmodifiableCollection(this.models);
+	}
+
+	/**
+	 * Called by a model added to this layer when its bounds change, to index
+	 * it again on the next frame. May be called from any thread.
+	 *
+	 * @param model
+	 *            Model that has changed
+	 */
+	protected void modelChanged(ColladaModel model)
+	{
+		changedModels.add(model);
+	}
+
+	/**
+	 * Find the models whose bounds are crossed by a ray, for picking. Must be
+	 * called on the rendering thread.
+	 *
+	 * @param dc
+	 *            Draw context
+	 * @param ray
+	 *            Ray in world coordinates
+	 * @return The visible models that may be hit by the ray
+	 */
+	public List<ColladaModel> getModelsAlongRay(DrawContext dc, Line ray)
+	{
+		updateIndex(dc);
+		List<ColladaModel> result = new ArrayList<ColladaModel>();
+		Vec4 origin = ray.getOrigin();
+		Vec4 direction = ray.getDirection();
+		index.query(origin.x, origin.y, origin.z, direction.x, direction.y, direction.z, result);
+		for (int i = result.size() - 1; i >= 0; i--)
+		{
+			if (!result.get(i).isVisible())
+			{
+				result.remove(i);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Find the nearest model hit by a ray, intersecting the ray with the
+	 * triangles of the models whose bounds it crosses (see
+	 * {@link ColladaModel#doPick(Ray3)}), without rendering. Must be called
+	 * on the rendering thread.
+	 *
+	 * @param dc
+	 *            Draw context
+	 * @param ray
+	 *            Ray in world coordinates
+	 * @return The nearest model hit, or null
+	 */
+	public ColladaModel pickModel(DrawContext dc, Line ray)
+	{
+		Vec4 origin = ray.getOrigin();
+		Vec4 direction = ray.getDirection().normalize3();
+		Ray3 pickRay = new Ray3(new Vector3(origin.x, origin.y, origin.z), new Vector3(direction.x, direction.y,
+				direction.z));
+
+		ColladaModel nearest = null;
+		double nearestDistance = Double.POSITIVE_INFINITY;
+		for (ColladaModel model : getModelsAlongRay(dc, ray))
+		{
+			PickResults results = model.doPick(pickRay);
+			if (results.getNumber() > 0)
+			{
+				double distance = results.getPickData(0).getIntersectionRecord().getClosestDistance();
+				if (distance < nearestDistance)
+				{
+					nearest = model;
+					nearestDistance = distance;
+				}
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Bring the spatial index up to date with the models' bounds.
+	 *
+	 * @param dc
+	 *            Draw context
+	 */
+	protected void updateIndex(DrawContext dc)
+	{
+		Globe globe = dc.getGlobe();
+		ElevationModel elevationModel = globe.getElevationModel();
+		long elevationChangeCount =
+				elevationModel == null ? 0 : ElevationModelChangeTracker.getTracker(elevationModel).getChangeCount();
+
+		boolean globeChanged = globe != indexGlobe || dc.getVerticalExaggeration() != indexVerticalExaggeration;
+		boolean terrainChanged =
+				elevationModel != indexElevationModel || elevationChangeCount != indexElevationChangeCount;
+		//models sized by the distance to the eye are bounded by their size at up to twice the far clip distance
+		double farClipDistance = dc.getView().getFarClipDistance();
+		boolean distanceChanged = farClipDistance > indexMaxDistance || farClipDistance < indexMaxDistance / 8;
+		if (globeChanged || terrainChanged || distanceChanged)
+		{
+			indexGlobe = globe;
+			indexVerticalExaggeration = dc.getVerticalExaggeration();
+			indexElevationModel = elevationModel;
+			indexElevationChangeCount = elevationChangeCount;
+			if (distanceChanged)
+			{
+				indexMaxDistance = farClipDistance * 2;
+			}
+			for (ColladaModel model : models)
+			{
+				//models at absolute altitudes don't move with the terrain
+				if (globeChanged || (terrainChanged && model.altitudeMode != WorldWind.ABSOLUTE)
+						|| (distanceChanged && !model.constantSize))
+				{
+					indexModel(dc, model);
+				}
+			}
+		}
+
+		ColladaModel model;
+		while ((model = changedModels.poll()) != null)
+		{
+			indexModel(dc, model);
+		}
+	}
+
+	protected void indexModel(DrawContext dc, ColladaModel model)
+	{
+		if (model.layer != this)
+		{
+			index.remove(model);
+			occlusionCuller.remove(model);
+			instancedRenderer.remove(model);
+		}
+		else
+		{
+			model.computeIndexBounds(dc, indexMaxDistance);
+			index.put(model, model.boundCenterX, model.boundCenterY, model.boundCenterZ, model.boundRadius);
+		}
+	}
+
+	/**
+	 * Find the models that may be inside the view frustum.
+	 */
+	protected void findCandidateModels(DrawContext dc, List<ColladaModel> result)
+	{
+		Frustum frustum = dc.getView().getFrustumInModelCoordinates();
+		for (int i = 0; i < 6; i++)
+		{
+			Plane plane =
+					i == 0 ? frustum.getFar() : i == 1 ? frustum.getLeft() : i == 2 ? frustum.getRight() : i == 3
+							? frustum.getTop() : i == 4 ? frustum.getBottom() : frustum.getNear();
+			Vec4 n = plane.getNormal();
+			frustumPlanes[i * 4] = n.x;
+			frustumPlanes[i * 4 + 1] = n.y;
+			frustumPlanes[i * 4 + 2] = n.z;
+			frustumPlanes[i * 4 + 3] = plane.getDistance();
+		}
+		index.query(frustumPlanes, result);
+	}
+
+	public boolean isInstancingEnabled()
+	{
+		return instancingEnabled;
+	}
+
+	/**
+	 * @param instancingEnabled
+	 *            Whether to draw groups of models sharing the same source
+	 *            using hardware instancing, if supported
+	 */
+	public void setInstancingEnabled(boolean instancingEnabled)
+	{
+		this.instancingEnabled = instancingEnabled;
+	}
+
+	public boolean isOcclusionCullingEnabled()
+	{
+		return occlusionCullingEnabled;
+	}
+
+	/**
+	 * @param occlusionCullingEnabled
+	 *            Whether to skip the models hidden behind other models using
+	 *            occlusion queries, if supported; worthwhile for dense data
+	 *            sets such as city models
+	 */
+	public void setOcclusionCullingEnabled(boolean occlusionCullingEnabled)
+	{
+		this.occlusionCullingEnabled = occlusionCullingEnabled;
+	}
+
+	/**
+	 * @return Number of models drawn by the last frame, including impostors
+	 */
+	public int getDrawnModelCount()
+	{
+		return drawnModelCount;
+	}
+
+	/**
+	 * @return Number of models inside the view frustum that weren't drawn by
+	 *         the last frame because they were occluded
+	 */
+	public int getOccludedModelCount()
+	{
+		return occludedModelCount;
+	}
+
+	/**
+	 * @return Number of models not drawn by the last frame for other reasons:
+	 *         outside the view frustum, hidden, or not loaded yet
+	 */
+	public int getCulledModelCount()
+	{
+		return culledModelCount;
+	}
+
+	@Override
+	protected void doRender(DrawContext dc)
+	{
+		ArdorContextRegistry.makeCurrent(dc);
+		ColladaTextureCache.getInstance().deleteEvictedTextures(renderer);
+
+		//draw relative to the eye point, to keep the translations small enough for float precision
+		Vec4 referenceCenter = dc.getView().getEyePoint();
+
+		updateIndex(dc);
+		candidateModels.clear();
+		findCandidateModels(dc, candidateModels);
+
+		boolean occlusionCulling = occlusionCullingEnabled && occlusionCuller.isSupported(dc);
+
+		texturedModels.clear();
+		untexturedModels.clear();
+		impostorModels.clear();
+		queriedModels.clear();
+		occludedModelCount = 0;
+		for (ColladaModel model : candidateModels)
+		{
+			if (!model.isVisible())
+				continue;
+
+			if (occlusionCulling)
+			{
+				if (!model.intersectsFrustum(dc))
+					continue;
+
+				if (occlusionCuller.isOccluded(dc, model))
+				{
+					//keep querying, to find out when the model comes into view
+					queriedModels.add(model);
+					occludedModelCount++;
+					continue;
+				}
+			}
+
+			if (model.prepareBatchDraw(dc, referenceCenter) != null)
+			{
+				(model.getModel().isUsingTexture() ? texturedModels : untexturedModels).add(model);
+				if (occlusionCulling)
+				{
+					queriedModels.add(model);
+				}
+			}
+			else if (model.batchImpostor)
+			{
+				impostorModels.add(model);
+			}
+		}
+
+		candidateModels.clear();
+		drawnModelCount = texturedModels.size() + untexturedModels.size() + impostorModels.size();
+		culledModelCount = index.size() - drawnModelCount - occludedModelCount;
+		if (drawnModelCount == 0 && queriedModels.isEmpty())
+			return;
+
+		Collections.sort(texturedModels, SOURCE_ORDER);
+		Collections.sort(untexturedModels, SOURCE_ORDER);
+
+		ColladaModel.pushState(dc, lightPosition);
+		try
+		{
+			dc.getView().pushReferenceCenter(dc, referenceCenter);
+			TextureUnitTracker.validate(dc);
+
+			boolean instancing = instancingEnabled && instancedRenderer.isSupported(dc);
+
+			GL gl = dc.getGL();
+			if (!texturedModels.isEmpty())
+			{
+				gl.glEnable(GL.GL_TEXTURE_2D);
+				gl.glEnable(GL.GL_BLEND);
+				gl.glEnable(GL.GL_RESCALE_NORMAL);
+				drawBatch(dc, texturedModels, instancing);
+			}
+			if (!untexturedModels.isEmpty())
+			{
+				gl.glDisable(GL.GL_TEXTURE_2D);
+				gl.glDisable(GL.GL_BLEND);
+				drawBatch(dc, untexturedModels, instancing);
+			}
+			for (ColladaModel model : impostorModels)
+			{
+				model.drawImpostor(dc, referenceCenter);
+			}
+			if (occlusionCulling)
+			{
+				//against the depth of the models drawn above
+				occlusionCuller.issueQueries(dc, queriedModels, referenceCenter);
+				queriedModels.clear();
+			}
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			dc.getView().popReferenceCenter(dc);
+			ColladaModel.popState(dc);
+		}
+	}
+
+	/**
+	 * Draw the given models: groups sharing the same source and level of
+	 * detail are instanced if possible, the nodes of the other models are
+	 * queued and the render buckets are flushed once.
+	 *
+	 * @param dc
+	 *            Draw context
+	 * @param batch
+	 *            Models prepared by {@link ColladaModel#prepareBatchDraw},
+	 *            sorted by source and level of detail
+	 * @param instancing
+	 *            Whether to try instancing
+	 */
+	protected void drawBatch(DrawContext dc, List<ColladaModel> batch, boolean instancing)
+	{
+		int start = 0;
+		while (start < batch.size())
+		{
+			int end = start + 1;
+			while (end < batch.size() && batch.get(end).path.equals(batch.get(start).path)
+					&& batch.get(end).level == batch.get(start).level)
+				end++;
+
+			if (!instancing || !instancedRenderer.draw(dc, renderer, batch, start, end))
+			{
+				for (int i = start; i < end; i++)
+				{
+					Node node = batch.get(i).batchNode;
+					batch.get(i).applyCullingPlanes();
+					node.draw(renderer);
+				}
+			}
+			start = end;
+		}
+		renderer.renderBuckets();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "COLLADA Models";
+	}
+}
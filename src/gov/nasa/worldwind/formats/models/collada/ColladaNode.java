@@ -1,10 +1,13 @@
 package gov.nasa.worldwind.formats.models.collada;
 
+import java.io.IOException;
 import java.util.List;
 
 import com.ardor3d.extension.model.collada.jdom.data.AssetData;
 import com.ardor3d.scenegraph.Node;
 import com.ardor3d.scenegraph.Spatial;
+import com.ardor3d.util.export.InputCapsule;
+import com.ardor3d.util.export.OutputCapsule;
 
 /**
  * Node class that also stores COLLADA {@link AssetData}.
@@ -39,4 +42,26 @@ public class ColladaNode extends Node
 	{
 		this.assetData = assetData;
 	}
+
+	@Override
+	public ColladaNode makeCopy(boolean shareGeometricData)
+	{
+		ColladaNode copy = (ColladaNode) super.makeCopy(shareGeometricData);
+		copy.setAssetData(assetData);
+		return copy;
+	}
+
+	@Override
+	public void write(OutputCapsule capsule) throws IOException
+	{
+		super.write(capsule);
+		capsule.write(assetData, "assetData", null);
+	}
+
+	@Override
+	public void read(InputCapsule capsule) throws IOException
+	{
+		super.read(capsule);
+		assetData = (AssetData) capsule.readSavable("assetData", null);
+	}
 }
@@ -0,0 +1,246 @@
+package gov.nasa.worldwind.formats.models.collada;
+
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.render.DrawContext;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GLContext;
+
+/**
+ * Skips the models of a {@link ColladaModelLayer} that are hidden behind
+ * other models or the terrain, using hardware occlusion queries
+ * (<code>GL_ARB_occlusion_query</code>).
+ * <p>
+ * After the visible models have been drawn, a query is issued for each model
+ * that was inside the view frustum, drawing its bounding cube with color and
+ * depth writes disabled. The result is read on a later frame, without waiting
+ * for the GPU: a model is considered occluded from the frame its last query
+ * is known to have passed no samples, until a query passes samples again. As
+ * the occluded models are still queried every frame, a model that comes into
+ * view appears a frame or two late.
+ * <p>
+ * Models whose bounds contain the eye, or come close to the near clipping
+ * plane, are always drawn, as part of their bounding cube would be clipped.
+ * <p>
+ * Queries are kept per OpenGL context, and the queries of removed models are
+ * reused for other models. Must only be used on the rendering thread.
+ */
+public class ColladaOcclusionCuller
+{
+	protected static class Query
+	{
+		protected final int id;
+		protected boolean pending;
+		protected boolean occluded;
+
+		public Query(int id)
+		{
+			this.id = id;
+		}
+	}
+
+	protected static class ContextState
+	{
+		protected final boolean supported;
+		protected final Map<ColladaModel, Query> queries = new HashMap<ColladaModel, Query>();
+		protected final List<Query> freeQueries = new ArrayList<Query>();
+
+		public ContextState(boolean supported)
+		{
+			this.supported = supported;
+		}
+	}
+
+	protected final Map<GLContext, ContextState> contexts = new WeakHashMap<GLContext, ContextState>();
+	private final int[] result = new int[1];
+
+	/**
+	 * @param dc
+	 *            Draw context
+	 * @return true if the current OpenGL context supports occlusion queries
+	 */
+	public boolean isSupported(DrawContext dc)
+	{
+		return getState(dc).supported;
+	}
+
+	protected ContextState getState(DrawContext dc)
+	{
+		ContextState state = contexts.get(dc.getGLContext());
+		if (state == null)
+		{
+			GL gl = dc.getGL();
+			state = new ContextState(gl.isFunctionAvailable("glGenQueries")
+					&& gl.isFunctionAvailable("glGetQueryObjectiv"));
+			contexts.put(dc.getGLContext(), state);
+		}
+		return state;
+	}
+
+	/**
+	 * Check whether a model was occluded, according to the latest available
+	 * result of its query. Doesn't wait for pending queries.
+	 *
+	 * @param dc
+	 *            Draw context
+	 * @param model
+	 *            Model inside the view frustum, whose bounds have been
+	 *            computed for this frame
+	 * @return true if the model doesn't need to be drawn
+	 */
+	public boolean isOccluded(DrawContext dc, ColladaModel model)
+	{
+		ContextState state = getState(dc);
+		Query query = state.queries.get(model);
+		if (query == null)
+			return false;
+
+		if (query.pending)
+		{
+			GL gl = dc.getGL();
+			gl.glGetQueryObjectiv(query.id, GL.GL_QUERY_RESULT_AVAILABLE, result, 0);
+			if (result[0] != 0)
+			{
+				gl.glGetQueryObjectiv(query.id, GL.GL_QUERY_RESULT, result, 0);
+				query.occluded = result[0] == 0;
+				query.pending = false;
+			}
+		}
+		return query.occluded && !isNearEye(dc, model);
+	}
+
+	/**
+	 * Issue occlusion queries for the bounds of the given models, against the
+	 * depth buffer as it is after drawing the visible models. Models that
+	 * still have a query pending aren't queried again.
+	 *
+	 * @param dc
+	 *            Draw context
+	 * @param models
+	 *            Models inside the view frustum, whose bounds have been
+	 *            computed for this frame
+	 * @param referenceCenter
+	 *            Reference center the current modelview matrix is relative to
+	 */
+	public void issueQueries(DrawContext dc, List<ColladaModel> models, Vec4 referenceCenter)
+	{
+		if (models.isEmpty())
+			return;
+
+		ContextState state = getState(dc);
+		GL gl = dc.getGL();
+		gl.glPushAttrib(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT | GL.GL_ENABLE_BIT);
+		try
+		{
+			gl.glColorMask(false, false, false, false);
+			gl.glDepthMask(false);
+			gl.glEnable(GL.GL_DEPTH_TEST);
+			//only the depth test must decide whether samples pass
+			gl.glDisable(GL.GL_ALPHA_TEST);
+			gl.glDisable(GL.GL_STENCIL_TEST);
+			gl.glDisable(GL.GL_CULL_FACE);
+
+			for (ColladaModel model : models)
+			{
+				Query query = state.queries.get(model);
+				if (query == null)
+				{
+					query = createQuery(gl, state);
+					state.queries.put(model, query);
+				}
+				else if (query.pending)
+				{
+					continue;
+				}
+
+				gl.glBeginQuery(GL.GL_SAMPLES_PASSED, query.id);
+				drawCube(gl, model.boundCenterX - referenceCenter.x, model.boundCenterY - referenceCenter.y,
+						model.boundCenterZ - referenceCenter.z, model.boundRadius);
+				gl.glEndQuery(GL.GL_SAMPLES_PASSED);
+				query.pending = true;
+			}
+		}
+		finally
+		{
+			gl.glPopAttrib();
+		}
+	}
+
+	protected Query createQuery(GL gl, ContextState state)
+	{
+		if (!state.freeQueries.isEmpty())
+		{
+			Query free = state.freeQueries.remove(state.freeQueries.size() - 1);
+			//the result of a pending query is discarded when the query is issued again
+			return new Query(free.id);
+		}
+		int[] id = new int[1];
+		gl.glGenQueries(1, id, 0);
+		return new Query(id[0]);
+	}
+
+	/**
+	 * Forget a model's queries in all OpenGL contexts, keeping the query
+	 * objects for reuse.
+	 *
+	 * @param model
+	 *            Model removed from the layer
+	 */
+	public void remove(ColladaModel model)
+	{
+		for (ContextState state : contexts.values())
+		{
+			Query query = state.queries.remove(model);
+			if (query != null)
+			{
+				state.freeQueries.add(query);
+			}
+		}
+	}
+
+	protected boolean isNearEye(DrawContext dc, ColladaModel model)
+	{
+		Vec4 eye = dc.getView().getEyePoint();
+		double dx = eye.x - model.boundCenterX;
+		double dy = eye.y - model.boundCenterY;
+		double dz = eye.z - model.boundCenterZ;
+		//the corners of the cube are sqrt(3) times the radius away from its center
+		double distance = model.boundRadius * Math.sqrt(3) + dc.getView().getNearClipDistance();
+		return dx * dx + dy * dy + dz * dz <= distance * distance;
+	}
+
+	protected static void drawCube(GL gl, double x, double y, double z, double radius)
+	{
+		double x0 = x - radius, x1 = x + radius;
+		double y0 = y - radius, y1 = y + radius;
+		double z0 = z - radius, z1 = z + radius;
+		gl.glBegin(GL.GL_QUAD_STRIP);
+		gl.glVertex3d(x0, y0, z0);
+		gl.glVertex3d(x0, y1, z0);
+		gl.glVertex3d(x1, y0, z0);
+		gl.glVertex3d(x1, y1, z0);
+		gl.glVertex3d(x1, y0, z1);
+		gl.glVertex3d(x1, y1, z1);
+		gl.glVertex3d(x0, y0, z1);
+		gl.glVertex3d(x0, y1, z1);
+		gl.glVertex3d(x0, y0, z0);
+		gl.glVertex3d(x0, y1, z0);
+		gl.glEnd();
+		gl.glBegin(GL.GL_QUADS);
+		gl.glVertex3d(x0, y0, z0);
+		gl.glVertex3d(x1, y0, z0);
+		gl.glVertex3d(x1, y0, z1);
+		gl.glVertex3d(x0, y0, z1);
+		gl.glVertex3d(x0, y1, z0);
+		gl.glVertex3d(x0, y1, z1);
+		gl.glVertex3d(x1, y1, z1);
+		gl.glVertex3d(x1, y1, z0);
+		gl.glEnd();
+	}
+}
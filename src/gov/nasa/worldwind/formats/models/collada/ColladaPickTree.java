@@ -0,0 +1,476 @@
+package gov.nasa.worldwind.formats.models.collada;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ardor3d.bounding.BoundingVolume;
+import com.ardor3d.math.Ray3;
+import com.ardor3d.math.Transform;
+import com.ardor3d.math.Vector3;
+import com.ardor3d.scenegraph.Mesh;
+import com.ardor3d.scenegraph.MeshData;
+import com.ardor3d.scenegraph.Node;
+import com.ardor3d.scenegraph.Spatial;
+import com.ardor3d.scenegraph.hint.PickingHint;
+
+/**
+ * Finds the triangle of a model's scene graph hit by a ray, for picking
+ * without rendering. The ray is given in the coordinates of the root node,
+ * ignoring the root's own transform (which is set for drawing by the
+ * {@link ColladaModelLayer}).
+ * <p>
+ * Each mesh gets a bounding volume hierarchy of its triangles, built the
+ * first time a ray crosses the mesh's bounds: the triangles are transformed
+ * to the root's coordinates once, and split at the median of the longest
+ * axis of their centers until a leaf holds {@link #MAX_LEAF_TRIANGLES}. A
+ * ray then only tests the triangles of the leaves whose boxes it crosses,
+ * nearest first. Meshes drawn as lines or points, and meshes that aren't
+ * {@link PickingHint#Pickable}, can't be hit.
+ * <p>
+ * Not thread safe.
+ */
+public class ColladaPickTree
+{
+	/** Maximum number of triangles in a leaf of a mesh's tree */
+	public static final int MAX_LEAF_TRIANGLES = 8;
+
+	/**
+	 * The nearest intersection found by
+	 * {@link ColladaPickTree#intersect(double, double, double, double, double, double, Hit)}.
+	 */
+	public static class Hit
+	{
+		protected Mesh mesh;
+		protected int section;
+		protected int primitive;
+		protected double distance;
+
+		/**
+		 * @return The mesh hit
+		 */
+		public Mesh getMesh()
+		{
+			return mesh;
+		}
+
+		/**
+		 * @return Index of the section of the mesh hit
+		 */
+		public int getSection()
+		{
+			return section;
+		}
+
+		/**
+		 * @return Index of the primitive hit, within its section
+		 */
+		public int getPrimitive()
+		{
+			return primitive;
+		}
+
+		/**
+		 * @return Distance to the hit, in multiples of the ray's direction
+		 */
+		public double getDistance()
+		{
+			return distance;
+		}
+	}
+
+	/**
+	 * Triangles of a mesh in the root's coordinates, and the tree over them.
+	 */
+	protected static class MeshTree
+	{
+		protected final Mesh mesh;
+		protected final Transform transform;
+		//bounds of the mesh in the root's coordinates, null if unknown
+		protected final BoundingVolume bound;
+		protected boolean built;
+		//3 vertices of 3 coordinates per triangle
+		protected float[] vertices;
+		//section and primitive each triangle comes from
+		protected int[] sections;
+		protected int[] primitives;
+		//triangle indices, ordered so that each leaf covers a range
+		protected int[] order;
+		//per node: min x, y, z, max x, y, z
+		protected float[] nodeBounds;
+		//per node: first child (inner nodes, the second follows it) or first index in order (leaves)
+		protected int[] nodeStart;
+		//per node: number of triangles, 0 for inner nodes
+		protected int[] nodeCount;
+		protected int nodes;
+
+		public MeshTree(Mesh mesh, Transform transform)
+		{
+			this.mesh = mesh;
+			this.transform = transform;
+			this.bound = mesh.getModelBound() == null ? null : mesh.getModelBound().transform(transform, null);
+		}
+	}
+
+	protected final List<MeshTree> meshes = new ArrayList<MeshTree>();
+	private final Vector3[] scratchVertices = new Vector3[4];
+	private final Ray3 scratchRay = new Ray3();
+	private long triangleTestCount;
+
+	/**
+	 * @param root
+	 *            Root of the scene graph
+	 */
+	public ColladaPickTree(Spatial root)
+	{
+		collectMeshes(root, root);
+	}
+
+	protected void collectMeshes(Spatial root, Spatial spatial)
+	{
+		if (spatial instanceof Node)
+		{
+			for (Spatial child : ((Node) spatial).getChildren())
+			{
+				collectMeshes(root, child);
+			}
+		}
+		else if (spatial instanceof Mesh && spatial.getSceneHints().isPickingHintEnabled(PickingHint.Pickable))
+		{
+			Transform transform = new Transform();
+			for (Spatial s = spatial; s != null && s != root; s = s.getParent())
+			{
+				transform = s.getTransform().multiply(transform, null);
+			}
+			meshes.add(new MeshTree((Mesh) spatial, transform));
+		}
+	}
+
+	/**
+	 * Find the nearest triangle hit by a ray.
+	 *
+	 * @param ox
+	 *            X coordinate of the ray's origin
+	 * @param oy
+	 *            Y coordinate of the ray's origin
+	 * @param oz
+	 *            Z coordinate of the ray's origin
+	 * @param dx
+	 *            X coordinate of the ray's direction
+	 * @param dy
+	 *            Y coordinate of the ray's direction
+	 * @param dz
+	 *            Z coordinate of the ray's direction
+	 * @param hit
+	 *            Set to the nearest intersection, if any
+	 * @return true if a triangle was hit
+	 */
+	public boolean intersect(double ox, double oy, double oz, double dx, double dy, double dz, Hit hit)
+	{
+		double idx = 1 / dx, idy = 1 / dy, idz = 1 / dz;
+		hit.mesh = null;
+		hit.distance = Double.POSITIVE_INFINITY;
+
+		//the bounding volumes expect a unit direction
+		double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		scratchRay.setOrigin(new Vector3(ox, oy, oz));
+		scratchRay.setDirection(new Vector3(dx / length, dy / length, dz / length));
+		for (MeshTree tree : meshes)
+		{
+			if (!tree.built)
+			{
+				if (tree.bound != null && !tree.bound.intersects(scratchRay))
+					continue;
+				build(tree);
+			}
+			if (tree.nodes > 0)
+			{
+				intersect(tree, 0, ox, oy, oz, dx, dy, dz, idx, idy, idz, hit);
+			}
+		}
+		return hit.mesh != null;
+	}
+
+	protected void intersect(MeshTree tree, int node, double ox, double oy, double oz, double dx, double dy,
+			double dz, double idx, double idy, double idz, Hit hit)
+	{
+		int count = tree.nodeCount[node];
+		if (count > 0)
+		{
+			for (int i = tree.nodeStart[node]; i < tree.nodeStart[node] + count; i++)
+			{
+				int triangle = tree.order[i];
+				double t = intersectTriangle(tree.vertices, triangle * 9, ox, oy, oz, dx, dy, dz);
+				if (t < hit.distance)
+				{
+					hit.mesh = tree.mesh;
+					hit.section = tree.sections[triangle];
+					hit.primitive = tree.primitives[triangle];
+					hit.distance = t;
+				}
+			}
+			return;
+		}
+
+		//visit the nearest child first, so that the other can be skipped if the hit is closer
+		int near = tree.nodeStart[node], far = near + 1;
+		double tNear = intersectBox(tree.nodeBounds, near * 6, ox, oy, oz, idx, idy, idz, hit.distance);
+		double tFar = intersectBox(tree.nodeBounds, far * 6, ox, oy, oz, idx, idy, idz, hit.distance);
+		if (tFar < tNear)
+		{
+			near = far;
+			far = near - 1;
+			double swap = tNear;
+			tNear = tFar;
+			tFar = swap;
+		}
+		if (tNear < hit.distance)
+		{
+			intersect(tree, near, ox, oy, oz, dx, dy, dz, idx, idy, idz, hit);
+		}
+		if (tFar < hit.distance)
+		{
+			intersect(tree, far, ox, oy, oz, dx, dy, dz, idx, idy, idz, hit);
+		}
+	}
+
+	/**
+	 * @return Distance along the ray to a box, or positive infinity if the ray
+	 *         misses the box or only reaches it after the given distance
+	 */
+	protected static double intersectBox(float[] bounds, int offset, double ox, double oy, double oz, double idx,
+			double idy, double idz, double maxDistance)
+	{
+		double tx0 = (bounds[offset] - ox) * idx, tx1 = (bounds[offset + 3] - ox) * idx;
+		double ty0 = (bounds[offset + 1] - oy) * idy, ty1 = (bounds[offset + 4] - oy) * idy;
+		double tz0 = (bounds[offset + 2] - oz) * idz, tz1 = (bounds[offset + 5] - oz) * idz;
+		double near = Math.max(Math.max(Math.min(tx0, tx1), Math.min(ty0, ty1)), Math.max(Math.min(tz0, tz1), 0));
+		double far = Math.min(Math.min(Math.max(tx0, tx1), Math.max(ty0, ty1)), Math.min(Math.max(tz0, tz1),
+				maxDistance));
+		//NaN (a zero direction component with the origin on the slab's plane) counts as a hit
+		if (Double.isNaN(near) || Double.isNaN(far))
+			return 0;
+		return near <= far ? near : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Intersect a ray with a triangle, from either side (Moller-Trumbore).
+	 *
+	 * @return Distance along the ray, or positive infinity if the triangle
+	 *         isn't hit
+	 */
+	protected double intersectTriangle(float[] vertices, int offset, double ox, double oy, double oz, double dx,
+			double dy, double dz)
+	{
+		triangleTestCount++;
+		double v0x = vertices[offset], v0y = vertices[offset + 1], v0z = vertices[offset + 2];
+		double e1x = vertices[offset + 3] - v0x, e1y = vertices[offset + 4] - v0y, e1z = vertices[offset + 5] - v0z;
+		double e2x = vertices[offset + 6] - v0x, e2y = vertices[offset + 7] - v0y, e2z = vertices[offset + 8] - v0z;
+		double px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+		double det = e1x * px + e1y * py + e1z * pz;
+		if (det == 0)
+			return Double.POSITIVE_INFINITY;
+
+		double inverse = 1 / det;
+		double sx = ox - v0x, sy = oy - v0y, sz = oz - v0z;
+		double u = (sx * px + sy * py + sz * pz) * inverse;
+		if (u < 0 || u > 1)
+			return Double.POSITIVE_INFINITY;
+
+		double qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+		double v = (dx * qx + dy * qy + dz * qz) * inverse;
+		if (v < 0 || u + v > 1)
+			return Double.POSITIVE_INFINITY;
+
+		double t = (e2x * qx + e2y * qy + e2z * qz) * inverse;
+		return t >= 0 ? t : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Transform a mesh's triangles to the root's coordinates and build the
+	 * tree over them.
+	 */
+	protected void build(MeshTree tree)
+	{
+		tree.built = true;
+		MeshData data = tree.mesh.getMeshData();
+		if (data.getVertexBuffer() == null)
+			return;
+
+		int triangles = 0;
+		for (int section = 0; section < data.getSectionCount(); section++)
+		{
+			int vertexCount = data.getIndexMode(section).getVertexCount();
+			if (vertexCount == 3 || vertexCount == 4)
+			{
+				triangles += data.getPrimitiveCount(section) * (vertexCount - 2);
+			}
+		}
+		if (triangles == 0)
+			return;
+
+		tree.vertices = new float[triangles * 9];
+		tree.sections = new int[triangles];
+		tree.primitives = new int[triangles];
+		int triangle = 0;
+		for (int section = 0; section < data.getSectionCount(); section++)
+		{
+			int vertexCount = data.getIndexMode(section).getVertexCount();
+			if (vertexCount != 3 && vertexCount != 4)
+				continue;
+
+			for (int primitive = 0; primitive < data.getPrimitiveCount(section); primitive++)
+			{
+				Vector3[] vertices = data.getPrimitive(primitive, section, scratchVertices);
+				for (int i = 0; i < vertexCount; i++)
+				{
+					tree.transform.applyForward(vertices[i]);
+				}
+				//quads are split into two triangles
+				for (int first = 1; first < vertexCount - 1; first++)
+				{
+					setTriangle(tree, triangle++, vertices[0], vertices[first], vertices[first + 1], section,
+							primitive);
+				}
+			}
+		}
+
+		//the centers of the triangles, used to split them
+		float[] centers = new float[triangles * 3];
+		for (int i = 0; i < triangles; i++)
+		{
+			for (int axis = 0; axis < 3; axis++)
+			{
+				centers[i * 3 + axis] =
+						(tree.vertices[i * 9 + axis] + tree.vertices[i * 9 + 3 + axis] + tree.vertices[i * 9 + 6
+								+ axis]) / 3;
+			}
+		}
+		tree.order = new int[triangles];
+		for (int i = 0; i < triangles; i++)
+		{
+			tree.order[i] = i;
+		}
+		//the leaves hold at least half of MAX_LEAF_TRIANGLES, so there are fewer than 4 / MAX_LEAF_TRIANGLES
+		//leaves per triangle, and twice as many nodes
+		int maxNodes = 4 * ((triangles + MAX_LEAF_TRIANGLES - 1) / MAX_LEAF_TRIANGLES) + 1;
+		tree.nodeBounds = new float[maxNodes * 6];
+		tree.nodeStart = new int[maxNodes];
+		tree.nodeCount = new int[maxNodes];
+		tree.nodes = 1;
+		buildNode(tree, 0, 0, triangles, centers);
+	}
+
+	protected void setTriangle(MeshTree tree, int triangle, Vector3 a, Vector3 b, Vector3 c, int section,
+			int primitive)
+	{
+		int offset = triangle * 9;
+		Vector3[] corners = { a, b, c };
+		for (Vector3 corner : corners)
+		{
+			tree.vertices[offset++] = corner.getXf();
+			tree.vertices[offset++] = corner.getYf();
+			tree.vertices[offset++] = corner.getZf();
+		}
+		tree.sections[triangle] = section;
+		tree.primitives[triangle] = primitive;
+	}
+
+	protected void buildNode(MeshTree tree, int node, int start, int end, float[] centers)
+	{
+		float[] bounds = tree.nodeBounds;
+		int offset = node * 6;
+		for (int axis = 0; axis < 3; axis++)
+		{
+			bounds[offset + axis] = Float.POSITIVE_INFINITY;
+			bounds[offset + 3 + axis] = Float.NEGATIVE_INFINITY;
+		}
+		float[] centerBounds = { Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+				Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY };
+		for (int i = start; i < end; i++)
+		{
+			int triangle = tree.order[i];
+			for (int axis = 0; axis < 3; axis++)
+			{
+				for (int vertex = 0; vertex < 3; vertex++)
+				{
+					float value = tree.vertices[triangle * 9 + vertex * 3 + axis];
+					bounds[offset + axis] = Math.min(bounds[offset + axis], value);
+					bounds[offset + 3 + axis] = Math.max(bounds[offset + 3 + axis], value);
+				}
+				float center = centers[triangle * 3 + axis];
+				centerBounds[axis] = Math.min(centerBounds[axis], center);
+				centerBounds[3 + axis] = Math.max(centerBounds[3 + axis], center);
+			}
+		}
+
+		if (end - start <= MAX_LEAF_TRIANGLES)
+		{
+			tree.nodeStart[node] = start;
+			tree.nodeCount[node] = end - start;
+			return;
+		}
+
+		float sizeX = centerBounds[3] - centerBounds[0];
+		float sizeY = centerBounds[4] - centerBounds[1];
+		float sizeZ = centerBounds[5] - centerBounds[2];
+		int axis = sizeX >= sizeY && sizeX >= sizeZ ? 0 : sizeY >= sizeZ ? 1 : 2;
+		int middle = (start + end) >>> 1;
+		select(tree.order, centers, start, end - 1, middle, axis);
+
+		int first = tree.nodes;
+		tree.nodes += 2;
+		tree.nodeStart[node] = first;
+		tree.nodeCount[node] = 0;
+		buildNode(tree, first, start, middle, centers);
+		buildNode(tree, first + 1, middle, end, centers);
+	}
+
+	/**
+	 * Partially sort the triangle order so that the k-th triangle is the one
+	 * that would be there if the triangles were sorted by their centers along
+	 * an axis.
+	 */
+	protected static void select(int[] order, float[] centers, int left, int right, int k, int axis)
+	{
+		while (right > left)
+		{
+			float pivot = centers[order[(left + right) >>> 1] * 3 + axis];
+			int i = left, j = right;
+			while (i <= j)
+			{
+				while (centers[order[i] * 3 + axis] < pivot)
+					i++;
+				while (centers[order[j] * 3 + axis] > pivot)
+					j--;
+				if (i <= j)
+				{
+					int swap = order[i];
+					order[i] = order[j];
+					order[j] = swap;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j)
+			{
+				right = j;
+			}
+			else if (k >= i)
+			{
+				left = i;
+			}
+			else
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return Number of triangles tested by the intersections
+	 */
+	public long getTriangleTestCount()
+	{
+		return triangleTestCount;
+	}
+}
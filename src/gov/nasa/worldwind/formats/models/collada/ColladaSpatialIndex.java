@@ -0,0 +1,447 @@
+package gov.nasa.worldwind.formats.models.collada;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounding sphere hierarchy over items placed in world coordinates, used by
+ * the {@link ColladaModelLayer} to find the models that may be inside the
+ * view frustum or along a pick ray without testing every model.
+ * <p>
+ * The tree is built top-down, splitting the items at the median of the
+ * longest axis of their centers, and is rebuilt lazily by the next query once
+ * enough items have changed. Until then, added items are kept in a list that
+ * is tested item by item, moved items grow the spheres of the nodes above
+ * them, and removed items are skipped. This keeps updates cheap while many
+ * models are loading, and the cost of a query logarithmic in the number of
+ * items once the tree has been rebuilt.
+ * <p>
+ * Not thread safe; the {@link ColladaModelLayer} only uses its index on the
+ * rendering thread.
+ *
+ * @param <T>
+ *            Type of the indexed items
+ */
+public class ColladaSpatialIndex<T>
+{
+	/** Maximum number of items in a leaf of the tree */
+	public static final int MAX_LEAF_SIZE = 8;
+	/** Minimum number of changed items before the tree is rebuilt */
+	public static final int MIN_REBUILD_CHANGES = 32;
+
+	protected static class Entry<T>
+	{
+		protected final T item;
+		protected double x, y, z, radius;
+		protected TreeNode<T> leaf;
+		protected boolean removed;
+
+		public Entry(T item)
+		{
+			this.item = item;
+		}
+	}
+
+	protected static class TreeNode<T>
+	{
+		protected double x, y, z, radius;
+		protected TreeNode<T> parent;
+		protected TreeNode<T> left;
+		protected TreeNode<T> right;
+		protected Entry<T>[] entries;
+	}
+
+	private final Map<T, Entry<T>> entries = new HashMap<T, Entry<T>>();
+	//entries added since the tree was built, tested one by one
+	private final List<Entry<T>> pending = new ArrayList<Entry<T>>();
+	private TreeNode<T> root;
+	private int treeSize;
+	//entries moved or removed since the tree was built
+	private int changes;
+
+	private long nodeTestCount;
+	private long rebuildCount;
+
+	/**
+	 * Add an item, or update its bounding sphere if it is already indexed.
+	 *
+	 * @param item
+	 *            Item to index
+	 * @param x
+	 *            X coordinate of the center of the item's bounding sphere
+	 * @param y
+	 *            Y coordinate of the center of the item's bounding sphere
+	 * @param z
+	 *            Z coordinate of the center of the item's bounding sphere
+	 * @param radius
+	 *            Radius of the item's bounding sphere
+	 */
+	public void put(T item, double x, double y, double z, double radius)
+	{
+		Entry<T> entry = entries.get(item);
+		if (entry == null)
+		{
+			entry = new Entry<T>(item);
+			entries.put(item, entry);
+			pending.add(entry);
+		}
+		entry.x = x;
+		entry.y = y;
+		entry.z = z;
+		entry.radius = radius;
+
+		if (entry.leaf != null)
+		{
+			//grow the spheres of the nodes above the entry; the tree gets looser until it is rebuilt
+			for (TreeNode<T> node = entry.leaf; node != null; node = node.parent)
+			{
+				enclose(node, x, y, z, radius);
+			}
+			changes++;
+		}
+	}
+
+	/**
+	 * Remove an item from the index.
+	 *
+	 * @param item
+	 *            Item to remove
+	 * @return true if the item was indexed
+	 */
+	public boolean remove(T item)
+	{
+		Entry<T> entry = entries.remove(item);
+		if (entry == null)
+			return false;
+
+		entry.removed = true;
+		if (entry.leaf == null)
+		{
+			pending.remove(entry);
+		}
+		else
+		{
+			changes++;
+		}
+		return true;
+	}
+
+	public boolean contains(T item)
+	{
+		return entries.containsKey(item);
+	}
+
+	public void clear()
+	{
+		entries.clear();
+		pending.clear();
+		root = null;
+		treeSize = 0;
+		changes = 0;
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Find the items whose bounding spheres aren't entirely outside one of a
+	 * set of planes.
+	 *
+	 * @param planes
+	 *            The normal (pointing inside) and distance of each plane, in
+	 *            the format used by {@link ColladaCullingCamera}; the normals
+	 *            must be unit length
+	 * @param result
+	 *            Collection the items are added to
+	 */
+	public void query(double[] planes, Collection<? super T> result)
+	{
+		rebuildIfNeeded();
+		if (root != null)
+		{
+			query(root, planes, (1 << planes.length / 4) - 1, result);
+		}
+		for (Entry<T> entry : pending)
+		{
+			if (intersects(planes, entry.x, entry.y, entry.z, entry.radius, (1 << planes.length / 4) - 1) >= 0)
+			{
+				result.add(entry.item);
+			}
+		}
+	}
+
+	/**
+	 * Find the items whose bounding spheres are crossed by a ray.
+	 *
+	 * @param ox
+	 *            X coordinate of the ray's origin
+	 * @param oy
+	 *            Y coordinate of the ray's origin
+	 * @param oz
+	 *            Z coordinate of the ray's origin
+	 * @param dx
+	 *            X coordinate of the ray's direction
+	 * @param dy
+	 *            Y coordinate of the ray's direction
+	 * @param dz
+	 *            Z coordinate of the ray's direction
+	 * @param result
+	 *            Collection the items are added to
+	 */
+	public void query(double ox, double oy, double oz, double dx, double dy, double dz, Collection<? super T> result)
+	{
+		double length = dx * dx + dy * dy + dz * dz;
+		if (length == 0)
+			return;
+
+		rebuildIfNeeded();
+		if (root != null)
+		{
+			query(root, ox, oy, oz, dx, dy, dz, length, result);
+		}
+		for (Entry<T> entry : pending)
+		{
+			if (intersects(ox, oy, oz, dx, dy, dz, length, entry.x, entry.y, entry.z, entry.radius))
+			{
+				result.add(entry.item);
+			}
+		}
+	}
+
+	protected void query(TreeNode<T> node, double[] planes, int mask, Collection<? super T> result)
+	{
+		nodeTestCount++;
+		int inside = intersects(planes, node.x, node.y, node.z, node.radius, mask);
+		if (inside < 0)
+			return;
+
+		//the planes the node is entirely inside of don't need to be tested for its children
+		mask &= ~inside;
+		if (node.entries != null)
+		{
+			for (Entry<T> entry : node.entries)
+			{
+				if (!entry.removed
+						&& (mask == 0 || intersects(planes, entry.x, entry.y, entry.z, entry.radius, mask) >= 0))
+				{
+					result.add(entry.item);
+				}
+			}
+			return;
+		}
+		query(node.left, planes, mask, result);
+		query(node.right, planes, mask, result);
+	}
+
+	protected void query(TreeNode<T> node, double ox, double oy, double oz, double dx, double dy, double dz,
+			double length, Collection<? super T> result)
+	{
+		nodeTestCount++;
+		if (!intersects(ox, oy, oz, dx, dy, dz, length, node.x, node.y, node.z, node.radius))
+			return;
+
+		if (node.entries != null)
+		{
+			for (Entry<T> entry : node.entries)
+			{
+				if (!entry.removed
+						&& intersects(ox, oy, oz, dx, dy, dz, length, entry.x, entry.y, entry.z, entry.radius))
+				{
+					result.add(entry.item);
+				}
+			}
+			return;
+		}
+		query(node.left, ox, oy, oz, dx, dy, dz, length, result);
+		query(node.right, ox, oy, oz, dx, dy, dz, length, result);
+	}
+
+	/**
+	 * Test a sphere against the planes selected by a mask.
+	 *
+	 * @return -1 if the sphere is outside one of the planes, otherwise the
+	 *         mask of the planes the sphere is entirely inside of
+	 */
+	protected static int intersects(double[] planes, double x, double y, double z, double radius, int mask)
+	{
+		int inside = 0;
+		for (int i = 0, bit = 1; i < planes.length; i += 4, bit <<= 1)
+		{
+			if ((mask & bit) == 0)
+				continue;
+
+			double distance = planes[i] * x + planes[i + 1] * y + planes[i + 2] * z + planes[i + 3];
+			if (distance < -radius)
+				return -1;
+			if (distance >= radius)
+			{
+				inside |= bit;
+			}
+		}
+		return inside;
+	}
+
+	protected static boolean intersects(double ox, double oy, double oz, double dx, double dy, double dz,
+			double length, double x, double y, double z, double radius)
+	{
+		//closest point of the ray to the sphere's center
+		double t = Math.max(0, ((x - ox) * dx + (y - oy) * dy + (z - oz) * dz) / length);
+		double px = ox + dx * t - x;
+		double py = oy + dy * t - y;
+		double pz = oz + dz * t - z;
+		return px * px + py * py + pz * pz <= radius * radius;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	protected static <T> Entry<T>[] newEntries(int size)
+	{
+		return new Entry[size];
+	}
+
+	protected static <T> void enclose(TreeNode<T> node, double x, double y, double z, double radius)
+	{
+		double dx = x - node.x, dy = y - node.y, dz = z - node.z;
+		double distance = Math.sqrt(dx * dx + dy * dy + dz * dz) + radius;
+		if (distance > node.radius)
+		{
+			node.radius = distance;
+		}
+	}
+
+	protected void rebuildIfNeeded()
+	{
+		if (pending.size() + changes > Math.max(MIN_REBUILD_CHANGES, treeSize / 4))
+		{
+			rebuild();
+		}
+	}
+
+	/**
+	 * Rebuild the tree from all the indexed items.
+	 */
+	public void rebuild()
+	{
+		Entry<T>[] all = entries.values().toArray(ColladaSpatialIndex.<T> newEntries(entries.size()));
+		for (Entry<T> entry : all)
+		{
+			entry.leaf = null;
+		}
+		pending.clear();
+		changes = 0;
+		treeSize = all.length;
+		root = all.length == 0 ? null : build(all, 0, all.length, null);
+		rebuildCount++;
+	}
+
+	protected TreeNode<T> build(Entry<T>[] all, int start, int end, TreeNode<T> parent)
+	{
+		TreeNode<T> node = new TreeNode<T>();
+		node.parent = parent;
+
+		double minX = Double.POSITIVE_INFINITY, minY = minX, minZ = minX;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+		for (int i = start; i < end; i++)
+		{
+			Entry<T> entry = all[i];
+			minX = Math.min(minX, entry.x);
+			minY = Math.min(minY, entry.y);
+			minZ = Math.min(minZ, entry.z);
+			maxX = Math.max(maxX, entry.x);
+			maxY = Math.max(maxY, entry.y);
+			maxZ = Math.max(maxZ, entry.z);
+		}
+		node.x = (minX + maxX) / 2;
+		node.y = (minY + maxY) / 2;
+		node.z = (minZ + maxZ) / 2;
+		for (int i = start; i < end; i++)
+		{
+			enclose(node, all[i].x, all[i].y, all[i].z, all[i].radius);
+		}
+
+		if (end - start <= MAX_LEAF_SIZE)
+		{
+			node.entries = newEntries(end - start);
+			System.arraycopy(all, start, node.entries, 0, end - start);
+			for (Entry<T> entry : node.entries)
+			{
+				entry.leaf = node;
+			}
+			return node;
+		}
+
+		double sizeX = maxX - minX, sizeY = maxY - minY, sizeZ = maxZ - minZ;
+		int axis = sizeX >= sizeY && sizeX >= sizeZ ? 0 : sizeY >= sizeZ ? 1 : 2;
+		int middle = (start + end) / 2;
+		select(all, start, end - 1, middle, axis);
+		node.left = build(all, start, middle, node);
+		node.right = build(all, middle, end, node);
+		return node;
+	}
+
+	/**
+	 * Partially sort the entries so that the k-th entry is the one that would
+	 * be there if they were sorted along an axis, with smaller entries before
+	 * it and larger ones after.
+	 */
+	protected static <T> void select(Entry<T>[] all, int left, int right, int k, int axis)
+	{
+		while (right > left)
+		{
+			double pivot = coordinate(all[(left + right) >>> 1], axis);
+			int i = left, j = right;
+			while (i <= j)
+			{
+				while (coordinate(all[i], axis) < pivot)
+					i++;
+				while (coordinate(all[j], axis) > pivot)
+					j--;
+				if (i <= j)
+				{
+					Entry<T> swap = all[i];
+					all[i] = all[j];
+					all[j] = swap;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j)
+			{
+				right = j;
+			}
+			else if (k >= i)
+			{
+				left = i;
+			}
+			else
+			{
+				return;
+			}
+		}
+	}
+
+	protected static double coordinate(Entry<?> entry, int axis)
+	{
+		return axis == 0 ? entry.x : axis == 1 ? entry.y : entry.z;
+	}
+
+	/**
+	 * @return Number of tree nodes tested by the queries
+	 */
+	public long getNodeTestCount()
+	{
+		return nodeTestCount;
+	}
+
+	/**
+	 * @return Number of times the tree has been rebuilt
+	 */
+	public long getRebuildCount()
+	{
+		return rebuildCount;
+	}
+}
@@ -0,0 +1,489 @@
+package gov.nasa.worldwind.formats.models.collada;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ardor3d.image.Image;
+import com.ardor3d.image.Texture;
+import com.ardor3d.renderer.Renderer;
+import com.ardor3d.renderer.state.RenderState.StateType;
+import com.ardor3d.renderer.state.TextureState;
+import com.ardor3d.scenegraph.Node;
+import com.ardor3d.scenegraph.Spatial;
+import com.ardor3d.util.TextureKey;
+import com.ardor3d.util.TextureManager;
+import com.ardor3d.util.export.InputCapsule;
+import com.ardor3d.util.export.OutputCapsule;
+import com.ardor3d.util.resource.ResourceLocator;
+import com.ardor3d.util.resource.ResourceSource;
+
+/**
+ * Reference-counted cache of the textures used by the COLLADA models.
+ * <p>
+ * Textures are addressed by the content of their image files: the texture
+ * locators of the loaders are wrapped (see {@link #wrap(ResourceLocator)}) so
+ * that they return sources that are equal when their files have the same
+ * SHA-1 hash. Ardor3D's {@link TextureManager} keys its textures by source, so
+ * an image shared by several models, even under different names or in
+ * different KMZ files, is decoded once and uploaded to a single OpenGL texture
+ * object.
+ * <p>
+ * Each loaded model acquires its textures, and releases them when it is
+ * disposed. The cache keeps the textures strongly referenced, so that they are
+ * not decoded again when another model needs them, until the estimated size
+ * of the cached textures exceeds the budget; the least recently acquired
+ * unreferenced textures are then evicted. Textures still referenced by a model
+ * are never evicted, so the budget can be exceeded. The OpenGL textures of the
+ * evicted entries are deleted by {@link #deleteEvictedTextures(Renderer)},
+ * which must be called on the rendering thread.
+ */
+public class ColladaTextureCache
+{
+	/** Default budget: 128 MB */
+	public static final long DEFAULT_BUDGET = 128L * 1024 * 1024;
+
+	private static ColladaTextureCache instance;
+
+	/**
+	 * @return The cache shared by the COLLADA models
+	 */
+	public static synchronized ColladaTextureCache getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new ColladaTextureCache(DEFAULT_BUDGET);
+		}
+		return instance;
+	}
+
+	/**
+	 * Wrap a texture locator so that the sources it returns are identified by
+	 * the content of the resource rather than its location.
+	 *
+	 * @param locator
+	 *            Locator to wrap
+	 * @return Content-addressed locator
+	 */
+	public static ResourceLocator wrap(ResourceLocator locator)
+	{
+		return locator instanceof ContentLocator ? locator : new ContentLocator(locator);
+	}
+
+	protected static class Entry
+	{
+		protected final Texture texture;
+		protected final long size;
+		protected int references;
+
+		public Entry(Texture texture, long size)
+		{
+			this.texture = texture;
+			this.size = size;
+		}
+	}
+
+	private long budget;
+	private long size;
+	//access ordered, so that iteration starts with the least recently acquired textures
+	private final LinkedHashMap<TextureKey, Entry> entries = new LinkedHashMap<TextureKey, Entry>(16, 0.75f, true);
+	//evicted textures whose OpenGL textures haven't been deleted yet
+	private final Map<TextureKey, Texture> evicted = new HashMap<TextureKey, Texture>();
+
+	private long sharedCount;
+	private long evictedCount;
+
+	public ColladaTextureCache(long budget)
+	{
+		this.budget = budget;
+	}
+
+	/**
+	 * Add a reference to each texture used by a scene graph.
+	 *
+	 * @param spatial
+	 *            Root of the scene graph, such as a loaded model
+	 */
+	public synchronized void acquire(Spatial spatial)
+	{
+		for (Map.Entry<TextureKey, Texture> texture : collectTextures(spatial).entrySet())
+		{
+			Entry entry = entries.get(texture.getKey());
+			if (entry == null)
+			{
+				entry = new Entry(texture.getValue(), estimateSize(texture.getValue()));
+				entries.put(texture.getKey(), entry);
+				size += entry.size;
+				//the texture may be pending deletion after an earlier eviction
+				evicted.remove(texture.getKey());
+			}
+			else
+			{
+				sharedCount++;
+			}
+			entry.references++;
+		}
+		evict();
+	}
+
+	/**
+	 * Remove the references added by {@link #acquire(Spatial)}.
+	 *
+	 * @param spatial
+	 *            Root of the scene graph passed to {@link #acquire(Spatial)}
+	 */
+	public synchronized void release(Spatial spatial)
+	{
+		for (TextureKey key : collectTextures(spatial).keySet())
+		{
+			Entry entry = entries.get(key);
+			if (entry != null && entry.references > 0)
+			{
+				entry.references--;
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * Delete the OpenGL textures of the evicted entries. Must be called with
+	 * the OpenGL context current.
+	 *
+	 * @param renderer
+	 *            Renderer for the current context
+	 */
+	public void deleteEvictedTextures(Renderer renderer)
+	{
+		List<Texture> textures;
+		synchronized (this)
+		{
+			if (evicted.isEmpty())
+				return;
+
+			textures = new ArrayList<Texture>(evicted.values());
+			evicted.clear();
+		}
+
+		for (Texture texture : textures)
+		{
+			renderer.deleteTexture(texture);
+			//the key outlives the texture, so forget the deleted texture id
+			texture.getTextureKey().removeFromIdCache();
+			TextureKey.clearKey(texture.getTextureKey());
+		}
+	}
+
+	/**
+	 * Evict the least recently acquired unreferenced textures until the cache
+	 * fits in its budget.
+	 */
+	protected void evict()
+	{
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (size > budget && iterator.hasNext())
+		{
+			Entry entry = iterator.next();
+			if (entry.references > 0)
+				continue;
+
+			iterator.remove();
+			size -= entry.size;
+			evictedCount++;
+			TextureManager.removeFromCache(entry.texture.getTextureKey());
+			evicted.put(entry.texture.getTextureKey(), entry.texture);
+		}
+	}
+
+	/**
+	 * @return The distinct textures of a scene graph, by key
+	 */
+	protected static Map<TextureKey, Texture> collectTextures(Spatial spatial)
+	{
+		Map<TextureKey, Texture> textures = new HashMap<TextureKey, Texture>();
+		collectTextures(spatial, textures);
+		return textures;
+	}
+
+	protected static void collectTextures(Spatial spatial, Map<TextureKey, Texture> textures)
+	{
+		TextureState state = (TextureState) spatial.getLocalRenderState(StateType.Texture);
+		if (state != null)
+		{
+			for (int i = 0; i <= state.getMaxTextureIndexUsed(); i++)
+			{
+				Texture texture = state.getTexture(i);
+				if (texture != null && texture.getTextureKey() != null
+						&& !textures.containsKey(texture.getTextureKey()))
+				{
+					textures.put(texture.getTextureKey(), texture);
+				}
+			}
+		}
+
+		if (spatial instanceof Node)
+		{
+			for (Spatial child : ((Node) spatial).getChildren())
+			{
+				collectTextures(child, textures);
+			}
+		}
+	}
+
+	/**
+	 * @return Estimated size in bytes of the texture's image, including the
+	 *         mip levels if the texture uses them
+	 */
+	protected static long estimateSize(Texture texture)
+	{
+		Image image = texture.getImage();
+		if (image == null)
+			return 0;
+
+		long size = 0;
+		for (int i = 0; i < image.getDataSize(); i++)
+		{
+			ByteBuffer data = image.getData(i);
+			if (data != null)
+				size += data.limit();
+		}
+		if (!image.hasMipmaps() && texture.getMinificationFilter() != null
+				&& texture.getMinificationFilter().usesMipMapLevels())
+		{
+			size = size * 4 / 3;
+		}
+		return size;
+	}
+
+	/**
+	 * @return Budget for the estimated size of the cached textures, in bytes
+	 */
+	public synchronized long getBudget()
+	{
+		return budget;
+	}
+
+	public synchronized void setBudget(long budget)
+	{
+		this.budget = budget;
+		evict();
+	}
+
+	/**
+	 * @return Estimated size of the cached textures, in bytes
+	 */
+	public synchronized long getSize()
+	{
+		return size;
+	}
+
+	public synchronized int getTextureCount()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * @return Number of references to a cached texture, or 0 if the texture
+	 *         isn't cached
+	 */
+	public synchronized int getReferenceCount(Texture texture)
+	{
+		Entry entry = entries.get(texture.getTextureKey());
+		return entry == null ? 0 : entry.references;
+	}
+
+	/**
+	 * @return Number of times a model acquired a texture that was already
+	 *         cached
+	 */
+	public synchronized long getSharedCount()
+	{
+		return sharedCount;
+	}
+
+	public synchronized long getEvictedCount()
+	{
+		return evictedCount;
+	}
+
+	/**
+	 * Texture locator that returns {@link ContentSource}s.
+	 */
+	protected static class ContentLocator implements ResourceLocator
+	{
+		private final ResourceLocator locator;
+
+		public ContentLocator(ResourceLocator locator)
+		{
+			this.locator = locator;
+		}
+
+		@Override
+		public ResourceSource locateResource(String resourceName)
+		{
+			ResourceSource source = locator.locateResource(resourceName);
+			if (source == null || source instanceof ContentSource)
+				return source;
+
+			try
+			{
+				return new ContentSource(source);
+			}
+			catch (IOException e)
+			{
+				//let the texture loader report the unreadable resource
+				return source;
+			}
+		}
+	}
+
+	/**
+	 * Resource source that is equal to other sources with the same content.
+	 * Reads are delegated to the wrapped source.
+	 */
+	public static class ContentSource implements ResourceSource
+	{
+		private ResourceSource source;
+		private String hash;
+
+		/**
+		 * Constructor used when reading from a binary cache.
+		 */
+		public ContentSource()
+		{
+		}
+
+		/**
+		 * @param source
+		 *            Source to wrap; its content is read to compute the hash
+		 * @throws IOException
+		 *             If the source can't be read
+		 */
+		public ContentSource(ResourceSource source) throws IOException
+		{
+			this.source = source;
+			this.hash = computeHash(source);
+		}
+
+		protected static String computeHash(ResourceSource source) throws IOException
+		{
+			MessageDigest digest;
+			try
+			{
+				digest = MessageDigest.getInstance("SHA-1");
+			}
+			catch (NoSuchAlgorithmException e)
+			{
+				throw new IOException(e.getMessage());
+			}
+
+			InputStream is = source.openStream();
+			try
+			{
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = is.read(buffer)) >= 0)
+				{
+					digest.update(buffer, 0, read);
+				}
+			}
+			finally
+			{
+				is.close();
+			}
+
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest())
+			{
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		}
+
+		public ResourceSource getSource()
+		{
+			return source;
+		}
+
+		/**
+		 * @return SHA-1 hash of the content, as a hexadecimal string
+		 */
+		public String getHash()
+		{
+			return hash;
+		}
+
+		@Override
+		public String getName()
+		{
+			return source.getName();
+		}
+
+		@Override
+		public String getType()
+		{
+			return source.getType();
+		}
+
+		@Override
+		public ResourceSource getRelativeSource(String name)
+		{
+			return source.getRelativeSource(name);
+		}
+
+		@Override
+		public InputStream openStream() throws IOException
+		{
+			return source.openStream();
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (this == obj)
+				return true;
+			if (!(obj instanceof ContentSource))
+				return false;
+			return hash.equals(((ContentSource) obj).hash);
+		}
+
+		@Override
+		public String toString()
+		{
+			return "ContentSource [" + source + ", " + hash + "]";
+		}
+
+		@Override
+		public Class<?> getClassTag()
+		{
+			return ContentSource.class;
+		}
+
+		@Override
+		public void read(InputCapsule capsule) throws IOException
+		{
+			source = (ResourceSource) capsule.readSavable("source", null);
+			hash = capsule.readString("hash", null);
+		}
+
+		@Override
+		public void write(OutputCapsule capsule) throws IOException
+		{
+			capsule.write(source, "source", null);
+			capsule.write(hash, "hash", null);
+		}
+	}
+}
@@ -0,0 +1,616 @@
+package gov.nasa.worldwind.formats.models.collada;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ardor3d.bounding.BoundingBox;
+import com.ardor3d.bounding.BoundingSphere;
+import com.ardor3d.bounding.BoundingVolume;
+import com.ardor3d.image.Image;
+import com.ardor3d.image.ImageDataFormat;
+import com.ardor3d.image.Texture;
+import com.ardor3d.image.TextureStoreFormat;
+import com.ardor3d.renderer.state.RenderState.StateType;
+import com.ardor3d.renderer.state.TextureState;
+import com.ardor3d.scenegraph.Node;
+import com.ardor3d.scenegraph.Spatial;
+import com.ardor3d.util.TextureKey;
+import com.ardor3d.util.TextureManager;
+import com.ardor3d.util.geom.BufferUtils;
+
+/**
+ * Reduces the textures of COLLADA models when they are imported. Models
+ * exported from SketchUp often come with textures far larger than the model
+ * can ever cover on the screen, so the size of each model's textures is
+ * capped according to the model's size: {@link #getTexelsPerMeter()} times
+ * the model's bounding radius, rounded up to a power of two and clamped
+ * between {@link #getMinTextureSize()} and {@link #getMaxTextureSize()}.
+ * Larger textures are halved until they fit.
+ * <p>
+ * The textures can optionally be compressed to DXT1 (or DXT5 when they have
+ * an alpha channel), which uses a sixth (or a quarter) of the memory of the
+ * uncompressed texture. The mip levels of compressed textures are built
+ * before compressing them.
+ * <p>
+ * Images are shared between textures and models (see
+ * {@link ColladaTextureCache}), so they are never modified: a model's textures
+ * are given a reduced copy of their image, and a texture key whose id includes
+ * the reduced size. The reduced texture is added to the {@link TextureManager}
+ * under that key, so models whose textures are reduced to the same size share
+ * it, while models with a larger cap keep the larger image.
+ * <p>
+ * Reduced textures are flagged to store their image, so that
+ * {@link ColladaBinaryCache} saves the reduced image with the model instead of
+ * importing and reducing the original again.
+ */
+public class ColladaTexturePolicy
+{
+	/** Default number of texels per meter of the model's bounding radius */
+	public static final double DEFAULT_TEXELS_PER_METER = 64;
+	/** Default minimum cap of the texture sizes */
+	public static final int DEFAULT_MIN_TEXTURE_SIZE = 128;
+	/** Default maximum cap of the texture sizes */
+	public static final int DEFAULT_MAX_TEXTURE_SIZE = 2048;
+
+	private double texelsPerMeter = DEFAULT_TEXELS_PER_METER;
+	private int minTextureSize = DEFAULT_MIN_TEXTURE_SIZE;
+	private int maxTextureSize = DEFAULT_MAX_TEXTURE_SIZE;
+	private boolean compress = false;
+
+	private final AtomicLong reducedCount = new AtomicLong();
+	private final AtomicLong originalBytes = new AtomicLong();
+	private final AtomicLong savedBytes = new AtomicLong();
+
+	/**
+	 * Reduce the textures of an imported model.
+	 *
+	 * @param node
+	 *            Root of the model, with its world bound updated
+	 * @return Number of bytes of texture memory saved
+	 */
+	public long apply(ColladaNode node)
+	{
+		double unitMeter = node.getAssetData() != null ? node.getAssetData().getUnitMeter() : 0;
+		int maxSize = computeMaxSize(getRadius(node.getWorldBound()) * (unitMeter > 0 ? unitMeter : 1));
+
+		Map<Image, List<Texture>> images = new IdentityHashMap<Image, List<Texture>>();
+		collectImages(node, images);
+
+		long saved = 0;
+		for (Map.Entry<Image, List<Texture>> entry : images.entrySet())
+		{
+			saved += apply(entry.getKey(), entry.getValue(), maxSize);
+		}
+		if (saved > 0)
+		{
+			savedBytes.addAndGet(saved);
+		}
+		return saved;
+	}
+
+	/**
+	 * @param radius
+	 *            Model's bounding radius in meters, or 0 if unknown
+	 * @return Largest texture dimension allowed for the model
+	 */
+	public int computeMaxSize(double radius)
+	{
+		if (radius <= 0 || Double.isNaN(radius) || Double.isInfinite(radius))
+			return maxTextureSize;
+
+		double texels = radius * texelsPerMeter;
+		int size = 1;
+		while (size < texels && size < maxTextureSize)
+		{
+			size *= 2;
+		}
+		return Math.max(minTextureSize, Math.min(maxTextureSize, size));
+	}
+
+	protected static double getRadius(BoundingVolume bound)
+	{
+		if (bound instanceof BoundingSphere)
+		{
+			return ((BoundingSphere) bound).getRadius();
+		}
+		if (bound instanceof BoundingBox)
+		{
+			BoundingBox box = (BoundingBox) bound;
+			return Math.sqrt(box.getXExtent() * box.getXExtent() + box.getYExtent() * box.getYExtent()
+					+ box.getZExtent() * box.getZExtent());
+		}
+		return 0;
+	}
+
+	protected static void collectImages(Spatial spatial, Map<Image, List<Texture>> images)
+	{
+		TextureState state = (TextureState) spatial.getLocalRenderState(StateType.Texture);
+		if (state != null)
+		{
+			for (int i = 0; i <= state.getMaxTextureIndexUsed(); i++)
+			{
+				Texture texture = state.getTexture(i);
+				if (texture != null && texture.getType() == Texture.Type.TwoDimensional
+						&& texture.getImage() != null)
+				{
+					List<Texture> textures = images.get(texture.getImage());
+					if (textures == null)
+					{
+						textures = new ArrayList<Texture>();
+						images.put(texture.getImage(), textures);
+					}
+					textures.add(texture);
+				}
+			}
+		}
+
+		if (spatial instanceof Node)
+		{
+			for (Spatial child : ((Node) spatial).getChildren())
+			{
+				collectImages(child, images);
+			}
+		}
+	}
+
+	/**
+	 * Give the textures using an image a reduced copy of the image, if it
+	 * exceeds the size cap or is to be compressed. The image itself isn't
+	 * modified.
+	 *
+	 * @return Number of bytes saved
+	 */
+	protected long apply(Image image, List<Texture> textures, int maxSize)
+	{
+		if (image.getDataSize() != 1 || image.getData(0) == null || image.getDataFormat().isCompressed())
+			return 0;
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		if (!image.hasMipmaps())
+		{
+			while (width > maxSize || height > maxSize)
+			{
+				width = Math.max(1, width / 2);
+				height = Math.max(1, height / 2);
+			}
+		}
+		boolean compressed = compress && isCompressible(image.getDataFormat());
+		if (width == image.getWidth() && height == image.getHeight() && !compressed)
+			return 0;
+
+		TextureStoreFormat format =
+				compressed ? getStoreFormat(image.getDataFormat().hasAlpha() ? ImageDataFormat.PrecompressedDXT5
+						: ImageDataFormat.PrecompressedDXT1) : null;
+		Texture first = textures.get(0);
+		long before = ColladaTextureCache.estimateSize(first);
+		Image reduced = null;
+		boolean created = false;
+		synchronized (image)
+		{
+			//another model may already have reduced the image to the same size
+			TextureKey key = getReducedKey(first, width, height, format);
+			Texture cached = key != null ? TextureManager.findCachedTexture(key) : null;
+			if (cached != null)
+			{
+				reduced = cached.getImage();
+			}
+			if (reduced == null)
+			{
+				reduced = reduce(image, maxSize, compressed, first.getMinificationFilter().usesMipMapLevels());
+				reducedCount.incrementAndGet();
+				originalBytes.addAndGet(before);
+				created = true;
+			}
+
+			for (Texture texture : textures)
+			{
+				updateTexture(texture, reduced, getReducedKey(texture, width, height, format), format);
+			}
+		}
+		//the memory is only saved once for a shared reduced texture
+		return created ? before - ColladaTextureCache.estimateSize(first) : 0;
+	}
+
+	/**
+	 * @return Copy of the image, downscaled to fit the given size and
+	 *         compressed if requested
+	 */
+	protected static Image reduce(Image image, int maxSize, boolean compressed, boolean mipMaps)
+	{
+		//the data is duplicated so that its position isn't shared with the original image's users
+		Image reduced =
+				new Image(image.getDataFormat(), image.getDataType(), image.getWidth(), image.getHeight(), image
+						.getData(0).duplicate(), image.getMipMapByteSizes());
+		if (!image.hasMipmaps())
+		{
+			downscale(reduced, maxSize);
+		}
+		if (compressed)
+		{
+			if (mipMaps)
+			{
+				MipMapGenerator.generate(reduced);
+			}
+			compress(reduced);
+		}
+		return reduced;
+	}
+
+	/**
+	 * @return Key of the reduced texture: the texture's key with the reduced
+	 *         size added to its id, or null if the texture has no key
+	 */
+	protected static TextureKey getReducedKey(Texture texture, int width, int height, TextureStoreFormat format)
+	{
+		TextureKey key = texture.getTextureKey();
+		if (key == null || key.getSource() == null)
+			return null;
+
+		String id = (key.getId() != null ? key.getId() + "," : "") + "reduced " + width + "x" + height;
+		return TextureKey.getKey(key.getSource(), key.isFlipped(), format != null ? format : key.getFormat(), id,
+				key.getMinificationFilter());
+	}
+
+	/**
+	 * Make a texture use a reduced image, and add it to the texture manager
+	 * under its new key, so that models reducing the same image to the same
+	 * size share it.
+	 */
+	protected static void updateTexture(Texture texture, Image reduced, TextureKey key, TextureStoreFormat format)
+	{
+		texture.setImage(reduced);
+		if (format != null)
+		{
+			texture.setTextureStoreFormat(format);
+		}
+		//store the reduced image in the binary cache
+		texture.setStoreImage(true);
+
+		if (key != null)
+		{
+			texture.setTextureKey(key);
+			if (TextureManager.findCachedTexture(key) == null)
+			{
+				TextureManager.addToCache(texture.createSimpleClone());
+			}
+		}
+	}
+
+	/**
+	 * @return Store format for precompressed image formats, or null
+	 */
+	protected static TextureStoreFormat getStoreFormat(ImageDataFormat format)
+	{
+		switch (format)
+		{
+			case PrecompressedDXT1:
+				return TextureStoreFormat.NativeDXT1;
+			case PrecompressedDXT1A:
+				return TextureStoreFormat.NativeDXT1A;
+			case PrecompressedDXT3:
+				return TextureStoreFormat.NativeDXT3;
+			case PrecompressedDXT5:
+				return TextureStoreFormat.NativeDXT5;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Halve an image until neither dimension exceeds the given size.
+	 */
+	protected static void downscale(Image image, int maxSize)
+	{
+		int components = image.getDataFormat().getComponents();
+		int width = image.getWidth();
+		int height = image.getHeight();
+		ByteBuffer data = image.getData(0);
+		while (width > maxSize || height > maxSize)
+		{
+			int nextWidth = Math.max(1, width / 2);
+			int nextHeight = Math.max(1, height / 2);
+			ByteBuffer next = BufferUtils.createByteBuffer(nextWidth * nextHeight * components);
+			MipMapGenerator.downsample(data, 0, width, height, next, 0, nextWidth, nextHeight, components);
+			data = next;
+			width = nextWidth;
+			height = nextHeight;
+		}
+		image.setWidth(width);
+		image.setHeight(height);
+		image.setData(data);
+	}
+
+	protected static boolean isCompressible(ImageDataFormat format)
+	{
+		return format == ImageDataFormat.RGB || format == ImageDataFormat.BGR || format == ImageDataFormat.RGBA
+				|| format == ImageDataFormat.BGRA;
+	}
+
+	/**
+	 * Compress each level of an RGB(A) image to DXT1, or DXT5 if it has an
+	 * alpha channel.
+	 */
+	protected static void compress(Image image)
+	{
+		ImageDataFormat format = image.getDataFormat();
+		boolean alpha = format.hasAlpha();
+		boolean bgr = format == ImageDataFormat.BGR || format == ImageDataFormat.BGRA;
+		int components = format.getComponents();
+		int blockBytes = alpha ? 16 : 8;
+
+		int[] sizes = image.hasMipmaps() ? image.getMipMapByteSizes() : new int[] { image.getData(0).limit() };
+		int[] compressedSizes = new int[sizes.length];
+		int total = 0;
+		for (int level = 0, w = image.getWidth(), h = image.getHeight(); level < sizes.length; level++)
+		{
+			compressedSizes[level] = ((w + 3) / 4) * ((h + 3) / 4) * blockBytes;
+			total += compressedSizes[level];
+			w = Math.max(1, w / 2);
+			h = Math.max(1, h / 2);
+		}
+
+		ByteBuffer source = image.getData(0);
+		ByteBuffer target = BufferUtils.createByteBuffer(total);
+		int[] block = new int[16 * 4];
+		int offset = 0;
+		for (int level = 0, w = image.getWidth(), h = image.getHeight(); level < sizes.length; level++)
+		{
+			for (int by = 0; by < h; by += 4)
+			{
+				for (int bx = 0; bx < w; bx += 4)
+				{
+					//read the block's pixels as RGBA, repeating the edge pixels of partial blocks
+					for (int p = 0; p < 16; p++)
+					{
+						int x = Math.min(w - 1, bx + (p & 3));
+						int y = Math.min(h - 1, by + (p >> 2));
+						int i = offset + (y * w + x) * components;
+						int r = source.get(i) & 0xff;
+						int g = source.get(i + 1) & 0xff;
+						int b = source.get(i + 2) & 0xff;
+						block[p * 4] = bgr ? b : r;
+						block[p * 4 + 1] = g;
+						block[p * 4 + 2] = bgr ? r : b;
+						block[p * 4 + 3] = alpha ? source.get(i + 3) & 0xff : 255;
+					}
+					if (alpha)
+					{
+						encodeAlphaBlock(block, target);
+					}
+					encodeColorBlock(block, target);
+				}
+			}
+			offset += sizes[level];
+			w = Math.max(1, w / 2);
+			h = Math.max(1, h / 2);
+		}
+		target.rewind();
+
+		image.setData(target);
+		image.setDataFormat(alpha ? ImageDataFormat.PrecompressedDXT5 : ImageDataFormat.PrecompressedDXT1);
+		image.setMipMapByteSizes(sizes.length > 1 ? compressedSizes : null);
+	}
+
+	/**
+	 * Write a DXT color block: the corners of the block's color bounding box
+	 * as the two endpoints, and the nearest of the four palette colors for
+	 * each pixel.
+	 */
+	protected static void encodeColorBlock(int[] block, ByteBuffer target)
+	{
+		int[] min = { 255, 255, 255 };
+		int[] max = { 0, 0, 0 };
+		for (int p = 0; p < 16; p++)
+		{
+			for (int c = 0; c < 3; c++)
+			{
+				min[c] = Math.min(min[c], block[p * 4 + c]);
+				max[c] = Math.max(max[c], block[p * 4 + c]);
+			}
+		}
+
+		int color0 = to565(max);
+		int color1 = to565(min);
+		int indices = 0;
+		if (color0 != color1)
+		{
+			if (color0 < color1)
+			{
+				//four color mode requires color0 > color1
+				int swap = color0;
+				color0 = color1;
+				color1 = swap;
+			}
+
+			int[][] palette = new int[4][];
+			palette[0] = from565(color0);
+			palette[1] = from565(color1);
+			palette[2] = new int[3];
+			palette[3] = new int[3];
+			for (int c = 0; c < 3; c++)
+			{
+				palette[2][c] = (2 * palette[0][c] + palette[1][c]) / 3;
+				palette[3][c] = (palette[0][c] + 2 * palette[1][c]) / 3;
+			}
+
+			for (int p = 15; p >= 0; p--)
+			{
+				int best = 0;
+				int bestDistance = Integer.MAX_VALUE;
+				for (int i = 0; i < 4; i++)
+				{
+					int dr = block[p * 4] - palette[i][0];
+					int dg = block[p * 4 + 1] - palette[i][1];
+					int db = block[p * 4 + 2] - palette[i][2];
+					int distance = dr * dr + dg * dg + db * db;
+					if (distance < bestDistance)
+					{
+						best = i;
+						bestDistance = distance;
+					}
+				}
+				indices = (indices << 2) | best;
+			}
+		}
+
+		putShort(target, color0);
+		putShort(target, color1);
+		putShort(target, indices & 0xffff);
+		putShort(target, indices >>> 16);
+	}
+
+	/**
+	 * Write a DXT5 alpha block, using the eight alpha palette mode.
+	 */
+	protected static void encodeAlphaBlock(int[] block, ByteBuffer target)
+	{
+		int min = 255;
+		int max = 0;
+		for (int p = 0; p < 16; p++)
+		{
+			min = Math.min(min, block[p * 4 + 3]);
+			max = Math.max(max, block[p * 4 + 3]);
+		}
+
+		long indices = 0;
+		if (max > min)
+		{
+			int[] palette = new int[8];
+			palette[0] = max;
+			palette[1] = min;
+			for (int i = 1; i < 7; i++)
+			{
+				palette[i + 1] = ((7 - i) * max + i * min) / 7;
+			}
+
+			for (int p = 15; p >= 0; p--)
+			{
+				int best = 0;
+				int bestDistance = Integer.MAX_VALUE;
+				for (int i = 0; i < 8; i++)
+				{
+					int distance = Math.abs(block[p * 4 + 3] - palette[i]);
+					if (distance < bestDistance)
+					{
+						best = i;
+						bestDistance = distance;
+					}
+				}
+				indices = (indices << 3) | best;
+			}
+		}
+
+		target.put((byte) max);
+		target.put((byte) min);
+		for (int i = 0; i < 6; i++)
+		{
+			target.put((byte) (indices >>> (8 * i)));
+		}
+	}
+
+	private static int to565(int[] rgb)
+	{
+		return ((rgb[0] * 31 + 127) / 255) << 11 | ((rgb[1] * 63 + 127) / 255) << 5 | ((rgb[2] * 31 + 127) / 255);
+	}
+
+	private static int[] from565(int color)
+	{
+		int r = (color >> 11) & 31;
+		int g = (color >> 5) & 63;
+		int b = color & 31;
+		return new int[] { (r << 3) | (r >> 2), (g << 2) | (g >> 4), (b << 3) | (b >> 2) };
+	}
+
+	private static void putShort(ByteBuffer target, int value)
+	{
+		//DXT data is little endian
+		target.put((byte) value);
+		target.put((byte) (value >> 8));
+	}
+
+	public double getTexelsPerMeter()
+	{
+		return texelsPerMeter;
+	}
+
+	/**
+	 * @param texelsPerMeter
+	 *            Texture size allowed per meter of the model's bounding
+	 *            radius
+	 */
+	public void setTexelsPerMeter(double texelsPerMeter)
+	{
+		this.texelsPerMeter = texelsPerMeter;
+	}
+
+	public int getMinTextureSize()
+	{
+		return minTextureSize;
+	}
+
+	public void setMinTextureSize(int minTextureSize)
+	{
+		this.minTextureSize = minTextureSize;
+	}
+
+	public int getMaxTextureSize()
+	{
+		return maxTextureSize;
+	}
+
+	public void setMaxTextureSize(int maxTextureSize)
+	{
+		this.maxTextureSize = maxTextureSize;
+	}
+
+	public boolean isCompress()
+	{
+		return compress;
+	}
+
+	/**
+	 * @param compress
+	 *            Whether to compress the textures to DXT1/DXT5. The OpenGL
+	 *            context must support S3TC texture compression.
+	 */
+	public void setCompress(boolean compress)
+	{
+		this.compress = compress;
+	}
+
+	/**
+	 * @return Number of images downscaled or compressed
+	 */
+	public long getReducedCount()
+	{
+		return reducedCount.get();
+	}
+
+	/**
+	 * @return Size in bytes of the reduced images before they were reduced
+	 */
+	public long getOriginalBytes()
+	{
+		return originalBytes.get();
+	}
+
+	/**
+	 * @return Bytes of texture memory saved by reducing the images
+	 */
+	public long getSavedBytes()
+	{
+		return savedBytes.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ColladaTexturePolicy[reduced=" + getReducedCount() + ", originalBytes=" + getOriginalBytes()
+				+ ", savedBytes=" + getSavedBytes() + "]";
+	}
+}
@@ -0,0 +1,284 @@
+package gov.nasa.worldwind.formats.models.collada;
+
+import gov.nasa.worldwind.render.DrawContext;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.media.opengl.GL;
+
+import com.ardor3d.image.Image;
+import com.ardor3d.image.Texture;
+import com.ardor3d.image.TextureStoreFormat;
+import com.ardor3d.image.util.ImageUtils;
+import com.ardor3d.renderer.Renderer;
+import com.ardor3d.renderer.state.RenderState.StateType;
+import com.ardor3d.renderer.state.TextureState;
+import com.ardor3d.scene.state.jogl.util.JoglTextureUtil;
+import com.ardor3d.scenegraph.Node;
+import com.ardor3d.scenegraph.Spatial;
+
+/**
+ * Uploads the textures of the COLLADA models on the rendering thread, a few
+ * at a time. Left to Ardor3D, all the textures of a model are uploaded when
+ * the model is first drawn, which causes a visible hitch for models with
+ * large textures. Instead, the models check that their textures have been
+ * uploaded before drawing (and aren't drawn, or are drawn as impostors if
+ * they are enabled, until they are), and the uploads done each frame are limited by a time budget. At least one
+ * texture is uploaded per frame, so the uploads always progress.
+ * <p>
+ * Images whose mip levels have been built by the {@link MipMapGenerator} are
+ * uploaded through a pixel buffer object when the OpenGL context supports
+ * them, so that the driver can copy the data to the GPU asynchronously. Other
+ * textures are uploaded by Ardor3D.
+ * <p>
+ * Must only be used on the rendering thread. Textures are uploaded to each
+ * OpenGL context they are drawn in.
+ */
+public class ColladaTextureUploader
+{
+	/** Default time spent uploading textures per frame, in milliseconds */
+	public static final long DEFAULT_TIME_BUDGET = 4;
+
+	private static ColladaTextureUploader instance;
+
+	/**
+	 * @return The uploader shared by the COLLADA models
+	 */
+	public static synchronized ColladaTextureUploader getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new ColladaTextureUploader();
+		}
+		return instance;
+	}
+
+	private long timeBudget = DEFAULT_TIME_BUDGET;
+	private long frameTimeStamp = -1;
+	private long frameTime;
+	private int frameUploads;
+	//OpenGL context -> pixel buffer object, 0 if pixel buffers aren't supported
+	private final Map<Object, Integer> pixelBuffers = new HashMap<Object, Integer>();
+
+	private long uploadCount;
+	private long pixelBufferUploadCount;
+	private long uploadTime;
+
+	//textures of the scene graph being uploaded, reused between calls
+	private final Set<Texture> textures = new HashSet<Texture>();
+
+	/**
+	 * Upload the textures of a scene graph that haven't been uploaded yet,
+	 * within the frame's time budget.
+	 *
+	 * @param dc
+	 *            Draw context
+	 * @param renderer
+	 *            Renderer used to draw the scene graph
+	 * @param spatial
+	 *            Scene graph to be drawn
+	 * @return true if all the textures of the scene graph have been uploaded
+	 */
+	public boolean upload(DrawContext dc, Renderer renderer, Spatial spatial)
+	{
+		if (dc.getFrameTimeStamp() != frameTimeStamp)
+		{
+			frameTimeStamp = dc.getFrameTimeStamp();
+			frameTime = 0;
+			frameUploads = 0;
+		}
+
+		Object glContext = ArdorContextRegistry.makeCurrent(dc).getGlContextRep();
+
+		textures.clear();
+		collectTextures(spatial, textures);
+		boolean uploaded = true;
+		for (Texture texture : textures)
+		{
+			if (texture.getTextureIdForContext(glContext) != 0)
+				continue;
+
+			if (frameUploads > 0 && frameTime >= timeBudget * 1000000)
+			{
+				uploaded = false;
+				break;
+			}
+
+			long start = System.nanoTime();
+			upload(dc.getGL(), renderer, glContext, texture);
+			long time = System.nanoTime() - start;
+			frameTime += time;
+			frameUploads++;
+			uploadTime += time;
+			uploadCount++;
+		}
+		textures.clear();
+		return uploaded;
+	}
+
+	protected void upload(GL gl, Renderer renderer, Object glContext, Texture texture)
+	{
+		Image image = texture.getImage();
+		int pixelBuffer = getPixelBuffer(gl, glContext);
+		if (image != null && texture.getType() == Texture.Type.TwoDimensional && image.hasMipmaps()
+				&& image.getDataSize() == 1 && pixelBuffer != 0)
+		{
+			synchronized (image)
+			{
+				TextureStoreFormat format = ImageUtils.getTextureStoreFormat(texture.getTextureStoreFormat(), image);
+				if (!format.isCompressed() && !image.getDataFormat().isCompressed())
+				{
+					uploadPixelBuffer(gl, glContext, pixelBuffer, texture, image, format);
+					pixelBufferUploadCount++;
+					return;
+				}
+			}
+		}
+		renderer.loadTexture(texture, 0);
+	}
+
+	/**
+	 * Upload all the levels of an image through the pixel buffer object, and
+	 * record the new texture id in the texture's key so that Ardor3D binds it
+	 * instead of loading the texture again.
+	 */
+	protected void uploadPixelBuffer(GL gl, Object glContext, int pixelBuffer, Texture texture, Image image,
+			TextureStoreFormat format)
+	{
+		ByteBuffer data = image.getData(0).duplicate();
+		data.rewind();
+
+		int[] id = new int[1];
+		gl.glGenTextures(1, id, 0);
+
+		gl.glPushClientAttrib(GL.GL_CLIENT_PIXEL_STORE_BIT);
+		try
+		{
+			gl.glBindBufferARB(GL.GL_PIXEL_UNPACK_BUFFER_ARB, pixelBuffer);
+			//orphan the previous contents, so that the driver doesn't wait for the previous upload
+			gl.glBufferDataARB(GL.GL_PIXEL_UNPACK_BUFFER_ARB, data.remaining(), null, GL.GL_STREAM_DRAW_ARB);
+			ByteBuffer mapped = gl.glMapBufferARB(GL.GL_PIXEL_UNPACK_BUFFER_ARB, GL.GL_WRITE_ONLY_ARB);
+			if (mapped != null)
+			{
+				mapped.put(data);
+				gl.glUnmapBufferARB(GL.GL_PIXEL_UNPACK_BUFFER_ARB);
+			}
+			else
+			{
+				gl.glBufferDataARB(GL.GL_PIXEL_UNPACK_BUFFER_ARB, data.remaining(), data, GL.GL_STREAM_DRAW_ARB);
+			}
+
+			gl.glBindTexture(GL.GL_TEXTURE_2D, id[0]);
+			gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 1);
+			int internalFormat = JoglTextureUtil.getGLInternalFormat(format);
+			int pixelFormat = JoglTextureUtil.getGLPixelFormat(image.getDataFormat());
+			int pixelType = JoglTextureUtil.getGLPixelDataType(image.getDataType());
+			int[] sizes = image.getMipMapByteSizes();
+			long offset = 0;
+			int width = image.getWidth();
+			int height = image.getHeight();
+			for (int level = 0; level < sizes.length; level++)
+			{
+				gl.glTexImage2D(GL.GL_TEXTURE_2D, level, internalFormat, width, height, 0, pixelFormat, pixelType,
+						offset);
+				offset += sizes[level];
+				width = Math.max(1, width / 2);
+				height = Math.max(1, height / 2);
+			}
+		}
+		finally
+		{
+			gl.glBindBufferARB(GL.GL_PIXEL_UNPACK_BUFFER_ARB, 0);
+			gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+			gl.glPopClientAttrib();
+			TextureUnitTracker.invalidateActiveUnit();
+		}
+
+		texture.getTextureKey().setTextureIdForContext(glContext, id[0]);
+		texture.getTextureKey().setClean(glContext);
+	}
+
+	/**
+	 * @return The pixel buffer object of the OpenGL context, created on first
+	 *         use, or 0 if the context doesn't support pixel buffer objects
+	 */
+	protected int getPixelBuffer(GL gl, Object glContext)
+	{
+		Integer pixelBuffer = pixelBuffers.get(glContext);
+		if (pixelBuffer == null)
+		{
+			pixelBuffer = 0;
+			if (gl.isExtensionAvailable("GL_ARB_pixel_buffer_object") && gl.isFunctionAvailable("glMapBufferARB"))
+			{
+				int[] id = new int[1];
+				gl.glGenBuffersARB(1, id, 0);
+				pixelBuffer = id[0];
+			}
+			pixelBuffers.put(glContext, pixelBuffer);
+		}
+		return pixelBuffer;
+	}
+
+	protected static void collectTextures(Spatial spatial, Set<Texture> textures)
+	{
+		TextureState state = (TextureState) spatial.getLocalRenderState(StateType.Texture);
+		if (state != null)
+		{
+			for (int i = 0; i <= state.getMaxTextureIndexUsed(); i++)
+			{
+				Texture texture = state.getTexture(i);
+				if (texture != null && texture.getTextureKey() != null)
+				{
+					textures.add(texture);
+				}
+			}
+		}
+
+		if (spatial instanceof Node)
+		{
+			for (Spatial child : ((Node) spatial).getChildren())
+			{
+				collectTextures(child, textures);
+			}
+		}
+	}
+
+	public long getTimeBudget()
+	{
+		return timeBudget;
+	}
+
+	/**
+	 * @param timeBudget
+	 *            Time spent uploading textures per frame, in milliseconds
+	 */
+	public void setTimeBudget(long timeBudget)
+	{
+		this.timeBudget = timeBudget;
+	}
+
+	public long getUploadCount()
+	{
+		return uploadCount;
+	}
+
+	/**
+	 * @return Number of textures uploaded through the pixel buffer object
+	 */
+	public long getPixelBufferUploadCount()
+	{
+		return pixelBufferUploadCount;
+	}
+
+	/**
+	 * @return Average time spent uploading a texture, in milliseconds
+	 */
+	public double getAverageUploadTime()
+	{
+		return uploadCount == 0 ? 0 : uploadTime / 1e6 / uploadCount;
+	}
+}
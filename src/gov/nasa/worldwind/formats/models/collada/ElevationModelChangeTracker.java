@@ -0,0 +1,65 @@
+package gov.nasa.worldwind.formats.models.collada;
+
+import gov.nasa.worldwind.avlist.AVKey;
+import gov.nasa.worldwind.terrain.ElevationModel;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the {@link AVKey#ELEVATION_MODEL} property change events fired by an
+ * {@link ElevationModel} when it has new elevation data. Objects that cache
+ * values computed from the terrain can compare the count with the one they
+ * last saw, instead of querying the elevations every frame.
+ * <p>
+ * One tracker is shared by all users of the same elevation model, so that the
+ * elevation model doesn't hold a listener (and a strong reference) per user.
+ */
+public class ElevationModelChangeTracker implements PropertyChangeListener
+{
+	private static final Map<ElevationModel, ElevationModelChangeTracker> trackers =
+			new WeakHashMap<ElevationModel, ElevationModelChangeTracker>();
+
+	private final AtomicLong changeCount = new AtomicLong();
+
+	/**
+	 * @param elevationModel
+	 *            Elevation model to track
+	 * @return Shared tracker for the elevation model
+	 */
+	public static synchronized ElevationModelChangeTracker getTracker(ElevationModel elevationModel)
+	{
+		ElevationModelChangeTracker tracker = trackers.get(elevationModel);
+		if (tracker == null)
+		{
+			tracker = new ElevationModelChangeTracker();
+			elevationModel.addPropertyChangeListener(tracker);
+			trackers.put(elevationModel, tracker);
+		}
+		return tracker;
+	}
+
+	protected ElevationModelChangeTracker()
+	{
+	}
+
+	/**
+	 * @return Number of times the elevation model has reported new data
+	 */
+	public long getChangeCount()
+	{
+		return changeCount.get();
+	}
+
+	@Override
+	public void propertyChange(PropertyChangeEvent evt)
+	{
+		if (AVKey.ELEVATION_MODEL.equals(evt.getPropertyName()))
+		{
+			changeCount.incrementAndGet();
+		}
+	}
+}
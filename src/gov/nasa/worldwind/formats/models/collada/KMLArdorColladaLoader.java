@@ -3,8 +3,12 @@ package gov.nasa.worldwind.formats.models.collada;
 import gov.nasa.worldwind.ogc.kml.KMLRoot;
 
 import java.io.File;
+import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import com.ardor3d.extension.model.collada.jdom.ColladaImporter;
 import com.ardor3d.extension.model.collada.jdom.data.ColladaStorage;
@@ -16,13 +20,19 @@ import com.ardor3d.util.resource.URLResourceSource;
 
 /**
  * Specialized COLLADA model loader that uses a {@link KMLRoot} object to
- * resolve relative references (such as textures within KMZ files).
+ * resolve relative references (such as textures within KMZ files). The
+ * texture locators are shared by the models of a document that live in the
+ * same directory.
  * 
  * @author Tisham Dhar
  * @author Michael de Hoog (michael.dehoog@ga.gov.au)
  */
 public class KMLArdorColladaLoader
 {
+	//KML document -> model href directory -> texture locator
+	private static final Map<KMLRoot, Map<String, ResourceLocator>> textureLocators =
+			new WeakHashMap<KMLRoot, Map<String, ResourceLocator>>();
+
 	public static ColladaNode loadColladaModel(String modelFileStr, String modelHref, final KMLRoot kmlRoot)
 			throws Exception
 	{
@@ -35,36 +45,86 @@ public class KMLArdorColladaLoader
 		int indexOfLastSlash = Math.max(modelHref.lastIndexOf('/'), modelHref.lastIndexOf('\\'));
 		final String modelHrefDir = (indexOfLastSlash >= 0 ? modelHref.substring(0, indexOfLastSlash) + "/" : "");
 
-		ColladaImporter importer = new ColladaImporter();
-		importer.setLoadAnimations(false); //turns off the verbose "no animation" logging
+		SimpleResourceLocator modelLocator =
+				ColladaLoaderService.registerLocator(ResourceLocatorTool.TYPE_MODEL, modelDir);
 
-		SimpleResourceLocator modelLocator = new SimpleResourceLocator(modelDir.toURI());
-		importer.setModelLocator(modelLocator);
-		importer.setTextureLocator(new ResourceLocator()
+		ColladaNode cached = ColladaBinaryCache.read(modelFile);
+		if (cached != null)
 		{
-			@Override
-			public ResourceSource locateResource(String resourceName)
-			{
-				try
-				{
-					return new URLResourceSource(new URL("file:"
-							+ (String) kmlRoot.resolveReference(modelHrefDir + resourceName)));
-				}
-				catch (MalformedURLException e)
-				{
-					e.printStackTrace();
-					return null;
-				}
-			}
-		});
-
-		ResourceLocatorTool.addResourceLocator(ResourceLocatorTool.TYPE_MODEL, modelLocator);
+			cached.updateGeometricState(0);
+			ColladaLoaderService.applyTexturePolicy(cached);
+			return cached;
+		}
 
+		ColladaImporter importer =
+				ColladaLoaderService.getImporter(modelLocator, getTextureLocator(kmlRoot, modelHrefDir));
 		ColladaStorage storage = importer.load(modelNameStr);
 		root.attachChild(storage.getScene());
 		root.setAssetData(storage.getAssetData());
-
 		root.updateGeometricState(0);
+		ColladaLoaderService.applyTexturePolicy(root);
+		ColladaBinaryCache.write(modelFile, root);
 		return root;
 	}
+
+	/**
+	 * @return Locator that resolves texture names relative to the model's
+	 *         href using the KML document
+	 */
+	protected static ResourceLocator getTextureLocator(KMLRoot kmlRoot, String modelHrefDir)
+	{
+		synchronized (textureLocators)
+		{
+			Map<String, ResourceLocator> locators = textureLocators.get(kmlRoot);
+			if (locators == null)
+			{
+				locators = new HashMap<String, ResourceLocator>();
+				textureLocators.put(kmlRoot, locators);
+			}
+
+			ResourceLocator locator = locators.get(modelHrefDir);
+			if (locator == null)
+			{
+				locator = new TextureLocator(kmlRoot, modelHrefDir);
+				locators.put(modelHrefDir, locator);
+			}
+			return locator;
+		}
+	}
+
+	/**
+	 * Texture locator that resolves names using a KML document. The document
+	 * is only weakly referenced, so that the cached locators don't keep it
+	 * alive.
+	 */
+	protected static class TextureLocator implements ResourceLocator
+	{
+		private final WeakReference<KMLRoot> kmlRoot;
+		private final String modelHrefDir;
+
+		public TextureLocator(KMLRoot kmlRoot, String modelHrefDir)
+		{
+			this.kmlRoot = new WeakReference<KMLRoot>(kmlRoot);
+			this.modelHrefDir = modelHrefDir;
+		}
+
+		@Override
+		public ResourceSource locateResource(String resourceName)
+		{
+			KMLRoot root = kmlRoot.get();
+			if (root == null)
+				return null;
+
+			try
+			{
+				return new URLResourceSource(new URL("file:"
+						+ (String) root.resolveReference(modelHrefDir + resourceName)));
+			}
+			catch (MalformedURLException e)
+			{
+				e.printStackTrace();
+				return null;
+			}
+		}
+	}
 }
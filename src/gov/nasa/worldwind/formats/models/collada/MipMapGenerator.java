@@ -0,0 +1,174 @@
+package gov.nasa.worldwind.formats.models.collada;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.ardor3d.image.Image;
+import com.ardor3d.image.ImageDataType;
+import com.ardor3d.image.Texture;
+import com.ardor3d.renderer.state.RenderState.StateType;
+import com.ardor3d.renderer.state.TextureState;
+import com.ardor3d.scenegraph.Node;
+import com.ardor3d.scenegraph.Spatial;
+import com.ardor3d.util.geom.BufferUtils;
+
+/**
+ * Builds the mip levels of texture images on the CPU, so that the work can be
+ * done on the thread that loads a model. Without mip levels, Ardor3D builds
+ * them when the texture is first drawn, on the rendering thread.
+ * <p>
+ * Only uncompressed images with one byte per component and power-of-two
+ * dimensions are handled; other images are left for Ardor3D. The levels are
+ * box filtered and stored one after the other in a single direct buffer, as
+ * expected by {@link Image#setMipMapByteSizes(int[])}.
+ */
+public class MipMapGenerator
+{
+	/**
+	 * Generate the mip levels of the textures of a scene graph that use
+	 * mipmapped minification filters.
+	 *
+	 * @param spatial
+	 *            Root of the scene graph, such as a loaded model
+	 */
+	public static void generate(Spatial spatial)
+	{
+		Set<Image> images = new HashSet<Image>();
+		collectImages(spatial, images);
+		for (Image image : images)
+		{
+			generate(image);
+		}
+	}
+
+	protected static void collectImages(Spatial spatial, Set<Image> images)
+	{
+		TextureState state = (TextureState) spatial.getLocalRenderState(StateType.Texture);
+		if (state != null)
+		{
+			for (int i = 0; i <= state.getMaxTextureIndexUsed(); i++)
+			{
+				Texture texture = state.getTexture(i);
+				if (texture != null && texture.getType() == Texture.Type.TwoDimensional
+						&& texture.getImage() != null && texture.getMinificationFilter().usesMipMapLevels())
+				{
+					images.add(texture.getImage());
+				}
+			}
+		}
+
+		if (spatial instanceof Node)
+		{
+			for (Spatial child : ((Node) spatial).getChildren())
+			{
+				collectImages(child, images);
+			}
+		}
+	}
+
+	/**
+	 * Replace an image's data with a buffer containing all its mip levels.
+	 * Images can be shared by several models, so this synchronizes on the
+	 * image, and does nothing if the image already has mip levels.
+	 *
+	 * @param image
+	 *            Image to generate the levels of
+	 * @return true if the image has mip levels after the call
+	 */
+	public static boolean generate(Image image)
+	{
+		synchronized (image)
+		{
+			if (image.hasMipmaps())
+				return true;
+			if (!isSupported(image))
+				return false;
+
+			int components = image.getDataFormat().getComponents();
+			int width = image.getWidth();
+			int height = image.getHeight();
+
+			int levels = 1;
+			int size = width * height * components;
+			for (int w = width, h = height; w > 1 || h > 1; levels++)
+			{
+				w = Math.max(1, w / 2);
+				h = Math.max(1, h / 2);
+				size += w * h * components;
+			}
+
+			int[] sizes = new int[levels];
+			ByteBuffer data = BufferUtils.createByteBuffer(size);
+			ByteBuffer source = image.getData(0).duplicate();
+			source.rewind();
+			data.put(source);
+			sizes[0] = width * height * components;
+
+			int sourceOffset = 0;
+			for (int level = 1, w = width, h = height; level < levels; level++)
+			{
+				int nextWidth = Math.max(1, w / 2);
+				int nextHeight = Math.max(1, h / 2);
+				int offset = data.position();
+				downsample(data, sourceOffset, w, h, data, offset, nextWidth, nextHeight, components);
+				sizes[level] = nextWidth * nextHeight * components;
+				data.position(offset + sizes[level]);
+
+				sourceOffset = offset;
+				w = nextWidth;
+				h = nextHeight;
+			}
+			data.rewind();
+
+			image.setData(data);
+			image.setMipMapByteSizes(sizes);
+			return true;
+		}
+	}
+
+	/**
+	 * @return true if the mip levels of the image can be generated
+	 */
+	public static boolean isSupported(Image image)
+	{
+		return image.getDataSize() == 1 && image.getData(0) != null && image.getDepth() <= 1
+				&& image.getDataType() == ImageDataType.UnsignedByte && !image.getDataFormat().isCompressed()
+				&& isPowerOfTwo(image.getWidth()) && isPowerOfTwo(image.getHeight());
+	}
+
+	protected static boolean isPowerOfTwo(int value)
+	{
+		return value > 0 && (value & (value - 1)) == 0;
+	}
+
+	/**
+	 * Average each 2x2 block of the source level into a pixel of the next
+	 * level. When one of the dimensions is already 1, blocks are 2x1 or 1x2.
+	 * If a dimension is odd, its last row or column is dropped.
+	 */
+	protected static void downsample(ByteBuffer source, int sourceOffset, int width, int height, ByteBuffer target,
+			int offset, int nextWidth, int nextHeight, int components)
+	{
+		int stepX = width > 1 ? 1 : 0;
+		int stepY = height > 1 ? 1 : 0;
+		for (int y = 0; y < nextHeight; y++)
+		{
+			int row0 = sourceOffset + 2 * y * width * components;
+			int row1 = row0 + stepY * width * components;
+			for (int x = 0; x < nextWidth; x++)
+			{
+				int column0 = 2 * x * components;
+				int column1 = column0 + stepX * components;
+				for (int c = 0; c < components; c++)
+				{
+					int sum =
+							(source.get(row0 + column0 + c) & 0xff) + (source.get(row0 + column1 + c) & 0xff)
+									+ (source.get(row1 + column0 + c) & 0xff) + (source.get(row1 + column1 + c) & 0xff);
+					//the duplicated samples of a 2x1 or 1x2 block count twice, so divide by 4
+					target.put(offset + (y * nextWidth + x) * components + c, (byte) ((sum + 2) / 4));
+				}
+			}
+		}
+	}
+}
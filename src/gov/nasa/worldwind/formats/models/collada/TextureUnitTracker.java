@@ -0,0 +1,223 @@
+package gov.nasa.worldwind.formats.models.collada;
+
+import gov.nasa.worldwind.render.DrawContext;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.media.opengl.GL;
+
+import com.ardor3d.image.Texture.ApplyMode;
+import com.ardor3d.renderer.ContextManager;
+import com.ardor3d.renderer.RenderContext;
+import com.ardor3d.renderer.state.RenderState.StateType;
+import com.ardor3d.renderer.state.record.TextureStateRecord;
+import com.ardor3d.renderer.state.record.TextureUnitRecord;
+
+/**
+ * Keeps Ardor3D's record of the texture units in step with World Wind's
+ * rendering, so that the record only has to be invalidated when something
+ * other than Ardor3D has used the texture units since the last model was
+ * drawn.
+ * <p>
+ * The texture bindings are not saved on the attribute stack by
+ * {@link ColladaModel#pushState(DrawContext, float[])}, so the textures bound
+ * by a model are still bound when the next model is drawn, and Ardor3D can
+ * skip binding them again. Instead, {@link #restore(DrawContext)} resets the
+ * rest of the texture unit state World Wind relies on (active unit, texture
+ * environment and texture matrix) when the models are done.
+ * <p>
+ * Before drawing, {@link #validate(DrawContext)} invalidates the record on
+ * the first draw of each frame, as other layers and renderables may have
+ * bound textures since the previous frame. The following draws of the frame
+ * trust the record without querying OpenGL, as a query per model can make the
+ * driver wait for the pending rendering; code that binds textures outside of
+ * Ardor3D between the models of a frame must call
+ * {@link #invalidateActiveUnit()}.
+ */
+public class TextureUnitTracker
+{
+	//render context -> time stamp of the frame the texture units were last validated in, updated in place
+	private static final Map<RenderContext, long[]> frames = new HashMap<RenderContext, long[]>();
+
+	private static long invalidationCount;
+	private static long reuseCount;
+
+	/**
+	 * Make sure Ardor3D's record of the texture units of the current render
+	 * context matches the OpenGL state, before drawing models. Must be called
+	 * after {@link ArdorContextRegistry#makeCurrent(DrawContext)}.
+	 *
+	 * @param dc
+	 *            Draw context
+	 */
+	public static void validate(DrawContext dc)
+	{
+		RenderContext context = ContextManager.getCurrentContext();
+		TextureStateRecord record = (TextureStateRecord) context.getStateRecord(StateType.Texture);
+		TextureUnitRecord first = record.units[0];
+
+		boolean sameFrame;
+		synchronized (frames)
+		{
+			long[] frame = frames.get(context);
+			if (frame == null)
+			{
+				frame = new long[1];
+				frames.put(context, frame);
+				sameFrame = false;
+			}
+			else
+			{
+				sameFrame = frame[0] == dc.getFrameTimeStamp();
+			}
+			frame[0] = dc.getFrameTimeStamp();
+		}
+
+		boolean valid = first.isValid() && record.currentUnit == 0 && sameFrame;
+
+		for (int i = 0; i < context.getCapabilities().getNumberOfTotalTextureUnits(); i++)
+		{
+			TextureUnitRecord unitRecord = record.units[i];
+			//the other units aren't checked, so forget the textures bound to them
+			if (!valid || (i > 0 && unitRecord.boundTexture > 0))
+			{
+				unitRecord.invalidate();
+			}
+		}
+
+		if (valid)
+		{
+			reuseCount++;
+		}
+		else
+		{
+			invalidationCount++;
+		}
+	}
+
+	/**
+	 * Forget the texture bound to the active unit of the current render
+	 * context, after binding a texture without going through Ardor3D. Must be
+	 * called after {@link ArdorContextRegistry#makeCurrent(DrawContext)}.
+	 */
+	public static void invalidateActiveUnit()
+	{
+		RenderContext context = ContextManager.getCurrentContext();
+		if (context == null)
+			return;
+
+		TextureStateRecord record = (TextureStateRecord) context.getStateRecord(StateType.Texture);
+		if (record.currentUnit >= 0 && record.currentUnit < record.units.length)
+		{
+			record.units[record.currentUnit].invalidate();
+		}
+		else
+		{
+			//the active unit is unknown
+			for (TextureUnitRecord unitRecord : record.units)
+			{
+				unitRecord.invalidate();
+			}
+		}
+	}
+
+	/**
+	 * Reset the texture unit state that isn't restored by
+	 * {@link ColladaModel#popState(DrawContext)} to World Wind's defaults,
+	 * keeping Ardor3D's record up to date. The bound textures are left alone.
+	 * Must be called before the attribute stack is popped.
+	 *
+	 * @param dc
+	 *            Draw context
+	 */
+	public static void restore(DrawContext dc)
+	{
+		RenderContext context = ContextManager.getContextForKey(dc.getGLContext());
+		if (context == null)
+			return;
+
+		GL gl = dc.getGL();
+		TextureStateRecord record = (TextureStateRecord) context.getStateRecord(StateType.Texture);
+		for (int i = 0; i < context.getCapabilities().getNumberOfTotalTextureUnits(); i++)
+		{
+			TextureUnitRecord unitRecord = record.units[i];
+			if (!unitRecord.isValid())
+				continue;
+
+			boolean envMode = unitRecord.envMode != null && unitRecord.envMode != ApplyMode.Modulate;
+			if (envMode || unitRecord.lodBias != 0 || !unitRecord.identityMatrix)
+			{
+				if (record.currentUnit != i)
+				{
+					gl.glActiveTexture(GL.GL_TEXTURE0 + i);
+					record.currentUnit = i;
+				}
+				if (envMode)
+				{
+					gl.glTexEnvi(GL.GL_TEXTURE_ENV, GL.GL_TEXTURE_ENV_MODE, GL.GL_MODULATE);
+					unitRecord.envMode = ApplyMode.Modulate;
+				}
+				if (unitRecord.lodBias != 0)
+				{
+					gl.glTexEnvf(GL.GL_TEXTURE_FILTER_CONTROL, GL.GL_TEXTURE_LOD_BIAS, 0);
+					unitRecord.lodBias = 0;
+				}
+				if (!unitRecord.identityMatrix)
+				{
+					gl.glMatrixMode(GL.GL_TEXTURE);
+					gl.glLoadIdentity();
+					gl.glMatrixMode(GL.GL_MODELVIEW);
+					unitRecord.texMatrix.setIdentity();
+					unitRecord.identityMatrix = true;
+				}
+			}
+
+			//the enable bits are restored by the attribute stack, and World Wind leaves texturing disabled
+			Arrays.fill(unitRecord.enabled, false);
+			unitRecord.textureGenQ = false;
+			unitRecord.textureGenR = false;
+			unitRecord.textureGenS = false;
+			unitRecord.textureGenT = false;
+		}
+
+		if (record.currentUnit != 0)
+		{
+			gl.glActiveTexture(GL.GL_TEXTURE0);
+			record.currentUnit = 0;
+		}
+	}
+
+	/**
+	 * Forget the state of an OpenGL context's texture units, for example when
+	 * its window is closed.
+	 *
+	 * @param context
+	 *            Render context that is no longer used
+	 */
+	public static void remove(RenderContext context)
+	{
+		synchronized (frames)
+		{
+			frames.remove(context);
+		}
+	}
+
+	/**
+	 * @return Number of model draws that had to invalidate the texture units
+	 */
+	public static long getInvalidationCount()
+	{
+		return invalidationCount;
+	}
+
+	/**
+	 * @return Number of model draws that reused the textures bound by the
+	 *         previous draw
+	 */
+	public static long getReuseCount()
+	{
+		return reuseCount;
+	}
+}
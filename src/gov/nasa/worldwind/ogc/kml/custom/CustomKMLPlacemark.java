@@ -1,9 +1,13 @@
 package gov.nasa.worldwind.ogc.kml.custom;
 
-import gov.nasa.worldwind.WorldWind;
+import gov.nasa.worldwind.formats.models.ModelLoadScheduler;
+import gov.nasa.worldwind.geom.Angle;
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.geom.Vec4;
 import gov.nasa.worldwind.ogc.kml.KMLAbstractGeometry;
 import gov.nasa.worldwind.ogc.kml.KMLLineString;
 import gov.nasa.worldwind.ogc.kml.KMLLinearRing;
+import gov.nasa.worldwind.ogc.kml.KMLLocation;
 import gov.nasa.worldwind.ogc.kml.KMLModel;
 import gov.nasa.worldwind.ogc.kml.KMLMultiGeometry;
 import gov.nasa.worldwind.ogc.kml.KMLPlacemark;
@@ -15,9 +19,9 @@ import gov.nasa.worldwind.ogc.kml.impl.KMLTraversalContext;
 import gov.nasa.worldwind.render.DrawContext;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 /**
  * <p>
@@ -27,7 +31,10 @@ import java.util.Set;
  * <p>
  * It also overrides the placement geometry initialization function to create
  * geometry on a thread separate from the render thread. This increases
- * perceived performance.
+ * perceived performance. The geometry is initialized by the
+ * {@link ModelLoadScheduler}, with geometry closer to the eye first; requests
+ * for geometry outside the view are not renewed, so they are dropped if they
+ * haven't started before the geometry leaves the view.
  * </p>
  * 
  * @author Michael de Hoog (michael.dehoog@ga.gov.au)
@@ -35,7 +42,9 @@ import java.util.Set;
 public class CustomKMLPlacemark extends KMLPlacemark
 {
 	protected Object renderablesLock = new Object();
-	protected final Set<KMLAbstractGeometry> geomsRequestedLoad = new HashSet<KMLAbstractGeometry>();
+	protected final Map<KMLAbstractGeometry, InitializeGeometryTask> geometryTasks =
+			new HashMap<KMLAbstractGeometry, InitializeGeometryTask>();
+	protected DrawContext drawContext;
 
 	public CustomKMLPlacemark(String namespaceURI)
 	{
@@ -54,6 +63,9 @@ public class CustomKMLPlacemark extends KMLPlacemark
 	@Override
 	protected void doPreRender(KMLTraversalContext tc, DrawContext dc)
 	{
+		this.drawContext = dc;
+		renewGeometryRequests();
+
 		synchronized (renderablesLock)
 		{
 			super.doPreRender(tc, dc);
@@ -63,6 +75,8 @@ public class CustomKMLPlacemark extends KMLPlacemark
 	@Override
 	protected void doRender(KMLTraversalContext tc, DrawContext dc)
 	{
+		this.drawContext = dc;
+
 		synchronized (renderablesLock)
 		{
 			super.doRender(tc, dc);
@@ -84,30 +98,97 @@ public class CustomKMLPlacemark extends KMLPlacemark
 		if (this.getRenderables() == null)
 			this.renderables = new ArrayList<KMLRenderable>(1); // most common case is one renderable
 
-		if (!geomsRequestedLoad.contains(geom))
+		InitializeGeometryTask task;
+		synchronized (geometryTasks)
+		{
+			task = geometryTasks.get(geom);
+			if (task == null)
+			{
+				task = new InitializeGeometryTask(tc, geom);
+				geometryTasks.put(geom, task);
+			}
+		}
+		requestInitialization(task);
+	}
+
+	/**
+	 * Renew the scheduler requests of the geometry that hasn't been
+	 * initialized yet, so that their priority follows the view.
+	 */
+	protected void renewGeometryRequests()
+	{
+		synchronized (geometryTasks)
 		{
-			if (!WorldWind.getTaskService().isFull())
+			for (InitializeGeometryTask task : geometryTasks.values())
 			{
-				WorldWind.getTaskService().addTask(new InitializeGeometryTask(tc, geom));
-				geomsRequestedLoad.add(geom);
+				requestInitialization(task);
 			}
 		}
 	}
 
+	protected void requestInitialization(InitializeGeometryTask task)
+	{
+		if (task.started)
+			return;
+
+		double priority = 0;
+		DrawContext dc = this.drawContext;
+		if (dc != null && dc.getGlobe() != null && task.position != null)
+		{
+			Vec4 point = dc.getGlobe().computePointFromPosition(task.position);
+			if (!dc.getView().getFrustumInModelCoordinates().contains(point))
+				return;
+			priority = ModelLoadScheduler.computePriority(dc, point, 1);
+		}
+		ModelLoadScheduler.getInstance().request(task, task, priority);
+	}
+
+	/**
+	 * @param geom
+	 *            Geometry
+	 * @return Position of a point or model geometry, or null for other
+	 *         geometry
+	 */
+	protected static Position getGeometryPosition(KMLAbstractGeometry geom)
+	{
+		if (geom instanceof KMLPoint)
+			return ((KMLPoint) geom).getCoordinates();
+
+		if (geom instanceof KMLModel)
+		{
+			KMLLocation location = ((KMLModel) geom).getLocation();
+			if (location == null || location.getLatitude() == null || location.getLongitude() == null)
+				return null;
+			Double alt = location.getAltitude();
+			return new Position(Angle.fromDegrees(location.getLatitude()),
+					Angle.fromDegrees(location.getLongitude()), alt != null ? alt : 0);
+		}
+		return null;
+	}
+
 	protected class InitializeGeometryTask implements Runnable
 	{
 		protected final KMLTraversalContext tc;
 		protected final KMLAbstractGeometry geom;
+		protected final Position position;
+		protected volatile boolean started = false;
 
 		public InitializeGeometryTask(KMLTraversalContext tc, KMLAbstractGeometry geom)
 		{
 			this.tc = tc;
 			this.geom = geom;
+			this.position = getGeometryPosition(geom);
 		}
 
 		@Override
 		public void run()
 		{
+			started = true;
+			//the renderables are added below, so the request no longer needs renewing
+			synchronized (geometryTasks)
+			{
+				geometryTasks.remove(geom);
+			}
 			if (geom instanceof KMLPoint)
 				addRenderable(selectPointRenderable(tc, geom));
 			else if (geom instanceof KMLLinearRing) // since LinearRing is a subclass of LineString, this test must precede
@@ -1,6 +1,7 @@
 package gov.nasa.worldwind.ogc.kml.custom;
 
 import gov.nasa.worldwind.WorldWind;
+import gov.nasa.worldwind.formats.models.collada.ColladaNode;
 import gov.nasa.worldwind.ogc.kml.KMLConstants;
 import gov.nasa.worldwind.ogc.kml.KMLParserContext;
 import gov.nasa.worldwind.ogc.kml.KMLRoot;
@@ -17,6 +18,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLStreamException;
@@ -31,12 +34,49 @@ import javax.xml.stream.XMLStreamException;
  * It also overrides the parser context creation method to support our custom
  * parser context {@link CustomKMLParserContext}.
  * </p>
+ * <p>
+ * If model prefetching is enabled for the document, before it is parsed (see
+ * {@link #setPrefetchModels(boolean)}), the COLLADA models referenced by the
+ * document are imported in parallel by the {@link KMLModelPrefetcher} once
+ * the document has been parsed, instead of one by one as they are first
+ * rendered. The imported models are kept by the root until
+ * {@link #clearPrefetchedModels()} is called, even if the models rendering
+ * them are disposed.
+ * </p>
  * 
  * @author Tisham Dhar
  * @author Michael de Hoog (michael.dehoog@ga.gov.au)
  */
 public class CustomKMLRoot extends KMLRoot
 {
+	protected boolean prefetchModels = false;
+
+	protected final Map<String, ColladaNode> prefetchedModels = new ConcurrentHashMap<String, ColladaNode>();
+
+	public boolean isPrefetchModels()
+	{
+		return prefetchModels;
+	}
+
+	/**
+	 * @param prefetchModels
+	 *            Whether this document should import all its COLLADA models
+	 *            as part of parsing; must be set before {@link #parse(Object...)}
+	 */
+	public void setPrefetchModels(boolean prefetchModels)
+	{
+		this.prefetchModels = prefetchModels;
+	}
+
+	/**
+	 * Release the models imported when this document was parsed. Models
+	 * loaded afterwards are imported from their source again.
+	 */
+	public void clearPrefetchedModels()
+	{
+		prefetchedModels.clear();
+	}
+
 	/**
 	 * Creates a KML root for an untyped source. The source must be either a
 	 * {@link File}, a {@link URL}, a {@link InputStream}, or a {@link String}
@@ -256,6 +296,41 @@ public class CustomKMLRoot extends KMLRoot
 		super(namespaceURI, docSource, namespaceAware);
 	}
 
+	@Override
+	public KMLRoot parse(Object... args) throws XMLStreamException
+	{
+		KMLRoot root = super.parse(args);
+		if (prefetchModels)
+		{
+			prefetchedModels.putAll(KMLModelPrefetcher.prefetch(this));
+		}
+		return root;
+	}
+
+	/**
+	 * @param path
+	 *            Resolved path of a COLLADA model referenced by this document
+	 * @return A copy (sharing the geometry) of the prefetched model, or null
+	 *         if the model hasn't been prefetched. The mesh data of the copy
+	 *         is shared with the other copies, and was indexed when it was
+	 *         prefetched, so it must not be modified. The prefetched model is
+	 *         kept until {@link #clearPrefetchedModels()} is called.
+	 */
+	public ColladaNode getPrefetchedModel(String path)
+	{
+		ColladaNode node = prefetchedModels.get(path);
+		if (node == null)
+			return null;
+
+		//each renderable positions its own node, so only the geometry can be shared
+		synchronized (node)
+		{
+			ColladaNode copy = node.makeCopy(true);
+			copy.updateGeometricState(0);
+			return copy;
+		}
+	}
+
 	@Override
 	protected KMLParserContext createParserContext(XMLEventReader reader)
 	{
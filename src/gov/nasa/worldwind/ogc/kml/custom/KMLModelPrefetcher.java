@@ -0,0 +1,178 @@
+package gov.nasa.worldwind.ogc.kml.custom;
+
+import gov.nasa.worldwind.formats.models.collada.ColladaLevelOfDetail;
+import gov.nasa.worldwind.formats.models.collada.ColladaNode;
+import gov.nasa.worldwind.formats.models.collada.KMLArdorColladaLoader;
+import gov.nasa.worldwind.ogc.kml.KMLAbstractContainer;
+import gov.nasa.worldwind.ogc.kml.KMLAbstractFeature;
+import gov.nasa.worldwind.ogc.kml.KMLAbstractGeometry;
+import gov.nasa.worldwind.ogc.kml.KMLModel;
+import gov.nasa.worldwind.ogc.kml.KMLMultiGeometry;
+import gov.nasa.worldwind.ogc.kml.KMLPlacemark;
+import gov.nasa.worldwind.ogc.kml.KMLRoot;
+import gov.nasa.worldwind.util.Logging;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Imports all the COLLADA models referenced by the &lt;Model&gt; placemarks
+ * of a KML document in parallel. Models referenced by several placemarks are
+ * imported once.
+ */
+public class KMLModelPrefetcher
+{
+	/**
+	 * Import the models of a document using one thread per processor.
+	 *
+	 * @param root
+	 *            Parsed KML document
+	 * @return Imported models, keyed by their resolved path
+	 */
+	public static Map<String, ColladaNode> prefetch(KMLRoot root)
+	{
+		return prefetch(root, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Import the models of a document.
+	 *
+	 * @param root
+	 *            Parsed KML document
+	 * @param threads
+	 *            Number of models to import at the same time
+	 * @return Imported models, keyed by their resolved path. Models that
+	 *         failed to import are logged and left out.
+	 */
+	public static Map<String, ColladaNode> prefetch(final KMLRoot root, int threads)
+	{
+		Map<String, ColladaNode> models = new ConcurrentHashMap<String, ColladaNode>();
+
+		//resolved path -> href, so that each model is imported once
+		Map<String, String> hrefs = new LinkedHashMap<String, String>();
+		collectModels(root, root.getFeature(), hrefs);
+		if (hrefs.isEmpty())
+			return models;
+
+		ExecutorService executor =
+				Executors.newFixedThreadPool(Math.max(1, Math.min(threads, hrefs.size())), new ThreadFactory()
+				{
+					private int count = 0;
+
+					@Override
+					public synchronized Thread newThread(Runnable r)
+					{
+						Thread thread = new Thread(r, "KML model prefetch " + (++count));
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		try
+		{
+			List<String> paths = new ArrayList<String>();
+			List<Callable<ColladaNode>> tasks = new ArrayList<Callable<ColladaNode>>();
+			for (Map.Entry<String, String> entry : hrefs.entrySet())
+			{
+				final String path = entry.getKey();
+				final String href = entry.getValue();
+				paths.add(path);
+				tasks.add(new Callable<ColladaNode>()
+				{
+					@Override
+					public ColladaNode call() throws Exception
+					{
+						ColladaNode node = KMLArdorColladaLoader.loadColladaModel(path, href, root);
+						//the copies handed out share the mesh data, so index it before it is shared
+						if (node != null)
+							ColladaLevelOfDetail.index(node);
+						return node;
+					}
+				});
+			}
+
+			List<Future<ColladaNode>> results = executor.invokeAll(tasks);
+			for (int i = 0; i < results.size(); i++)
+			{
+				try
+				{
+					ColladaNode node = results.get(i).get();
+					if (node != null)
+						models.put(paths.get(i), node);
+				}
+				catch (ExecutionException e)
+				{
+					String message = "Failed to prefetch model " + paths.get(i) + ": " + e.getCause();
+					Logging.logger().warning(message);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		return models;
+	}
+
+	/**
+	 * Collect the resolved paths and hrefs of the models under a feature.
+	 */
+	protected static void collectModels(KMLRoot root, KMLAbstractFeature feature, Map<String, String> hrefs)
+	{
+		if (feature instanceof KMLAbstractContainer)
+		{
+			List<KMLAbstractFeature> features = ((KMLAbstractContainer) feature).getFeatures();
+			if (features != null)
+			{
+				for (KMLAbstractFeature child : features)
+				{
+					collectModels(root, child, hrefs);
+				}
+			}
+		}
+		else if (feature instanceof KMLPlacemark)
+		{
+			collectModels(root, ((KMLPlacemark) feature).getGeometry(), hrefs);
+		}
+	}
+
+	protected static void collectModels(KMLRoot root, KMLAbstractGeometry geom, Map<String, String> hrefs)
+	{
+		if (geom instanceof KMLMultiGeometry)
+		{
+			List<KMLAbstractGeometry> geoms = ((KMLMultiGeometry) geom).getGeometries();
+			if (geoms != null)
+			{
+				for (KMLAbstractGeometry g : geoms)
+				{
+					collectModels(root, g, hrefs);
+				}
+			}
+		}
+		else if (geom instanceof KMLModel)
+		{
+			KMLModel model = (KMLModel) geom;
+			if (model.getLink() == null || model.getLink().getHref() == null)
+				return;
+
+			String href = model.getLink().getHref();
+			Object reference = root.resolveReference(href);
+			if (reference instanceof String && !hrefs.containsKey(reference))
+			{
+				hrefs.put((String) reference, href);
+			}
+		}
+	}
+}
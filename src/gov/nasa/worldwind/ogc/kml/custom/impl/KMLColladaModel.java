@@ -6,6 +6,7 @@ import gov.nasa.worldwind.formats.models.collada.ColladaNode;
 import gov.nasa.worldwind.formats.models.collada.KMLArdorColladaLoader;
 import gov.nasa.worldwind.geom.Position;
 import gov.nasa.worldwind.ogc.kml.KMLRoot;
+import gov.nasa.worldwind.ogc.kml.custom.CustomKMLRoot;
 
 public class KMLColladaModel extends ColladaModel
 {
@@ -22,6 +23,12 @@ public class KMLColladaModel extends ColladaModel
 	@Override
 	protected ColladaNode loadModel(String source) throws Exception
 	{
+		if (kmlroot instanceof CustomKMLRoot)
+		{
+			ColladaNode prefetched = ((CustomKMLRoot) kmlroot).getPrefetchedModel(source);
+			if (prefetched != null)
+				return prefetched;
+		}
 		return KMLArdorColladaLoader.loadColladaModel(source, href, kmlroot);
 	}
 }
@@ -0,0 +1,263 @@
+/*
+ * ModelCache.java
+ *
+ * To change this template, choose Tools | Template Manager
+ * and open the template in the editor.
+ */
+
+package net.java.joglutils.model;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import net.java.joglutils.model.geometry.Mesh;
+import net.java.joglutils.model.geometry.Model;
+
+/**
+ * Thread safe cache of loaded models, keyed by source path. The cache holds
+ * models up to a memory budget, estimated from the size of their geometry,
+ * and evicts the least recently used models once the budget is exceeded.
+ * Concurrent requests for a model that is not cached yet share a single load.
+ */
+public class ModelCache {
+    /** Default memory budget, in bytes */
+    public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+
+    /**
+     * Loads a model that is not in the cache.
+     */
+    public interface Loader {
+        /**
+         * @return The loaded model, or null if the source is not supported
+         */
+        Model load(String source) throws ModelLoadException;
+    }
+
+    private static class Entry {
+        final Model model;
+        final long size;
+
+        Entry(Model model, long size) {
+            this.model = model;
+            this.size = size;
+        }
+    }
+
+    private final Loader loader;
+    private long memoryBudget;
+    private long memoryUsed = 0;
+
+    /** Cached models in access order, guarded by this */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    /** Loads in progress */
+    private final ConcurrentHashMap<String, FutureTask<Model>> loading = new ConcurrentHashMap<String, FutureTask<Model>>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public ModelCache(Loader loader) {
+        this(loader, DEFAULT_MEMORY_BUDGET);
+    }
+
+    public ModelCache(Loader loader, long memoryBudget) {
+        this.loader = loader;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Returns the model for the given source, loading it if it is not cached.
+     * If another thread is already loading the same source, waits for that
+     * load instead of starting a second one.
+     *
+     * @param source The path of the model
+     * @throws ModelLoadException if the model could not be loaded
+     */
+    public Model get(final String source) throws ModelLoadException {
+        Model model = getIfPresent(source);
+        if (model != null)
+            return model;
+
+        missCount.incrementAndGet();
+
+        FutureTask<Model> task = new FutureTask<Model>(new Callable<Model>() {
+            public Model call() throws Exception {
+                // Another load may have completed since the cache was checked
+                Model model = peek(source);
+                if (model != null)
+                    return model;
+
+                loadCount.incrementAndGet();
+                model = loader.load(source);
+                if (model == null)
+                    throw new ModelLoadException("Unsupported model: " + source);
+
+                put(source, model);
+                return model;
+            }
+        });
+
+        FutureTask<Model> running = loading.putIfAbsent(source, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                loading.remove(source, task);
+            }
+        } else {
+            task = running;
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ModelLoadException("Interrupted while loading " + source);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ModelLoadException)
+                throw (ModelLoadException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if (cause instanceof Error)
+                throw (Error)cause;
+
+            ModelLoadException exception = new ModelLoadException("Error loading " + source);
+            exception.initCause(cause);
+            throw exception;
+        }
+    }
+
+    /**
+     * @return The cached model for the given source, or null if it is not cached
+     */
+    public Model getIfPresent(String source) {
+        Model model = peek(source);
+        if (model != null)
+            hitCount.incrementAndGet();
+        return model;
+    }
+
+    private synchronized Model peek(String source) {
+        Entry entry = entries.get(source);
+        return entry != null ? entry.model : null;
+    }
+
+    /**
+     * Adds a model to the cache, evicting least recently used models if the
+     * memory budget is exceeded. The model just added is never evicted, even
+     * if it is bigger than the budget by itself.
+     */
+    public synchronized void put(String source, Model model) {
+        Entry entry = new Entry(model, estimateSize(model));
+        Entry previous = entries.put(source, entry);
+        if (previous != null)
+            memoryUsed -= previous.size;
+        memoryUsed += entry.size;
+
+        evict(1);
+    }
+
+    /**
+     * Removes a model from the cache.
+     */
+    public synchronized void remove(String source) {
+        Entry entry = entries.remove(source);
+        if (entry != null)
+            memoryUsed -= entry.size;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        memoryUsed = 0;
+    }
+
+    /**
+     * Evicts least recently used models until the cache fits its budget or
+     * only <code>keep</code> models are left.
+     */
+    private void evict(int keep) {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (memoryUsed > memoryBudget && entries.size() > keep) {
+            Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            memoryUsed -= eldest.size;
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Estimates the memory used by a model from its vertex and index counts.
+     */
+    protected long estimateSize(Model model) {
+        long size = 0;
+        for (int i = 0; i < model.getNumberOfMeshes(); i++) {
+            Mesh mesh = model.getMesh(i);
+            size += 64;
+            size += 4L * length(mesh.vertexData) + 4L * length(mesh.normalData) + 4L * length(mesh.texCoordData);
+            size += 4L * length(mesh.vertexIndices) + 4L * length(mesh.faceSizes)
+                  + 4L * length(mesh.faceMaterialIDs) + 4L * length(mesh.faceSmoothingGroups);
+            if (mesh.texCoordIndices != mesh.vertexIndices)
+                size += 4L * length(mesh.texCoordIndices);
+            if (mesh.normalIndices != mesh.vertexIndices)
+                size += 4L * length(mesh.normalIndices);
+        }
+        return size;
+    }
+
+    private static int length(float array[]) {
+        return array != null ? array.length : 0;
+    }
+
+    private static int length(int array[]) {
+        return array != null ? array.length : 0;
+    }
+
+    public synchronized long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the memory budget, in bytes, evicting models if necessary.
+     */
+    public synchronized void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        evict(0);
+    }
+
+    /**
+     * @return The estimated memory used by the cached models, in bytes
+     */
+    public synchronized long getMemoryUsed() {
+        return memoryUsed;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return The number of times the loader has been called
+     */
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+}
@@ -10,7 +10,6 @@
 package net.java.joglutils.model;
 
 
-import java.util.HashMap;
 import net.java.joglutils.model.geometry.Model;
 import net.java.joglutils.model.loader.LoaderFactory;
 
@@ -21,18 +20,20 @@ import net.java.joglutils.model.loader.LoaderFactory;
  */
 public class ModelFactory {
     
-    private static HashMap<Object, Model> modelCache = new HashMap<Object, Model>();
-        
-    public static Model createModel(String source) throws ModelLoadException {
-        Model model = modelCache.get(source);
-        if (model == null) {
-            model = LoaderFactory.load(source);
-            modelCache.put(source, model);
+    private static final ModelCache modelCache = new ModelCache(new ModelCache.Loader() {
+        public Model load(String source) throws ModelLoadException {
+            return LoaderFactory.load(source);
         }
+    });
         
-        if (model == null)
-            throw new ModelLoadException();
-        
-        return model;
+    public static Model createModel(String source) throws ModelLoadException {
+        return modelCache.get(source);
+    }
+    
+    /**
+     * @return The cache of the models created by this factory
+     */
+    public static ModelCache getModelCache() {
+        return modelCache;
     }
 }
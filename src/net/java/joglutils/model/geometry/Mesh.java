@@ -36,8 +36,6 @@
 
 package net.java.joglutils.model.geometry;
 
-import java.util.Vector;
-
 public class Mesh
 {
     public int numOfVerts = 0;
@@ -47,12 +45,54 @@ public class Mesh
     public boolean hasTexture = false;
     public String name = null;
     public int indices = 0;
+    /**
+     * @deprecated Null after loading; only {@link #getVertices()} fills it.
+     */
+    @Deprecated
     public Vec4 vertices[] = null;
+    /**
+     * @deprecated Null after loading; only {@link #getNormals()} fills it.
+     */
+    @Deprecated
     public Vec4 normals[] = null;
+    /**
+     * @deprecated Null after loading; only {@link #getTexCoords()} fills it.
+     */
+    @Deprecated
     public TexCoord texCoords[] = null;
+    /**
+     * @deprecated Null after loading; only {@link #getFaces()} fills it.
+     */
+    @Deprecated
     public Face faces[] = null;
     public Bounds bounds = null;
     
+    /*
+     * Packed representation of the geometry. Loaders fill these arrays
+     * directly; the object arrays above are only created from them when
+     * requested through the getters below. The getters are synchronized, as
+     * a loaded model can be read by several threads.
+     */
+    
+    /** Vertex positions, 3 floats (x, y, z) per vertex */
+    public float vertexData[] = null;
+    /** Normals, 3 floats (x, y, z) per normal */
+    public float normalData[] = null;
+    /** Texture coordinates, 2 floats (u, v) per coordinate */
+    public float texCoordData[] = null;
+    /** Vertex index of each face corner, faces stored one after the other */
+    public int vertexIndices[] = null;
+    /** Texture coordinate index of each face corner, may be the vertexIndices array itself */
+    public int texCoordIndices[] = null;
+    /** Normal index of each face corner, may be the vertexIndices array itself */
+    public int normalIndices[] = null;
+    /** Number of corners of each face, or null if every face is a triangle */
+    public int faceSizes[] = null;
+    /** Material of each face, or null if the faces don't have their own material */
+    public int faceMaterialIDs[] = null;
+    /** Smoothing group bit mask of each face, or null if the faces have none */
+    public int faceSmoothingGroups[] = null;
+    
     public Mesh() {
         this("default");
     }
@@ -61,4 +101,78 @@ public class Mesh
         this.name = name;
         bounds = new Bounds();
     }
+    
+    /**
+     * Returns the vertices of the mesh, creating them from the packed
+     * vertexData on first use.
+     */
+    public synchronized Vec4[] getVertices() {
+        if (vertices == null && vertexData != null)
+            vertices = toVec4(vertexData);
+        return vertices;
+    }
+    
+    /**
+     * Returns the normals of the mesh, creating them from the packed
+     * normalData on first use.
+     */
+    public synchronized Vec4[] getNormals() {
+        if (normals == null && normalData != null)
+            normals = toVec4(normalData);
+        return normals;
+    }
+    
+    /**
+     * Returns the texture coordinates of the mesh, creating them from the
+     * packed texCoordData on first use.
+     */
+    public synchronized TexCoord[] getTexCoords() {
+        if (texCoords == null && texCoordData != null) {
+            TexCoord values[] = new TexCoord[texCoordData.length / 2];
+            for (int i = 0; i < values.length; i++)
+                values[i] = new TexCoord(texCoordData[2*i], texCoordData[2*i+1]);
+            texCoords = values;
+        }
+        return texCoords;
+    }
+    
+    /**
+     * Returns the faces of the mesh, creating them from the packed index
+     * arrays on first use.
+     */
+    public synchronized Face[] getFaces() {
+        if (faces == null && vertexIndices != null) {
+            Face values[] = new Face[numOfFaces];
+            int corner = 0;
+            for (int i = 0; i < numOfFaces; i++) {
+                int size = getFaceSize(i);
+                Face face = new Face(size);
+                System.arraycopy(vertexIndices, corner, face.vertIndex, 0, size);
+                if (texCoordIndices != null)
+                    System.arraycopy(texCoordIndices, corner, face.coordIndex, 0, size);
+                if (normalIndices != null)
+                    System.arraycopy(normalIndices, corner, face.normalIndex, 0, size);
+                if (faceMaterialIDs != null)
+                    face.materialID = faceMaterialIDs[i];
+                values[i] = face;
+                corner += size;
+            }
+            faces = values;
+        }
+        return faces;
+    }
+    
+    /**
+     * @return The number of corners of the given face
+     */
+    public int getFaceSize(int face) {
+        return faceSizes == null ? 3 : faceSizes[face];
+    }
+    
+    private static Vec4[] toVec4(float data[]) {
+        Vec4 values[] = new Vec4[data.length / 3];
+        for (int i = 0; i < values.length; i++)
+            values[i] = new Vec4(data[3*i], data[3*i+1], data[3*i+2]);
+        return values;
+    }
 }
\ No newline at end of file
@@ -36,13 +36,29 @@
 
 package net.java.joglutils.model.geometry;
 
-import java.util.Vector;
-
+/**
+ * A loaded model: its meshes, materials and bounds, and the settings used to
+ * render it.
+ * <p>
+ * Meshes and materials are kept in arrays that are replaced rather than
+ * modified, so they can be read from any thread without locking. Loaders
+ * should fill a {@link ModelBuilder} and call {@link ModelBuilder#build()},
+ * which returns a model whose content can't be changed any more; the meshes
+ * and materials written by the loading thread are then visible to every
+ * thread that gets the model. Models created with {@link #Model(String)}
+ * can still be filled with {@link #addMesh(Mesh)} and
+ * {@link #addMaterial(Material)}.
+ */
 public class Model
 {
-    protected Vector<Material> materials = new Vector<Material>();
-    protected Vector<Mesh> mesh = new Vector<Mesh>();
+    private static final Material[] NO_MATERIALS = new Material[0];
+    private static final Mesh[] NO_MESHES = new Mesh[0];
+
+    protected volatile Material[] materials = NO_MATERIALS;
+    protected volatile Mesh[] mesh = NO_MESHES;
     protected String source;
+    /** True if the model was built by a ModelBuilder, and its content can't be changed */
+    private final boolean immutable;
     
     protected boolean renderModel = true;
     protected boolean centerModel = false;
@@ -54,50 +70,90 @@ public class Model
     protected boolean useLighting = true;
     
     /** Bounds of the model */
-    protected Bounds bounds = new Bounds();
+    protected volatile Bounds bounds = new Bounds();
     /** Center point of the model */
-    private Vec4 centerPoint = new Vec4(0.0f, 0.0f, 0.0f);
+    private volatile Vec4 centerPoint = new Vec4(0.0f, 0.0f, 0.0f);
 
     // Constructor
     public Model(String source)
     {
         this.source = source;
+        this.immutable = false;
+    }
+
+    /**
+     * Creates a model with the content of a builder, which can't be changed
+     * afterwards.
+     *
+     * @param builder Builder filled by a loader
+     */
+    protected Model(ModelBuilder builder)
+    {
+        this.source = builder.getSource();
+        this.materials = builder.getMaterials();
+        this.mesh = builder.getMeshes();
+        this.bounds = builder.getBounds();
+        this.centerPoint = builder.getCenterPoint();
+        this.immutable = true;
+    }
+
+    /**
+     * @return True if the model was built by a {@link ModelBuilder}, in which
+     *         case its meshes, materials, bounds and center can't be changed
+     */
+    public boolean isImmutable()
+    {
+        return immutable;
+    }
+
+    private void checkMutable()
+    {
+        if (immutable)
+            throw new UnsupportedOperationException("Model built by a ModelBuilder can't be changed: " + source);
     }
 
     // Add material
-    public void addMaterial(Material mat)
+    public synchronized void addMaterial(Material mat)
     {
-        materials.add(mat);
+        checkMutable();
+        Material[] values = new Material[materials.length + 1];
+        System.arraycopy(materials, 0, values, 0, materials.length);
+        values[materials.length] = mat;
+        materials = values;
     }
 
     // Add a mesh
-    public void addMesh(Mesh obj)
+    public synchronized void addMesh(Mesh obj)
     {
-        mesh.add(obj);
+        checkMutable();
+        Mesh[] values = new Mesh[mesh.length + 1];
+        System.arraycopy(mesh, 0, values, 0, mesh.length);
+        values[mesh.length] = obj;
+        mesh = values;
     }
 
     // Get material
     public Material getMaterial(int index)
     {
-        return materials.get(index);
+        return materials[index];
     }
 
     // Get a a mesh
     public Mesh getMesh(int index)
     {
-        return mesh.get(index);
+        return mesh[index];
     }
 
     // Get the number of meshes
     public int getNumberOfMeshes()
     {
-        return mesh.size();
+        return mesh.length;
     }
 
     // Get the number of materials
     public int getNumberOfMaterials()
     {
-        return materials.size();
+        return materials.length;
     }
 
     public String getSource() {
@@ -146,6 +202,7 @@ public class Model
     }
     
     public void setBounds(Bounds bounds) {
+        checkMutable();
         this.bounds = bounds;
     }
     
@@ -159,6 +216,7 @@ public class Model
     }
 
     public void setCenterPoint(Vec4 center) {
+        checkMutable();
         this.centerPoint = center;
     }
 
@@ -0,0 +1,98 @@
+package net.java.joglutils.model.geometry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the meshes, materials and bounds of a model while it is loaded,
+ * and creates the {@link Model} once loading is done.
+ * <p>
+ * The built model keeps its own copy of the mesh and material lists, and its
+ * content can't be changed, so it can be handed from a loading thread to the
+ * rendering thread and read without locking: everything written to the
+ * meshes and materials before {@link #build()} is visible to any thread that
+ * gets the model. The meshes and materials must not be modified afterwards.
+ * <p>
+ * A builder is meant to be used by a single thread.
+ */
+public class ModelBuilder {
+    private final String source;
+    private final List<Material> materials = new ArrayList<Material>();
+    private final List<Mesh> meshes = new ArrayList<Mesh>();
+    private Bounds bounds = new Bounds();
+    private Vec4 centerPoint = new Vec4(0.0f, 0.0f, 0.0f);
+
+    public ModelBuilder(String source) {
+        this.source = source;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public ModelBuilder addMaterial(Material mat) {
+        materials.add(mat);
+        return this;
+    }
+
+    public ModelBuilder addMesh(Mesh obj) {
+        meshes.add(obj);
+        return this;
+    }
+
+    /**
+     * Returns a material added so far, so that loaders can look up the
+     * materials referenced by the meshes.
+     */
+    public Material getMaterial(int index) {
+        return materials.get(index);
+    }
+
+    public Mesh getMesh(int index) {
+        return meshes.get(index);
+    }
+
+    public int getNumberOfMaterials() {
+        return materials.size();
+    }
+
+    public int getNumberOfMeshes() {
+        return meshes.size();
+    }
+
+    public Bounds getBounds() {
+        return bounds;
+    }
+
+    public ModelBuilder setBounds(Bounds bounds) {
+        this.bounds = bounds;
+        return this;
+    }
+
+    public Vec4 getCenterPoint() {
+        return centerPoint;
+    }
+
+    public ModelBuilder setCenterPoint(Vec4 center) {
+        this.centerPoint = center;
+        return this;
+    }
+
+    Material[] getMaterials() {
+        return materials.toArray(new Material[materials.size()]);
+    }
+
+    Mesh[] getMeshes() {
+        return meshes.toArray(new Mesh[meshes.size()]);
+    }
+
+    /**
+     * Creates an immutable model with the content added so far. The builder
+     * can still be used afterwards, without affecting the model.
+     *
+     * @return New model
+     */
+    public Model build() {
+        return new Model(this);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * MaxChunkReader.java
+ *
+ * To change this template, choose Tools | Template Manager
+ * and open the template in the editor.
+ */
+
+package net.java.joglutils.model.loader;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import net.java.joglutils.model.ResourceRetriever;
+
+/**
+ * Little-endian reader for the data of a 3DS file. The whole file is
+ * available as a {@link ByteBuffer}, memory-mapped for larger files on disk
+ * and read fully into memory otherwise, so that arrays can be decoded in bulk
+ * and chunks can be skipped by moving the buffer position.
+ */
+public class MaxChunkReader {
+    /** Files on disk at least this big are memory-mapped instead of read */
+    public static final int MAP_THRESHOLD = 256 * 1024;
+
+    private ByteBuffer buffer;
+
+    public MaxChunkReader(ByteBuffer buffer) {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Opens a 3DS file, from disk or from the classpath.
+     *
+     * @param source The path of the file
+     * @throws IOException
+     */
+    public static MaxChunkReader open(String source) throws IOException {
+        File file = new File(source);
+        if (file.isFile() && file.length() >= MAP_THRESHOLD) {
+            FileInputStream stream = new FileInputStream(file);
+            try {
+                FileChannel channel = stream.getChannel();
+                // the mapping stays valid after the channel is closed
+                return new MaxChunkReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } finally {
+                stream.close();
+            }
+        }
+
+        InputStream stream = ResourceRetriever.getResourceAsInputStream(source);
+        if (stream == null)
+            throw new IOException("Stream is null: " + source);
+
+        try {
+            return new MaxChunkReader(ByteBuffer.wrap(readFully(stream, (int)file.length())));
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static byte[] readFully(InputStream stream, int sizeHint) throws IOException {
+        byte data[] = new byte[Math.max(sizeHint, 8 * 1024)];
+        int length = 0;
+        int read;
+        while ((read = stream.read(data, length, data.length - length)) >= 0) {
+            length += read;
+            if (length == data.length) {
+                byte grown[] = new byte[data.length * 2];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+            }
+        }
+
+        byte result[] = new byte[length];
+        System.arraycopy(data, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * Releases the file data.
+     */
+    public void close() {
+        buffer = null;
+    }
+
+    public int getPosition() {
+        return buffer.position();
+    }
+
+    public int remaining() {
+        return buffer.remaining();
+    }
+
+    public int readUnsignedByte() throws IOException {
+        try {
+            return buffer.get() & 0xff;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Reads an unsigned short (16-bit) value.
+     */
+    public int readUnsignedShort() throws IOException {
+        try {
+            return buffer.getShort() & 0xffff;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException();
+        }
+    }
+
+    public int readInt() throws IOException {
+        try {
+            return buffer.getInt();
+        } catch (BufferUnderflowException e) {
+            throw new EOFException();
+        }
+    }
+
+    public float readFloat() throws IOException {
+        try {
+            return buffer.getFloat();
+        } catch (BufferUnderflowException e) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Reads a zero terminated string.
+     *
+     * @return The string, without the terminator
+     */
+    public String readString() throws IOException {
+        int start = buffer.position();
+        int end = start;
+        int limit = buffer.limit();
+        while (end < limit && buffer.get(end) != 0)
+            end++;
+
+        if (end == limit)
+            throw new EOFException();
+
+        byte chars[] = new byte[end - start];
+        buffer.get(chars);
+        buffer.get(); // terminator
+        return new String(chars, "ISO-8859-1");
+    }
+
+    /**
+     * Reads <code>dst.length</code> floats in one go.
+     */
+    public void readFloats(float dst[]) throws IOException {
+        int bytes = 4 * dst.length;
+        if (buffer.remaining() < bytes)
+            throw new EOFException();
+
+        buffer.asFloatBuffer().get(dst);
+        buffer.position(buffer.position() + bytes);
+    }
+
+    /**
+     * Reads a 3DS face list: for each face three unsigned short vertex
+     * indices followed by a short of flags, which is skipped.
+     *
+     * @param dst Receives the vertex indices, 3 per face
+     * @param numFaces Number of faces to read
+     */
+    public void readFaces(int dst[], int numFaces) throws IOException {
+        int bytes = 8 * numFaces;
+        if (buffer.remaining() < bytes)
+            throw new EOFException();
+
+        int position = buffer.position();
+        for (int i = 0; i < numFaces; i++, position += 8) {
+            dst[3*i] = buffer.getShort(position) & 0xffff;
+            dst[3*i+1] = buffer.getShort(position + 2) & 0xffff;
+            dst[3*i+2] = buffer.getShort(position + 4) & 0xffff;
+        }
+        buffer.position(position);
+    }
+
+    /**
+     * Reads <code>dst.length</code> ints in one go.
+     */
+    public void readInts(int dst[]) throws IOException {
+        int bytes = 4 * dst.length;
+        if (buffer.remaining() < bytes)
+            throw new EOFException();
+
+        buffer.asIntBuffer().get(dst);
+        buffer.position(buffer.position() + bytes);
+    }
+
+    /**
+     * Skips over <code>count</code> bytes without reading them.
+     */
+    public void skip(int count) throws IOException {
+        if (count < 0 || count > buffer.remaining())
+            throw new EOFException();
+
+        buffer.position(buffer.position() + count);
+    }
+}
@@ -37,24 +37,20 @@
 package net.java.joglutils.model.loader;
 
 import java.awt.Color;
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import net.java.joglutils.model.ResourceRetriever;
 import net.java.joglutils.model.geometry.Bounds;
-import net.java.joglutils.model.geometry.Face;
 import net.java.joglutils.model.geometry.Material;
 import net.java.joglutils.model.geometry.Mesh;
 import net.java.joglutils.model.geometry.Model;
-import net.java.joglutils.model.geometry.TexCoord;
+import net.java.joglutils.model.geometry.ModelBuilder;
 import net.java.joglutils.model.geometry.Vec4;
 
 public class MaxLoader implements MaxConstants, iLoader {
 // File reader
     private File file;
     private boolean loaded = false;
-    private DataInputStream dataInputStream;
+    private MaxChunkReader reader;
 
 // Global chunks
     private Chunk currentChunk, tempChunk;
@@ -65,6 +61,9 @@ public class MaxLoader implements MaxConstants, iLoader {
     /** Center of the model */
     private Vec4 center = new Vec4(0.0f, 0.0f, 0.0f);     
     
+    /** Generates the vertex normals, which 3DS files don't contain */
+    private NormalGenerator normalGenerator = new NormalGenerator();
+    
     // Constructor
     public MaxLoader()
     {
@@ -72,26 +71,46 @@ public class MaxLoader implements MaxConstants, iLoader {
         tempChunk = new Chunk();
     }
 
+    /**
+     * Returns the generator used for the vertex normals, which can be
+     * configured before loading (angle weighting, smoothing groups).
+     */
+    public NormalGenerator getNormalGenerator() {
+        return normalGenerator;
+    }
+
     public Model load(String source) {
-        Model model = new Model(source);
-        load(model);
-        return model;
+        ModelBuilder builder = new ModelBuilder(source);
+        load(builder);
+        return builder.build();
     }
-    // Verified
+
+    /**
+     * Loads the file named by the model's source into a model that isn't
+     * filled yet.
+     *
+     * @return false if the file couldn't be read
+     */
     public boolean load(Model model)
+    {
+        ModelBuilder builder = new ModelBuilder(model.getSource());
+        if (!load(builder))
+            return false;
+
+        for (int i = 0; i < builder.getNumberOfMaterials(); i++)
+            model.addMaterial(builder.getMaterial(i));
+        for (int i = 0; i < builder.getNumberOfMeshes(); i++)
+            model.addMesh(builder.getMesh(i));
+        model.setBounds(builder.getBounds());
+        model.setCenterPoint(builder.getCenterPoint());
+        return true;
+    }
+
+    // Verified
+    public boolean load(ModelBuilder builder)
     {
         try {
-            InputStream stream = ResourceRetriever.getResourceAsInputStream(model.getSource());
-            if (stream == null) {
-                System.out.println("stream is null");
-                return false;
-            }
-            
-            dataInputStream = new DataInputStream(stream);
-            if (dataInputStream == null) {
-                System.out.println("dataInputStream is null");
-                return false;
-            } 
+            reader = MaxChunkReader.open(builder.getSource());
             
             readChunkHeader(currentChunk);
             
@@ -103,46 +122,39 @@ public class MaxLoader implements MaxConstants, iLoader {
         
         if (currentChunk.id != TYPE_3DS_FILE) {
             System.err.println("Unable to load PRIMARY chuck from file!");
+            reader.close();
             return false;
         }
 
-        processNextChunk(model, currentChunk);
-	computeNormals(model);
+        processNextChunk(builder, currentChunk);
+	computeNormals(builder);
 
-        try {
-            dataInputStream.close();
-
-        } catch (IOException e) {
-            System.err.println("Error:  File IO error in: Closing File");
-            return false;
-        }
+        reader.close();
 
         loaded = true;
         
-        model.setBounds(this.bounds);
-        model.setCenterPoint(this.center);
+        builder.setBounds(this.bounds);
+        builder.setCenterPoint(this.center);
 
         return loaded;
     }
 
     /** 
-     * Read the stream completely
+     * Skips the unread part of a chunk by moving past it in the file
      *
-     * @param buffer 
-     * @param offset
-     * @param length
+     * @param chunk
      * @throws IOException
      */
-    private int readCompletely(byte buffer[], int offset, int length) throws IOException {
-        dataInputStream.readFully(buffer, offset, length);
-        return length;
+    private void skipChunk(Chunk chunk) throws IOException {
+        int remaining = chunk.length - chunk.bytesRead;
+        reader.skip(remaining);
+        chunk.bytesRead += remaining;
     }
 
     // Verified
-    void processNextChunk(Model model, Chunk previousChunk)
+    void processNextChunk(ModelBuilder builder, Chunk previousChunk)
     {
 	int version = 0;
-	byte buffer[] = null;
 
 	currentChunk = new Chunk();
 
@@ -160,24 +172,22 @@ public class MaxLoader implements MaxConstants, iLoader {
 
                     case TYPE_MESH_DATA:
                         readChunkHeader(tempChunk);
-                        buffer = new byte[tempChunk.length - tempChunk.bytesRead];
-                        tempChunk.bytesRead += readCompletely(buffer, 0, buffer.length);
-                        // TODO:DELETE tempChunk.bytesRead += dataInputStream.read(buffer, 0, tempChunk.length - tempChunk.bytesRead);
+                        skipChunk(tempChunk);
                         currentChunk.bytesRead += tempChunk.bytesRead;
-                        processNextChunk(model, currentChunk);
+                        processNextChunk(builder, currentChunk);
                     break;
 
                     case TYPE_MATERIAL:
                         Material mat = new Material();
-                        model.addMaterial(mat);
-                        processNextMaterialChunk(model, mat, currentChunk);
+                        builder.addMaterial(mat);
+                        processNextMaterialChunk(builder, mat, currentChunk);
                     break;
 
                     case TYPE_NAMED_OBJECT:
                         Mesh obj = new Mesh();
                         obj.name = readString(currentChunk);
-                        model.addMesh(obj);
-                        processNextObjectChunk(model, obj, currentChunk);
+                        builder.addMesh(obj);
+                        processNextObjectChunk(builder, obj, currentChunk);
                     break;
 
                     case TYPE_KEY_FRAME:
@@ -185,8 +195,7 @@ public class MaxLoader implements MaxConstants, iLoader {
                     break;
 
                     default:
-                        buffer = new byte[currentChunk.length - currentChunk.bytesRead];
-                        currentChunk.bytesRead += readCompletely(buffer, 0, buffer.length);
+                        skipChunk(currentChunk);
                     break;
                 }
                 previousChunk.bytesRead += currentChunk.bytesRead;
@@ -201,15 +210,13 @@ public class MaxLoader implements MaxConstants, iLoader {
 
     private void processKeyFrame(Chunk root) throws IOException {
         currentChunk = new Chunk();
-        byte buffer[] = null;
         
         while (root.bytesRead < root.length) {
             readChunkHeader(currentChunk);
             
             switch (currentChunk.id) {
                 default:
-                    buffer = new byte[currentChunk.length - currentChunk.bytesRead];
-                    currentChunk.bytesRead += readCompletely(buffer, 0, buffer.length);
+                    skipChunk(currentChunk);
                     break;
             }
             root.bytesRead += currentChunk.bytesRead;
@@ -226,11 +233,8 @@ public class MaxLoader implements MaxConstants, iLoader {
     }
 
     // Verified
-    private void processNextObjectChunk(Model model, Mesh object, Chunk previousChunk)
+    private void processNextObjectChunk(ModelBuilder builder, Mesh object, Chunk previousChunk)
     {
-        byte buffer[] = null;
-        int bytesread;
-
 	currentChunk = new Chunk();
 
         try {
@@ -239,13 +243,11 @@ public class MaxLoader implements MaxConstants, iLoader {
 
                 switch (currentChunk.id) {
                     case TYPE_TRIANGLE_OBJECT:
-                        processNextObjectChunk(model, object, currentChunk);
+                        processNextObjectChunk(builder, object, currentChunk);
                     break;
 
                     case TYPE_DIRECT_LIGHT:
-                        buffer = new byte[currentChunk.length - currentChunk.bytesRead];
-                        bytesread = readCompletely(buffer, 0, buffer.length);
-                        currentChunk.bytesRead += bytesread;
+                        skipChunk(currentChunk);
                     break;
                     
                     case TYPE_POINT_LIST:
@@ -257,18 +259,19 @@ public class MaxLoader implements MaxConstants, iLoader {
                     break;
 
                     case TYPE_MAT_FACE_LIST:
-                        readObjectMaterial(model, object, currentChunk);
+                        readObjectMaterial(builder, object, currentChunk);
                     break;
 
                     case TYPE_MAT_UV:
                         readUVCoordinates(object, currentChunk);
                     break;
 
+                    case TYPE_SMOOTH_GROUP:
+                        readSmoothingGroups(object, currentChunk);
+                    break;
+
                     default:
-                        buffer = new byte[currentChunk.length - currentChunk.bytesRead];
-                        bytesread = readCompletely(buffer, 0, buffer.length);
-                        // TODO:DELETE currentChunk.bytesRead += dataInputStream.read(buffer, 0, currentChunk.length - currentChunk.bytesRead);
-                        currentChunk.bytesRead += bytesread;
+                        skipChunk(currentChunk);
                     break;
                 }
                 previousChunk.bytesRead += currentChunk.bytesRead;
@@ -283,10 +286,8 @@ public class MaxLoader implements MaxConstants, iLoader {
     }
 
     // Verified
-    private void processNextMaterialChunk(Model model, Material material, Chunk previousChunk)
+    private void processNextMaterialChunk(ModelBuilder builder, Material material, Chunk previousChunk)
     {
-        byte buffer[] = null;
-
         currentChunk = new Chunk();
 
         try {
@@ -297,8 +298,7 @@ public class MaxLoader implements MaxConstants, iLoader {
                 {
 		case TYPE_MATERIAL_NAME:
                     material.strName = readString(currentChunk);
-                    buffer = new byte[currentChunk.length - currentChunk.bytesRead];
-                    currentChunk.bytesRead += readCompletely(buffer, 0, buffer.length);
+                    skipChunk(currentChunk);
 		break;
 
                 case TYPE_MAT_AMBIENT:
@@ -326,8 +326,7 @@ public class MaxLoader implements MaxConstants, iLoader {
                     break;
                     
                 case TYPE_MAT_2_SIDED:
-                    buffer = new byte[currentChunk.length - currentChunk.bytesRead];
-                    currentChunk.bytesRead += readCompletely(buffer, 0, buffer.length);
+                    skipChunk(currentChunk);
                     break;
                     
                 case TYPE_MAT_XPFALL:
@@ -348,18 +347,16 @@ public class MaxLoader implements MaxConstants, iLoader {
                     break;
                     
 		case TYPE_MAT_TEXMAP:
-                    processNextMaterialChunk(model, material, currentChunk);
+                    processNextMaterialChunk(builder, material, currentChunk);
 		break;
 
 		case TYPE_MAT_MAPNAME:
                     material.strFile = readString(currentChunk);
-                    buffer = new byte[currentChunk.length - currentChunk.bytesRead];
-                    currentChunk.bytesRead += readCompletely(buffer, 0, buffer.length);
+                    skipChunk(currentChunk);
 		break;
 
                 default:
-                    buffer = new byte[currentChunk.length - currentChunk.bytesRead];
-                    currentChunk.bytesRead += readCompletely(buffer, 0, buffer.length);
+                    skipChunk(currentChunk);
                 break;
                 }
 
@@ -415,16 +412,15 @@ public class MaxLoader implements MaxConstants, iLoader {
 //    }
     
     // mine
-    private void readObjectMaterial(Model model, Mesh mesh, Chunk root) throws IOException {
+    private void readObjectMaterial(ModelBuilder builder, Mesh mesh, Chunk root) throws IOException {
         String strMaterial = null;
-        byte buffer[] = null;
         
         strMaterial = readString(root);
         
-        for (int i=0; i<model.getNumberOfMaterials(); i++) {
-            if (strMaterial.equals(model.getMaterial(i).strName)) {
+        for (int i=0; i<builder.getNumberOfMaterials(); i++) {
+            if (strMaterial.equals(builder.getMaterial(i).strName)) {
                 mesh.materialID = i;
-                Material mat = model.getMaterial(i);
+                Material mat = builder.getMaterial(i);
                 if (mat.strFile != null)
                     mesh.hasTexture = true;
                 break;
@@ -437,9 +433,11 @@ public class MaxLoader implements MaxConstants, iLoader {
             int numOfFaces = this.readShort(root);
             
             // Now loop over the number of faces to get their material ids and save this info
+            if (mesh.faceMaterialIDs == null)
+                mesh.faceMaterialIDs = new int[mesh.numOfFaces];
             for (int i=0; i<numOfFaces; i++) {
                 int faceId = readShort(root);
-                mesh.faces[faceId].materialID = mesh.materialID;
+                mesh.faceMaterialIDs[faceId] = mesh.materialID;
             }
         }
         catch (IOException e) {
@@ -478,9 +476,9 @@ public class MaxLoader implements MaxConstants, iLoader {
     private void readUVCoordinates(Mesh mesh, Chunk root) throws IOException {
         mesh.numTexCoords = readShort(root);
         
-        mesh.texCoords = new TexCoord[mesh.numTexCoords];
-        for (int i=0; i<mesh.numTexCoords; i++)
-            mesh.texCoords[i] = readPoint(root);
+        mesh.texCoordData = new float[2 * mesh.numTexCoords];
+        reader.readFloats(mesh.texCoordData);
+        root.bytesRead += 4 * mesh.texCoordData.length;
     }
 
 //    // Verified
@@ -534,17 +532,22 @@ public class MaxLoader implements MaxConstants, iLoader {
                 throw new java.lang.RuntimeException("Number of vertices is Negative: " +object.numOfVerts);
             }            
 
-            object.vertices = new Vec4[object.numOfVerts];
+            object.vertexData = new float[3 * object.numOfVerts];
+            reader.readFloats(object.vertexData);
+            previousChunk.bytesRead += 4 * object.vertexData.length;
+            
             // Create a Bounds instance for this object
             //object.bounds = new Bounds();
             for (int i=0; i<object.numOfVerts; i++) {
-                object.vertices[i] = readVertex(previousChunk); 
+                float x = object.vertexData[3*i];
+                float y = object.vertexData[3*i+1];
+                float z = object.vertexData[3*i+2];
 
                 // Calculate the bounds for this current object
-                object.bounds.calc(object.vertices[i]);
+                object.bounds.calc(x, y, z);
                 
                 // Calculate the bounds for the entire model
-                bounds.calc(object.vertices[i]);
+                bounds.calc(x, y, z);
             }
             
             // Calculate the center of the model
@@ -596,21 +599,20 @@ public class MaxLoader implements MaxConstants, iLoader {
         
         object.numOfFaces = readShort(root);
         
-        object.faces = new Face[object.numOfFaces];
-        for (int i=0; i<object.numOfFaces; i++) {
-            object.faces[i] = new Face(3);
-            object.faces[i].vertIndex[0] = readShort(root);
-            object.faces[i].vertIndex[1] = readShort(root);
-            object.faces[i].vertIndex[2] = readShort(root);
-            
-            object.faces[i].coordIndex[0] = object.faces[i].vertIndex[0];
-            object.faces[i].coordIndex[1] = object.faces[i].vertIndex[1];
-            object.faces[i].coordIndex[2] = object.faces[i].vertIndex[2];
-            
-            
-            // Read in the extra face info
-            readShort(root); // Flags (?)
-        }
+        // 3DS faces are triangles, and texture coordinates (and the computed
+        // normals) are indexed the same way as the vertices
+        object.vertexIndices = new int[3 * object.numOfFaces];
+        object.texCoordIndices = object.vertexIndices;
+        
+        // Each face is 3 indices and the extra face info (flags?)
+        reader.readFaces(object.vertexIndices, object.numOfFaces);
+        root.bytesRead += 8 * object.numOfFaces;
+    }
+    
+    private void readSmoothingGroups(Mesh mesh, Chunk root) throws IOException {
+        mesh.faceSmoothingGroups = new int[mesh.numOfFaces];
+        reader.readInts(mesh.faceSmoothingGroups);
+        root.bytesRead += 4 * mesh.faceSmoothingGroups.length;
     }
     
     /**
@@ -635,105 +637,22 @@ public class MaxLoader implements MaxConstants, iLoader {
         return color;
     }
     
-    // Verified
-    private void computeNormals(Model model)
+    private void computeNormals(ModelBuilder builder)
     {
-        Vec4 vVector1 = new Vec4();
-        Vec4 vVector2 = new Vec4();
-        //Vec4 vNormal = new Vec4();
-        Vec4 vPoly[] = new Vec4[3];
-        int numObjs = model.getNumberOfMeshes();
-
-        for (int index=0; index<numObjs; index++) {
-            Mesh object = model.getMesh(index);
-
-            //Vec4 facenormals[] = new Vec4[object.numOfFaces];
-            Vec4 tempNormals[] = new Vec4[object.numOfFaces];
-            object.normals = new Vec4[object.numOfVerts];
-
-            for (int i=0; i<object.numOfFaces; i++) {
-                vPoly[0] = new Vec4(object.vertices[object.faces[i].vertIndex[0]]);
-                vPoly[1] = new Vec4(object.vertices[object.faces[i].vertIndex[1]]);
-                vPoly[2] = new Vec4(object.vertices[object.faces[i].vertIndex[2]]);
-
-                vVector1 = vPoly[1];
-                vVector2 = vPoly[2];
-                vVector1.x -= vPoly[0].x;
-                vVector1.y -= vPoly[0].y;
-                vVector1.z -= vPoly[0].z;
-                vVector2.x -= vPoly[0].x;
-                vVector2.y -= vPoly[0].y;
-                vVector2.z -= vPoly[0].z; 
-                
-                tempNormals[i] = new Vec4( vVector1.y*vVector2.z - vVector1.z*vVector2.y,
-                                           vVector1.z*vVector2.x - vVector1.x*vVector2.z,
-                                           vVector1.x*vVector2.y - vVector1.y*vVector2.x );
-            }
-
-            float vSumx = 0.0f;
-            float vSumy = 0.0f;
-            float vSumz = 0.0f;
-            int shared=0;
-
-            for (int i=0; i<object.numOfVerts; i++) {
-                vSumx = 0.0f;
-                vSumy = 0.0f;
-                vSumz = 0.0f;
-                shared=0;
-                
-                for (int j=0; j<object.numOfFaces; j++) {
-                    if (object.faces[j].vertIndex[0] == i ||
-                        object.faces[j].vertIndex[1] == i ||
-                        object.faces[j].vertIndex[2] == i)
-                    {
-                        //////// temp ////////////
-                        object.faces[j].normalIndex[0] = i;
-                        object.faces[j].normalIndex[1] = i;
-                        object.faces[j].normalIndex[2] = i;
-                        //////////////////////////
-                        
-                        
-                        // Add the vectors vSum and tempNormals
-                        vSumx += tempNormals[j].x;
-                        vSumy += tempNormals[j].y;
-                        vSumz += tempNormals[j].z;
-                        shared++;
-                    }
-                }
+        int numObjs = builder.getNumberOfMeshes();
 
-                // Divide the vector vSum by -shared
-                vSumx /= -shared;
-                vSumy /= -shared;
-                vSumz /= -shared;
-
-                object.normals[i] = new Vec4(vSumx, vSumy, vSumz);
-
-                // Normalize
-                float mag = (float)Math.sqrt(object.normals[i].x*object.normals[i].x +
-                                             object.normals[i].y*object.normals[i].y +
-                                             object.normals[i].z*object.normals[i].z);
-                
-                object.normals[i].x /= mag;
-                object.normals[i].y /= mag;
-                object.normals[i].z /= mag;
-            }
-        }
+        for (int index=0; index<numObjs; index++)
+            normalGenerator.computeNormals(builder.getMesh(index));
     }
     
     /**
      * Reads a String value from the input file.
      */
     protected String readString(Chunk c) throws IOException {
-        DataInputStream in = dataInputStream;
-        StringBuffer sb = new StringBuffer("");
-        c.bytesRead++;
-        byte ch = in.readByte();
-        while(ch != (byte)0) {
-            sb.append((char)ch);
-            c.bytesRead++;
-            ch = in.readByte();
-        }
-        return sb.toString();
+        int start = reader.getPosition();
+        String value = reader.readString();
+        c.bytesRead += reader.getPosition() - start;
+        return value;
     }
 
     /**
@@ -756,7 +675,8 @@ public class MaxLoader implements MaxConstants, iLoader {
     }
     
     private float readFloat(Chunk c) throws IOException {
-        return Float.intBitsToFloat(readInt(c));
+        c.bytesRead += 4;
+        return reader.readFloat();
     }
     
     /**
@@ -764,41 +684,28 @@ public class MaxLoader implements MaxConstants, iLoader {
      */
     protected int readUnsignedByte(Chunk c) throws IOException {
         c.bytesRead++;
-        return dataInputStream.readUnsignedByte();
+        return reader.readUnsignedByte();
     }
     
     protected int readByte(Chunk c) throws IOException {
         c.bytesRead++;
-        return dataInputStream.read() & 0xff;
+        return reader.readUnsignedByte();
     }
     
     /**
      * Reads an int (32-bit) value from the input file.
      */
     private int readInt(Chunk c) throws IOException {
-        DataInputStream in = dataInputStream;
         c.bytesRead += 4;
-        return (int)(in.read() + (in.read() << 8) + (in.read() << 16) + (in.read() << 24));
+        return reader.readInt();
     }
 
     /**
      * Reads a short (16-bit) value from the input file.
      */
     protected int readShort(Chunk c) throws IOException {
-//        c.bytesRead += 2;
-        int b1 = readByte(c);
-        int b2 = readByte(c) << 8;
-        
-        return b1 | b2;
-//        return (short)(dataInputStream.read()+(dataInputStream.read() << 8));
-    }
-    
-    private Vec4 readVertex(Chunk c) throws IOException {
-        return new Vec4(readFloat(c), readFloat(c), readFloat(c));
-    }
-    
-    private TexCoord readPoint(Chunk c) throws IOException {
-        return new TexCoord(readFloat(c), readFloat(c));
+        c.bytesRead += 2;
+        return reader.readUnsignedShort();
     }
     
 //    private static short swap(short value)
@@ -0,0 +1,434 @@
+package net.java.joglutils.model.loader;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Reduces the number of triangles of an indexed triangle mesh by quadric
+ * error edge collapse (Garland and Heckbert, "Surface Simplification Using
+ * Quadric Error Metrics").
+ * <p>
+ * Each vertex accumulates the planes of the triangles around it in a quadric,
+ * and edges are collapsed in order of the squared distance of the surviving
+ * vertex to the planes of both end points. Collapses always move one end
+ * point onto the other (half edge collapse), so no new vertices are created
+ * and the simplified triangles index the original vertex arrays: texture
+ * coordinates, normals and colors remain valid and can be shared between the
+ * levels of detail of a mesh.
+ * <p>
+ * Vertices are welded by position for the purpose of finding edges, so that
+ * vertices split at texture or normal seams don't stop the collapses. Open
+ * borders are preserved by adding heavily weighted planes perpendicular to
+ * the border edges, and collapses that would flip a triangle are rejected.
+ */
+public class MeshSimplifier {
+    /** Weight of the planes that keep open borders in place */
+    private static final double BORDER_WEIGHT = 1000;
+
+    /**
+     * Simplify an indexed triangle mesh.
+     *
+     * @param positions       vertex positions, 3 floats per vertex
+     * @param indices         triangle indices into the vertices, 3 per triangle
+     * @param targetTriangles number of triangles to reduce the mesh to
+     * @return indices of the simplified triangles, referencing the same
+     *         vertices; a copy of the input if it already has no more than
+     *         the target number of triangles. Simplification stops early if
+     *         no more edges can be collapsed.
+     */
+    public static int[] simplify(float[] positions, int[] indices, int targetTriangles) {
+        if (indices.length / 3 <= targetTriangles) {
+            return indices.clone();
+        }
+        return new MeshSimplifier(positions, indices).simplify(Math.max(targetTriangles, 1));
+    }
+
+    /** Candidate collapse of welded vertex <code>from</code> onto <code>to</code> */
+    private static class Collapse implements Comparable<Collapse> {
+        final double cost;
+        final int from;
+        final int to;
+        final int fromVersion;
+        final int toVersion;
+
+        Collapse(double cost, int from, int to, int fromVersion, int toVersion) {
+            this.cost = cost;
+            this.from = from;
+            this.to = to;
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+        }
+
+        public int compareTo(Collapse o) {
+            return Double.compare(cost, o.cost);
+        }
+    }
+
+    private final int[] triangles;
+    private final int triangleCount;
+    private final boolean[] removed;
+
+    // welded vertices
+    private final int[] weld;
+    private final int[] representative;
+    private final float[] weldedPositions;
+    private final double[] quadrics;
+    private final int[] versions;
+    private final boolean[] collapsed;
+    private final int[][] vertexTriangles;
+    private final int[] vertexTriangleCounts;
+
+    // replacement for an original vertex when its welded vertex is collapsed
+    private final int[] replacements;
+
+    private final PriorityQueue<Collapse> queue = new PriorityQueue<Collapse>();
+
+    private MeshSimplifier(float[] positions, int[] indices) {
+        triangles = indices.clone();
+        triangleCount = indices.length / 3;
+        removed = new boolean[triangleCount];
+
+        int vertexCount = positions.length / 3;
+        weld = new int[vertexCount];
+        replacements = new int[vertexCount];
+        Arrays.fill(replacements, -1);
+
+        Map<Position, Integer> welded = new HashMap<Position, Integer>();
+        int weldedCount = 0;
+        int[] firstVertex = new int[vertexCount];
+        for (int i = 0; i < vertexCount; i++) {
+            Position key = new Position(positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2]);
+            Integer id = welded.get(key);
+            if (id == null) {
+                id = weldedCount;
+                welded.put(key, id);
+                firstVertex[weldedCount++] = i;
+            }
+            weld[i] = id;
+        }
+
+        representative = Arrays.copyOf(firstVertex, weldedCount);
+        weldedPositions = new float[weldedCount * 3];
+        for (int i = 0; i < weldedCount; i++) {
+            System.arraycopy(positions, representative[i] * 3, weldedPositions, i * 3, 3);
+        }
+        quadrics = new double[weldedCount * 10];
+        versions = new int[weldedCount];
+        collapsed = new boolean[weldedCount];
+
+        vertexTriangleCounts = new int[weldedCount];
+        for (int i = 0; i < triangleCount * 3; i++) {
+            vertexTriangleCounts[weld[triangles[i]]]++;
+        }
+        vertexTriangles = new int[weldedCount][];
+        for (int i = 0; i < weldedCount; i++) {
+            vertexTriangles[i] = new int[Math.max(vertexTriangleCounts[i], 4)];
+            vertexTriangleCounts[i] = 0;
+        }
+        for (int t = 0; t < triangleCount; t++) {
+            for (int c = 0; c < 3; c++) {
+                addTriangle(weld[triangles[t * 3 + c]], t);
+            }
+        }
+    }
+
+    private int[] simplify(int targetTriangles) {
+        int remaining = triangleCount;
+        for (int t = 0; t < triangleCount; t++) {
+            int a = weld[triangles[t * 3]];
+            int b = weld[triangles[t * 3 + 1]];
+            int c = weld[triangles[t * 3 + 2]];
+            if (a == b || b == c || c == a) {
+                removed[t] = true;
+                remaining--;
+                continue;
+            }
+            addTriangleQuadric(a, b, c);
+        }
+        addBorderQuadrics();
+
+        for (int v = 0; v < vertexTriangles.length; v++) {
+            queueNeighbourCollapses(v, true);
+        }
+
+        while (remaining > targetTriangles && !queue.isEmpty()) {
+            Collapse collapse = queue.poll();
+            if (collapsed[collapse.from] || collapsed[collapse.to] || versions[collapse.from] != collapse.fromVersion
+                    || versions[collapse.to] != collapse.toVersion) {
+                continue;
+            }
+            if (flipsTriangle(collapse.from, collapse.to)) {
+                continue;
+            }
+            remaining -= collapse(collapse.from, collapse.to);
+            queueNeighbourCollapses(collapse.to, false);
+        }
+
+        int[] result = new int[remaining * 3];
+        int count = 0;
+        for (int t = 0; t < triangleCount; t++) {
+            if (!removed[t]) {
+                System.arraycopy(triangles, t * 3, result, count, 3);
+                count += 3;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    private void addTriangle(int vertex, int triangle) {
+        int[] list = vertexTriangles[vertex];
+        int count = vertexTriangleCounts[vertex];
+        if (count == list.length) {
+            list = vertexTriangles[vertex] = Arrays.copyOf(list, count * 2);
+        }
+        list[count] = triangle;
+        vertexTriangleCounts[vertex] = count + 1;
+    }
+
+    private void addTriangleQuadric(int a, int b, int c) {
+        double[] n = normal(a, b, c);
+        double length = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+        if (length == 0) {
+            return;
+        }
+        double nx = n[0] / length, ny = n[1] / length, nz = n[2] / length;
+        double d = -(nx * weldedPositions[a * 3] + ny * weldedPositions[a * 3 + 1] + nz * weldedPositions[a * 3 + 2]);
+        // weight by area, so that small triangles don't dominate
+        double weight = length * 0.5;
+        addPlane(a, nx, ny, nz, d, weight);
+        addPlane(b, nx, ny, nz, d, weight);
+        addPlane(c, nx, ny, nz, d, weight);
+    }
+
+    /**
+     * Add a plane perpendicular to each border edge (an edge used by only one
+     * triangle) to the quadrics of the edge's end points.
+     */
+    private void addBorderQuadrics() {
+        Map<Long, Integer> edgeTriangles = new HashMap<Long, Integer>();
+        Map<Long, Integer> edgeCounts = new HashMap<Long, Integer>();
+        for (int t = 0; t < triangleCount; t++) {
+            if (removed[t]) {
+                continue;
+            }
+            for (int c = 0; c < 3; c++) {
+                int a = weld[triangles[t * 3 + c]];
+                int b = weld[triangles[t * 3 + (c + 1) % 3]];
+                Long key = edgeKey(a, b);
+                Integer count = edgeCounts.get(key);
+                edgeCounts.put(key, count == null ? 1 : count + 1);
+                edgeTriangles.put(key, t);
+            }
+        }
+
+        for (Map.Entry<Long, Integer> entry : edgeCounts.entrySet()) {
+            if (entry.getValue() != 1) {
+                continue;
+            }
+            int a = (int) (entry.getKey() >>> 32);
+            int b = (int) (entry.getKey() & 0xffffffffL);
+            int t = edgeTriangles.get(entry.getKey());
+            double[] n = normal(weld[triangles[t * 3]], weld[triangles[t * 3 + 1]], weld[triangles[t * 3 + 2]]);
+
+            double ex = weldedPositions[b * 3] - weldedPositions[a * 3];
+            double ey = weldedPositions[b * 3 + 1] - weldedPositions[a * 3 + 1];
+            double ez = weldedPositions[b * 3 + 2] - weldedPositions[a * 3 + 2];
+            double px = ey * n[2] - ez * n[1];
+            double py = ez * n[0] - ex * n[2];
+            double pz = ex * n[1] - ey * n[0];
+            double length = Math.sqrt(px * px + py * py + pz * pz);
+            if (length == 0) {
+                continue;
+            }
+            px /= length;
+            py /= length;
+            pz /= length;
+            double d = -(px * weldedPositions[a * 3] + py * weldedPositions[a * 3 + 1] + pz * weldedPositions[a * 3 + 2]);
+            double weight = BORDER_WEIGHT * (ex * ex + ey * ey + ez * ez);
+            addPlane(a, px, py, pz, d, weight);
+            addPlane(b, px, py, pz, d, weight);
+        }
+    }
+
+    private static Long edgeKey(int a, int b) {
+        return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+    }
+
+    /**
+     * Add the quadric of the plane <code>ax + by + cz + d = 0</code> to a
+     * vertex. The symmetric 4x4 matrix is stored as its upper triangle.
+     */
+    private void addPlane(int vertex, double a, double b, double c, double d, double weight) {
+        int q = vertex * 10;
+        quadrics[q] += weight * a * a;
+        quadrics[q + 1] += weight * a * b;
+        quadrics[q + 2] += weight * a * c;
+        quadrics[q + 3] += weight * a * d;
+        quadrics[q + 4] += weight * b * b;
+        quadrics[q + 5] += weight * b * c;
+        quadrics[q + 6] += weight * b * d;
+        quadrics[q + 7] += weight * c * c;
+        quadrics[q + 8] += weight * c * d;
+        quadrics[q + 9] += weight * d * d;
+    }
+
+    /**
+     * @return error of moving both vertices to the position of
+     *         <code>at</code>, using the sum of their quadrics
+     */
+    private double error(int v1, int v2, int at) {
+        double x = weldedPositions[at * 3], y = weldedPositions[at * 3 + 1], z = weldedPositions[at * 3 + 2];
+        int q1 = v1 * 10, q2 = v2 * 10;
+        double[] q = quadrics;
+        return (q[q1] + q[q2]) * x * x + 2 * (q[q1 + 1] + q[q2 + 1]) * x * y + 2 * (q[q1 + 2] + q[q2 + 2]) * x * z
+                + 2 * (q[q1 + 3] + q[q2 + 3]) * x + (q[q1 + 4] + q[q2 + 4]) * y * y + 2 * (q[q1 + 5] + q[q2 + 5]) * y * z
+                + 2 * (q[q1 + 6] + q[q2 + 6]) * y + (q[q1 + 7] + q[q2 + 7]) * z * z + 2 * (q[q1 + 8] + q[q2 + 8]) * z
+                + (q[q1 + 9] + q[q2 + 9]);
+    }
+
+    /**
+     * Queue the cheapest direction of the collapse of each edge around a
+     * vertex. During the initial pass each edge is only queued once.
+     */
+    private void queueNeighbourCollapses(int v, boolean initial) {
+        int[] list = vertexTriangles[v];
+        for (int i = 0; i < vertexTriangleCounts[v]; i++) {
+            int t = list[i];
+            if (removed[t]) {
+                continue;
+            }
+            for (int c = 0; c < 3; c++) {
+                int w = weld[triangles[t * 3 + c]];
+                if (w == v || (initial && w < v)) {
+                    continue;
+                }
+                double toW = error(v, w, w);
+                double toV = error(v, w, v);
+                if (toW <= toV) {
+                    queue.add(new Collapse(toW, v, w, versions[v], versions[w]));
+                } else {
+                    queue.add(new Collapse(toV, w, v, versions[w], versions[v]));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if moving <code>from</code> onto <code>to</code> would
+     *         flip any of the triangles that survive the collapse
+     */
+    private boolean flipsTriangle(int from, int to) {
+        int[] list = vertexTriangles[from];
+        for (int i = 0; i < vertexTriangleCounts[from]; i++) {
+            int t = list[i];
+            if (removed[t]) {
+                continue;
+            }
+            int a = weld[triangles[t * 3]];
+            int b = weld[triangles[t * 3 + 1]];
+            int c = weld[triangles[t * 3 + 2]];
+            if (a == to || b == to || c == to) {
+                continue;
+            }
+            double[] before = normal(a, b, c);
+            double[] after = normal(a == from ? to : a, b == from ? to : b, c == from ? to : c);
+            if (before[0] * after[0] + before[1] * after[1] + before[2] * after[2] <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collapse welded vertex <code>from</code> onto <code>to</code>.
+     *
+     * @return number of triangles removed
+     */
+    private int collapse(int from, int to) {
+        int[] list = vertexTriangles[from];
+        int count = vertexTriangleCounts[from];
+
+        // the triangles sharing the edge disappear; their corners tell which
+        // original vertex at 'to' continues each original vertex at 'from',
+        // so that triangles stay on the same side of texture seams
+        int removedCount = 0;
+        for (int i = 0; i < count; i++) {
+            int t = list[i];
+            if (removed[t]) {
+                continue;
+            }
+            int fromCorner = -1, toCorner = -1;
+            for (int c = 0; c < 3; c++) {
+                int w = weld[triangles[t * 3 + c]];
+                if (w == from) {
+                    fromCorner = triangles[t * 3 + c];
+                } else if (w == to) {
+                    toCorner = triangles[t * 3 + c];
+                }
+            }
+            if (toCorner >= 0) {
+                replacements[fromCorner] = toCorner;
+                removed[t] = true;
+                removedCount++;
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            int t = list[i];
+            if (removed[t]) {
+                continue;
+            }
+            for (int c = 0; c < 3; c++) {
+                int vertex = triangles[t * 3 + c];
+                if (weld[vertex] == from) {
+                    int replacement = replacements[vertex];
+                    triangles[t * 3 + c] =
+                            replacement >= 0 && weld[replacement] == to ? replacement : representative[to];
+                }
+            }
+            addTriangle(to, t);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            quadrics[to * 10 + i] += quadrics[from * 10 + i];
+        }
+        collapsed[from] = true;
+        vertexTriangleCounts[from] = 0;
+        versions[to]++;
+        return removedCount;
+    }
+
+    private double[] normal(int a, int b, int c) {
+        float[] p = weldedPositions;
+        double ux = p[b * 3] - p[a * 3], uy = p[b * 3 + 1] - p[a * 3 + 1], uz = p[b * 3 + 2] - p[a * 3 + 2];
+        double vx = p[c * 3] - p[a * 3], vy = p[c * 3 + 1] - p[a * 3 + 1], vz = p[c * 3 + 2] - p[a * 3 + 2];
+        return new double[] { uy * vz - uz * vy, uz * vx - ux * vz, ux * vy - uy * vx };
+    }
+
+    /** Key for welding vertices with exactly the same position */
+    private static class Position {
+        final float x, y, z;
+
+        Position(float x, float y, float z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Position)) {
+                return false;
+            }
+            Position p = (Position) obj;
+            return Float.compare(x, p.x) == 0 && Float.compare(y, p.y) == 0 && Float.compare(z, p.z) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return (Float.floatToIntBits(x) * 31 + Float.floatToIntBits(y)) * 31 + Float.floatToIntBits(z);
+        }
+    }
+}
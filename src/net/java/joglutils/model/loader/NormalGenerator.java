@@ -0,0 +1,395 @@
+/*
+ * NormalGenerator.java
+ *
+ * To change this template, choose Tools | Template Manager
+ * and open the template in the editor.
+ */
+
+package net.java.joglutils.model.loader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import net.java.joglutils.model.geometry.Mesh;
+
+/**
+ * Computes vertex normals for the packed triangle data of a {@link Mesh}.
+ * <p>
+ * The faces around each vertex are found through a vertex to corner
+ * adjacency table built with a counting sort, so the work is linear in the
+ * number of vertices and faces. Meshes with at least
+ * {@link #getParallelThreshold()} faces are processed on several threads.
+ * <p>
+ * By default a vertex normal is the sum of the (area weighted) normals of the
+ * faces sharing the vertex, and there is one normal per vertex. Optionally the
+ * face normals can be weighted by the angle of the face at the vertex, and the
+ * smoothing groups of the faces can be honoured, in which case a vertex gets a
+ * separate normal for each smoothing group it is part of.
+ */
+public class NormalGenerator {
+    /** Default number of faces above which normals are computed in parallel */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 64 * 1024;
+
+    private boolean angleWeighted = false;
+    private boolean useSmoothingGroups = false;
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    /** Threads computing the normals of large meshes, see {@link #getExecutor()} */
+    private static ExecutorService pool;
+
+    public boolean isAngleWeighted() {
+        return angleWeighted;
+    }
+
+    /**
+     * @param angleWeighted true to weight face normals by the angle of the
+     *                      face at the vertex instead of by the face area
+     */
+    public void setAngleWeighted(boolean angleWeighted) {
+        this.angleWeighted = angleWeighted;
+    }
+
+    public boolean isUsingSmoothingGroups() {
+        return useSmoothingGroups;
+    }
+
+    /**
+     * @param useSmoothingGroups true to only average faces that share a
+     *                           smoothing group, for meshes that have them
+     */
+    public void setUseSmoothingGroups(boolean useSmoothingGroups) {
+        this.useSmoothingGroups = useSmoothingGroups;
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * @param parallelThreshold Number of faces from which the normals are
+     *                          computed on several threads
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Fills the normalData and normalIndices of a triangle mesh.
+     *
+     * @param mesh Mesh with vertexData and vertexIndices set
+     * @throws IllegalArgumentException if the mesh has non-triangular faces
+     */
+    public void computeNormals(final Mesh mesh) {
+        if (mesh.faceSizes != null)
+            throw new IllegalArgumentException("Normals can only be generated for triangle meshes: " + mesh.name);
+
+        final int numFaces = mesh.numOfFaces;
+        final int numVerts = mesh.numOfVerts;
+        final int indices[] = mesh.vertexIndices;
+        final float vertices[] = mesh.vertexData;
+        final int groups[] = useSmoothingGroups ? mesh.faceSmoothingGroups : null;
+
+        final float faceNormals[] = new float[3 * numFaces];
+        final float cornerWeights[] = angleWeighted ? new float[3 * numFaces] : null;
+
+        ExecutorService executor = null;
+        if (numFaces >= parallelThreshold && Runtime.getRuntime().availableProcessors() > 1)
+            executor = getExecutor();
+
+        forEach(executor, numFaces, new Range() {
+            public void run(int from, int to) {
+                computeFaceNormals(vertices, indices, faceNormals, cornerWeights, from, to);
+            }
+        });
+
+        // Build the list of corners touching each vertex: corners[first[v]]
+        // to corners[first[v+1]-1], in face order
+        final int first[] = new int[numVerts + 1];
+        for (int c = 0; c < 3 * numFaces; c++) {
+            if (!isRepeatedCorner(indices, c))
+                first[indices[c] + 1]++;
+        }
+        for (int v = 0; v < numVerts; v++)
+            first[v + 1] += first[v];
+
+        final int corners[] = new int[first[numVerts]];
+        int next[] = new int[numVerts];
+        System.arraycopy(first, 0, next, 0, numVerts);
+        for (int c = 0; c < 3 * numFaces; c++) {
+            if (!isRepeatedCorner(indices, c))
+                corners[next[indices[c]]++] = c;
+        }
+        next = null;
+
+        if (groups == null) {
+            final float normals[] = new float[3 * numVerts];
+            forEach(executor, numVerts, new Range() {
+                public void run(int from, int to) {
+                    for (int v = from; v < to; v++)
+                        sumNormal(faceNormals, cornerWeights, corners, first[v], first[v + 1], null, 0, normals, v);
+                }
+            });
+
+            mesh.normalData = normals;
+            mesh.normalIndices = indices;
+        } else {
+            // One normal per distinct smoothing group around a vertex, so
+            // count them first to find where each vertex's normals start
+            final int normalStart[] = new int[numVerts + 1];
+            forEach(executor, numVerts, new Range() {
+                public void run(int from, int to) {
+                    int masks[] = new int[8];
+                    for (int v = from; v < to; v++)
+                        normalStart[v + 1] = smoothVertex(groups, corners, first[v], first[v + 1], masks,
+                                null, null, null, null, 0);
+                }
+            });
+            for (int v = 0; v < numVerts; v++)
+                normalStart[v + 1] += normalStart[v];
+
+            final float normals[] = new float[3 * normalStart[numVerts]];
+            final int normalIndices[] = new int[3 * numFaces];
+            forEach(executor, numVerts, new Range() {
+                public void run(int from, int to) {
+                    int masks[] = new int[8];
+                    for (int v = from; v < to; v++)
+                        smoothVertex(groups, corners, first[v], first[v + 1], masks,
+                                faceNormals, cornerWeights, normals, normalIndices, normalStart[v]);
+                }
+            });
+
+            // Corners that are repeated within a face use the normal of the
+            // first corner with the same vertex
+            for (int c = 0; c < 3 * numFaces; c++) {
+                if (isRepeatedCorner(indices, c))
+                    normalIndices[c] = normalIndices[indices[c - 1] == indices[c] ? c - 1 : c - 2];
+            }
+
+            mesh.normalData = normals;
+            mesh.normalIndices = normalIndices;
+        }
+    }
+
+    /**
+     * Computes the (unnormalised) normal of each face, and the weight of each
+     * corner if the normals are angle weighted.
+     */
+    private static void computeFaceNormals(float vertices[], int indices[], float faceNormals[],
+            float cornerWeights[], int from, int to) {
+        for (int i = from; i < to; i++) {
+            int p0 = 3 * indices[3*i];
+            int p1 = 3 * indices[3*i+1];
+            int p2 = 3 * indices[3*i+2];
+
+            float v1x = vertices[p1] - vertices[p0];
+            float v1y = vertices[p1+1] - vertices[p0+1];
+            float v1z = vertices[p1+2] - vertices[p0+2];
+            float v2x = vertices[p2] - vertices[p0];
+            float v2y = vertices[p2+1] - vertices[p0+1];
+            float v2z = vertices[p2+2] - vertices[p0+2];
+
+            float nx = v1y*v2z - v1z*v2y;
+            float ny = v1z*v2x - v1x*v2z;
+            float nz = v1x*v2y - v1y*v2x;
+            faceNormals[3*i] = nx;
+            faceNormals[3*i+1] = ny;
+            faceNormals[3*i+2] = nz;
+
+            if (cornerWeights != null) {
+                // angle at each corner, divided by the face normal length so
+                // that the weighted normal has the angle as its length
+                float length = (float)Math.sqrt(nx*nx + ny*ny + nz*nz);
+                float v3x = vertices[p2] - vertices[p1];
+                float v3y = vertices[p2+1] - vertices[p1+1];
+                float v3z = vertices[p2+2] - vertices[p1+2];
+
+                float a0 = angle(v1x, v1y, v1z, v2x, v2y, v2z);
+                float a1 = angle(-v1x, -v1y, -v1z, v3x, v3y, v3z);
+                float a2 = (float)Math.PI - a0 - a1;
+
+                cornerWeights[3*i] = length > 0 ? a0 / length : 0;
+                cornerWeights[3*i+1] = length > 0 ? a1 / length : 0;
+                cornerWeights[3*i+2] = length > 0 ? Math.max(a2, 0) / length : 0;
+            }
+        }
+    }
+
+    private static float angle(float ax, float ay, float az, float bx, float by, float bz) {
+        float la = (float)Math.sqrt(ax*ax + ay*ay + az*az);
+        float lb = (float)Math.sqrt(bx*bx + by*by + bz*bz);
+        if (la == 0 || lb == 0)
+            return 0;
+
+        float cos = (ax*bx + ay*by + az*bz) / (la * lb);
+        return (float)Math.acos(Math.max(-1, Math.min(1, cos)));
+    }
+
+    /**
+     * A degenerate face can list the same vertex twice; only its first
+     * occurrence counts towards the vertex normal.
+     */
+    private static boolean isRepeatedCorner(int indices[], int c) {
+        int k = c % 3;
+        return (k > 0 && indices[c - 1] == indices[c]) || (k == 2 && indices[c - 2] == indices[c]);
+    }
+
+    /**
+     * Sums the normals of the faces of the given corners, optionally limited
+     * to the faces sharing a smoothing group with <code>mask</code>, and
+     * stores the normalised result at <code>normals[3*n]</code>.
+     */
+    private static void sumNormal(float faceNormals[], float cornerWeights[], int corners[], int from, int to,
+            int groups[], int mask, float normals[], int n) {
+        float vSumx = 0.0f;
+        float vSumy = 0.0f;
+        float vSumz = 0.0f;
+        int shared = 0;
+
+        for (int i = from; i < to; i++) {
+            int c = corners[i];
+            int f = c / 3;
+            if (groups != null && (groups[f] & mask) == 0)
+                continue;
+
+            float w = cornerWeights == null ? 1.0f : cornerWeights[c];
+            vSumx += w * faceNormals[3*f];
+            vSumy += w * faceNormals[3*f+1];
+            vSumz += w * faceNormals[3*f+2];
+            shared++;
+        }
+
+        if (shared == 0)
+            return;
+
+        // Divide the vector vSum by -shared
+        vSumx /= -shared;
+        vSumy /= -shared;
+        vSumz /= -shared;
+
+        // Normalize
+        float mag = (float)Math.sqrt(vSumx*vSumx + vSumy*vSumy + vSumz*vSumz);
+        if (mag == 0)
+            return;
+
+        normals[3*n] = vSumx / mag;
+        normals[3*n+1] = vSumy / mag;
+        normals[3*n+2] = vSumz / mag;
+    }
+
+    /**
+     * Creates the normals of one vertex when smoothing groups are used: one
+     * for each distinct smoothing group mask of the faces around the vertex,
+     * and one for each face without a smoothing group. When
+     * <code>normals</code> is null only the number of normals is computed.
+     *
+     * @return The number of normals for the vertex
+     */
+    private static int smoothVertex(int groups[], int corners[], int from, int to, int masks[],
+            float faceNormals[], float cornerWeights[], float normals[], int normalIndices[], int start) {
+        int numMasks = 0;
+        int count = 0;
+
+        for (int i = from; i < to; i++) {
+            int c = corners[i];
+            int mask = groups[c / 3];
+
+            if (mask == 0) {
+                // faceted: the face's own normal
+                if (normals != null) {
+                    sumNormal(faceNormals, cornerWeights, corners, i, i + 1, null, 0, normals, start + count);
+                    normalIndices[c] = start + count;
+                }
+                count++;
+                continue;
+            }
+
+            int m = 0;
+            while (m < numMasks && masks[2*m] != mask)
+                m++;
+
+            if (m == numMasks) {
+                if (2 * numMasks == masks.length) {
+                    int grown[] = new int[masks.length * 2];
+                    System.arraycopy(masks, 0, grown, 0, masks.length);
+                    masks = grown;
+                }
+                masks[2*m] = mask;
+                masks[2*m+1] = start + count;
+                numMasks++;
+
+                if (normals != null)
+                    sumNormal(faceNormals, cornerWeights, corners, from, to, groups, mask, normals, start + count);
+                count++;
+            }
+
+            if (normalIndices != null)
+                normalIndices[c] = masks[2*m+1];
+        }
+
+        return count;
+    }
+
+    private interface Range {
+        void run(int from, int to);
+    }
+
+    /**
+     * Returns the pool shared by all generators for large meshes, creating it
+     * on first use. Its threads are daemons, so they don't keep the
+     * application running.
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private int count = 0;
+
+                public synchronized Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "NormalGenerator " + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * Runs the range [0, count) either on the calling thread or split into
+     * chunks on the executor.
+     */
+    private static void forEach(ExecutorService executor, int count, final Range range) {
+        if (executor == null) {
+            range.run(0, count);
+            return;
+        }
+
+        int chunks = 4 * Runtime.getRuntime().availableProcessors();
+        int chunkSize = (count + chunks - 1) / chunks;
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(chunks);
+        for (int start = 0; start < count; start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(count, start + chunkSize);
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    range.run(from, to);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Object> future : executor.invokeAll(tasks))
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while computing normals", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to compute normals", e.getCause());
+        }
+    }
+}
@@ -17,15 +17,13 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.Vector;
 import net.java.joglutils.model.ModelLoadException;
 import net.java.joglutils.model.ResourceRetriever;
 import net.java.joglutils.model.geometry.Bounds;
-import net.java.joglutils.model.geometry.Face;
 import net.java.joglutils.model.geometry.Material;
 import net.java.joglutils.model.geometry.Mesh;
 import net.java.joglutils.model.geometry.Model;
-import net.java.joglutils.model.geometry.TexCoord;
+import net.java.joglutils.model.geometry.ModelBuilder;
 import net.java.joglutils.model.geometry.Vec4;
 
 /**
@@ -49,7 +47,7 @@ public class WaveFrontLoader implements iLoader {
     
     private DataInputStream dataInputStream;
     // the model
-    private Model model = null;
+    private ModelBuilder builder = null;
     /** Bounds of the model */
     private Bounds bounds = new Bounds();
     /** Center of the model */
@@ -62,7 +60,7 @@ public class WaveFrontLoader implements iLoader {
 
     int numComments = 0;
     public Model load(String path) throws ModelLoadException {
-        model = new Model(path);
+        builder = new ModelBuilder(path);
         Mesh mesh = null;
         
         baseDir = "";
@@ -73,7 +71,7 @@ public class WaveFrontLoader implements iLoader {
         
         InputStream stream = null;
         try {
-            stream = ResourceRetriever.getResourceAsInputStream(model.getSource());
+            stream = ResourceRetriever.getResourceAsInputStream(builder.getSource());
             if (stream == null) {
                 throw new ModelLoadException("Stream is null");
             }
@@ -83,114 +81,121 @@ public class WaveFrontLoader implements iLoader {
         
         try {
             // Open a file handle and read the models data
-            BufferedReader br = new BufferedReader(new InputStreamReader(stream));
-            String  line = null;
-            while((line = br.readLine()) != null) {
-                if (lineIs(COMMENT, line)) {
+            WaveFrontTokenizer tokenizer = new WaveFrontTokenizer(new InputStreamReader(stream));
+            tokenizer.nextLine();
+            while (!tokenizer.atEnd()) {
+                if (tokenizer.lineIs(COMMENT)) {
                     // ignore comments
                     numComments++;
-                    continue;
                 }
                 
-                if (line.length() == 0) {
+                else if (tokenizer.isEmptyLine()) {
                     // igonore empty lines
-                    continue;
                 }
                 
-                if (lineIs(GROUP, line)) {
+                else if (tokenizer.lineIs(GROUP)) {
                     if (mesh == null) {
                         mesh = new Mesh();
                     }
                     
-                    mesh.name = parseName(line);
+                    String name = parseName(tokenizer);
+                    if (name != null)
+                        mesh.name = name;
                 }
                 
-                if (lineIs(OBJECT, line)) {
+                else if (tokenizer.lineIs(OBJECT)) {
                     
                 }
                 
-                if (lineIs(VERTEX_DATA, line)) {
+                // the block readers below consume every line of their block and
+                // stop on the first line that does not belong to it
+                else if (tokenizer.lineIs(VERTEX_DATA)) {
                     if (mesh == null)
                         mesh = new Mesh();
                     
-                    mesh.vertices = getPoints(VERTEX_DATA, line, br);
-                    mesh.numOfVerts = mesh.vertices.length;
+                    mesh.vertexData = getPoints(VERTEX_DATA, tokenizer);
+                    mesh.numOfVerts = mesh.vertexData.length / 3;
+                    continue;
                 }
                 
-                if (lineIs(TEXTURE_DATA, line)) {
+                else if (tokenizer.lineIs(TEXTURE_DATA)) {
                     if (mesh == null)
                         mesh = new Mesh();
                     
-                    mesh.texCoords = getTexCoords(TEXTURE_DATA, line, br);
+                    mesh.texCoordData = getTexCoords(TEXTURE_DATA, tokenizer);
                     mesh.hasTexture = true;
-                    mesh.numTexCoords = mesh.texCoords.length;
+                    mesh.numTexCoords = mesh.texCoordData.length / 2;
+                    continue;
                 }
                 
-                if (lineIs(NORMAL_DATA, line)) {
+                else if (tokenizer.lineIs(NORMAL_DATA)) {
                     if (mesh == null)
                         mesh = new Mesh();
                     
-                    mesh.normals = getPoints(NORMAL_DATA, line, br);
+                    mesh.normalData = getPoints(NORMAL_DATA, tokenizer);
+                    continue;
                 }
                 
-                if (lineIs(FACE_DATA, line)) {
+                else if (tokenizer.lineIs(FACE_DATA)) {
                     if (mesh == null)
                         mesh = new Mesh();
                     
-                    mesh.faces = getFaces(line, mesh, br);
-                    mesh.numOfFaces = mesh.faces.length;
+                    getFaces(tokenizer, mesh);
                     
-                    model.addMesh(mesh);
+                    builder.addMesh(mesh);
                     mesh = new Mesh();
+                    continue;
                 }
                 
-                if (lineIs("mtllib ", line)){
-                    processMaterialLib(line);
+                else if (tokenizer.lineIs("mtllib ")) {
+                    processMaterialLib(tokenizer);
                 }
                 
-                if (lineIs("usemtl ", line)) {
-                    processMaterialType(line, mesh);
+                else if (tokenizer.lineIs("usemtl ")) {
+                    processMaterialType(tokenizer, mesh);
                 }
+                
+                tokenizer.nextLine();
             }
         }
         catch (IOException e) {
             throw new ModelLoadException("Failed to find or read OBJ: " + stream);
         }
-        model.addMesh(mesh);
+        catch (NumberFormatException e) {
+            throw new ModelLoadException("Failed to parse OBJ: " + e.getMessage());
+        }
+        builder.addMesh(mesh);
         mesh = null;
         
         System.out.println(this.bounds.toString());
-        model.setBounds(this.bounds);
-        model.setCenterPoint(this.center);
+        builder.setBounds(this.bounds);
+        builder.setCenterPoint(this.center);
         
-        return model;
+        return builder.build();
     }
     
-    private boolean lineIs(String type, String line) {
-        return line.startsWith(type);
-    }
-    
-    private Vec4[] getPoints(String prefix, String currLine, BufferedReader br) throws IOException {
-        Vector<Vec4> points = new Vector<Vec4>();
+    private float[] getPoints(String prefix, WaveFrontTokenizer tokenizer) throws IOException {
+        float points[] = new float[3 * 1024];
+        int count = 0;
         boolean isVertices = prefix.equals(VERTEX_DATA);
         
-        // we've already read in the first line (currLine)
-        // so go ahead and parse it
-        points.add(parsePoint(currLine));
-        
-        // parse through the rest of the points
-        String line = null;
-        while((line = br.readLine()) != null) {
-            if (!lineIs(prefix, line))
-                break;
+        // parse through all the points, starting with the current line
+        do {
+            if (count == points.length)
+                points = grow(points);
             
-            Vec4 point = parsePoint(line);
+            tokenizer.skipToken();
+            float x = tokenizer.nextFloat();
+            float y = tokenizer.nextFloat();
+            float z = tokenizer.nextFloat();
             if (isVertices) {
                 // Calculate the bounds for the entire model
-                bounds.calc(point);
+                bounds.calc(x, y, z);
             }
-            points.add(point);
-        }
+            points[count++] = x;
+            points[count++] = y;
+            points[count++] = z;
+        } while (tokenizer.nextLine() && tokenizer.lineIs(prefix));
         
         if (isVertices) {
             // Calculate the center of the model
@@ -200,150 +205,158 @@ public class WaveFrontLoader implements iLoader {
         }
         
         // return the points
-        Vec4 values[] = new Vec4[points.size()];
-        return points.toArray(values);
+        return trim(points, count);
     }
     
-    private TexCoord[] getTexCoords(String prefix, String currLine, BufferedReader br) throws IOException {
-        Vector<TexCoord> texCoords = new Vector<TexCoord>();
-        
-        String s[] = currLine.split("\\s+");
-        TexCoord texCoord = new TexCoord();
-        texCoord.u = Float.parseFloat(s[1]);
-        texCoord.v = Float.parseFloat(s[2]);
-            
-        texCoords.add(texCoord);
-        
-        // parse through the rest of the points
-        String line = null;
-        while((line = br.readLine()) != null) {
-            if (!lineIs(prefix, line))
-                break;
+    private float[] getTexCoords(String prefix, WaveFrontTokenizer tokenizer) throws IOException {
+        float texCoords[] = new float[2 * 1024];
+        int count = 0;
+        
+        // parse through all the coordinates, starting with the current line
+        do {
+            if (count == texCoords.length)
+                texCoords = grow(texCoords);
             
-            s = line.split("\\s+");
-        
-            texCoord = new TexCoord();
-            texCoord.u = Float.parseFloat(s[1]);
-            texCoord.v = Float.parseFloat(s[2]);
-            
-            texCoords.add(texCoord);
-        }
+            tokenizer.skipToken();
+            texCoords[count++] = tokenizer.nextFloat();
+            texCoords[count++] = tokenizer.nextFloat();
+        } while (tokenizer.nextLine() && tokenizer.lineIs(prefix));
         
         // return the texture coordinates
-        TexCoord values[] = new TexCoord[texCoords.size()];
-        return texCoords.toArray(values);
+        return trim(texCoords, count);
     }
     
-    private Face[] getFaces(String currLine, Mesh mesh, BufferedReader br) throws IOException {
-        Vector<Face> faces = new Vector<Face>();
+    /** Packed indices of the faces being read by getFaces */
+    private int faceVertIndex[];
+    private int faceCoordIndex[];
+    private int faceNormalIndex[];
+    private int faceSizes[];
+    private int numCorners;
+    private int numFaces;
+    private boolean onlyTriangles;
+    /** Scratch space for the indices of a face vertex */
+    private int faceVertex[] = new int[3];
+    
+    private void getFaces(WaveFrontTokenizer tokenizer, Mesh mesh) throws IOException {
+        faceVertIndex = new int[3 * 1024];
+        faceCoordIndex = new int[3 * 1024];
+        faceNormalIndex = new int[3 * 1024];
+        faceSizes = new int[1024];
+        numCorners = 0;
+        numFaces = 0;
+        onlyTriangles = true;
         
-        faces.add(parseFace(currLine));
+        parseFace(tokenizer);
         
         // parse through the rest of the faces
-        String line = null;
-        while((line = br.readLine()) != null) {
-            if (lineIs(SMOOTHING_GROUP, line)) {
+        while (tokenizer.nextLine()) {
+            if (tokenizer.lineIs(SMOOTHING_GROUP)) {
                 continue;
             }
-            else if (lineIs("usemtl ", line)) {
-                processMaterialType(line, mesh);
+            else if (tokenizer.lineIs("usemtl ")) {
+                processMaterialType(tokenizer, mesh);
             }
             
-            else if (lineIs(FACE_DATA, line)) {
-                faces.add(parseFace(line));
+            else if (tokenizer.lineIs(FACE_DATA)) {
+                parseFace(tokenizer);
             }
             
             else
                 break;
         }        
         
-        // return the faces
-        Face values[] = new Face[faces.size()];
-        return faces.toArray(values);
+        // store the faces
+        mesh.numOfFaces = numFaces;
+        mesh.vertexIndices = trim(faceVertIndex, numCorners);
+        mesh.texCoordIndices = trim(faceCoordIndex, numCorners);
+        mesh.normalIndices = trim(faceNormalIndex, numCorners);
+        mesh.faceSizes = onlyTriangles ? null : trim(faceSizes, numFaces);
+        
+        faceVertIndex = faceCoordIndex = faceNormalIndex = faceSizes = null;
     }
     
-    private Face parseFace(String line) {
-        String s[] = line.split("\\s+");
-        if (line.contains("//")) { // Pattern is present if obj has no texture
-            for (int loop=1; loop < s.length; loop++) {
-                s[loop] = s[loop].replaceAll("//","/-1/"); //insert -1 for missing vt data
+    private void parseFace(WaveFrontTokenizer tokenizer) {
+        tokenizer.skipToken();
+        
+        int count = 0;
+        while (tokenizer.nextFaceVertex(faceVertex)) {
+            if (numCorners == faceVertIndex.length) {
+                faceVertIndex = grow(faceVertIndex);
+                faceCoordIndex = grow(faceCoordIndex);
+                faceNormalIndex = grow(faceNormalIndex);
             }
-        }
-        
-        int vdata[] = new int[s.length-1];
-        int vtdata[] = new int[s.length-1];
-        int vndata[] = new int[s.length-1];
-        Face face = new Face(s.length - 1);
-        
-        for (int loop = 1; loop < s.length; loop++) {
-            String s1 = s[loop];
-            String[] temp = s1.split("/");
             
-            if (temp.length > 0) { // we have vertex data
-                if (Integer.valueOf(temp[0]) < 0) {
-                    //TODO handle relative vertex data
-                }
-                else {
-                    face.vertIndex[loop-1] = Integer.valueOf(temp[0]) - 1 - this.vertexTotal;
-                    //System.out.println("found vertex index: " + face.vertIndex[loop-1]);
-                }
-            }
+            int v = faceVertex[0];
+            int vt = faceVertex[1];
+            int vn = faceVertex[2];
             
-            if (temp.length > 1) { // we have texture data
-                if(Integer.valueOf(temp[1]) < 0) {
-                    face.coordIndex[loop - 1] = 0;
-                }
-                else {
-                    face.coordIndex[loop - 1] = Integer.valueOf(temp[1]) - 1 - this.textureTotal;
-                    //System.out.println("found texture index: " + face.coordIndex[loop-1]);
-                }
+            if (v < 0) {
+                //TODO handle relative vertex data
+                faceVertIndex[numCorners] = 0;
             }
-            
-            if (temp.length > 2) { // we have normal data
-                face.normalIndex[loop-1] = Integer.valueOf(temp[2]) - 1 - this.normalTotal;
-                //System.out.println("found normal index: " + face.normalIndex[loop-1]);
+            else {
+                faceVertIndex[numCorners] = v - 1 - this.vertexTotal;
             }
+            
+            // a missing texture index (v or v//vn) maps to the first coordinate
+            faceCoordIndex[numCorners] = vt > 0 ? vt - 1 - this.textureTotal : 0;
+            faceNormalIndex[numCorners] = vn > 0 ? vn - 1 - this.normalTotal : 0;
+            numCorners++;
+            count++;
         }
         
-        return face;
+        if (numFaces == faceSizes.length)
+            faceSizes = grow(faceSizes);
+        faceSizes[numFaces++] = count;
+        if (count != 3)
+            onlyTriangles = false;
     }
     
-    private Vec4 parsePoint(String line) {
-        Vec4 point = new Vec4();
-        
-        final String s[] = line.split("\\s+");
-        
-        point.x = Float.parseFloat(s[1]);
-        point.y = Float.parseFloat(s[2]);
-        point.z = Float.parseFloat(s[3]);
-        
-        return point;
+    private static int[] grow(int values[]) {
+        int grown[] = new int[values.length * 2];
+        System.arraycopy(values, 0, grown, 0, values.length);
+        return grown;
     }
     
-    private String parseName(String line) {
-        String name;
-        
-        final String s[] = line.split("\\s+");
-        
-        name = s[1];
-        
-        return name;
+    private static float[] grow(float values[]) {
+        float grown[] = new float[values.length * 2];
+        System.arraycopy(values, 0, grown, 0, values.length);
+        return grown;
+    }
+    
+    private static int[] trim(int values[], int length) {
+        int trimmed[] = new int[length];
+        System.arraycopy(values, 0, trimmed, 0, length);
+        return trimmed;
+    }
+    
+    private static float[] trim(float values[], int length) {
+        float trimmed[] = new float[length];
+        System.arraycopy(values, 0, trimmed, 0, length);
+        return trimmed;
+    }
+    
+    private String parseName(WaveFrontTokenizer tokenizer) {
+        tokenizer.skipToken();
+        return tokenizer.nextToken();
     }
     
-    private void processMaterialLib(String mtlData) {
-        String s[] = mtlData.split("\\s+");
+    private void processMaterialLib(WaveFrontTokenizer tokenizer) {
+        tokenizer.skipToken();
+        String fileName = tokenizer.nextToken();
+        if (fileName == null)
+            return;
         
-        Material mat = new Material();
         InputStream stream = null;
         try {
-            stream = ResourceRetriever.getResourceAsInputStream(baseDir + s[1]);
+            stream = ResourceRetriever.getResourceAsInputStream(baseDir + fileName);
         } catch (IOException ex) {
             ex.printStackTrace();
         }
         
         if(stream == null) {
             try {
-                stream = new FileInputStream(baseDir + s[1]);
+                stream = new FileInputStream(baseDir + fileName);
             } catch (FileNotFoundException ex) {
                 ex.printStackTrace();
                 return;
@@ -352,16 +365,17 @@ public class WaveFrontLoader implements iLoader {
         loadMaterialFile(stream);
     }
     
-    private void processMaterialType(String line, Mesh mesh) {
-        String s[] = line.split("\\s+");
+    private void processMaterialType(WaveFrontTokenizer tokenizer, Mesh mesh) {
+        tokenizer.skipToken();
+        String name = tokenizer.nextToken();
         
         int materialID = -1;
         boolean hasTexture = false;
         
-        for(int i = 0; i < model.getNumberOfMaterials(); i++){
-            Material mat = model.getMaterial(i);
+        for(int i = 0; i < builder.getNumberOfMaterials(); i++){
+            Material mat = builder.getMaterial(i);
             
-            if(mat.strName.equals(s[1])){
+            if(mat.strName.equals(name)){
                 materialID = i;
                 if(mat.strFile != null)
                     hasTexture = true;
@@ -389,7 +403,7 @@ public class WaveFrontLoader implements iLoader {
                 
                 if(parts[0].equals("newmtl")){
                     if(mat != null)
-                        model.addMaterial(mat);
+                        builder.addMaterial(mat);
                     
                     mat = new Material();
                     mat.strName = parts[1];
@@ -422,7 +436,7 @@ public class WaveFrontLoader implements iLoader {
             }
             
             br.close();
-            model.addMaterial(mat);
+            builder.addMaterial(mat);
             
         } catch (FileNotFoundException ex) {
             ex.printStackTrace();
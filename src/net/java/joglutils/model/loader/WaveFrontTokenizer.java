@@ -0,0 +1,372 @@
+/*
+ * WaveFrontTokenizer.java
+ *
+ * To change this template, choose Tools | Template Manager
+ * and open the template in the editor.
+ */
+
+package net.java.joglutils.model.loader;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Line oriented tokenizer for Wavefront OBJ data. Lines are read into a
+ * reusable char buffer and numbers are decoded in place, so the common
+ * <code>v</code>, <code>vt</code>, <code>vn</code> and <code>f</code> lines
+ * can be parsed without creating any Strings or arrays.
+ */
+public class WaveFrontTokenizer {
+    /** Value returned by {@link #nextFaceVertex(int[])} for a missing index (OBJ indices are 1-based) */
+    public static final int NO_INDEX = 0;
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /** Exact powers of ten representable as a double */
+    private static final double POWERS_OF_TEN[] = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final Reader reader;
+    private char buffer[];
+    /** Number of valid chars in the buffer */
+    private int limit = 0;
+    /** Start of the current line */
+    private int lineStart = 0;
+    /** End of the current line (exclusive, line terminator not included) */
+    private int lineEnd = 0;
+    /** Start of the next line */
+    private int nextLineStart = 0;
+    /** Read position within the current line */
+    private int pos = 0;
+    private boolean eof = false;
+    private boolean atEnd = false;
+
+    public WaveFrontTokenizer(Reader reader) {
+        this(reader, DEFAULT_BUFFER_SIZE);
+    }
+
+    public WaveFrontTokenizer(Reader reader, int bufferSize) {
+        this.reader = reader;
+        this.buffer = new char[Math.max(bufferSize, 16)];
+    }
+
+    /**
+     * Advances to the next line of input.
+     *
+     * @return false if the end of the input has been reached
+     */
+    public boolean nextLine() throws IOException {
+        int start = nextLineStart;
+        int scan = start;
+
+        while (true) {
+            while (scan < limit) {
+                char c = buffer[scan];
+                if (c == '\n' || c == '\r') {
+                    lineStart = start;
+                    lineEnd = scan;
+                    pos = start;
+
+                    scan++;
+                    if (c == '\r') {
+                        // Swallow the '\n' of a "\r\n" pair, which may not have been read yet
+                        if (scan == limit && !eof) {
+                            int offset = compact(start);
+                            start -= offset;
+                            scan -= offset;
+                            lineStart = start;
+                            lineEnd -= offset;
+                            pos = start;
+                            fill();
+                        }
+                        if (scan < limit && buffer[scan] == '\n')
+                            scan++;
+                    }
+                    nextLineStart = scan;
+                    return true;
+                }
+                scan++;
+            }
+
+            if (eof) {
+                if (start < limit) {
+                    // Last line has no terminator
+                    lineStart = start;
+                    lineEnd = limit;
+                    pos = start;
+                    nextLineStart = limit;
+                    return true;
+                }
+                lineStart = lineEnd = pos = nextLineStart = limit;
+                atEnd = true;
+                return false;
+            }
+
+            int offset = compact(start);
+            start -= offset;
+            scan -= offset;
+            fill();
+        }
+    }
+
+    /**
+     * @return true once {@link #nextLine()} has run out of input
+     */
+    public boolean atEnd() {
+        return atEnd;
+    }
+
+    /**
+     * Equivalent to <code>line.startsWith(prefix)</code> on the current line.
+     */
+    public boolean lineIs(String prefix) {
+        int length = prefix.length();
+        if (lineEnd - lineStart < length)
+            return false;
+
+        for (int i = 0; i < length; i++) {
+            if (buffer[lineStart + i] != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    public boolean isEmptyLine() {
+        return lineStart == lineEnd;
+    }
+
+    /**
+     * @return true if there is another whitespace separated token on the current line
+     */
+    public boolean hasMoreTokens() {
+        skipWhitespace();
+        return pos < lineEnd;
+    }
+
+    /**
+     * Skips over the next whitespace separated token on the current line.
+     */
+    public void skipToken() {
+        skipWhitespace();
+        while (pos < lineEnd && !isWhitespace(buffer[pos]))
+            pos++;
+    }
+
+    /**
+     * Returns the next whitespace separated token as a String. This allocates,
+     * so it is only meant for infrequent lines such as group or material names.
+     *
+     * @return The token, or null if the end of the line has been reached
+     */
+    public String nextToken() {
+        skipWhitespace();
+        int start = pos;
+        while (pos < lineEnd && !isWhitespace(buffer[pos]))
+            pos++;
+
+        return pos > start ? new String(buffer, start, pos - start) : null;
+    }
+
+    /**
+     * Parses the next whitespace separated token as a float.
+     *
+     * @throws NumberFormatException if the token is not a number
+     */
+    public float nextFloat() {
+        skipWhitespace();
+        int start = pos;
+
+        boolean negative = false;
+        if (pos < lineEnd && (buffer[pos] == '-' || buffer[pos] == '+')) {
+            negative = buffer[pos] == '-';
+            pos++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean sawDigit = false;
+
+        while (pos < lineEnd && isDigit(buffer[pos])) {
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (buffer[pos] - '0');
+                if (mantissa != 0)
+                    digits++;
+            } else {
+                exponent++;
+            }
+            sawDigit = true;
+            pos++;
+        }
+
+        if (pos < lineEnd && buffer[pos] == '.') {
+            pos++;
+            while (pos < lineEnd && isDigit(buffer[pos])) {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (buffer[pos] - '0');
+                    if (mantissa != 0)
+                        digits++;
+                    exponent--;
+                }
+                sawDigit = true;
+                pos++;
+            }
+        }
+
+        if (sawDigit && pos < lineEnd && (buffer[pos] == 'e' || buffer[pos] == 'E')) {
+            int mark = pos++;
+            boolean negativeExponent = false;
+            if (pos < lineEnd && (buffer[pos] == '-' || buffer[pos] == '+')) {
+                negativeExponent = buffer[pos] == '-';
+                pos++;
+            }
+
+            if (pos < lineEnd && isDigit(buffer[pos])) {
+                int value = 0;
+                while (pos < lineEnd && isDigit(buffer[pos])) {
+                    if (value < 10000)
+                        value = value * 10 + (buffer[pos] - '0');
+                    pos++;
+                }
+                exponent += negativeExponent ? -value : value;
+            } else {
+                pos = mark;
+            }
+        }
+
+        if (!sawDigit || (pos < lineEnd && !isWhitespace(buffer[pos]))) {
+            // Not a plain decimal number (NaN, Infinity, hex, garbage): let the JDK decide
+            while (pos < lineEnd && !isWhitespace(buffer[pos]))
+                pos++;
+            return Float.parseFloat(new String(buffer, start, pos - start));
+        }
+
+        double value = mantissa;
+        if (mantissa != 0 && exponent != 0) {
+            if (exponent > 0) {
+                value = exponent < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[exponent] : value * Math.pow(10, exponent);
+            } else {
+                value = -exponent < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-exponent] : value / Math.pow(10, -exponent);
+            }
+        }
+
+        return (float)(negative ? -value : value);
+    }
+
+    /**
+     * Parses the next whitespace separated token as an int.
+     *
+     * @throws NumberFormatException if the token is not an integer
+     */
+    public int nextInt() {
+        skipWhitespace();
+        int value = parseInt();
+        if (pos < lineEnd && !isWhitespace(buffer[pos]))
+            throw new NumberFormatException("Invalid integer on line: " + currentLine());
+        return value;
+    }
+
+    /**
+     * Parses the next face vertex of an <code>f</code> line, in any of the
+     * forms <code>v</code>, <code>v/vt</code>, <code>v//vn</code> or
+     * <code>v/vt/vn</code>. Missing indices are reported as {@link #NO_INDEX}.
+     *
+     * @param indices Receives the raw (1-based, possibly relative) vertex,
+     *                texture and normal indices
+     * @return false if there are no more face vertices on the current line
+     * @throws NumberFormatException if the face vertex is malformed
+     */
+    public boolean nextFaceVertex(int indices[]) {
+        skipWhitespace();
+        if (pos >= lineEnd)
+            return false;
+
+        indices[0] = parseInt();
+        indices[1] = NO_INDEX;
+        indices[2] = NO_INDEX;
+
+        if (pos < lineEnd && buffer[pos] == '/') {
+            pos++;
+            if (pos < lineEnd && buffer[pos] != '/' && !isWhitespace(buffer[pos]))
+                indices[1] = parseInt();
+
+            if (pos < lineEnd && buffer[pos] == '/') {
+                pos++;
+                indices[2] = parseInt();
+            }
+        }
+
+        if (pos < lineEnd && !isWhitespace(buffer[pos]))
+            throw new NumberFormatException("Invalid face vertex on line: " + currentLine());
+
+        return true;
+    }
+
+    /**
+     * @return A copy of the current line, for error reporting
+     */
+    public String currentLine() {
+        return new String(buffer, lineStart, lineEnd - lineStart);
+    }
+
+    private int parseInt() {
+        boolean negative = false;
+        if (pos < lineEnd && (buffer[pos] == '-' || buffer[pos] == '+')) {
+            negative = buffer[pos] == '-';
+            pos++;
+        }
+
+        if (pos >= lineEnd || !isDigit(buffer[pos]))
+            throw new NumberFormatException("Invalid integer on line: " + currentLine());
+
+        int value = 0;
+        while (pos < lineEnd && isDigit(buffer[pos])) {
+            value = value * 10 + (buffer[pos] - '0');
+            pos++;
+        }
+        return negative ? -value : value;
+    }
+
+    private void skipWhitespace() {
+        while (pos < lineEnd && isWhitespace(buffer[pos]))
+            pos++;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\f' || c == 0x0B;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Moves the partially read line starting at <code>start</code> to the
+     * front of the buffer, growing the buffer if the line fills it.
+     *
+     * @return The distance the data was moved
+     */
+    private int compact(int start) {
+        int remaining = limit - start;
+        if (start == 0 && remaining == buffer.length) {
+            char grown[] = new char[buffer.length * 2];
+            System.arraycopy(buffer, 0, grown, 0, remaining);
+            buffer = grown;
+            return 0;
+        }
+
+        System.arraycopy(buffer, start, buffer, 0, remaining);
+        limit = remaining;
+        return start;
+    }
+
+    private void fill() throws IOException {
+        int read = reader.read(buffer, limit, buffer.length - limit);
+        if (read < 0)
+            eof = true;
+        else
+            limit += read;
+    }
+}
@@ -0,0 +1,54 @@
+package gov.nasa.worldwind.formats.models.loader;
+
+import gov.nasa.worldwind.formats.models.collada.ColladaCullingCamera;
+import junit.framework.TestCase;
+
+import com.ardor3d.bounding.BoundingBox;
+import com.ardor3d.bounding.BoundingSphere;
+import com.ardor3d.math.Vector3;
+import com.ardor3d.renderer.Camera.FrustumIntersect;
+
+public class ColladaCullingCameraTest extends TestCase {
+
+	public ColladaCullingCameraTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * A 10x10x10 cube centered on the origin, as six planes facing inwards.
+	 */
+	private double[] createPlanes() {
+		return new double[] { 1, 0, 0, 5, -1, 0, 0, 5, 0, 1, 0, 5, 0, -1, 0, 5, 0, 0, 1, 5, 0, 0, -1, 5 };
+	}
+
+	public void testSphere() {
+		ColladaCullingCamera camera = new ColladaCullingCamera();
+		BoundingSphere sphere = new BoundingSphere(1, new Vector3(0, 0, 0));
+		assertEquals(FrustumIntersect.Inside, camera.contains(sphere));
+
+		camera.setPlanes(createPlanes());
+		assertEquals(FrustumIntersect.Inside, camera.contains(sphere));
+		sphere.setCenter(new Vector3(4.5, 0, 0));
+		assertEquals(FrustumIntersect.Intersects, camera.contains(sphere));
+		sphere.setCenter(new Vector3(0, 0, -7));
+		assertEquals(FrustumIntersect.Outside, camera.contains(sphere));
+		assertEquals(1, camera.getCulledCount());
+
+		camera.disableCulling();
+		assertEquals(FrustumIntersect.Inside, camera.contains(sphere));
+	}
+
+	public void testBox() {
+		ColladaCullingCamera camera = new ColladaCullingCamera();
+		camera.setPlanes(createPlanes());
+		BoundingBox box = new BoundingBox(new Vector3(0, 7, 0), 1, 1.5, 1);
+		assertEquals(FrustumIntersect.Outside, camera.contains(box));
+		box.setYExtent(2.5);
+		assertEquals(FrustumIntersect.Intersects, camera.contains(box));
+
+		// a sphere with the same center and the box's diagonal would intersect
+		box = new BoundingBox(new Vector3(5.8, 5.8, 0), 0.7, 0.7, 0.7);
+		assertEquals(FrustumIntersect.Outside, camera.contains(box));
+		assertEquals(FrustumIntersect.Intersects, camera.contains(new BoundingSphere(1.3, new Vector3(5.8, 0, 0))));
+	}
+}
@@ -0,0 +1,58 @@
+package gov.nasa.worldwind.formats.models.loader;
+
+import gov.nasa.worldwind.formats.models.collada.ColladaInstancedRenderer;
+import gov.nasa.worldwind.formats.models.collada.ColladaModel;
+import gov.nasa.worldwind.geom.Position;
+
+import java.lang.ref.WeakReference;
+
+import junit.framework.TestCase;
+import net.java.joglutils.model.ModelLoadException;
+
+import com.ardor3d.math.Vector3;
+import com.ardor3d.scenegraph.Node;
+import com.ardor3d.scenegraph.shape.Box;
+
+public class ColladaInstancedRendererTest extends TestCase {
+
+	/**
+	 * Model whose node has been prepared for drawing by a layer.
+	 */
+	private static class TestModel extends ColladaModel {
+		TestModel(Node node) throws ModelLoadException {
+			super("testmodels/superdome.dae", Position.fromDegrees(-35, 149, 0));
+			batchNode = node;
+		}
+	}
+
+	private static class TestRenderer extends ColladaInstancedRenderer {
+		boolean hasPrototype(ColladaModel model) {
+			return getPrototype(model) != null;
+		}
+	}
+
+	public ColladaInstancedRendererTest(String name) {
+		super(name);
+	}
+
+	public void testRemovedModelsNodeCanBeCollected() throws Exception {
+		TestRenderer renderer = new TestRenderer();
+		Node node = new Node("rootNode");
+		node.attachChild(new Box("box", new Vector3(), 1, 1, 1));
+		node.updateGeometricState(0);
+		TestModel model = new TestModel(node);
+		assertTrue(renderer.hasPrototype(model));
+
+		WeakReference<Node> reference = new WeakReference<Node>(node);
+		renderer.remove(model);
+		model.dispose();
+		model = null;
+		node = null;
+
+		for (int i = 0; i < 50 && reference.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull("The prototype's meshes keep the node reachable", reference.get());
+	}
+}
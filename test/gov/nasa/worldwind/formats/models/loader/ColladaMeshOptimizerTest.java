@@ -0,0 +1,68 @@
+package gov.nasa.worldwind.formats.models.loader;
+
+import gov.nasa.worldwind.formats.models.collada.ColladaMeshOptimizer;
+
+import java.nio.FloatBuffer;
+
+import junit.framework.TestCase;
+
+import com.ardor3d.math.Vector3;
+import com.ardor3d.renderer.state.MaterialState;
+import com.ardor3d.scenegraph.Mesh;
+import com.ardor3d.scenegraph.Node;
+import com.ardor3d.scenegraph.hint.DataMode;
+import com.ardor3d.scenegraph.shape.Box;
+import com.ardor3d.scenegraph.shape.Sphere;
+
+public class ColladaMeshOptimizerTest extends TestCase {
+
+	public ColladaMeshOptimizerTest(String name) {
+		super(name);
+	}
+
+	public void testMerge() {
+		MaterialState material = new MaterialState();
+		MaterialState other = new MaterialState();
+
+		Node root = new Node("root");
+		Node group = new Node("group");
+		group.setTranslation(10, 0, 0);
+		root.attachChild(group);
+		for (int i = 0; i < 3; i++) {
+			Box box = new Box("box" + i, new Vector3(i, 0, 0), 0.5, 0.5, 0.5);
+			box.setRenderState(material);
+			group.attachChild(box);
+		}
+		Box single = new Box("single", new Vector3(), 1, 1, 1);
+		single.setRenderState(other);
+		root.attachChild(single);
+		Sphere large = new Sphere("large", 64, 64, 1);
+		large.setRenderState(material);
+		root.attachChild(large);
+		root.updateGeometricState(0);
+
+		assertEquals(2, ColladaMeshOptimizer.optimize(root));
+
+		// the emptied group is removed and the merged mesh attached to the root
+		assertEquals(3, root.getNumberOfChildren());
+		assertSame(single, root.getChild(0));
+		assertSame(large, root.getChild(1));
+		Mesh merged = (Mesh) root.getChild(2);
+		assertEquals(3 * 24, merged.getMeshData().getVertexCount());
+		assertSame(material, merged.getWorldRenderState(material.getType()));
+
+		// the group's translation is baked into the vertices
+		FloatBuffer vertices = merged.getMeshData().getVertexBuffer();
+		float minX = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE;
+		for (int i = 0; i < merged.getMeshData().getVertexCount(); i++) {
+			minX = Math.min(minX, vertices.get(i * 3));
+			maxX = Math.max(maxX, vertices.get(i * 3));
+		}
+		assertEquals(9.5f, minX);
+		assertEquals(12.5f, maxX);
+
+		assertEquals(DataMode.VBO, merged.getSceneHints().getDataMode());
+		assertEquals(DataMode.VBO, large.getSceneHints().getDataMode());
+	}
+}
@@ -0,0 +1,230 @@
+package gov.nasa.worldwind.formats.models.loader;
+
+import gov.nasa.worldwind.View;
+import gov.nasa.worldwind.formats.models.collada.ArdorContextRegistry;
+import gov.nasa.worldwind.formats.models.collada.ColladaCullingCamera;
+import gov.nasa.worldwind.formats.models.collada.ColladaModel;
+import gov.nasa.worldwind.formats.models.collada.ColladaNode;
+import gov.nasa.worldwind.formats.models.collada.TextureUnitTracker;
+import gov.nasa.worldwind.geom.Frustum;
+import gov.nasa.worldwind.geom.Plane;
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.globes.Earth;
+import gov.nasa.worldwind.globes.EllipsoidalGlobe;
+import gov.nasa.worldwind.globes.Globe;
+import gov.nasa.worldwind.render.DrawContextImpl;
+import gov.nasa.worldwind.terrain.ZeroElevationModel;
+import gov.nasa.worldwind.view.orbit.BasicOrbitView;
+
+import java.lang.management.ManagementFactory;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GLContext;
+import javax.media.opengl.GLDrawable;
+
+import junit.framework.TestCase;
+import net.java.joglutils.model.ModelLoadException;
+
+import com.ardor3d.bounding.BoundingSphere;
+import com.ardor3d.math.Vector3;
+import com.ardor3d.renderer.ContextCapabilities;
+import com.ardor3d.renderer.RenderContext;
+import com.ardor3d.scenegraph.Node;
+import com.ardor3d.scenegraph.shape.Box;
+
+public class ColladaModelAllocationTest extends TestCase {
+
+	private static final int ITERATIONS = 100000;
+
+	/**
+	 * OpenGL context that is never made current; only used as a key.
+	 */
+	private static class StubGLContext extends GLContext {
+		public GLDrawable getGLDrawable() {
+			return null;
+		}
+
+		public int makeCurrent() {
+			return CONTEXT_NOT_CURRENT;
+		}
+
+		public void release() {
+		}
+
+		public void copy(GLContext source, int mask) {
+		}
+
+		public void destroy() {
+		}
+
+		public boolean isSynchronized() {
+			return false;
+		}
+
+		public void setSynchronized(boolean isSynchronized) {
+		}
+
+		public GL getGL() {
+			return null;
+		}
+
+		public void setGL(GL gl) {
+		}
+	}
+
+	/**
+	 * View at a fixed eye point, whose frustum can be swapped between frames.
+	 */
+	private static class StubView extends BasicOrbitView {
+		Vec4 eye;
+		Frustum frustum;
+
+		@Override
+		public Vec4 getEyePoint() {
+			return eye;
+		}
+
+		@Override
+		public Frustum getFrustumInModelCoordinates() {
+			return frustum;
+		}
+
+		@Override
+		public double computePixelSizeAtDistance(double distance) {
+			return distance * 0.001;
+		}
+
+		@Override
+		public double getNearClipDistance() {
+			return 1;
+		}
+	}
+
+	/**
+	 * Draw context of a frame that never touches OpenGL.
+	 */
+	private static class StubDrawContext extends DrawContextImpl {
+		final Globe globe = new EllipsoidalGlobe(Earth.WGS84_EQUATORIAL_RADIUS, Earth.WGS84_POLAR_RADIUS,
+				Earth.WGS84_ES, new ZeroElevationModel());
+		final StubView view = new StubView();
+		final GLContext glContext = new StubGLContext();
+		long frameTimeStamp = 1;
+
+		@Override
+		public Globe getGlobe() {
+			return globe;
+		}
+
+		@Override
+		public View getView() {
+			return view;
+		}
+
+		@Override
+		public double getVerticalExaggeration() {
+			return 1;
+		}
+
+		@Override
+		public long getFrameTimeStamp() {
+			return frameTimeStamp;
+		}
+
+		@Override
+		public GLContext getGLContext() {
+			return glContext;
+		}
+
+		@Override
+		public boolean isPickingMode() {
+			return false;
+		}
+	}
+
+	/**
+	 * Runs the per-frame work of a {@link ColladaModel} drawn by a
+	 * ColladaModelLayer, up to the point where the node would be handed to
+	 * Ardor3D.
+	 */
+	private static class TestModel extends ColladaModel {
+		TestModel() throws ModelLoadException {
+			super("testmodels/superdome.dae", Position.fromDegrees(0, 0, 0));
+
+			ColladaNode node = new ColladaNode("rootNode");
+			Box box = new Box("box", new Vector3(), 1, 1, 1);
+			box.setModelBound(new BoundingSphere());
+			node.attachChild(box);
+			node.updateGeometricState(0);
+			nodeRef.set(node);
+			// computed from the distance to the eye
+			setConstantSize(false);
+		}
+
+		boolean frame(StubDrawContext dc, Vec4 batchReferenceCenter) {
+			dc.frameTimeStamp++;
+			Node node = prepareBatchDraw(dc, batchReferenceCenter);
+			if (node == null)
+				return false;
+			TextureUnitTracker.validate(dc);
+			applyCullingPlanes();
+			return true;
+		}
+	}
+
+	public ColladaModelAllocationTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * @return Frustum of the box of the given half size around a point
+	 */
+	private static Frustum createFrustum(Vec4 center, double size) {
+		return new Frustum(new Plane(1, 0, 0, size - center.x), new Plane(-1, 0, 0, size + center.x),
+				new Plane(0, 1, 0, size - center.y), new Plane(0, -1, 0, size + center.y),
+				new Plane(0, 0, 1, size - center.z), new Plane(0, 0, -1, size + center.z));
+	}
+
+	public void testSteadyStateFrameDoesNotAllocate() throws ModelLoadException {
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+			return;
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!bean.isThreadAllocatedMemorySupported())
+			return;
+		bean.setThreadAllocatedMemoryEnabled(true);
+
+		StubDrawContext dc = new StubDrawContext();
+		RenderContext renderContext = new RenderContext(dc.glContext, new ContextCapabilities());
+		renderContext.setCurrentCamera(new ColladaCullingCamera());
+		ArdorContextRegistry.addContext(dc.glContext, renderContext);
+
+		TestModel model = new TestModel();
+		Vec4 loc = dc.globe.computePointFromPosition(Position.fromDegrees(0, 0, 0));
+		Frustum inside = createFrustum(loc, 1000);
+		Frustum outside = createFrustum(loc.add3(new Vec4(1e6, 0, 0)), 1000);
+		dc.view.eye = loc.add3(new Vec4(0, 0, 1000));
+		Vec4 referenceCenter = loc.add3(new Vec4(0, 10, 0));
+
+		dc.view.frustum = inside;
+		assertTrue(model.frame(dc, referenceCenter));
+		dc.view.frustum = outside;
+		assertFalse(model.frame(dc, referenceCenter));
+
+		// warm up, so that the measurement isn't affected by class loading or compilation
+		for (int i = 0; i < ITERATIONS; i++) {
+			dc.view.frustum = (i & 1) == 0 ? inside : outside;
+			model.frame(dc, referenceCenter);
+		}
+
+		long id = Thread.currentThread().getId();
+		long before = bean.getThreadAllocatedBytes(id);
+		for (int i = 0; i < ITERATIONS; i++) {
+			dc.view.frustum = (i & 1) == 0 ? inside : outside;
+			model.frame(dc, referenceCenter);
+		}
+		long allocated = bean.getThreadAllocatedBytes(id) - before;
+
+		// allow for a little noise from the measurement itself, but nothing per frame
+		assertTrue("Allocated " + allocated + " bytes in " + ITERATIONS + " frames", allocated < ITERATIONS);
+	}
+}
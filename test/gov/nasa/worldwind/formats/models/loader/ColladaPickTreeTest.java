@@ -0,0 +1,97 @@
+package gov.nasa.worldwind.formats.models.loader;
+
+import gov.nasa.worldwind.formats.models.collada.ColladaPickTree;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.ardor3d.math.Ray3;
+import com.ardor3d.math.Vector3;
+import com.ardor3d.scenegraph.Mesh;
+import com.ardor3d.scenegraph.MeshData;
+import com.ardor3d.scenegraph.Node;
+import com.ardor3d.scenegraph.shape.Box;
+import com.ardor3d.scenegraph.shape.Sphere;
+
+public class ColladaPickTreeTest extends TestCase {
+
+	public ColladaPickTreeTest(String name) {
+		super(name);
+	}
+
+	public void testBoxes() {
+		Node root = new Node("root");
+		//the root's transform is ignored
+		root.setTranslation(100, 100, 100);
+		Node group = new Node("group");
+		group.setTranslation(10, 0, 0);
+		root.attachChild(group);
+		Box near = new Box("near", new Vector3(), 1, 1, 1);
+		group.attachChild(near);
+		Box far = new Box("far", new Vector3(), 1, 1, 1);
+		far.setTranslation(0, 0, -10);
+		root.attachChild(far);
+		root.updateGeometricState(0);
+
+		ColladaPickTree tree = new ColladaPickTree(root);
+		ColladaPickTree.Hit hit = new ColladaPickTree.Hit();
+		assertTrue(tree.intersect(10, 0, 20, 0, 0, -1, hit));
+		assertSame(near, hit.getMesh());
+		assertEquals(19, hit.getDistance(), 1e-6);
+
+		assertTrue(tree.intersect(0, 0, 20, 0, 0, -2, hit));
+		assertSame(far, hit.getMesh());
+		assertEquals(14.5, hit.getDistance(), 1e-6);
+
+		assertTrue(tree.intersect(0, 0, -10, 0, 0, 1, hit));
+		assertSame(far, hit.getMesh());
+		assertEquals(1, hit.getDistance(), 1e-6);
+
+		assertFalse(tree.intersect(0, 0, 20, 0, 0, 1, hit));
+		assertFalse(tree.intersect(5, 5, 20, 0, 0, -1, hit));
+	}
+
+	public void testSphere() {
+		Sphere sphere = new Sphere("sphere", 64, 64, 1);
+		Node root = new Node("root");
+		root.attachChild(sphere);
+		root.updateGeometricState(0);
+
+		ColladaPickTree tree = new ColladaPickTree(root);
+		ColladaPickTree.Hit hit = new ColladaPickTree.Hit();
+		Random random = new Random(7);
+		int hits = 0;
+		for (int i = 0; i < 200; i++) {
+			Vector3 origin = new Vector3(random.nextDouble() - 0.5, random.nextDouble() - 0.5, 3);
+			Vector3 direction = new Vector3(random.nextDouble() - 0.5, random.nextDouble() - 0.5, -2).normalizeLocal();
+			double expected = intersectAll(sphere, new Ray3(origin, direction));
+			boolean found = tree.intersect(origin.getX(), origin.getY(), origin.getZ(), direction.getX(), direction
+					.getY(), direction.getZ(), hit);
+			assertEquals(!Double.isInfinite(expected), found);
+			if (found) {
+				assertEquals(expected, hit.getDistance(), 1e-5);
+				hits++;
+			}
+		}
+		assertTrue(hits > 0);
+		//far fewer than the sphere's triangles per ray
+		assertTrue(tree.getTriangleTestCount() < 200 * sphere.getMeshData().getTotalPrimitiveCount() / 10);
+	}
+
+	private double intersectAll(Mesh mesh, Ray3 ray) {
+		MeshData data = mesh.getMeshData();
+		double nearest = Double.POSITIVE_INFINITY;
+		Vector3[] vertices = null;
+		for (int section = 0; section < data.getSectionCount(); section++) {
+			for (int i = 0; i < data.getPrimitiveCount(section); i++) {
+				vertices = data.getPrimitive(i, section, vertices);
+				Vector3 point = new Vector3();
+				if (ray.intersects(vertices, point)) {
+					nearest = Math.min(nearest, point.distance(ray.getOrigin()));
+				}
+			}
+		}
+		return nearest;
+	}
+}
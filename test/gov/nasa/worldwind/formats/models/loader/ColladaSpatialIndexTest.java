@@ -0,0 +1,118 @@
+package gov.nasa.worldwind.formats.models.loader;
+
+import gov.nasa.worldwind.formats.models.collada.ColladaSpatialIndex;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class ColladaSpatialIndexTest extends TestCase {
+
+	private static final int COUNT = 2000;
+
+	private final double[][] spheres = new double[COUNT][];
+	private final Random random = new Random(42);
+
+	public ColladaSpatialIndexTest(String name) {
+		super(name);
+	}
+
+	private double[] randomSphere() {
+		return new double[] { random.nextDouble() * 1000, random.nextDouble() * 1000, random.nextDouble() * 1000,
+				random.nextDouble() * 10 };
+	}
+
+	private void put(ColladaSpatialIndex<Integer> index, int i) {
+		spheres[i] = randomSphere();
+		index.put(i, spheres[i][0], spheres[i][1], spheres[i][2], spheres[i][3]);
+	}
+
+	/**
+	 * A box from 200 to 400 on each axis, as six planes facing inwards.
+	 */
+	private double[] createPlanes() {
+		return new double[] { 1, 0, 0, -200, -1, 0, 0, 400, 0, 1, 0, -200, 0, -1, 0, 400, 0, 0, 1, -200, 0, 0, -1,
+				400 };
+	}
+
+	private Set<Integer> expectedInPlanes(double[] planes) {
+		Set<Integer> expected = new HashSet<Integer>();
+		for (int i = 0; i < COUNT; i++) {
+			if (spheres[i] == null)
+				continue;
+			boolean outside = false;
+			for (int p = 0; p < planes.length; p += 4) {
+				double distance = planes[p] * spheres[i][0] + planes[p + 1] * spheres[i][1] + planes[p + 2]
+						* spheres[i][2] + planes[p + 3];
+				outside |= distance < -spheres[i][3];
+			}
+			if (!outside)
+				expected.add(i);
+		}
+		return expected;
+	}
+
+	public void testPlanes() {
+		ColladaSpatialIndex<Integer> index = new ColladaSpatialIndex<Integer>();
+		for (int i = 0; i < COUNT; i++) {
+			put(index, i);
+		}
+		double[] planes = createPlanes();
+		Set<Integer> result = new HashSet<Integer>();
+		index.query(planes, result);
+		assertEquals(expectedInPlanes(planes), result);
+		assertEquals(1, index.getRebuildCount());
+		assertTrue(index.getNodeTestCount() < COUNT / 4);
+
+		//move a few, remove a few, add them back elsewhere
+		for (int i = 0; i < 100; i++) {
+			put(index, random.nextInt(COUNT));
+			int removed = random.nextInt(COUNT);
+			index.remove(removed);
+			spheres[removed] = null;
+		}
+		result.clear();
+		index.query(planes, result);
+		assertEquals(expectedInPlanes(planes), result);
+
+		for (int i = 0; i < COUNT; i++) {
+			if (spheres[i] == null)
+				put(index, i);
+		}
+		result.clear();
+		index.query(planes, result);
+		assertEquals(expectedInPlanes(planes), result);
+		assertEquals(COUNT, index.size());
+	}
+
+	public void testRay() {
+		ColladaSpatialIndex<Integer> index = new ColladaSpatialIndex<Integer>();
+		for (int i = 0; i < COUNT; i++) {
+			put(index, i);
+		}
+		double ox = -10, oy = 300, oz = 500, dx = 1, dy = 0.2, dz = 0.1;
+		Set<Integer> expected = new HashSet<Integer>();
+		for (int i = 0; i < COUNT; i++) {
+			double length = dx * dx + dy * dy + dz * dz;
+			double t = ((spheres[i][0] - ox) * dx + (spheres[i][1] - oy) * dy + (spheres[i][2] - oz) * dz) / length;
+			t = Math.max(0, t);
+			double px = ox + dx * t - spheres[i][0];
+			double py = oy + dy * t - spheres[i][1];
+			double pz = oz + dz * t - spheres[i][2];
+			if (px * px + py * py + pz * pz <= spheres[i][3] * spheres[i][3])
+				expected.add(i);
+		}
+		assertFalse(expected.isEmpty());
+
+		Set<Integer> result = new HashSet<Integer>();
+		index.query(ox, oy, oz, dx, dy, dz, result);
+		assertEquals(expected, result);
+
+		//pointing away from every sphere
+		result.clear();
+		index.query(-10, -10, -10, -1, -1, -1, result);
+		assertTrue(result.isEmpty());
+	}
+}
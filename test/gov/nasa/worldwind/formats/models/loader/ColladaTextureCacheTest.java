@@ -0,0 +1,128 @@
+package gov.nasa.worldwind.formats.models.loader;
+
+import gov.nasa.worldwind.formats.models.collada.ColladaTextureCache;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import com.ardor3d.image.Texture;
+import com.ardor3d.image.TextureStoreFormat;
+import com.ardor3d.image.util.AWTImageLoader;
+import com.ardor3d.renderer.state.TextureState;
+import com.ardor3d.scenegraph.Node;
+import com.ardor3d.scenegraph.shape.Box;
+import com.ardor3d.util.TextureManager;
+import com.ardor3d.util.resource.ResourceLocator;
+import com.ardor3d.util.resource.SimpleResourceLocator;
+
+public class ColladaTextureCacheTest extends TestCase {
+
+	public ColladaTextureCacheTest(String name) {
+		super(name);
+	}
+
+	private File directory;
+	private ResourceLocator locator;
+
+	@Override
+	protected void setUp() throws Exception {
+		AWTImageLoader.registerLoader();
+
+		directory = File.createTempFile("textures", "");
+		directory.delete();
+		directory.mkdir();
+		// a.png and b.png have the same content, c.png differs
+		writeImage("a.png", 0xff0000);
+		writeImage("b.png", 0xff0000);
+		writeImage("c.png", 0x00ff00);
+		locator = ColladaTextureCache.wrap(new SimpleResourceLocator(directory.toURI()));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	private void writeImage(String name, int rgb) throws Exception {
+		BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 16; y++) {
+			for (int x = 0; x < 16; x++) {
+				image.setRGB(x, y, rgb);
+			}
+		}
+		ImageIO.write(image, "png", new File(directory, name));
+	}
+
+	private Texture load(String name) {
+		return TextureManager.load(locator.locateResource(name), Texture.MinificationFilter.NearestNeighborNoMipMaps,
+				TextureStoreFormat.GuessNoCompressedFormat, true);
+	}
+
+	/**
+	 * A model with one box per texture.
+	 */
+	private Node createModel(Texture... textures) {
+		Node node = new Node();
+		for (Texture texture : textures) {
+			TextureState state = new TextureState();
+			state.setTexture(texture);
+			Box box = new Box();
+			box.setRenderState(state);
+			node.attachChild(box);
+		}
+		return node;
+	}
+
+	public void testSameContentIsShared() {
+		Texture a = load("a.png");
+		Texture b = load("b.png");
+		Texture c = load("c.png");
+		assertEquals(a.getTextureKey(), b.getTextureKey());
+		assertSame(a.getImage(), b.getImage());
+		assertFalse(a.getTextureKey().equals(c.getTextureKey()));
+
+		ColladaTextureCache cache = new ColladaTextureCache(ColladaTextureCache.DEFAULT_BUDGET);
+		Node first = createModel(a, c);
+		Node second = createModel(b);
+		cache.acquire(first);
+		cache.acquire(second);
+		assertEquals(2, cache.getTextureCount());
+		assertEquals(1, cache.getSharedCount());
+		assertEquals(2, cache.getReferenceCount(a));
+		assertEquals(1, cache.getReferenceCount(c));
+		// 16 x 16 RGB pixels per texture
+		assertEquals(2 * 16 * 16 * 3, cache.getSize());
+
+		cache.release(second);
+		assertEquals(1, cache.getReferenceCount(a));
+	}
+
+	public void testEviction() {
+		Texture a = load("a.png");
+		Texture c = load("c.png");
+
+		ColladaTextureCache cache = new ColladaTextureCache(ColladaTextureCache.DEFAULT_BUDGET);
+		Node first = createModel(a);
+		Node second = createModel(c);
+		cache.acquire(first);
+		cache.acquire(second);
+
+		// referenced textures are kept even when over budget
+		cache.setBudget(0);
+		assertEquals(2, cache.getTextureCount());
+
+		cache.release(first);
+		assertEquals(1, cache.getTextureCount());
+		assertEquals(0, cache.getReferenceCount(a));
+		assertEquals(1, cache.getReferenceCount(c));
+		assertEquals(1, cache.getEvictedCount());
+		assertEquals(16 * 16 * 3, cache.getSize());
+	}
+}
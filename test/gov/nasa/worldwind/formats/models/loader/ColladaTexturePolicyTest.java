@@ -0,0 +1,172 @@
+package gov.nasa.worldwind.formats.models.loader;
+
+import gov.nasa.worldwind.formats.models.collada.ColladaNode;
+import gov.nasa.worldwind.formats.models.collada.ColladaTexturePolicy;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import com.ardor3d.bounding.BoundingSphere;
+import com.ardor3d.extension.model.collada.jdom.data.AssetData;
+import com.ardor3d.image.Image;
+import com.ardor3d.image.ImageDataFormat;
+import com.ardor3d.image.ImageDataType;
+import com.ardor3d.image.Texture;
+import com.ardor3d.image.Texture2D;
+import com.ardor3d.image.TextureStoreFormat;
+import com.ardor3d.renderer.state.TextureState;
+import com.ardor3d.scenegraph.shape.Sphere;
+import com.ardor3d.util.TextureKey;
+import com.ardor3d.util.geom.BufferUtils;
+import com.ardor3d.util.resource.URLResourceSource;
+
+public class ColladaTexturePolicyTest extends TestCase {
+
+	public ColladaTexturePolicyTest(String name) {
+		super(name);
+	}
+
+	private Image createImage(ImageDataFormat format, int size, int r, int g, int b, int a) {
+		int components = format.getComponents();
+		ByteBuffer data = BufferUtils.createByteBuffer(size * size * components);
+		for (int i = 0; i < size * size; i++) {
+			data.put((byte) r).put((byte) g).put((byte) b);
+			if (components == 4) {
+				data.put((byte) a);
+			}
+		}
+		data.rewind();
+		return new Image(format, ImageDataType.UnsignedByte, size, size, data, null);
+	}
+
+	/**
+	 * A model of the given radius in meters, with a single texture.
+	 */
+	private ColladaNode createModel(double radius, Texture texture) {
+		Sphere sphere = new Sphere("sphere", 8, 8, radius);
+		sphere.setModelBound(new BoundingSphere());
+		TextureState state = new TextureState();
+		state.setTexture(texture);
+		sphere.setRenderState(state);
+
+		ColladaNode node = new ColladaNode("model");
+		node.attachChild(sphere);
+		AssetData assetData = new AssetData();
+		assetData.setUnitMeter(1);
+		node.setAssetData(assetData);
+		node.updateGeometricState(0);
+		return node;
+	}
+
+	private Texture createTexture(Image image, Texture.MinificationFilter filter) {
+		Texture texture = new Texture2D();
+		texture.setImage(image);
+		texture.setMinificationFilter(filter);
+		texture.setTextureStoreFormat(TextureStoreFormat.RGB8);
+		return texture;
+	}
+
+	public void testMaxSize() {
+		ColladaTexturePolicy policy = new ColladaTexturePolicy();
+		policy.setTexelsPerMeter(64);
+		policy.setMinTextureSize(128);
+		policy.setMaxTextureSize(2048);
+		assertEquals(128, policy.computeMaxSize(1));
+		assertEquals(512, policy.computeMaxSize(5));
+		assertEquals(2048, policy.computeMaxSize(1000));
+		assertEquals(2048, policy.computeMaxSize(0));
+	}
+
+	public void testDownscale() {
+		ColladaTexturePolicy policy = new ColladaTexturePolicy();
+		Image image = createImage(ImageDataFormat.RGB, 1024, 10, 20, 30, 0);
+		Texture texture = createTexture(image, Texture.MinificationFilter.BilinearNoMipMaps);
+
+		long saved = policy.apply(createModel(1, texture));
+		Image reduced = texture.getImage();
+		assertNotSame(image, reduced);
+		assertEquals(128, reduced.getWidth());
+		assertEquals(128, reduced.getHeight());
+		assertEquals(128 * 128 * 3, reduced.getData(0).limit());
+		assertEquals(20, reduced.getData(0).get(1));
+		// the original image may be shared, and is left untouched
+		assertEquals(1024, image.getWidth());
+		assertEquals(1024 * 1024 * 3, image.getData(0).limit());
+		assertEquals((1024 * 1024 - 128 * 128) * 3, saved);
+		assertEquals(saved, policy.getSavedBytes());
+		assertTrue(texture.isStoreImage());
+
+		// a second pass has nothing left to do
+		assertEquals(0, policy.apply(createModel(1, texture)));
+	}
+
+	public void testSharedImageIsCappedPerModel() {
+		ColladaTexturePolicy policy = new ColladaTexturePolicy();
+		Image image = createImage(ImageDataFormat.RGB, 1024, 10, 20, 30, 0);
+		Texture small = createTexture(image, Texture.MinificationFilter.BilinearNoMipMaps);
+		Texture large = createTexture(image, Texture.MinificationFilter.BilinearNoMipMaps);
+
+		policy.apply(createModel(1, small));
+		policy.apply(createModel(1000, large));
+		assertEquals(128, small.getImage().getWidth());
+		assertSame(image, large.getImage());
+		assertEquals(1024, image.getWidth());
+	}
+
+	public void testReducedTexturesAreSharedBySize() throws MalformedURLException {
+		ColladaTexturePolicy policy = new ColladaTexturePolicy();
+		Image image = createImage(ImageDataFormat.RGB, 1024, 10, 20, 30, 0);
+		TextureKey key = TextureKey.getKey(new URLResourceSource(new URL("file:/shared.png")), false,
+				TextureStoreFormat.RGB8, Texture.MinificationFilter.BilinearNoMipMaps);
+		Texture first = createTexture(image, Texture.MinificationFilter.BilinearNoMipMaps);
+		first.setTextureKey(key);
+		Texture second = createTexture(image, Texture.MinificationFilter.BilinearNoMipMaps);
+		second.setTextureKey(key);
+
+		assertTrue(policy.apply(createModel(1, first)) > 0);
+		assertEquals(0, policy.apply(createModel(1, second)));
+		assertSame(first.getImage(), second.getImage());
+		assertEquals(first.getTextureKey(), second.getTextureKey());
+		assertFalse(key.equals(first.getTextureKey()));
+		assertEquals(1, policy.getReducedCount());
+	}
+
+	public void testCompress() {
+		ColladaTexturePolicy policy = new ColladaTexturePolicy();
+		policy.setCompress(true);
+
+		Image image = createImage(ImageDataFormat.RGB, 8, 255, 0, 0, 0);
+		Texture texture = createTexture(image, Texture.MinificationFilter.BilinearNoMipMaps);
+		policy.apply(createModel(1, texture));
+		assertEquals(ImageDataFormat.RGB, image.getDataFormat());
+		assertEquals(ImageDataFormat.PrecompressedDXT1, texture.getImage().getDataFormat());
+		assertEquals(TextureStoreFormat.NativeDXT1, texture.getTextureStoreFormat());
+		// four 4x4 blocks of 8 bytes
+		ByteBuffer data = texture.getImage().getData(0);
+		assertEquals(32, data.limit());
+		// a solid red block: both endpoints are pure red in 565, all indices 0
+		assertEquals((byte) 0x00, data.get(0));
+		assertEquals((byte) 0xf8, data.get(1));
+		assertEquals(0, data.getInt(4));
+
+		Image alpha = createImage(ImageDataFormat.RGBA, 16, 0, 255, 0, 128);
+		Texture alphaTexture = createTexture(alpha, Texture.MinificationFilter.Trilinear);
+		policy.apply(createModel(1, alphaTexture));
+		alpha = alphaTexture.getImage();
+		assertEquals(ImageDataFormat.PrecompressedDXT5, alpha.getDataFormat());
+		assertEquals(TextureStoreFormat.NativeDXT5, alphaTexture.getTextureStoreFormat());
+		// 16x16, 8x8, 4x4, 2x2 and 1x1 levels, with 16 bytes per 4x4 block
+		int[] sizes = alpha.getMipMapByteSizes();
+		assertEquals(5, sizes.length);
+		assertEquals(16 * 16, sizes[0]);
+		assertEquals(4 * 16, sizes[1]);
+		assertEquals(16, sizes[2]);
+		assertEquals(16, sizes[3]);
+		assertEquals(16, sizes[4]);
+		assertEquals((byte) 128, alpha.getData(0).get(0));
+		assertEquals((byte) 128, alpha.getData(0).get(1));
+	}
+}
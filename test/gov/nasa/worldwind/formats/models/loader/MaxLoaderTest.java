@@ -48,13 +48,13 @@ public class MaxLoaderTest extends TestCase {
 		assertNotSame(0,m.getNumberOfMeshes());
 		Mesh mesh = m.getMesh(0);
 		assertNotNull(mesh);
-		assertNotNull(mesh.vertices);
+		assertNotNull(mesh.getVertices());
 		assertNotSame(0, mesh.numOfVerts);
-		assertNotNull(mesh.faces);
+		assertNotNull(mesh.getFaces());
 		assertNotSame(0,mesh.numOfFaces);
-		assertNotNull(mesh.normals);
+		assertNotNull(mesh.getNormals());
 		//Max normals equate to number of vertices
-		assertEquals(mesh.normals.length, mesh.numOfVerts);
+		assertEquals(mesh.getNormals().length, mesh.numOfVerts);
 		//Ensure we have a material
 		assertNotNull(m.getMaterial(0));
 		//We have a texture materials string file is not null
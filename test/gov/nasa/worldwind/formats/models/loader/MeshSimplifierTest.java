@@ -0,0 +1,114 @@
+package gov.nasa.worldwind.formats.models.loader;
+
+import junit.framework.TestCase;
+import net.java.joglutils.model.loader.MeshSimplifier;
+
+public class MeshSimplifierTest extends TestCase {
+
+	private static final int SIZE = 40;
+
+	public MeshSimplifierTest(String name) {
+		super(name);
+	}
+
+	private float[] positions;
+	private int[] indices;
+
+	/**
+	 * A flat grid of size x size quads, split into triangles. If
+	 * <code>seams</code> is true, every quad has its own four vertices, as if
+	 * each quad had separate texture coordinates.
+	 */
+	private void createGrid(int size, boolean seams) {
+		positions = new float[3 * (seams ? 4 * size * size : (size + 1) * (size + 1))];
+		indices = new int[6 * size * size];
+
+		int i = 0;
+		int v = 0;
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				int v00, v10, v01, v11;
+				if (seams) {
+					v00 = v++;
+					v10 = v++;
+					v01 = v++;
+					v11 = v++;
+					setPosition(v00, x, y);
+					setPosition(v10, x + 1, y);
+					setPosition(v01, x, y + 1);
+					setPosition(v11, x + 1, y + 1);
+				} else {
+					v00 = y * (size + 1) + x;
+					v10 = v00 + 1;
+					v01 = v00 + size + 1;
+					v11 = v01 + 1;
+				}
+				indices[i++] = v00;
+				indices[i++] = v10;
+				indices[i++] = v01;
+				indices[i++] = v10;
+				indices[i++] = v11;
+				indices[i++] = v01;
+			}
+		}
+		if (!seams) {
+			for (int y = 0; y <= size; y++) {
+				for (int x = 0; x <= size; x++) {
+					setPosition(y * (size + 1) + x, x, y);
+				}
+			}
+		}
+	}
+
+	private void setPosition(int v, int x, int y) {
+		positions[3 * v] = x;
+		positions[3 * v + 1] = y;
+		positions[3 * v + 2] = 0;
+	}
+
+	private double area(int[] triangles) {
+		double area = 0;
+		for (int t = 0; t < triangles.length; t += 3) {
+			int a = triangles[t] * 3, b = triangles[t + 1] * 3, c = triangles[t + 2] * 3;
+			double ux = positions[b] - positions[a], uy = positions[b + 1] - positions[a + 1];
+			double vx = positions[c] - positions[a], vy = positions[c + 1] - positions[a + 1];
+			double z = ux * vy - uy * vx;
+			// all the triangles of the grid face +z; a flipped one would reduce the area
+			area += z / 2;
+		}
+		return area;
+	}
+
+	private void checkSimplified(int[] simplified, int target) {
+		assertTrue("Simplified to " + simplified.length / 3 + " triangles", simplified.length / 3 <= target);
+		assertEquals(0, simplified.length % 3);
+		for (int t = 0; t < simplified.length; t += 3) {
+			for (int c = 0; c < 3; c++) {
+				assertTrue(simplified[t + c] >= 0 && simplified[t + c] < positions.length / 3);
+			}
+			assertTrue(simplified[t] != simplified[t + 1] && simplified[t + 1] != simplified[t + 2]
+					&& simplified[t + 2] != simplified[t]);
+		}
+		// a flat grid can be reduced without changing its outline
+		assertEquals(area(indices), area(simplified), 1e-3);
+	}
+
+	public void testSimplifyGrid() {
+		createGrid(SIZE, false);
+		int target = indices.length / 3 / 10;
+		checkSimplified(MeshSimplifier.simplify(positions, indices, target), target);
+	}
+
+	public void testSimplifyAcrossSeams() {
+		createGrid(SIZE, true);
+		int target = indices.length / 3 / 10;
+		checkSimplified(MeshSimplifier.simplify(positions, indices, target), target);
+	}
+
+	public void testNothingToSimplify() {
+		createGrid(2, false);
+		int[] simplified = MeshSimplifier.simplify(positions, indices, 100);
+		assertNotSame(indices, simplified);
+		assertEquals(indices.length, simplified.length);
+	}
+}
@@ -0,0 +1,79 @@
+package gov.nasa.worldwind.formats.models.loader;
+
+import gov.nasa.worldwind.formats.models.collada.MipMapGenerator;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import com.ardor3d.image.Image;
+import com.ardor3d.image.ImageDataFormat;
+import com.ardor3d.image.ImageDataType;
+import com.ardor3d.util.geom.BufferUtils;
+
+public class MipMapGeneratorTest extends TestCase {
+
+	public MipMapGeneratorTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * An RGB image whose red component is the column and green component the
+	 * row of the pixel.
+	 */
+	private Image createImage(int width, int height) {
+		ByteBuffer data = BufferUtils.createByteBuffer(width * height * 3);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				data.put((byte) x).put((byte) y).put((byte) 200);
+			}
+		}
+		data.rewind();
+		return new Image(ImageDataFormat.RGB, ImageDataType.UnsignedByte, width, height, data, null);
+	}
+
+	public void testLevels() {
+		Image image = createImage(8, 2);
+		assertTrue(MipMapGenerator.generate(image));
+		assertTrue(image.hasMipmaps());
+
+		int[] sizes = image.getMipMapByteSizes();
+		// 8x2, 4x1, 2x1, 1x1
+		assertEquals(4, sizes.length);
+		assertEquals(8 * 2 * 3, sizes[0]);
+		assertEquals(4 * 3, sizes[1]);
+		assertEquals(2 * 3, sizes[2]);
+		assertEquals(3, sizes[3]);
+
+		ByteBuffer data = image.getData(0);
+		assertTrue(data.isDirect());
+		assertEquals(sizes[0] + sizes[1] + sizes[2] + sizes[3], data.limit());
+
+		// level 0 is unchanged
+		assertEquals(5, data.get((1 * 8 + 5) * 3));
+		assertEquals(1, data.get((1 * 8 + 5) * 3 + 1));
+
+		// level 1 pixel 2 averages columns 4 and 5 of rows 0 and 1
+		int level1 = sizes[0];
+		assertEquals(5, data.get(level1 + 2 * 3)); // (4 + 5 + 4 + 5 + 2) / 4
+		assertEquals(1, data.get(level1 + 2 * 3 + 1)); // (0 + 0 + 1 + 1 + 2) / 4
+		assertEquals((byte) 200, data.get(level1 + 2 * 3 + 2));
+
+		// the last level averages the whole image
+		int level3 = sizes[0] + sizes[1] + sizes[2];
+		assertEquals(4, data.get(level3));
+		assertEquals((byte) 200, data.get(level3 + 2));
+
+		// already generated
+		assertTrue(MipMapGenerator.generate(image));
+		assertSame(data, image.getData(0));
+	}
+
+	public void testNonPowerOfTwoIsLeftAlone() {
+		Image image = createImage(6, 4);
+		ByteBuffer data = image.getData(0);
+		assertFalse(MipMapGenerator.generate(image));
+		assertFalse(image.hasMipmaps());
+		assertSame(data, image.getData(0));
+	}
+}
@@ -0,0 +1,77 @@
+package gov.nasa.worldwind.formats.models.loader;
+
+import junit.framework.TestCase;
+import net.java.joglutils.model.geometry.Bounds;
+import net.java.joglutils.model.geometry.Material;
+import net.java.joglutils.model.geometry.Mesh;
+import net.java.joglutils.model.geometry.Model;
+import net.java.joglutils.model.geometry.ModelBuilder;
+import net.java.joglutils.model.geometry.Vec4;
+
+public class ModelBuilderTest extends TestCase {
+
+	public ModelBuilderTest(String name) {
+		super(name);
+	}
+
+	public void testBuild() {
+		Material material = new Material();
+		Mesh first = new Mesh("first");
+		Mesh second = new Mesh("second");
+		Bounds bounds = new Bounds();
+		Vec4 center = new Vec4(1, 2, 3);
+
+		ModelBuilder builder = new ModelBuilder("model.3ds");
+		builder.addMaterial(material).addMesh(first).addMesh(second);
+		builder.setBounds(bounds).setCenterPoint(center);
+		assertSame(material, builder.getMaterial(0));
+
+		Model model = builder.build();
+		assertTrue(model.isImmutable());
+		assertEquals("model.3ds", model.getSource());
+		assertEquals(1, model.getNumberOfMaterials());
+		assertSame(material, model.getMaterial(0));
+		assertEquals(2, model.getNumberOfMeshes());
+		assertSame(first, model.getMesh(0));
+		assertSame(second, model.getMesh(1));
+		assertSame(bounds, model.getBounds());
+		assertSame(center, model.getCenterPoint());
+
+		// the model keeps its own copy of the meshes
+		builder.addMesh(new Mesh());
+		assertEquals(2, model.getNumberOfMeshes());
+		assertEquals(3, builder.build().getNumberOfMeshes());
+	}
+
+	public void testBuiltModelCantBeChanged() {
+		Model model = new ModelBuilder("model.obj").build();
+		try {
+			model.addMesh(new Mesh());
+			fail("Expected UnsupportedOperationException");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		try {
+			model.setBounds(new Bounds());
+			fail("Expected UnsupportedOperationException");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		assertEquals(0, model.getNumberOfMeshes());
+
+		// render settings can still be changed
+		model.setUseLighting(false);
+		assertFalse(model.isUsingLighting());
+	}
+
+	public void testModelCanStillBeFilled() {
+		Model model = new Model("model.obj");
+		assertFalse(model.isImmutable());
+		Mesh mesh = new Mesh();
+		model.addMesh(mesh);
+		model.addMaterial(new Material());
+		assertEquals(1, model.getNumberOfMeshes());
+		assertSame(mesh, model.getMesh(0));
+		assertEquals(1, model.getNumberOfMaterials());
+	}
+}
@@ -0,0 +1,118 @@
+package gov.nasa.worldwind.formats.models.loader;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import net.java.joglutils.model.ModelCache;
+import net.java.joglutils.model.ModelLoadException;
+import net.java.joglutils.model.geometry.Mesh;
+import net.java.joglutils.model.geometry.Model;
+
+public class ModelCacheTest extends TestCase {
+
+	public ModelCacheTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * Creates models with a single mesh of 100 floats, 400 bytes of vertex data.
+	 */
+	private static class CountingLoader implements ModelCache.Loader {
+		final AtomicInteger loads = new AtomicInteger();
+
+		public Model load(String source) throws ModelLoadException {
+			loads.incrementAndGet();
+			if (source.startsWith("bad"))
+				return null;
+
+			Mesh mesh = new Mesh();
+			mesh.vertexData = new float[100];
+			Model model = new Model(source);
+			model.addMesh(mesh);
+			return model;
+		}
+	}
+
+	public void testHitsAndMisses() throws ModelLoadException {
+		CountingLoader loader = new CountingLoader();
+		ModelCache cache = new ModelCache(loader);
+
+		Model model = cache.get("a");
+		assertSame(model, cache.get("a"));
+		assertEquals(1, loader.loads.get());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+
+		try {
+			cache.get("bad");
+			fail("Expected ModelLoadException");
+		} catch (ModelLoadException e) {
+			// failures are not cached
+		}
+		assertEquals(1, cache.size());
+	}
+
+	public void testLeastRecentlyUsedIsEvicted() throws ModelLoadException {
+		CountingLoader loader = new CountingLoader();
+		ModelCache cache = new ModelCache(loader);
+		Model a = cache.get("a");
+		long modelSize = cache.getMemoryUsed();
+
+		cache.setMemoryBudget(2 * modelSize);
+		cache.get("b");
+		cache.get("a");
+		cache.get("c");
+
+		assertEquals(2, cache.size());
+		assertEquals(2 * modelSize, cache.getMemoryUsed());
+		assertEquals(1, cache.getEvictionCount());
+		assertSame(a, cache.getIfPresent("a"));
+		assertNull(cache.getIfPresent("b"));
+	}
+
+	public void testConcurrentRequestsShareOneLoad() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountingLoader counting = new CountingLoader();
+		final ModelCache cache = new ModelCache(new ModelCache.Loader() {
+			public Model load(String source) throws ModelLoadException {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new ModelLoadException();
+				}
+				return counting.load(source);
+			}
+		});
+
+		final Model results[] = new Model[8];
+		Thread threads[] = new Thread[results.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						results[index] = cache.get("shared");
+					} catch (ModelLoadException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		started.await();
+		// give the other threads time to join the load in progress
+		Thread.sleep(100);
+		release.countDown();
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(1, counting.loads.get());
+		assertEquals(1, cache.getLoadCount());
+		for (Model result : results)
+			assertSame(results[0], result);
+	}
+}
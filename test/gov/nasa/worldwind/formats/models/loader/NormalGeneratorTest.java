@@ -0,0 +1,118 @@
+package gov.nasa.worldwind.formats.models.loader;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import net.java.joglutils.model.geometry.Mesh;
+import net.java.joglutils.model.loader.NormalGenerator;
+
+public class NormalGeneratorTest extends TestCase {
+
+	public NormalGeneratorTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * Two triangles folded 90 degrees along their shared edge (0,0,0)-(1,0,0).
+	 */
+	private Mesh createFold() {
+		Mesh mesh = new Mesh();
+		mesh.vertexData = new float[] { 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 1 };
+		mesh.vertexIndices = new int[] { 0, 1, 2, 1, 0, 3 };
+		mesh.numOfVerts = 4;
+		mesh.numOfFaces = 2;
+		return mesh;
+	}
+
+	/**
+	 * A regular grid of size x size quads, split into triangles.
+	 */
+	private Mesh createGrid(int size) {
+		Mesh mesh = new Mesh();
+		mesh.numOfVerts = (size + 1) * (size + 1);
+		mesh.numOfFaces = 2 * size * size;
+		mesh.vertexData = new float[3 * mesh.numOfVerts];
+		mesh.vertexIndices = new int[3 * mesh.numOfFaces];
+		mesh.faceSmoothingGroups = new int[mesh.numOfFaces];
+
+		for (int y = 0; y <= size; y++) {
+			for (int x = 0; x <= size; x++) {
+				int v = y * (size + 1) + x;
+				mesh.vertexData[3 * v] = x;
+				mesh.vertexData[3 * v + 1] = y;
+				mesh.vertexData[3 * v + 2] = (float) Math.sin(x * 0.3) * (float) Math.cos(y * 0.2);
+			}
+		}
+
+		int i = 0;
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				int v = y * (size + 1) + x;
+				mesh.faceSmoothingGroups[i / 3] = 1 << (x % 3);
+				mesh.vertexIndices[i++] = v;
+				mesh.vertexIndices[i++] = v + 1;
+				mesh.vertexIndices[i++] = v + size + 1;
+				mesh.faceSmoothingGroups[i / 3] = 1 << (x % 3);
+				mesh.vertexIndices[i++] = v + 1;
+				mesh.vertexIndices[i++] = v + size + 2;
+				mesh.vertexIndices[i++] = v + size + 1;
+			}
+		}
+		return mesh;
+	}
+
+	public void testSharedEdgeIsAveraged() {
+		Mesh mesh = createFold();
+		new NormalGenerator().computeNormals(mesh);
+
+		assertEquals(3 * mesh.numOfVerts, mesh.normalData.length);
+		assertSame(mesh.vertexIndices, mesh.normalIndices);
+
+		// the shared vertices point halfway between the two face normals
+		float h = (float) Math.sqrt(0.5);
+		assertEquals(0, mesh.normalData[0], 1e-6f);
+		assertEquals(h, Math.abs(mesh.normalData[1]), 1e-6f);
+		assertEquals(h, Math.abs(mesh.normalData[2]), 1e-6f);
+		// the other vertices only have a single face
+		assertEquals(1, Math.abs(mesh.normalData[3 * 2 + 2]), 1e-6f);
+		assertEquals(1, Math.abs(mesh.normalData[3 * 3 + 1]), 1e-6f);
+	}
+
+	public void testSmoothingGroupsSplitNormals() {
+		Mesh mesh = createFold();
+		mesh.faceSmoothingGroups = new int[] { 1, 2 };
+
+		NormalGenerator generator = new NormalGenerator();
+		generator.setUseSmoothingGroups(true);
+		generator.computeNormals(mesh);
+
+		// vertices 0 and 1 are split, 2 and 3 are not
+		assertEquals(3 * 6, mesh.normalData.length);
+		assertTrue(mesh.normalIndices[0] != mesh.normalIndices[4]);
+		assertTrue(mesh.normalIndices[1] != mesh.normalIndices[3]);
+		assertEquals(1, Math.abs(mesh.normalData[3 * mesh.normalIndices[0] + 2]), 1e-6f);
+		assertEquals(1, Math.abs(mesh.normalData[3 * mesh.normalIndices[4] + 1]), 1e-6f);
+	}
+
+	public void testParallelMatchesSerial() {
+		NormalGenerator serial = new NormalGenerator();
+		serial.setParallelThreshold(Integer.MAX_VALUE);
+		NormalGenerator parallel = new NormalGenerator();
+		parallel.setParallelThreshold(0);
+
+		for (int mode = 0; mode < 4; mode++) {
+			serial.setAngleWeighted((mode & 1) != 0);
+			parallel.setAngleWeighted((mode & 1) != 0);
+			serial.setUseSmoothingGroups((mode & 2) != 0);
+			parallel.setUseSmoothingGroups((mode & 2) != 0);
+
+			Mesh a = createGrid(60);
+			Mesh b = createGrid(60);
+			serial.computeNormals(a);
+			parallel.computeNormals(b);
+
+			assertTrue(Arrays.equals(a.normalData, b.normalData));
+			assertTrue(Arrays.equals(a.normalIndices, b.normalIndices));
+		}
+	}
+}
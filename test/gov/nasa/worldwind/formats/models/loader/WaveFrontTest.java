@@ -35,13 +35,13 @@ public class WaveFrontTest extends TestCase {
 		assertNotSame(0,model.getNumberOfMeshes());
 		Mesh mesh = model.getMesh(0);
 		assertNotNull(mesh);
-		assertNotNull(mesh.vertices);
+		assertNotNull(mesh.getVertices());
 		assertNotSame(0, mesh.numOfVerts);
-		assertNotNull(mesh.faces);
+		assertNotNull(mesh.getFaces());
 		assertNotSame(0,mesh.numOfFaces);
-		assertNotNull(mesh.normals);
+		assertNotNull(mesh.getNormals());
 		//Max normals equate to number of faces
-		//assertEquals(mesh.normals.length, mesh.numOfFaces);
+		//assertEquals(mesh.getNormals().length, mesh.numOfFaces);
 		//Ensure we have a material
 		assertNotNull(model.getMaterial(0));
 		//We have a texture materials string file is not null
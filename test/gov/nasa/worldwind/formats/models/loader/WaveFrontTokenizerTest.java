@@ -0,0 +1,65 @@
+package gov.nasa.worldwind.formats.models.loader;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+import net.java.joglutils.model.loader.WaveFrontTokenizer;
+
+public class WaveFrontTokenizerTest extends TestCase {
+
+	public WaveFrontTokenizerTest(String name) {
+		super(name);
+	}
+
+	public void testFloats() throws IOException {
+		String values[] = { "0.004520", "-1.528259", "1e-3", "-2.5E+2", "+.5", "7.", "123456789012345678901" };
+		StringBuilder sb = new StringBuilder();
+		for (String value : values) {
+			sb.append("v ").append(value).append("\r\n");
+		}
+
+		// small buffer so that lines straddle refills
+		WaveFrontTokenizer tokenizer = new WaveFrontTokenizer(new StringReader(sb.toString()), 16);
+		for (String value : values) {
+			assertTrue(tokenizer.nextLine());
+			assertTrue(tokenizer.lineIs("v "));
+			tokenizer.skipToken();
+			assertEquals(Float.parseFloat(value), tokenizer.nextFloat());
+			assertFalse(tokenizer.hasMoreTokens());
+		}
+		assertFalse(tokenizer.nextLine());
+		assertTrue(tokenizer.atEnd());
+	}
+
+	public void testFaceVertices() throws IOException {
+		WaveFrontTokenizer tokenizer = new WaveFrontTokenizer(new StringReader("f 1/2/3 4//5 6/7 8"));
+		int indices[] = new int[3];
+
+		assertTrue(tokenizer.nextLine());
+		assertTrue(tokenizer.lineIs("f "));
+		tokenizer.skipToken();
+
+		assertTrue(tokenizer.nextFaceVertex(indices));
+		assertEquals(1, indices[0]);
+		assertEquals(2, indices[1]);
+		assertEquals(3, indices[2]);
+
+		assertTrue(tokenizer.nextFaceVertex(indices));
+		assertEquals(4, indices[0]);
+		assertEquals(WaveFrontTokenizer.NO_INDEX, indices[1]);
+		assertEquals(5, indices[2]);
+
+		assertTrue(tokenizer.nextFaceVertex(indices));
+		assertEquals(6, indices[0]);
+		assertEquals(7, indices[1]);
+		assertEquals(WaveFrontTokenizer.NO_INDEX, indices[2]);
+
+		assertTrue(tokenizer.nextFaceVertex(indices));
+		assertEquals(8, indices[0]);
+		assertEquals(WaveFrontTokenizer.NO_INDEX, indices[1]);
+		assertEquals(WaveFrontTokenizer.NO_INDEX, indices[2]);
+
+		assertFalse(tokenizer.nextFaceVertex(indices));
+	}
+}